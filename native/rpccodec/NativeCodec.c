@@ -0,0 +1,505 @@
+#include <stdlib.h>
+#include <string.h>
+#include "com_labs_rpc_transport_NativeCodec.h"
+
+/*
+ * Native compact codec of com.labs.rpc.transport.NativeCodec.
+ * Values are written exactly as DataPacket writes them in the compact format.
+ * Author: Benjamin Dezile
+ */
+
+#define HEADER_SIZE 21				/* Size of the legacy header */
+#define FORMAT_NULL 0x40			/* Null */
+#define FORMAT_BOOL 0x41			/* Boolean */
+#define FORMAT_INT 0x45				/* Integer */
+#define FORMAT_DOUBLE 0x47			/* Double */
+#define FORMAT_LONG 0x48			/* Long */
+#define FORMAT_STRING 0x49			/* String */
+#define FORMAT_INT_ARRAY 0x58		/* Array of integers */
+#define FORMAT_LONG_ARRAY 0x59		/* Array of longs */
+#define FORMAT_DOUBLE_ARRAY 0x5A	/* Array of doubles */
+
+static jclass booleanClass, integerClass, longClass, doubleClass, stringClass;
+static jclass intArrayClass, longArrayClass, doubleArrayClass, illegalArgumentClass;
+static jfieldID booleanValue, integerValue, longValue, doubleValue;
+static jmethodID booleanOf, integerOf, longOf, doubleOf;
+
+static jclass globalClass(JNIEnv *env, const char *name) {
+	jclass local = (*env)->FindClass(env, name);
+	jclass global;
+	if (local == NULL) {
+		return NULL;
+	}
+	global = (jclass)(*env)->NewGlobalRef(env, local);
+	(*env)->DeleteLocalRef(env, local);
+	return global;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+	JNIEnv *env;
+	if ((*vm)->GetEnv(vm, (void **)&env, JNI_VERSION_1_6) != JNI_OK) {
+		return JNI_ERR;
+	}
+	booleanClass = globalClass(env, "java/lang/Boolean");
+	integerClass = globalClass(env, "java/lang/Integer");
+	longClass = globalClass(env, "java/lang/Long");
+	doubleClass = globalClass(env, "java/lang/Double");
+	stringClass = globalClass(env, "java/lang/String");
+	intArrayClass = globalClass(env, "[I");
+	longArrayClass = globalClass(env, "[J");
+	doubleArrayClass = globalClass(env, "[D");
+	illegalArgumentClass = globalClass(env, "java/lang/IllegalArgumentException");
+	if (booleanClass == NULL || integerClass == NULL || longClass == NULL || doubleClass == NULL || stringClass == NULL
+			|| intArrayClass == NULL || longArrayClass == NULL || doubleArrayClass == NULL || illegalArgumentClass == NULL) {
+		return JNI_ERR;
+	}
+	/* Boxed values are read straight from their field, and boxed with valueOf so that caches are used */
+	booleanValue = (*env)->GetFieldID(env, booleanClass, "value", "Z");
+	integerValue = (*env)->GetFieldID(env, integerClass, "value", "I");
+	longValue = (*env)->GetFieldID(env, longClass, "value", "J");
+	doubleValue = (*env)->GetFieldID(env, doubleClass, "value", "D");
+	booleanOf = (*env)->GetStaticMethodID(env, booleanClass, "valueOf", "(Z)Ljava/lang/Boolean;");
+	integerOf = (*env)->GetStaticMethodID(env, integerClass, "valueOf", "(I)Ljava/lang/Integer;");
+	longOf = (*env)->GetStaticMethodID(env, longClass, "valueOf", "(J)Ljava/lang/Long;");
+	doubleOf = (*env)->GetStaticMethodID(env, doubleClass, "valueOf", "(D)Ljava/lang/Double;");
+	if (booleanValue == NULL || integerValue == NULL || longValue == NULL || doubleValue == NULL
+			|| booleanOf == NULL || integerOf == NULL || longOf == NULL || doubleOf == NULL) {
+		return JNI_ERR;
+	}
+	return JNI_VERSION_1_6;
+}
+
+/* Byte order of the wire, a no-op on big-endian hosts */
+#if __BYTE_ORDER__ == __ORDER_LITTLE_ENDIAN__
+#define toBigEndian32(v) __builtin_bswap32(v)
+#define toBigEndian64(v) __builtin_bswap64(v)
+#else
+#define toBigEndian32(v) (v)
+#define toBigEndian64(v) (v)
+#endif
+
+static int putVarInt(jbyte *out, int pos, unsigned int v) {
+	while (v > 0x7F) {
+		out[pos++] = (jbyte)((v & 0x7F) | 0x80);
+		v >>= 7;
+	}
+	out[pos++] = (jbyte)v;
+	return pos;
+}
+
+static int putVarLong(jbyte *out, int pos, unsigned long long v) {
+	while (v > 0x7F) {
+		out[pos++] = (jbyte)((v & 0x7F) | 0x80);
+		v >>= 7;
+	}
+	out[pos++] = (jbyte)v;
+	return pos;
+}
+
+static int putLong(jbyte *out, int pos, unsigned long long v) {
+	int i;
+	for (i=7;i>=0;i--) {
+		out[pos++] = (jbyte)(v >> (8 * i));
+	}
+	return pos;
+}
+
+static int putInt(jbyte *out, int pos, unsigned int v) {
+	out[pos++] = (jbyte)(v >> 24);
+	out[pos++] = (jbyte)(v >> 16);
+	out[pos++] = (jbyte)(v >> 8);
+	out[pos++] = (jbyte)v;
+	return pos;
+}
+
+/* Number of UTF-8 bytes of a string, as PacketBuffer.utf8Length counts them */
+static int utf8Length(const jchar *s, jsize n) {
+	int length = 0;
+	jsize i;
+	for (i=0;i<n;i++) {
+		jchar c = s[i];
+		if (c < 0x80) {
+			length += 1;
+		} else if (c < 0x800) {
+			length += 2;
+		} else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < n && s[i+1] >= 0xDC00 && s[i+1] <= 0xDFFF) {
+			length += 4;
+			i++;
+		} else if (c >= 0xD800 && c <= 0xDFFF) {
+			length += 1;
+		} else {
+			length += 3;
+		}
+	}
+	return length;
+}
+
+/* Encode a string as PacketBuffer.putUTF8 does, unpaired surrogates becoming '?' */
+static int putUTF8(jbyte *out, int pos, const jchar *s, jsize n) {
+	jsize i;
+	for (i=0;i<n;i++) {
+		jchar c = s[i];
+		if (c < 0x80) {
+			out[pos++] = (jbyte)c;
+		} else if (c < 0x800) {
+			out[pos++] = (jbyte)(0xC0 | (c >> 6));
+			out[pos++] = (jbyte)(0x80 | (c & 0x3F));
+		} else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < n && s[i+1] >= 0xDC00 && s[i+1] <= 0xDFFF) {
+			unsigned int cp = 0x10000 + ((c - 0xD800) << 10) + (s[i+1] - 0xDC00);
+			out[pos++] = (jbyte)(0xF0 | (cp >> 18));
+			out[pos++] = (jbyte)(0x80 | ((cp >> 12) & 0x3F));
+			out[pos++] = (jbyte)(0x80 | ((cp >> 6) & 0x3F));
+			out[pos++] = (jbyte)(0x80 | (cp & 0x3F));
+			i++;
+		} else if (c >= 0xD800 && c <= 0xDFFF) {
+			out[pos++] = '?';
+		} else {
+			out[pos++] = (jbyte)(0xE0 | (c >> 12));
+			out[pos++] = (jbyte)(0x80 | ((c >> 6) & 0x3F));
+			out[pos++] = (jbyte)(0x80 | (c & 0x3F));
+		}
+	}
+	return pos;
+}
+
+static jint packString(JNIEnv *env, jstring str, jbyteArray out, jint offset) {
+	jsize n = (*env)->GetStringLength(env, str);
+	const jchar *s = (*env)->GetStringCritical(env, str, NULL);
+	jbyte *b;
+	int pos;
+	if (s == NULL) {
+		return -1;
+	}
+	b = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (b == NULL) {
+		(*env)->ReleaseStringCritical(env, str, s);
+		return -1;
+	}
+	b[offset] = FORMAT_STRING;
+	pos = putVarInt(b, offset + 1, (unsigned int)utf8Length(s, n));
+	pos = putUTF8(b, pos, s, n);
+	(*env)->ReleasePrimitiveArrayCritical(env, out, b, 0);
+	(*env)->ReleaseStringCritical(env, str, s);
+	return pos;
+}
+
+static jint packArray(JNIEnv *env, jarray array, int format, jbyteArray out, jint offset) {
+	jsize n = (*env)->GetArrayLength(env, array);
+	void *values = (*env)->GetPrimitiveArrayCritical(env, array, NULL);
+	jbyte *b;
+	int pos;
+	jsize i;
+	if (values == NULL) {
+		return -1;
+	}
+	b = (*env)->GetPrimitiveArrayCritical(env, out, NULL);
+	if (b == NULL) {
+		(*env)->ReleasePrimitiveArrayCritical(env, array, values, JNI_ABORT);
+		return -1;
+	}
+	b[offset] = (jbyte)format;
+	pos = putVarInt(b, offset + 1, (unsigned int)n);
+	if (format == FORMAT_INT_ARRAY) {
+		for (i=0;i<n;i++, pos += 4) {
+			unsigned int v = toBigEndian32((unsigned int)((jint *)values)[i]);
+			memcpy(b + pos, &v, 4);
+		}
+	} else {
+		/* Longs and doubles share the same 8-byte layout */
+		for (i=0;i<n;i++, pos += 8) {
+			unsigned long long v = toBigEndian64((unsigned long long)((jlong *)values)[i]);
+			memcpy(b + pos, &v, 8);
+		}
+	}
+	(*env)->ReleasePrimitiveArrayCritical(env, out, b, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, array, values, JNI_ABORT);
+	return pos;
+}
+
+static jint packScalar(JNIEnv *env, jbyteArray out, jint offset, jbyte *value, int length) {
+	(*env)->SetByteArrayRegion(env, out, offset, length, value);
+	return offset + length;
+}
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    packObject
+ * Signature: (Ljava/lang/Object;[BI)I
+ */
+JNIEXPORT jint JNICALL Java_com_labs_rpc_transport_NativeCodec_packObject(JNIEnv *env, jclass cls, jobject obj, jbyteArray out, jint offset) {
+	jbyte value[11];
+	if (obj == NULL) {
+		value[0] = FORMAT_NULL;
+		return packScalar(env, out, offset, value, 1);
+	}
+	if ((*env)->IsInstanceOf(env, obj, stringClass)) {
+		return packString(env, (jstring)obj, out, offset);
+	}
+	if ((*env)->IsInstanceOf(env, obj, integerClass)) {
+		jint v = (*env)->GetIntField(env, obj, integerValue);
+		value[0] = FORMAT_INT;
+		return packScalar(env, out, offset, value, putVarInt(value, 1, ((unsigned int)v << 1) ^ (unsigned int)(v >> 31)));
+	}
+	if ((*env)->IsInstanceOf(env, obj, longClass)) {
+		jlong v = (*env)->GetLongField(env, obj, longValue);
+		value[0] = FORMAT_LONG;
+		return packScalar(env, out, offset, value, putVarLong(value, 1, ((unsigned long long)v << 1) ^ (unsigned long long)(v >> 63)));
+	}
+	if ((*env)->IsInstanceOf(env, obj, doubleClass)) {
+		union { jdouble d; jlong l; } bits;
+		bits.d = (*env)->GetDoubleField(env, obj, doubleValue);
+		value[0] = FORMAT_DOUBLE;
+		return packScalar(env, out, offset, value, putLong(value, 1, (unsigned long long)bits.l));
+	}
+	if ((*env)->IsInstanceOf(env, obj, booleanClass)) {
+		value[0] = FORMAT_BOOL;
+		value[1] = (*env)->GetBooleanField(env, obj, booleanValue) ? 1 : 0;
+		return packScalar(env, out, offset, value, 2);
+	}
+	if ((*env)->IsInstanceOf(env, obj, intArrayClass)) {
+		return packArray(env, (jarray)obj, FORMAT_INT_ARRAY, out, offset);
+	}
+	if ((*env)->IsInstanceOf(env, obj, longArrayClass)) {
+		return packArray(env, (jarray)obj, FORMAT_LONG_ARRAY, out, offset);
+	}
+	if ((*env)->IsInstanceOf(env, obj, doubleArrayClass)) {
+		return packArray(env, (jarray)obj, FORMAT_DOUBLE_ARRAY, out, offset);
+	}
+	return -1;
+}
+
+static jobject fail(JNIEnv *env, const char *message) {
+	(*env)->ThrowNew(env, illegalArgumentClass, message);
+	return NULL;
+}
+
+/* Read a varint, returning the position right after it or -1 if truncated or too long */
+static int getVarLong(const unsigned char *b, int pos, int end, int maxBytes, unsigned long long *v) {
+	int shift = 0, i;
+	*v = 0;
+	for (i=0;i<maxBytes && pos < end;i++) {
+		unsigned char c = b[pos++];
+		*v |= (unsigned long long)(c & 0x7F) << shift;
+		if ((c & 0x80) == 0) {
+			return pos;
+		}
+		shift += 7;
+	}
+	return -1;
+}
+
+static unsigned long long getLong(const unsigned char *b, int pos) {
+	unsigned long long v = 0;
+	int i;
+	for (i=0;i<8;i++) {
+		v = (v << 8) | b[pos+i];
+	}
+	return v;
+}
+
+/* Decode UTF-8 into UTF-16, malformed sequences becoming U+FFFD */
+static jsize decodeUTF8(const unsigned char *b, int pos, int end, jchar *out) {
+	jsize n = 0;
+	while (pos < end) {
+		unsigned int c = b[pos++];
+		unsigned int cp;
+		int more, i;
+		if (c < 0x80) {
+			out[n++] = (jchar)c;
+			continue;
+		} else if ((c & 0xE0) == 0xC0) {
+			cp = c & 0x1F; more = 1;
+		} else if ((c & 0xF0) == 0xE0) {
+			cp = c & 0x0F; more = 2;
+		} else if ((c & 0xF8) == 0xF0) {
+			cp = c & 0x07; more = 3;
+		} else {
+			out[n++] = 0xFFFD;
+			continue;
+		}
+		for (i=0;i<more && pos < end && (b[pos] & 0xC0) == 0x80;i++) {
+			cp = (cp << 6) | (b[pos++] & 0x3F);
+		}
+		if (i < more || (more == 1 && cp < 0x80) || (more == 2 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF))) || (more == 3 && (cp < 0x10000 || cp > 0x10FFFF))) {
+			out[n++] = 0xFFFD;
+		} else if (cp >= 0x10000) {
+			cp -= 0x10000;
+			out[n++] = (jchar)(0xD800 + (cp >> 10));
+			out[n++] = (jchar)(0xDC00 + (cp & 0x3FF));
+		} else {
+			out[n++] = (jchar)cp;
+		}
+	}
+	return n;
+}
+
+static jobject unpackString(JNIEnv *env, const unsigned char *b, int pos, int end) {
+	unsigned long long length;
+	jchar local[256];
+	jchar *chars;
+	jsize n;
+	jobject str;
+	pos = getVarLong(b, pos, end, 5, &length);
+	if (pos < 0 || length > (unsigned long long)(end - pos)) {
+		return fail(env, "Invalid string length");
+	}
+	/* Never more UTF-16 units than UTF-8 bytes */
+	chars = length <= 256 ? local : (jchar *)malloc(length * sizeof(jchar));
+	if (chars == NULL) {
+		return fail(env, "Out of memory");
+	}
+	n = decodeUTF8(b, pos, pos + (int)length, chars);
+	str = (*env)->NewString(env, chars, n);
+	if (chars != local) {
+		free(chars);
+	}
+	return str;
+}
+
+static jobject unpackArray(JNIEnv *env, const unsigned char *b, int pos, int end, int format) {
+	unsigned long long count;
+	int size = format == FORMAT_INT_ARRAY ? 4 : 8;
+	jarray array;
+	void *values;
+	jsize i, n;
+	pos = getVarLong(b, pos, end, 5, &count);
+	if (pos < 0 || count > 0x7FFFFFFF || count * size > (unsigned long long)(end - pos)) {
+		return fail(env, "Invalid number of elements");
+	}
+	n = (jsize)count;
+	array = format == FORMAT_INT_ARRAY ? (jarray)(*env)->NewIntArray(env, n)
+		: format == FORMAT_LONG_ARRAY ? (jarray)(*env)->NewLongArray(env, n) : (jarray)(*env)->NewDoubleArray(env, n);
+	if (array == NULL) {
+		return NULL;
+	}
+	values = (*env)->GetPrimitiveArrayCritical(env, array, NULL);
+	if (values == NULL) {
+		return NULL;
+	}
+	if (size == 4) {
+		for (i=0;i<n;i++, pos += 4) {
+			unsigned int v;
+			memcpy(&v, b + pos, 4);
+			((jint *)values)[i] = (jint)toBigEndian32(v);
+		}
+	} else {
+		for (i=0;i<n;i++, pos += 8) {
+			unsigned long long v;
+			memcpy(&v, b + pos, 8);
+			((jlong *)values)[i] = (jlong)toBigEndian64(v);
+		}
+	}
+	(*env)->ReleasePrimitiveArrayCritical(env, array, values, 0);
+	return array;
+}
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    unpackObject
+ * Signature: ([BII)Ljava/lang/Object;
+ */
+JNIEXPORT jobject JNICALL Java_com_labs_rpc_transport_NativeCodec_unpackObject(JNIEnv *env, jclass cls, jbyteArray data, jint offset, jint length) {
+	unsigned char local[64];
+	unsigned char *b;
+	unsigned long long v;
+	int end, pos;
+	jobject res;
+	if (offset < 0 || length <= 0 || offset > (*env)->GetArrayLength(env, data) - length) {
+		return fail(env, "Invalid value bounds");
+	}
+	/* Copied out so that the result can be built with regular JNI calls */
+	b = length <= (jint)sizeof(local) ? local : (unsigned char *)malloc(length);
+	if (b == NULL) {
+		return fail(env, "Out of memory");
+	}
+	(*env)->GetByteArrayRegion(env, data, offset, length, (jbyte *)b);
+	end = length;
+	switch (b[0]) {
+		case FORMAT_NULL:
+			res = NULL;
+			break;
+		case FORMAT_BOOL:
+			res = length < 2 ? fail(env, "Truncated value") : (*env)->CallStaticObjectMethod(env, booleanClass, booleanOf, b[1] == 1 ? JNI_TRUE : JNI_FALSE);
+			break;
+		case FORMAT_INT:
+			pos = getVarLong(b, 1, end, 5, &v);
+			res = pos < 0 ? fail(env, "Malformed varint") : (*env)->CallStaticObjectMethod(env, integerClass, integerOf, (jint)(((unsigned int)v >> 1) ^ -(jint)(v & 1)));
+			break;
+		case FORMAT_LONG:
+			pos = getVarLong(b, 1, end, 10, &v);
+			res = pos < 0 ? fail(env, "Malformed varint") : (*env)->CallStaticObjectMethod(env, longClass, longOf, (jlong)((v >> 1) ^ -(jlong)(v & 1)));
+			break;
+		case FORMAT_DOUBLE:
+			if (length < 9) {
+				res = fail(env, "Truncated value");
+			} else {
+				union { jdouble d; jlong l; } bits;
+				bits.l = (jlong)getLong(b, 1);
+				res = (*env)->CallStaticObjectMethod(env, doubleClass, doubleOf, bits.d);
+			}
+			break;
+		case FORMAT_STRING:
+			res = unpackString(env, b, 1, end);
+			break;
+		case FORMAT_INT_ARRAY:
+		case FORMAT_LONG_ARRAY:
+		case FORMAT_DOUBLE_ARRAY:
+			res = unpackArray(env, b, 1, end, b[0]);
+			break;
+		default:
+			res = fail(env, "Not supported by the native codec");
+	}
+	if (b != local) {
+		free(b);
+	}
+	return res;
+}
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    makeHeaderBytes
+ * Signature: ([BIIIJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_labs_rpc_transport_NativeCodec_makeHeaderBytes(JNIEnv *env, jclass cls, jbyteArray out, jint offset, jint type, jint length, jlong time, jlong seq) {
+	jbyte header[HEADER_SIZE];
+	header[0] = (jbyte)type;
+	putInt(header, 1, (unsigned int)length);
+	putLong(header, 5, (unsigned long long)time);
+	putLong(header, 13, (unsigned long long)seq);
+	(*env)->SetByteArrayRegion(env, out, offset, HEADER_SIZE, header);
+}
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    makePacketBytes
+ * Signature: (IJJ[BII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_labs_rpc_transport_NativeCodec_makePacketBytes(JNIEnv *env, jclass cls, jint type, jlong time, jlong seq, jbyteArray payload, jint offset, jint length) {
+	jbyteArray frame;
+	jbyte *b, *p;
+	if (offset < 0 || length < 0 || offset > (*env)->GetArrayLength(env, payload) - length) {
+		fail(env, "Invalid payload bounds");
+		return NULL;
+	}
+	frame = (*env)->NewByteArray(env, HEADER_SIZE + length);
+	if (frame == NULL) {
+		return NULL;
+	}
+	b = (*env)->GetPrimitiveArrayCritical(env, frame, NULL);
+	if (b == NULL) {
+		return NULL;
+	}
+	p = (*env)->GetPrimitiveArrayCritical(env, payload, NULL);
+	if (p == NULL) {
+		(*env)->ReleasePrimitiveArrayCritical(env, frame, b, JNI_ABORT);
+		return NULL;
+	}
+	b[0] = (jbyte)type;
+	putInt(b, 1, (unsigned int)length);
+	putLong(b, 5, (unsigned long long)time);
+	putLong(b, 13, (unsigned long long)seq);
+	memcpy(b + HEADER_SIZE, p + offset, length);
+	(*env)->ReleasePrimitiveArrayCritical(env, payload, p, JNI_ABORT);
+	(*env)->ReleasePrimitiveArrayCritical(env, frame, b, 0);
+	return frame;
+}
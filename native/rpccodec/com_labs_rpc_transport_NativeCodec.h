@@ -0,0 +1,45 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_labs_rpc_transport_NativeCodec */
+
+#ifndef _Included_com_labs_rpc_transport_NativeCodec
+#define _Included_com_labs_rpc_transport_NativeCodec
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    packObject
+ * Signature: (Ljava/lang/Object;[BI)I
+ */
+JNIEXPORT jint JNICALL Java_com_labs_rpc_transport_NativeCodec_packObject
+  (JNIEnv *, jclass, jobject, jbyteArray, jint);
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    unpackObject
+ * Signature: ([BII)Ljava/lang/Object;
+ */
+JNIEXPORT jobject JNICALL Java_com_labs_rpc_transport_NativeCodec_unpackObject
+  (JNIEnv *, jclass, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    makeHeaderBytes
+ * Signature: ([BIIIJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_labs_rpc_transport_NativeCodec_makeHeaderBytes
+  (JNIEnv *, jclass, jbyteArray, jint, jint, jint, jlong, jlong);
+
+/*
+ * Class:     com_labs_rpc_transport_NativeCodec
+ * Method:    makePacketBytes
+ * Signature: (IJJ[BII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_com_labs_rpc_transport_NativeCodec_makePacketBytes
+  (JNIEnv *, jclass, jint, jlong, jlong, jbyteArray, jint, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
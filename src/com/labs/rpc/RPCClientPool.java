@@ -0,0 +1,617 @@
+package com.labs.rpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import com.labs.rpc.transport.NIOSelector;
+import com.labs.rpc.transport.NIOTransport;
+import com.labs.rpc.util.Call;
+import com.labs.rpc.util.CallBack;
+import com.labs.rpc.util.Queue;
+import com.labs.rpc.util.RPCObject;
+import com.labs.rpc.util.RemoteException;
+
+/**
+ * Several connections to the same server, used as a single router.<br>
+ * Calls are striped over the connections, each one going to the connection with the
+ * fewest calls outstanding, so that throughput is not capped by a single TCP stream.
+ * As with {@link RPCServer}, the routers of the connections have no thread of their own:
+ * calls are sent by the calling threads, frames are read by a few I/O threads (see {@link NIOSelector}),
+ * calls made by the server are processed by a pool of worker threads, and a single thread
+ * times out calls and re-establishes lost connections. Sequence numbers are unique across
+ * the pool so that returns are claimed from the pool, whatever connection the call went through.
+ * Calls outstanding on a lost connection time out right away since there is no telling
+ * whether the server processed them.
+ * @author Benjamin Dezile
+ */
+public class RPCClientPool {
+	
+	public static final int DEFAULT_SIZE = 4;				// Default number of connections
+	public static final int DEFAULT_WORKERS = 1;			// Default number of threads processing calls made by the server
+	public static final int DEFAULT_RECONNECT_DELAY = 1000;	// Default time between attempts to re-establish a connection (in milliseconds)
+	
+	private final InetAddress address;					// Server address
+	private final int port;								// Server port
+	private final Map<String,RPCObject> rpcObjs;		// Shared RPC object map: RPC Name -> Object
+	private final AtomicLong seqCounter;				// Sequence counter shared by all connections
+	private final LinkedBlockingQueue<RPCRouter> ready;	// Routers with incoming calls to process
+	private final Set<RPCRouter> retired;				// Routers of lost connections, with calls not claimed yet
+	private final AtomicInteger next;					// Connection to look at first for the next call
+	private int size;									// Number of connections
+	private int ioThreadCount;							// Number of I/O threads (0 for the default)
+	private int workerCount;							// Number of worker threads
+	private int timeout;								// Call timeout (in seconds, 0 for the default)
+	private int reconnectDelay;							// Time between attempts to re-establish a connection (in milliseconds)
+	private volatile AtomicReferenceArray<RPCRouter> routers;	// Router of each connection (null while lost)
+	private long[] retryTimes;							// Time of the next attempt to re-establish each connection
+	private NIOSelector selector;						// I/O threads
+	private RPCRouter.CallProcessor[] workers;			// Worker threads
+	private Keeper keeper;								// Call timeouter and reconnector
+	private volatile boolean on;						// Whether it is running
+	
+	/**
+	 * Create a new pool
+	 * @param address {@link InetAddress} - Server address
+	 * @param port int - Server port
+	 * @param size int - Number of connections
+	 * @param objs {@link RPCObject}... - Objects calls made by the server are applied to
+	 */
+	public RPCClientPool(InetAddress address, int port, int size, RPCObject... objs) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Invalid number of connections: " + size);
+		}
+		this.address = address;
+		this.port = port;
+		this.size = size;
+		rpcObjs = new ConcurrentHashMap<String,RPCObject>();
+		for (RPCObject obj:objs) {
+			rpcObjs.put(obj.getRPCName(), obj);
+		}
+		seqCounter = new AtomicLong();
+		ready = new LinkedBlockingQueue<RPCRouter>();
+		retired = Collections.newSetFromMap(new ConcurrentHashMap<RPCRouter,Boolean>());
+		next = new AtomicInteger();
+		ioThreadCount = 0;
+		workerCount = DEFAULT_WORKERS;
+		timeout = 0;
+		reconnectDelay = DEFAULT_RECONNECT_DELAY;
+		on = false;
+	}
+	
+	/**
+	 * Create a new pool with the default number of connections
+	 * @param address {@link InetAddress} - Server address
+	 * @param port int - Server port
+	 * @param objs {@link RPCObject}... - Objects calls made by the server are applied to
+	 */
+	public RPCClientPool(InetAddress address, int port, RPCObject... objs) {
+		this(address, port, DEFAULT_SIZE, objs);
+	}
+	
+	/**
+	 * Set the number of threads reading and writing frames. Takes effect on the next start.
+	 * @param n int - Number of threads (at least 1)
+	 */
+	public void setIOThreadCount(int n) {
+		checkThreadCount(n);
+		ioThreadCount = n;
+	}
+	
+	/**
+	 * Set the number of threads processing calls made by the server. Takes effect on the next start.
+	 * @param n int - Number of threads (at least 1)
+	 */
+	public void setWorkerCount(int n) {
+		checkThreadCount(n);
+		workerCount = n;
+	}
+	
+	/**
+	 * Set the timeout of the calls. Takes effect on the next start.
+	 * @param seconds int - Timeout (in seconds, 0 for the default)
+	 */
+	public void setTimeout(int seconds) {
+		timeout = seconds;
+	}
+	
+	/**
+	 * Set the time to wait between attempts to re-establish a lost connection
+	 * @param millis int - Delay (in milliseconds)
+	 */
+	public void setReconnectDelay(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Invalid delay: " + millis);
+		}
+		reconnectDelay = millis;
+	}
+	
+	/**
+	 * Make sure a number of threads is valid, and can be changed
+	 * @param n int - Number of threads
+	 */
+	private void checkThreadCount(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + n);
+		}
+		if (on) {
+			throw new IllegalStateException("Cannot change the number of threads while running");
+		}
+	}
+	
+	/**
+	 * Register a new target, for all connections
+	 * @param name {@link String} - Associated target name
+	 * @param obj {@link RPCObject} - Target object
+	 */
+	public void registerTargetObject(String name, RPCObject obj) {
+		rpcObjs.put(name, obj);
+	}
+	
+	/**
+	 * Remove a given target, for all connections
+	 * @param name {@link String} - Target name
+	 */
+	public void unregisterTargetObject(String name) {
+		rpcObjs.remove(name);
+	}
+	
+	/**
+	 * Open the connections and start processing calls.<br>
+	 * Connections that cannot be established yet are retried in the background.
+	 * @throws IOException If none of the connections could be established
+	 */
+	public synchronized void start() throws IOException {
+		if (on) {
+			return;
+		}
+		selector = ioThreadCount > 0 ? new NIOSelector(ioThreadCount) : NIOSelector.getDefault();
+		routers = new AtomicReferenceArray<RPCRouter>(size);
+		retryTimes = new long[size];
+		on = true;
+		workers = new RPCRouter.CallProcessor[workerCount];
+		for (int i=0;i<workers.length;i++) {
+			workers[i] = new RPCRouter.CallProcessor(ready);
+			workers[i].start();
+		}
+		int connected = 0;
+		for (int i=0;i<size;i++) {
+			if (connect(i)) {
+				connected++;
+			}
+		}
+		if (connected == 0) {
+			stop();
+			throw new IOException("Cannot connect to " + address + ":" + port);
+		}
+		keeper = new Keeper();
+		keeper.start();
+	}
+	
+	/**
+	 * Close all connections and stop processing calls
+	 */
+	public synchronized void stop() {
+		if (!on) {
+			return;
+		}
+		on = false;
+		if (keeper != null) {
+			keeper.interrupt();
+			keeper = null;
+		}
+		for (int i=0;i<routers.length();i++) {
+			RPCRouter router = routers.getAndSet(i, null);
+			if (router != null) {
+				router.stop();
+				router.getTransport().shutdown();
+			}
+		}
+		retired.clear();
+		for (RPCRouter.CallProcessor worker:workers) {
+			worker.interrupt();
+		}
+		ready.clear();
+		if (ioThreadCount > 0) {
+			selector.shutdown();
+		}
+	}
+	
+	/**
+	 * Tell whether the pool is running
+	 * @return boolean
+	 */
+	public boolean isAlive() {
+		return on;
+	}
+	
+	/**
+	 * Get the number of connections currently established
+	 * @return int
+	 */
+	public int getConnectionCount() {
+		int n = 0;
+		for (RPCRouter router:getRouters()) {
+			if (((NIOTransport)router.getTransport()).isConnected()) {
+				n++;
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Get the routers of the established connections
+	 * @return {@link List}
+	 */
+	public List<RPCRouter> getRouters() {
+		List<RPCRouter> list = new ArrayList<RPCRouter>(size);
+		AtomicReferenceArray<RPCRouter> rs = routers;
+		if (rs != null) {
+			for (int i=0;i<rs.length();i++) {
+				RPCRouter router = rs.get(i);
+				if (router != null) {
+					list.add(router);
+				}
+			}
+		}
+		return list;
+	}
+	
+	/**
+	 * Try to establish a given connection
+	 * @param i int - Connection index
+	 * @return boolean True upon success, false otherwise
+	 */
+	private boolean connect(int i) {
+		NIOTransport t = new NIOTransport(address, port, selector);
+		if (t.isConnected()) {
+			RPCRouter router = new RPCRouter(rpcObjs, t, null);
+			/* Numbered along with the other connections */
+			router.seqCounter = seqCounter;
+			router.onFailureCallback = new Disconnect(i, router);
+			try {
+				router.start(timeout, ready);
+				routers.set(i, router);
+				if (!on) {
+					/* Stopped meanwhile */
+					lost(i, router);
+					return false;
+				}
+				return true;
+			} catch (IOException e) {
+				t.shutdown();
+			}
+		}
+		retryTimes[i] = System.currentTimeMillis() + reconnectDelay;
+		return false;
+	}
+	
+	/**
+	 * Drop a lost connection, to be re-established later on.<br>
+	 * Its router is kept around until the calls it still holds are claimed.
+	 * @param i int - Connection index
+	 * @param router {@link RPCRouter} - Router of the connection
+	 */
+	private void lost(int i, RPCRouter router) {
+		/* Retired first so that its calls can always be found */
+		if (on) {
+			retired.add(router);
+		}
+		routers.compareAndSet(i, router, null);
+		router.stop(false);
+		router.getTransport().shutdown();
+		router.abortCalls();
+	}
+	
+	/**
+	 * Get the router of the connection with the fewest calls outstanding
+	 * @return {@link RPCRouter}
+	 * @throws IllegalStateException If no connection is established
+	 */
+	private RPCRouter pick() throws IllegalStateException {
+		AtomicReferenceArray<RPCRouter> rs = routers;
+		if (rs == null || !on) {
+			throw new IllegalStateException("Not started");
+		}
+		RPCRouter best = null;
+		int bestCount = Integer.MAX_VALUE;
+		int n = rs.length();
+		/* Ties are broken round robin */
+		int first = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+		for (int i=0;i<n && bestCount > 0;i++) {
+			RPCRouter router = rs.get((first + i) % n);
+			if (router != null) {
+				int count = router.getInFlightCount();
+				if (count < bestCount) {
+					best = router;
+					bestCount = count;
+				}
+			}
+		}
+		if (best == null) {
+			throw new IllegalStateException("No connection established");
+		}
+		return best;
+	}
+	
+	/**
+	 * Get the router a given call went through
+	 * @param seq long - Call sequence number
+	 * @return {@link RPCRouter}
+	 * @throws IllegalArgumentException If not found
+	 */
+	private RPCRouter owner(long seq) throws IllegalArgumentException {
+		AtomicReferenceArray<RPCRouter> rs = routers;
+		if (rs != null) {
+			for (int i=0;i<rs.length();i++) {
+				RPCRouter router = rs.get(i);
+				if (router != null && router.hasCall(seq)) {
+					return router;
+				}
+			}
+		}
+		for (RPCRouter router:retired) {
+			if (router.hasCall(seq)) {
+				return router;
+			}
+		}
+		throw new IllegalArgumentException("No such call: " + seq);
+	}
+	
+	/**
+	 * Push a remote call out, through the least busy connection
+	 * @param rc {@link RemoteCall} - Call to send
+	 * @throws IllegalStateException If no connection is established
+	 */
+	public void push(RemoteCall rc) throws IllegalStateException {
+		pick().push(rc);
+	}
+	
+	/**
+	 * Push a batch of remote calls out in a single packet, through the least busy connection
+	 * @param batch {@link RemoteCallBatch} - Batch to send
+	 * @throws IllegalStateException If no connection is established
+	 */
+	public void push(RemoteCallBatch batch) throws IllegalStateException {
+		pick().push(batch);
+	}
+	
+	/**
+	 * Push several remote calls out in a single packet
+	 * @param rcs {@link RemoteCall}... - Calls to send
+	 * @return {@link RemoteCallBatch} The batch that was sent
+	 * @throws IllegalStateException If no connection is established
+	 */
+	public RemoteCallBatch pushBatch(RemoteCall... rcs) throws IllegalStateException {
+		RemoteCallBatch batch = new RemoteCallBatch(rcs);
+		push(batch);
+		return batch;
+	}
+	
+	/**
+	 * Get a call return value if available
+	 * @param rc {@link RemoteCall} - Call to get return for
+	 * @return {@link Object}
+	 * @throws IllegalStateException If not available yet
+	 * @throws IllegalArgumentException If not found
+	 * @throws RemoteException When something went wrong on the remote side
+	 * @throws TimeoutException When the call fails to return in time, or its connection was lost
+	 */
+	public Object getReturn(RemoteCall rc) throws IllegalArgumentException, IllegalStateException, RemoteException, TimeoutException {
+		return getReturn(rc.getSeq());
+	}
+	
+	/**
+	 * Get a call return value if available
+	 * @param seq long - Call sequence number
+	 * @return {@link Object}
+	 * @throws IllegalStateException If not available yet
+	 * @throws IllegalArgumentException If not found
+	 * @throws RemoteException When something went wrong on the remote side
+	 * @throws TimeoutException When the call fails to return in time, or its connection was lost
+	 */
+	public Object getReturn(long seq) throws IllegalArgumentException, IllegalStateException, RemoteException, TimeoutException {
+		return owner(seq).getReturn(seq);
+	}
+	
+	/**
+	 * Wait until the given call returns
+	 * @param rc {@link RemoteCall} - Initial call
+	 * @return {@link Object} Returned value
+	 * @throws IllegalArgumentException If not found
+	 * @throws RemoteException When something went wrong on the remote side
+	 * @throws TimeoutException When the call fails to return in time, or its connection was lost
+	 */
+	public Object getReturnBlocking(RemoteCall rc) throws IllegalArgumentException, RemoteException, TimeoutException {
+		return getReturnBlocking(rc.getSeq());
+	}
+	
+	/**
+	 * Wait until the given call returns
+	 * @param seq long - Call sequence number
+	 * @return {@link Object} Returned value
+	 * @throws IllegalArgumentException If not found
+	 * @throws RemoteException When something went wrong on the remote side
+	 * @throws TimeoutException When the call fails to return in time, or its connection was lost
+	 */
+	public Object getReturnBlocking(long seq) throws IllegalArgumentException, RemoteException, TimeoutException {
+		return owner(seq).getReturnBlocking(seq);
+	}
+	
+	/**
+	 * Wait until all the given calls return, up to a common deadline.<br>
+	 * Same as {@link RPCRouter#getReturnsBlocking(Collection, long)}, across all connections:
+	 * returns come in order of completion, whatever connection the calls went through.
+	 * @param rcs {@link Collection} - Calls to wait for
+	 * @param timeout long - Maximum time to wait for all calls (in milliseconds, 0 to wait until they all return or time out)
+	 * @return {@link Map} Call sequence number -> Returned value, in order of completion
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	public Map<Long,Object> getReturnsBlocking(Collection<RemoteCall> rcs, long timeout) throws IllegalArgumentException {
+		Queue<Call> done = new Queue<Call>();
+		Map<Long,RPCRouter> owners = new HashMap<Long,RPCRouter>(rcs.size());
+		Map<RPCRouter,List<Call>> watched = watchCalls(rcs, done, owners);
+		Map<Long,Object> rets = new LinkedHashMap<Long,Object>(owners.size());
+		long exitTime = System.currentTimeMillis() + timeout;
+		try {
+			Call call;
+			while (rets.size() < owners.size()) {
+				if ((call = RPCRouter.nextDone(done, timeout, exitTime)) == null) {
+					/* Deadline reached */
+					break;
+				}
+				long seq = call.getRemoteCall().getSeq();
+				try {
+					rets.put(seq, owners.get(seq).getReturn(seq));
+				} catch (RemoteException e) {
+					rets.put(seq, e);
+				} catch (TimeoutException e) {
+					rets.put(seq, e);
+				}
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			unwatchCalls(watched, done);
+		}
+		return rets;
+	}
+	
+	/**
+	 * Wait until any of the given calls returns or times out, whatever connection they went through.<br>
+	 * The call is not consumed, its return value has to be claimed with {@link #getReturn(RemoteCall)}.
+	 * @param rcs {@link Collection} - Calls to wait for
+	 * @param timeout long - Maximum time to wait (in milliseconds, 0 to wait until one of them returns or times out)
+	 * @return {@link RemoteCall} The first call done, null if none by the deadline
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	public RemoteCall awaitAny(Collection<RemoteCall> rcs, long timeout) throws IllegalArgumentException {
+		Queue<Call> done = new Queue<Call>();
+		Map<RPCRouter,List<Call>> watched = watchCalls(rcs, done, new HashMap<Long,RPCRouter>(rcs.size()));
+		try {
+			Call call = RPCRouter.nextDone(done, timeout, System.currentTimeMillis() + timeout);
+			return call != null ? call.getRemoteCall() : null;
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			unwatchCalls(watched, done);
+		}
+	}
+	
+	/**
+	 * Have the given calls put into a single queue as soon as they are done, whatever their connection
+	 * @param rcs {@link Collection} - Calls to watch
+	 * @param done {@link Queue} - Queue to put calls into
+	 * @param owners {@link Map} - Filled with the router of each call: Call sequence number -> Router
+	 * @return {@link Map} The watched calls of each router
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	private Map<RPCRouter,List<Call>> watchCalls(Collection<RemoteCall> rcs, Queue<Call> done, Map<Long,RPCRouter> owners) throws IllegalArgumentException {
+		/* Group calls by connection */
+		Map<RPCRouter,List<RemoteCall>> groups = new LinkedHashMap<RPCRouter,List<RemoteCall>>();
+		for (RemoteCall rc:rcs) {
+			RPCRouter router = owner(rc.getSeq());
+			List<RemoteCall> group = groups.get(router);
+			if (group == null) {
+				group = new ArrayList<RemoteCall>();
+				groups.put(router, group);
+			}
+			group.add(rc);
+			owners.put(rc.getSeq(), router);
+		}
+		Map<RPCRouter,List<Call>> watched = new LinkedHashMap<RPCRouter,List<Call>>(groups.size());
+		try {
+			for (Map.Entry<RPCRouter,List<RemoteCall>> group:groups.entrySet()) {
+				watched.put(group.getKey(), group.getKey().watchCalls(group.getValue(), done));
+			}
+		} catch (IllegalArgumentException e) {
+			/* Claimed meanwhile */
+			unwatchCalls(watched, done);
+			throw e;
+		}
+		return watched;
+	}
+	
+	/**
+	 * Stop watching the given calls
+	 * @param watched {@link Map} - Watched calls of each router
+	 * @param done {@link Queue} - Queue calls were put into
+	 */
+	private void unwatchCalls(Map<RPCRouter,List<Call>> watched, Queue<Call> done) {
+		for (Map.Entry<RPCRouter,List<Call>> calls:watched.entrySet()) {
+			calls.getKey().unwatchCalls(calls.getValue(), done);
+		}
+	}
+	
+	
+	/**
+	 * Drops a connection once it fails
+	 * @author Benjamin Dezile
+	 */
+	private class Disconnect extends CallBack {
+
+		private final int index;
+
+		public Disconnect(int i, RPCRouter router) {
+			super(router);
+			index = i;
+		}
+
+		@Override
+		public void call(Object... params) {
+			lost(index, (RPCRouter)param);
+		}
+	
+	}
+	
+	
+	/**
+	 * Call timeouter and reconnector, for all connections
+	 * @author Benjamin Dezile
+	 */
+	private class Keeper extends Thread {
+
+		public Keeper() {
+			super("RPC client pool keeper");
+			setDaemon(false);
+		}
+
+		public void run() {
+			while (on) {
+				long now = System.currentTimeMillis();
+				for (int i=0;i<routers.length() && on;i++) {
+					RPCRouter router = routers.get(i);
+					if (router != null) {
+						router.checkTimeouts();
+					} else if (retryTimes[i] <= now) {
+						connect(i);
+					}
+				}
+				for (RPCRouter router:retired) {
+					router.checkTimeouts();
+					if (router.getPendingCount() == 0) {
+						retired.remove(router);
+					}
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	
+	}
+
+}
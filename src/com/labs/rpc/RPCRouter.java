@@ -5,14 +5,27 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import org.json.JSONArray;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import com.labs.rpc.transport.Chunk;
+import com.labs.rpc.transport.Compression;
 import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.Handshake;
+import com.labs.rpc.transport.NIOTransport;
+import com.labs.rpc.transport.Protocol;
+import com.labs.rpc.transport.StringTable;
 import com.labs.rpc.transport.Transport;
 import com.labs.rpc.util.Call;
 import com.labs.rpc.util.CallBack;
+import com.labs.rpc.util.ErrorLog;
+import com.labs.rpc.util.LongMap;
+import com.labs.rpc.util.Pool;
 import com.labs.rpc.util.Queue;
 import com.labs.rpc.util.RPCMethod;
 import com.labs.rpc.util.RPCObject;
@@ -26,21 +39,40 @@ public class RPCRouter {
 
 	protected static final String VOID = "void";	// Return value for void methods
 	protected static int DEFAULT_TIMEOUT = 5;		// Default timeout for calls (in seconds)
-	protected static int TIMEOUT;					// Timeout value for calls
+	protected static final int DEFAULT_CHUNK_SIZE = 16 * 1024;	// Default size of the chunks large frames are sent in
+	private static final ErrorLog errors = new ErrorLog("RPC error", 10, 1000);				// Transport and processing errors
+	private static final ErrorLog callErrors = new ErrorLog("RPC call failed", 10, 1000);	// Errors thrown by called methods
 	
 	protected AtomicBoolean killed;					// Whether this router is dead
 	
 	protected Transport transp;						// Object transport
 	protected Map<String,RPCObject> rpcObjs;		// RPC object map: RPC Name -> Object
 	protected Queue<Call> outCalls;					// Outgoing calls waiting to be sent
-	protected Map<Long,Call> outWait;				// Outgoing calls waiting for returns
+	protected LongMap<Call> outWait;				// Outgoing calls waiting for returns
+	protected AtomicInteger inFlight;				// Number of outgoing calls neither returned nor timed out yet
 	protected Queue<Call> inCalls;					// Incoming calls waiting for processing
-	protected Map<Long,Call> inWait;				// Incoming calls waiting for end of processing
+	protected LongMap<Call> inWait;					// Incoming calls waiting for end of processing
+	protected LongMap<RemoteCallBatchReturn> inBatches;	// Incoming batched call seq -> Batch return being collected
 	protected RecvThread recvLoop;					// Receiving thread
 	protected XmitThread sendLoop;					// Sending thread
-	protected CallProcessor callProc;				// Processing thread for incoming calls
+	protected CallProcessor[] callProcs;			// Processing threads for incoming calls
 	protected CallTimeOuter timeouter;				// Call timeouter
+	protected int timeout;							// Timeout value for calls (in seconds)
 	protected CallBack onFailureCallback;			// Failure callback
+	protected Pool<Call> outCallPool;				// Recycled outgoing calls (null if pooling is disabled)
+	protected Pool<Call> inCallPool;				// Recycled incoming calls, along with their decoded remote call
+	protected AtomicLong seqCounter;				// Sequence counter for the packets sent through this router
+	protected Protocol protocol;					// Wire protocol features used with the peer
+	protected Compression compression;				// Payload compression settings (used once COMPRESS is enabled)
+	protected boolean handshake;					// Whether to send a handshake when starting
+	protected int chunkSize;						// Size of the chunks large frames are sent in (once CHUNKED is enabled)
+	protected ReentrantLock chunkLock;				// Fair lock giving senders of large frames their turn, one chunk at a time
+	protected Chunk.Assembler chunks;				// Large frames being received in chunks
+	protected int stringTableSize;					// Number of strings shared with the peer (once STRINGS is enabled)
+	protected volatile StringTable outStrings;		// Strings shared with the peer by this end
+	protected volatile StringTable inStrings;		// Strings shared by the peer
+	protected BlockingQueue<RPCRouter> ready;		// Routers with incoming calls, for shared processing threads (null if running threads of its own)
+	private RemoteCallReturn recvReturn;			// Return packet reused by the receiving end when pooling
 
 	/**
 	 * Create a new router
@@ -78,9 +110,21 @@ public class RPCRouter {
 	 */
 	public RPCRouter(RPCObject[] objs, Transport transport, CallBack onFailure) {
 		killed = new AtomicBoolean(true);
+		seqCounter = new AtomicLong();
+		inFlight = new AtomicInteger();
+		protocol = new Protocol();
+		compression = new Compression();
+		timeout = DEFAULT_TIMEOUT;
+		handshake = true;
+		chunkSize = DEFAULT_CHUNK_SIZE;
+		chunkLock = new ReentrantLock(true);
+		chunks = new Chunk.Assembler();
+		stringTableSize = StringTable.DEFAULT_SIZE;
+		outStrings = new StringTable(stringTableSize);
+		inStrings = new StringTable(stringTableSize);
 		recvLoop = new RecvThread(this);
 		sendLoop = new XmitThread(this);
-		callProc = new CallProcessor(this);
+		callProcs = new CallProcessor[] {new CallProcessor(this)};
 		timeouter = new CallTimeOuter(this);
 		transp = transport;
 		rpcObjs = new HashMap<String,RPCObject>(objs.length);
@@ -90,6 +134,17 @@ public class RPCRouter {
 		onFailureCallback = onFailure;
 	}
 	
+	/**
+	 * Create a new router sharing its target objects with others
+	 * @param objs {@link Map} - Target objects: RPC Name -> Object (used as is)
+	 * @param transport {@link Transport} - Transport to be used
+	 * @param onFailure {@link CallBack} - Method to call when terminate due to failure (null if none)
+	 */
+	RPCRouter(Map<String,RPCObject> objs, Transport transport, CallBack onFailure) {
+		this(new RPCObject[0], transport, onFailure);
+		rpcObjs = objs;
+	}
+	
 	/**
 	 * Get the associated transport
 	 * @return {@link Transport}
@@ -98,6 +153,212 @@ public class RPCRouter {
 		return transp;
 	}
 	
+	/**
+	 * Get the timeout of the calls made through this router, as given on the last start
+	 * @return int (in seconds)
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Get the wire protocol features used with the peer.<br>
+	 * The features supported by both ends get enabled once the peer's
+	 * handshake is received, and can otherwise be enabled by hand once the peer
+	 * is known to support them. Receiving a frame that uses a feature also
+	 * enables it, since the peer then obviously supports it.
+	 * @return {@link Protocol}
+	 */
+	public Protocol getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * Get the payload compression settings.<br>
+	 * Payloads only get compressed once {@link Protocol#COMPRESS} is enabled.
+	 * @return {@link Compression}
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Enable or disable the handshake.<br>
+	 * When enabled, a {@link Handshake} offering the supported features of
+	 * {@link #getProtocol()} is sent ahead of anything else on every start,
+	 * so that both ends settle on the features they have in common.
+	 * Takes effect on the next start.
+	 * @param enabled boolean - True to send a handshake
+	 */
+	public void setHandshake(boolean enabled) {
+		if (isAlive()) {
+			throw new IllegalStateException("Cannot change the handshake while running");
+		}
+		handshake = enabled;
+	}
+	
+	/**
+	 * Set the size of the chunks large frames are sent in.<br>
+	 * Once {@link Protocol#CHUNKED} is enabled, frames larger than this are split
+	 * into chunks so that smaller frames do not have to wait for the whole transfer.
+	 * @param size int - Chunk size (in bytes)
+	 */
+	public void setChunkSize(int size) {
+		if (size < 1024) {
+			throw new IllegalArgumentException("Invalid chunk size: " + size);
+		}
+		chunkSize = size;
+	}
+	
+	/**
+	 * Set the number of strings shared with the peer.<br>
+	 * Once {@link Protocol#STRINGS} is enabled, short strings sent by this end
+	 * go out in full once, then by index as long as they remain among
+	 * the most recently used. Takes effect on the next start.
+	 * @param size int - Number of strings (see {@link StringTable})
+	 */
+	public void setStringTableSize(int size) {
+		if (size < 1 || size > StringTable.MAX_SIZE) {
+			throw new IllegalArgumentException("Invalid string table size: " + size);
+		}
+		if (isAlive()) {
+			throw new IllegalStateException("Cannot change the string table while running");
+		}
+		stringTableSize = size;
+	}
+	
+	/**
+	 * Send a packet through the transport.<br>
+	 * Frames larger than the chunk size are sent in chunks. Senders of large frames
+	 * take turns through a fair lock, one chunk at a time, so that concurrent
+	 * transfers share the connection evenly, while frames small enough to go out
+	 * whole are sent right away and only ever wait for the chunk being written.
+	 * @param dp {@link DataPacket} - Packet to send
+	 * @throws IOException
+	 */
+	protected void send(DataPacket dp) throws IOException {
+		if (!isChunked(dp)) {
+			transp.send(dp);
+			dp.setSent();
+			return;
+		}
+		Transfer transfer = new Transfer(null, dp, chunkSize);
+		while (!sendChunk(transfer));
+	}
+	
+	/**
+	 * Frame a packet about to be sent, and return whether it is to be sent in chunks.<br>
+	 * The packet is framed as it is then sent (see {@link DataPacket#getBuffers()}), so
+	 * that large raw payloads are not copied. It must be sent before anything else is
+	 * encoded by the calling thread, and reported as sent once written in full
+	 * (see {@link DataPacket#setSent()}).
+	 * @param dp {@link DataPacket} - Packet to send
+	 * @return boolean
+	 */
+	protected boolean isChunked(DataPacket dp) {
+		dp.setStrings(protocol.supports(Protocol.STRINGS) ? outStrings : null);
+		return protocol.supports(Protocol.CHUNKED) && dp.getFrameSize() > chunkSize;
+	}
+	
+	/**
+	 * Send the next chunk of a frame
+	 * @param transfer {@link Transfer} - Frame being sent in chunks
+	 * @return boolean True if that was the last chunk
+	 * @throws IOException
+	 */
+	private boolean sendChunk(Transfer transfer) throws IOException {
+		Chunk chunk = transfer.next();
+		chunk.setShortHeader(protocol.supports(Protocol.SHORT_HEADER));
+		chunkLock.lock();
+		try {
+			transp.send(chunk);
+		} finally {
+			chunkLock.unlock();
+		}
+		if (chunk.isLast()) {
+			transfer.packet.setSent();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Apply the protocol features in use with the peer to an outgoing packet
+	 * @param dp {@link DataPacket} - Packet about to be sent
+	 */
+	protected void prepare(DataPacket dp) {
+		dp.setCompact(protocol.supports(Protocol.COMPACT));
+		dp.setCompression(protocol.supports(Protocol.COMPRESS) ? compression : null);
+		dp.setShortHeader(protocol.supports(Protocol.SHORT_HEADER));
+		dp.setChecksum(protocol.supports(Protocol.CHECKSUM));
+		dp.setErrorCodes(protocol.supports(Protocol.ERRORS));
+	}
+	
+	/**
+	 * Set the number of threads processing incoming calls.<br>
+	 * Calls, including the calls of a same batch, are executed in parallel
+	 * when more than one thread is used. Takes effect on the next start.
+	 * @param n int - Number of processing threads (at least 1)
+	 */
+	public void setProcessorCount(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid number of processors: " + n);
+		}
+		if (isAlive()) {
+			throw new IllegalStateException("Cannot change the number of processors while running");
+		}
+		callProcs = new CallProcessor[n];
+	}
+	
+	/**
+	 * Enable or disable the recycling of internal objects.<br>
+	 * When enabled, the call state of outgoing calls, the call state and decoded packets
+	 * of incoming calls and the return packets are reused instead of being allocated
+	 * for every call, which takes most of the allocation out of the call path.
+	 * Ownership rules then are:
+	 * <ul>
+	 * <li>An outgoing call's state belongs to the router from {@link #push(RemoteCall)} until its
+	 * return is claimed, at which point it gets recycled. The {@link RemoteCall} itself
+	 * always belongs to the caller and is never reused.</li>
+	 * <li>An incoming {@link RemoteCall} is recycled as soon as its return has been sent,
+	 * so target methods must not keep a reference to it (their arguments are not reused).</li>
+	 * <li>The transport must be done with a packet when {@link Transport#send(DataPacket)} returns,
+	 * as return packets are reused right away.</li>
+	 * </ul>
+	 * Takes effect on the next start.
+	 * @param size int - Maximum number of objects to keep in each pool (0 to disable pooling)
+	 */
+	public void setPoolSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid pool size: " + size);
+		}
+		if (isAlive()) {
+			throw new IllegalStateException("Cannot change pooling while running");
+		}
+		if (size == 0) {
+			outCallPool = null;
+			inCallPool = null;
+		} else {
+			outCallPool = new CallPool(size);
+			inCallPool = new CallPool(size);
+		}
+	}
+	
+	/**
+	 * Get the state object for a new call
+	 * @param rc {@link RemoteCall} - Call
+	 * @param pool {@link Pool} - Pool to take it from (null if none)
+	 * @return {@link Call}
+	 */
+	private static Call newCall(RemoteCall rc, Pool<Call> pool) {
+		if (pool == null) {
+			return new Call(rc);
+		}
+		Call call = pool.acquire();
+		call.reset(rc);
+		return call;
+	}
+	
 	/**
 	 * Register a new target
 	 * @param name {@link String} - Associated target name
@@ -136,25 +397,8 @@ public class RPCRouter {
 	 * @param timeout int - General timeout to use (in seconds)
 	 */
 	public void start(int timeout) {
-		killed.set(false);
-		TIMEOUT = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
-		if (outCalls == null) {
-			outCalls = new Queue<Call>();
-		}
-		if (outWait == null) {
-			outWait = new HashMap<Long,Call>(0);
-		} else {
-			/* Reset pending calls to prevent them from timing out */
-			for (Call call:outWait.values()) {
-				call.resetStartTime();
-			}
-		}
-		if (inCalls == null) {
-			inCalls = new Queue<Call>();
-		}
-		if (inWait == null) {
-			inWait = new HashMap<Long,Call>(0);
-		}
+		ready = null;
+		init(timeout);
 		if (timeouter == null) {
 			timeouter = new CallTimeOuter(this);
 		}
@@ -173,11 +417,72 @@ public class RPCRouter {
 		if (!sendLoop.isAlive()) {
 			sendLoop.start();
 		}
-		if (callProc == null) {
-			callProc = new CallProcessor(this);
+		for (int i=0;i<callProcs.length;i++) {
+			if (callProcs[i] == null) {
+				callProcs[i] = new CallProcessor(this);
+			}
+			if (!callProcs[i].isAlive()) {
+				callProcs[i].start();
+			}
+		}
+	}
+	
+	/**
+	 * Start without any thread of its own, over a non-blocking transport.<br>
+	 * Packets are handled by the I/O thread of the transport as they are received,
+	 * incoming calls are processed by shared threads taking this router
+	 * off the given queue (see {@link CallProcessor#CallProcessor(BlockingQueue)}), and
+	 * outgoing calls are sent right away by the calling thread. Timeouts are only
+	 * enforced if something calls {@link #checkTimeouts()} regularly.
+	 * @param timeout int - General timeout to use (in seconds)
+	 * @param workQueue {@link BlockingQueue} - Queue shared with the processing threads
+	 * @throws IOException If the handshake cannot be sent
+	 */
+	void start(int timeout, BlockingQueue<RPCRouter> workQueue) throws IOException {
+		if (!(transp instanceof NIOTransport)) {
+			throw new IllegalStateException("Shared threads require a non-blocking transport");
 		}
-		if (!callProc.isAlive()) {
-			callProc.start();
+		ready = workQueue;
+		recvLoop = null;
+		sendLoop = null;
+		timeouter = null;
+		Arrays.fill(callProcs, null);
+		init(timeout);
+		if (handshake) {
+			transp.send(new Handshake(protocol.getSupported()));
+		}
+		((NIOTransport)transp).setListener(new Receiver());
+	}
+	
+	/**
+	 * Initialize internal states
+	 * @param timeout int - General timeout to use (in seconds)
+	 */
+	private void init(int timeout) {
+		if (killed.getAndSet(false)) {
+			/* Nothing received from the peer is shared anymore */
+			inStrings = new StringTable(stringTableSize);
+		}
+		this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+		if (outCalls == null) {
+			outCalls = new Queue<Call>();
+		}
+		if (outWait == null) {
+			outWait = new LongMap<Call>();
+		} else {
+			/* Reset pending calls to prevent them from timing out */
+			for (Call call:outWait.values()) {
+				call.resetStartTime();
+			}
+		}
+		if (inCalls == null) {
+			inCalls = new Queue<Call>();
+		}
+		if (inWait == null) {
+			inWait = new LongMap<Call>();
+		}
+		if (inBatches == null) {
+			inBatches = new LongMap<RemoteCallBatchReturn>();
 		}
 	}
 	
@@ -201,12 +506,16 @@ public class RPCRouter {
 			if (outWait != null) {
 				outWait.clear();
 			}
+			inFlight.set(0);
 			if (inCalls != null) {
 				inCalls.clear();
 			}
 			if (inWait != null) {
 				inWait.clear();
 			}
+			if (inBatches != null) {
+				inBatches.clear();
+			}
 		}
 	}
 	
@@ -218,9 +527,13 @@ public class RPCRouter {
 			return;
 		}
 		killed.set(true);
-		if (callProc != null) {
-			callProc.interrupt();
-			callProc = null;
+		/* Whatever is left of partly received frames will never come */
+		chunks.clear();
+		for (int i=0;i<callProcs.length;i++) {
+			if (callProcs[i] != null) {
+				callProcs[i].interrupt();
+				callProcs[i] = null;
+			}
 		}
 		if (recvLoop != null) {
 			recvLoop.interrupt();
@@ -243,8 +556,14 @@ public class RPCRouter {
 	 */
 	public boolean isAlive() {
 		if (!killed.get()) {
-			if (callProc == null || !callProc.isAlive()) {
-				return false;
+			if (ready != null) {
+				/* No thread of its own */
+				return true;
+			}
+			for (CallProcessor callProc:callProcs) {
+				if (callProc == null || !callProc.isAlive()) {
+					return false;
+				}
 			}
 			if (recvLoop == null || !recvLoop.isAlive()) {
 				return false;
@@ -261,15 +580,82 @@ public class RPCRouter {
 	}
 	
 	/**
-	 * Push a remote call out
+	 * Get the next sequence number for this connection.<br>
+	 * Only even numbers are handed out so that they never collide with
+	 * the ones of packets that were numbered before being pushed.
+	 * @return long
+	 */
+	protected long nextSeq() {
+		return seqCounter.addAndGet(2);
+	}
+	
+	/**
+	 * Push a remote call out.<br>
+	 * The call gets its sequence number from this router unless it already has one.
 	 * @param rc {@link RemoteCall} - Call to send
 	 */
 	public void push(RemoteCall rc) {
-		Call call = new Call(rc);
-		outCalls.offer(call);
+		rc.assignSeq(nextSeq());
+		prepare(rc);
+		Call call = newCall(rc, outCallPool);
 		synchronized(outWait) {
 			outWait.put(rc.getSeq(), call);
 		}
+		inFlight.incrementAndGet();
+		queueOutgoing(call);
+	}
+	
+	/**
+	 * Push a batch of remote calls out in a single packet.<br>
+	 * The returns of the batched calls are then retrieved individually,
+	 * just like for calls pushed one by one.
+	 * @param batch {@link RemoteCallBatch} - Batch to send
+	 */
+	public void push(RemoteCallBatch batch) {
+		RemoteCall[] rcs = batch.getCalls();
+		Call[] calls = new Call[rcs.length];
+		batch.assignSeq(nextSeq());
+		prepare(batch);
+		synchronized(outWait) {
+			for (int i=0;i<rcs.length;i++) {
+				rcs[i].assignSeq(nextSeq());
+				calls[i] = newCall(rcs[i], outCallPool);
+				outWait.put(rcs[i].getSeq(), calls[i]);
+			}
+		}
+		inFlight.addAndGet(rcs.length);
+		queueOutgoing(new Call(batch, calls));
+	}
+	
+	/**
+	 * Queue an outgoing call for the sending thread, or send it right away
+	 * when running without threads of its own
+	 * @param call {@link Call} - Outgoing call
+	 */
+	private void queueOutgoing(Call call) {
+		if (ready == null) {
+			outCalls.offer(call);
+			return;
+		}
+		call.setPending();
+		try {
+			send(call.getPacket());
+			call.getPacket().clearBytes();
+		} catch (IOException e) {
+			/* Connection error, the receiving end takes it from there */
+			transp.shutdown();
+		}
+	}
+	
+	/**
+	 * Push several remote calls out in a single packet
+	 * @param rcs {@link RemoteCall}... - Calls to send
+	 * @return {@link RemoteCallBatch} The batch that was sent
+	 */
+	public RemoteCallBatch pushBatch(RemoteCall... rcs) {
+		RemoteCallBatch batch = new RemoteCallBatch(rcs);
+		push(batch);
+		return batch;
 	}
 	
 	/**
@@ -305,6 +691,11 @@ public class RPCRouter {
 		if (call.isReturned()) {
 			/* Got return value */
 			Object ret = call.getReturnValue();
+			if (outCallPool != null) {
+				/* Nobody else can get to the call anymore */
+				call.reset(null);
+				outCallPool.release(call);
+			}
 			if (ret instanceof RemoteException) {
 				throw (RemoteException)ret;
 			}
@@ -351,6 +742,121 @@ public class RPCRouter {
 		}
 	}
 	
+	/**
+	 * Wait until all the given calls return, up to a common deadline.<br>
+	 * Returned calls are consumed as with {@link #getReturn(long)}. Failures are
+	 * reported as values rather than thrown so that one failed call does not hide
+	 * the others: a {@link RemoteException} for remote errors and a {@link TimeoutException}
+	 * for calls that timed out. Calls still pending at the deadline are left out
+	 * of the result and can be claimed later on.
+	 * @param rcs {@link Collection} - Calls to wait for
+	 * @param timeout long - Maximum time to wait for all calls (in milliseconds, 0 to wait until they all return or time out)
+	 * @return {@link Map} Call sequence number -> Returned value, in order of completion
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	public Map<Long,Object> getReturnsBlocking(Collection<RemoteCall> rcs, long timeout) throws IllegalArgumentException {
+		Queue<Call> done = new Queue<Call>();
+		List<Call> calls = watchCalls(rcs, done);
+		Map<Long,Object> rets = new LinkedHashMap<Long,Object>(calls.size());
+		long exitTime = System.currentTimeMillis() + timeout;
+		try {
+			Call call;
+			while (rets.size() < calls.size()) {
+				if ((call = nextDone(done, timeout, exitTime)) == null) {
+					/* Deadline reached */
+					break;
+				}
+				long seq = call.getRemoteCall().getSeq();
+				try {
+					rets.put(seq, getReturn(seq));
+				} catch (RemoteException e) {
+					rets.put(seq, e);
+				} catch (TimeoutException e) {
+					rets.put(seq, e);
+				}
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			unwatchCalls(calls, done);
+		}
+		return rets;
+	}
+	
+	/**
+	 * Wait until any of the given calls returns or times out.<br>
+	 * The call is not consumed, its return value has to be claimed with {@link #getReturn(RemoteCall)}.
+	 * @param rcs {@link Collection} - Calls to wait for
+	 * @param timeout long - Maximum time to wait (in milliseconds, 0 to wait until one of them returns or times out)
+	 * @return {@link RemoteCall} The first call done, null if none by the deadline
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	public RemoteCall awaitAny(Collection<RemoteCall> rcs, long timeout) throws IllegalArgumentException {
+		Queue<Call> done = new Queue<Call>();
+		List<Call> calls = watchCalls(rcs, done);
+		try {
+			Call call = nextDone(done, timeout, System.currentTimeMillis() + timeout);
+			return call != null ? call.getRemoteCall() : null;
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			unwatchCalls(calls, done);
+		}
+	}
+	
+	/**
+	 * Have the given calls put into a queue as soon as they are done
+	 * @param rcs {@link Collection} - Calls to watch
+	 * @param done {@link Queue} - Queue to put calls into
+	 * @return {@link List} The watched calls
+	 * @throws IllegalArgumentException If one of the calls is not found
+	 */
+	List<Call> watchCalls(Collection<RemoteCall> rcs, Queue<Call> done) throws IllegalArgumentException {
+		List<Call> calls = new ArrayList<Call>(rcs.size());
+		synchronized(outWait) {
+			for (RemoteCall rc:rcs) {
+				Call call = outWait.get(rc.getSeq());
+				if (call == null) {
+					throw new IllegalArgumentException("No such call: " + rc.getSeq());
+				}
+				calls.add(call);
+			}
+		}
+		for (Call call:calls) {
+			call.addCompletionQueue(done);
+		}
+		return calls;
+	}
+	
+	/**
+	 * Stop watching the given calls
+	 * @param calls {@link List} - Watched calls
+	 * @param done {@link Queue} - Queue calls were put into
+	 */
+	void unwatchCalls(List<Call> calls, Queue<Call> done) {
+		for (Call call:calls) {
+			call.removeCompletionQueue(done);
+		}
+	}
+	
+	/**
+	 * Get the next call that is done
+	 * @param done {@link Queue} - Queue of calls that are done
+	 * @param timeout long - Overall timeout (in milliseconds, 0 if none)
+	 * @param exitTime long - Deadline
+	 * @return {@link Call} Null if the deadline was reached
+	 * @throws InterruptedException
+	 */
+	static Call nextDone(Queue<Call> done, long timeout, long exitTime) throws InterruptedException {
+		if (timeout <= 0) {
+			return done.get(-1);
+		}
+		long remaining = exitTime - System.currentTimeMillis();
+		if (remaining <= 0) {
+			return done.get();
+		}
+		return done.get(remaining / 1000.0);
+	}
+	
 	/**
 	 * Return whether the given call is in the system
 	 * @param seq long - Call sequence number
@@ -362,6 +868,212 @@ public class RPCRouter {
 		}
 	}
 	
+	/**
+	 * Get the number of outgoing calls that were not claimed yet
+	 * @return int
+	 */
+	public int getPendingCount() {
+		LongMap<Call> wait = outWait;
+		if (wait == null) {
+			/* Not started yet */
+			return 0;
+		}
+		synchronized(wait) {
+			return wait.size();
+		}
+	}
+	
+	/**
+	 * Get the number of outgoing calls still waiting for a return, i.e. neither
+	 * returned nor timed out yet, whether or not their returns were claimed
+	 * @return int
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * Handle a received packet.<br>
+	 * Only ever called by one thread at a time, in order of receipt.
+	 * @param dp {@link DataPacket} - Received packet
+	 * @throws IOException If the connection cannot be trusted anymore
+	 * @throws Exception If the packet could not be handled
+	 */
+	protected void receive(DataPacket dp) throws Exception {
+		Call call;
+		if (protocol.supports(Protocol.STRINGS | Protocol.CHECKSUM) && transp.getDroppedFrames() > 0) {
+			/* A dropped frame may have shared strings the peer now refers to */
+			throw new IOException("Shared strings cannot be trusted once frames get dropped");
+		}
+		if (dp.getType() == Chunk.TYPE) {
+			if (!protocol.supports(Protocol.CHUNKED)) {
+				protocol.enable(Protocol.CHUNKED);
+			}
+			if ((dp = chunks.add(dp)) == null) {
+				/* Part of a larger frame, wait for the rest of it */
+				return;
+			}
+		}
+		if (dp.isCompact() && !protocol.supports(Protocol.COMPACT)) {
+			/* The peer speaks the compact format, answer in kind */
+			protocol.enable(Protocol.COMPACT);
+		}
+		if (dp.isCompressed() && !protocol.supports(Protocol.COMPRESS)) {
+			protocol.enable(Protocol.COMPRESS);
+		}
+		if (dp.isShortHeader() && !protocol.supports(Protocol.SHORT_HEADER)) {
+			protocol.enable(Protocol.SHORT_HEADER);
+		}
+		if (dp.hasChecksum() && !protocol.supports(Protocol.CHECKSUM)) {
+			protocol.enable(Protocol.CHECKSUM);
+		}
+		if (dp.getType() == Handshake.TYPE) {
+			/* Settle on the features both ends support */
+			Handshake hs = Handshake.fromPacket(dp);
+			/* The peer just started, and knows none of the strings sent so far */
+			outStrings = new StringTable(stringTableSize);
+			protocol.negotiate(hs.getVersion(), hs.getFeatures());
+		} else if (dp.getType() == RemoteCall.TYPE) {
+			/* Process an incoming call */
+			if (inCallPool == null) {
+				RemoteCall rc = RemoteCall.fromPacket(dp);
+				queueIncoming(new Call(rc), rc, null);
+			} else {
+				/* Decode into the remote call held by a recycled call */
+				Call c = inCallPool.acquire();
+				RemoteCall rc = RemoteCall.fromPacket(dp, c.getRemoteCall());
+				c.reset(rc);
+				queueIncoming(c, rc, null);
+			}
+		} else if (dp.getType() == RemoteCallReturn.TYPE) {
+			/* Process a call return */
+			/* The return value is taken out right away so the packet can be reused */
+			RemoteCallReturn rcr = RemoteCallReturn.fromPacket(dp, inCallPool != null ? recvReturn : null);
+			recvReturn = rcr;
+			if ((call = getWaitingCall(rcr.getSeq())) == null) {
+				throw new Exception("Received return for unknown call: " + rcr.getSeq() + ", outWait = " + outWait.toString());	
+			}
+			/* Only sets the value if the call is pending (e.g. not timed out) */
+			if (call.setReturned(rcr.getValue())) {
+				inFlight.decrementAndGet();
+			}
+		} else if (dp.getType() == RemoteCallBatch.TYPE) {
+			/* Process a batch of incoming calls */
+			RemoteCallBatch rcb = RemoteCallBatch.fromPacket(dp);
+			RemoteCallBatchReturn batchRet = null;
+			if (rcb.returnsTogether()) {
+				batchRet = new RemoteCallBatchReturn(rcb);
+				prepare(batchRet);
+			}
+			for (RemoteCall batched:rcb.getCalls()) {
+				queueIncoming(new Call(batched), batched, batchRet);
+			}
+		} else if (dp.getType() == RemoteCallBatchReturn.TYPE) {
+			/* Process the returns of a batch */
+			RemoteCallBatchReturn rcbr = RemoteCallBatchReturn.fromPacket(dp);
+			for (int i=0;i<rcbr.size();i++) {
+				if ((call = getWaitingCall(rcbr.getSeq(i))) == null) {
+					errors.log("Received batch return for unknown call: " + rcbr.getSeq(i), null);
+					continue;
+				}
+				if (call.setReturned(rcbr.getValue(i))) {
+					inFlight.decrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queue an incoming call for processing
+	 * @param c {@link Call} - Call state
+	 * @param rc {@link RemoteCall} - Incoming call
+	 * @param batchRet {@link RemoteCallBatchReturn} - Batch return to collect the return into (null if returned alone)
+	 */
+	private void queueIncoming(Call c, RemoteCall rc, RemoteCallBatchReturn batchRet) {
+		if (batchRet != null) {
+			synchronized(inBatches) {
+				inBatches.put(rc.getSeq(), batchRet);
+			}
+		}
+		synchronized(inWait) {
+			inWait.put(rc.getSeq(), c);
+		}
+		inCalls.offer(c);
+		if (ready != null) {
+			/* One turn of a shared processing thread per call */
+			ready.offer(this);
+		}
+	}
+	
+	/**
+	 * Find the outgoing call waiting for the given return.<br>
+	 * Calls are put in wait before being sent, so a return never comes
+	 * ahead of its call. This may run on an I/O thread shared with other
+	 * connections, and must not wait.
+	 * @param seq long - Call sequence number
+	 * @return {@link Call} Null if not found
+	 */
+	private Call getWaitingCall(long seq) {
+		synchronized(outWait) {
+			return outWait.get(seq);
+		}
+	}
+	
+	
+	/**
+	 * Time out the outgoing calls waiting for too long, and drop unclaimed void calls
+	 */
+	protected void checkTimeouts() {
+		Call call;
+		long[] callSeqs;
+		if (outWait == null) {
+			/* Not started yet */
+			return;
+		}
+		/* Get the calls to loop over */
+		synchronized(outWait) {
+			callSeqs = outWait.keys();
+		}
+		for (long seq:callSeqs) {
+			/* Checked under lock since calls get recycled once claimed */
+			synchronized(outWait) {	
+				call = outWait.get(seq); 
+				if (call == null) {
+					continue;
+				}
+				if (VOID.equals(call.getReturnValue())) {
+					/* Void-return call */
+					if (call.getStartTime() + 2 * timeout * 1000 < System.currentTimeMillis()) {
+						/* Remove since it has not been claimed and is useless anyway */
+						outWait.remove(seq);
+					}
+				} else if (call.getStartTime() + timeout * 1000 < System.currentTimeMillis()) {
+					/* Timed out non-void call */
+					if (call.setTimedOut()) {
+						inFlight.decrementAndGet();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Time out all the outgoing calls still waiting for a return, e.g. once the connection is lost
+	 */
+	protected void abortCalls() {
+		if (outWait == null) {
+			/* Not started yet */
+			return;
+		}
+		synchronized(outWait) {
+			for (Call call:outWait.values()) {
+				if (call.setTimedOut()) {
+					inFlight.decrementAndGet();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Receiving thread
 	 * @author Benjamin Dezile
@@ -385,40 +1097,12 @@ public class RPCRouter {
 		
 		public void run() {
 			DataPacket dp;
-			RemoteCall rc;
-			RemoteCallReturn rcr;
-			Call call;
+			/* Strings shared by the peer are decoded in order, by this thread only */
+			router.inStrings.bind();
 			while(on) {
 				try {
 					if ((dp = router.transp.recv()) != null) {
-						if (dp.getType() == RemoteCall.TYPE) {
-							/* Process an incoming call */
-							rc = RemoteCall.fromPacket(dp);
-							Call c = new Call(rc);
-							router.inCalls.offer(c);
-							synchronized(router.inWait) {
-								router.inWait.put(rc.getSeq(), c);
-							}
-						} else if (dp.getType() == RemoteCallReturn.TYPE) {
-							/* Process a call return */
-							rcr = RemoteCallReturn.fromPacket(dp);
-							synchronized(router.outWait) {
-								call = router.outWait.get(rcr.getSeq());
-							}
-							if (call == null) {
-								Thread.sleep(2);
-								/* Retrying as it may have returned before being queued */
-								synchronized(router.outWait) {
-									call = router.outWait.get(rcr.getSeq());
-								}
-							}
-							if (call == null) {
-								throw new Exception("Received return for unknown call: " + rcr.getSeq() + ", outWait = " + router.outWait.toString());	
-							}
-							if (call.isPending()) {
-								call.setReturned(rcr.getValue());
-							}
-						}
+						router.receive(dp);
 					} else {
 						/* Sleeps a little to prevent from spinning too fast */
 						Thread.sleep(5);
@@ -434,8 +1118,52 @@ public class RPCRouter {
 				} catch (InterruptedException e) {
 					break;
 				} catch (Exception e) {
-					System.err.println("Error while receiving rpc data");
-					e.printStackTrace();
+					errors.log("Error while receiving rpc data", e);
+				}
+			}
+		}
+		
+	}
+	
+	
+	/**
+	 * Handles packets on the I/O thread of a non-blocking transport,
+	 * in place of the receiving thread
+	 * @author Benjamin Dezile
+	 */
+	private class Receiver implements NIOTransport.Listener {
+		
+		@Override
+		public void received(NIOTransport t, DataPacket dp) {
+			/* The I/O thread serves other connections, with strings of their own */
+			inStrings.bind();
+			try {
+				receive(dp);
+			} catch (IOException e) {
+				/* Connection error, abort all */
+				t.shutdown();
+				failed();
+			} catch (Exception e) {
+				errors.log("Error while receiving rpc data", e);
+			} finally {
+				StringTable.unbind();
+			}
+		}
+		
+		@Override
+		public void closed(NIOTransport t, IOException cause) {
+			/* Also when shut down upon a send error, unless stopped first */
+			failed();
+		}
+		
+		/**
+		 * Abort all and call the failure callback, once, unless stopped already
+		 */
+		private void failed() {
+			if (!killed.get()) {
+				kill();
+				if (onFailureCallback != null) {
+					onFailureCallback.call();
 				}
 			}
 		}
@@ -465,28 +1193,58 @@ public class RPCRouter {
 		}
 		
 		public void run() {
-			RemoteCall rc;
 			Call call = null;
+			LinkedList<Transfer> transfers = new LinkedList<Transfer>();	// Calls being sent in chunks, taking turns
+			if (router.handshake) {
+				try {
+					/* Tell the peer what this end supports before sending anything else */
+					router.transp.send(new Handshake(router.protocol.getSupported()));
+				} catch (IOException e) {
+					router.kill();
+					return;
+				}
+			}
 			while (on) {
 				try {
-					if ((call = router.outCalls.poll()) != null) {
-						rc = call.getRemoteCall();
+					/* Only wait for calls when there is no chunk left to send */
+					if ((call = transfers.isEmpty() ? router.outCalls.poll() : router.outCalls.get()) != null) {
 						/* Update call status */
 						call.setPending();
-						/* Send remote call */
-						router.transp.send(rc);
+						if (router.isChunked(call.getPacket())) {
+							/* Sent a chunk at a time, in turn with other calls */
+							transfers.addLast(new Transfer(call, call.getPacket(), router.chunkSize));
+						} else {
+							/* Send remote call */
+							router.transp.send(call.getPacket());
+							call.getPacket().setSent();
+							/* Sent, no need to hold onto the frame while waiting for the return */
+							call.getPacket().clearBytes();
+						}
+						call = null;
+					}
+					Transfer transfer = transfers.pollFirst();
+					if (transfer != null) {
+						call = transfer.call;
+						if (router.sendChunk(transfer)) {
+							call.getPacket().clearBytes();
+						} else {
+							transfers.addLast(transfer);
+						}
+						call = null;
 					}
 				} catch (IOException e) {
-					/* Put the call back into queue to preserve data integrity */
+					/* Put the calls back into queue to preserve data integrity */
 					if (call != null) {
 						router.outCalls.putBack(call);
 					}
+					for (Transfer transfer:transfers) {
+						router.outCalls.putBack(transfer.call);
+					}
 					/* Connection error, abort all */
 					router.kill();
 					break;
 				} catch (Exception e) {
-					System.err.println("Error while receiving rpc data");
-					e.printStackTrace();
+					errors.log("Error while receiving rpc data", e);
 				}
 			}
 		}
@@ -494,21 +1252,87 @@ public class RPCRouter {
 	}
 	
 	
+	/**
+	 * Frame being sent in chunks
+	 * @author Benjamin Dezile
+	 */
+	private static class Transfer {
+		
+		private final Call call;			// Outgoing call being sent (null if not sent by the sending thread)
+		private final DataPacket packet;	// Packet being sent
+		private final ByteBuffer[] frame;	// Buffers of the frame, positioned at the next chunk
+		private final int size;				// Chunk size
+		private int index;					// Buffer the next chunk starts in
+		
+		public Transfer(Call c, DataPacket dp, int chunkSize) {
+			call = c;
+			packet = dp;
+			frame = dp.getBuffers();
+			size = chunkSize;
+			index = 0;
+		}
+		
+		/**
+		 * Get the next chunk of the frame, slicing its buffers without copying them
+		 * @return {@link Chunk}
+		 */
+		public Chunk next() {
+			List<ByteBuffer> slice = new ArrayList<ByteBuffer>(2);
+			int room = size;
+			while (room > 0 && index < frame.length) {
+				ByteBuffer buf = frame[index];
+				int n = Math.min(room, buf.remaining());
+				if (n > 0) {
+					ByteBuffer part = buf.slice();
+					part.limit(n);
+					slice.add(part);
+					buf.position(buf.position() + n);
+					room -= n;
+				}
+				if (!buf.hasRemaining()) {
+					index++;
+				}
+			}
+			return new Chunk(packet, slice.toArray(new ByteBuffer[slice.size()]), index == frame.length);
+		}
+		
+	}
+	
+	
 	/**
 	 * Processor incoming calls
 	 * @author Benjamin Dezile
 	 */
-	private static class CallProcessor extends Thread {
+	static class CallProcessor extends Thread {
 		
 		private boolean on;
-		private RPCRouter router;
+		private RPCRouter router;						// Router processed (null if shared)
+		private BlockingQueue<RPCRouter> ready;			// Routers with calls to process (null if processing a single router)
 		private Map<Integer,Method> cachedMethods;
+		private RemoteCallReturn retPacket;				// Return packet reused when pooling
 		
 		public CallProcessor(RPCRouter r) {
 			super("RPC call processor");
 			setDaemon(false);
 			on = true;
 			router = r;
+			ready = null;
+			cachedMethods = new HashMap<Integer,Method>(0);
+		}
+		
+		/**
+		 * Create a processing thread shared by routers running without threads of their own.<br>
+		 * Each time a call comes in, its router gets queued, and one call is processed
+		 * per turn. The routers are expected to share the same target objects, methods
+		 * being looked up once per processing thread.
+		 * @param workQueue {@link BlockingQueue} - Queue of routers with calls to process
+		 */
+		public CallProcessor(BlockingQueue<RPCRouter> workQueue) {
+			super("RPC shared call processor");
+			setDaemon(false);
+			on = true;
+			router = null;
+			ready = workQueue;
 			cachedMethods = new HashMap<Integer,Method>(0);
 		}
 		
@@ -518,43 +1342,96 @@ public class RPCRouter {
 		}
 		
 		public void run() {
-			RemoteCall rc;
+			RPCRouter r;
 			Call call;
-			Object ret;
 			while (on) {
-				try {
-					if ((call = router.inCalls.poll()) != null) {
-						rc = call.getRemoteCall();
-						/* Update call status to 'pending' */
-						call.setPending();
-						/* Make the actual call */
-						ret = makeCall(rc);
-						/* Remove the call from the waiting list */
-						synchronized(router.inWait) {
-							router.inWait.remove(call.getRemoteCall().getSeq());
-						}
-						/* Send return value back to caller */
-						router.transp.send(new RemoteCallReturn(rc, ret));
+				if (ready == null) {
+					r = router;
+					call = r.inCalls.poll();
+				} else {
+					try {
+						r = ready.take();
+					} catch (InterruptedException e) {
+						break;
 					}
-				} catch (IOException e) {
-					/* Connection error, abort all */
-					router.kill();
+					/* None if the router was stopped in the meantime */
+					call = r.inCalls.get();
+				}
+				if (call != null && !process(r, call) && ready == null) {
 					break;
-				} catch (Exception e) {
-					System.err.println("Error while processing incoming call");
-					e.printStackTrace();
 				}
 			}
 		}
 		
-		private Object makeCall(RemoteCall rc) throws Exception {
+		/**
+		 * Process an incoming call and send its return back
+		 * @param r {@link RPCRouter} - Router the call came through
+		 * @param call {@link Call} - Incoming call
+		 * @return boolean False if the connection failed
+		 */
+		private boolean process(RPCRouter r, Call call) {
+			RemoteCall rc;
+			Object ret;
+			RemoteCallBatchReturn batchRet;
+			try {
+				rc = call.getRemoteCall();
+				/* Update call status to 'pending' */
+				call.setPending();
+				/* Make the actual call */
+				ret = makeCall(r, rc);
+				/* Remove the call from the waiting list */
+				synchronized(r.inWait) {
+					r.inWait.remove(call.getRemoteCall().getSeq());
+				}
+				synchronized(r.inBatches) {
+					batchRet = r.inBatches.remove(rc.getSeq());
+				}
+				if (batchRet == null) {
+					/* Send return value back to caller */
+					RemoteCallReturn rcr;
+					if (r.inCallPool == null) {
+						rcr = new RemoteCallReturn(rc, ret);
+					} else if (retPacket == null) {
+						rcr = retPacket = new RemoteCallReturn(rc, ret);
+					} else {
+						rcr = retPacket;
+						rcr.reset(rc, ret);
+					}
+					r.prepare(rcr);
+					r.send(rcr);
+					if (r.inCallPool != null) {
+						/* Recycle the call along with its decoded packet */
+						r.inCallPool.release(call);
+					}
+				} else if (batchRet.put(rc, ret)) {
+					/* Last call of the batch, send all return values back at once */
+					r.send(batchRet);
+				}
+			} catch (IOException e) {
+				/* Connection error, abort all */
+				r.kill();
+				return false;
+			} catch (Exception e) {
+				errors.log("Error while processing incoming call", e);
+			}
+			return true;
+		}
+		
+		/**
+		 * Make an incoming call
+		 * @param r {@link RPCRouter} - Router the call came through
+		 * @param rc {@link RemoteCall} - Call
+		 * @return {@link Object} Return value upon success, a remote exception otherwise
+		 */
+		private Object makeCall(RPCRouter r, RemoteCall rc) {
 			Method method = null;
-			RPCObject target = router.getTargetObject(rc.getTarget());
+			RPCObject target = r.getTargetObject(rc.getTarget());
+			if (target == null) {
+				return new RemoteException(RemoteException.ERROR_TARGET, "Target not found: " + rc.getTarget());
+			}
 			int methSig = (rc.getTarget() + rc.getMethod()).hashCode();
-			if ((method = cachedMethods.get(methSig)) == null) {
-				if (target == null) {
-					throw new Exception("Target not found: " + rc.getTarget());
-				}
+			if ((method = cachedMethods.get(methSig)) == null || !method.getDeclaringClass().isInstance(target)) {
+				method = null;
 				Class<?> clazz = target.getClass();
 				for (Method meth:clazz.getMethods()) {
 					if (rc.getMethod().equals(meth.getName())) {
@@ -563,14 +1440,21 @@ public class RPCRouter {
 							cachedMethods.put(methSig, meth);
 							break;
 						}
-						throw new Exception("Not a valid RPC method");
+						return new RemoteException(RemoteException.ERROR_METHOD, "Not a valid RPC method: " + rc.getMethod());
 					}
 				}
 			}
 			if (method != null) {
-				return callMethod(target, method, rc.getArguments());
+				/* Arguments only get decoded here, once the call is known to be valid */
+				Object[] args;
+				try {
+					args = rc.getArguments();
+				} catch (IllegalArgumentException e) {
+					return new RemoteException(RemoteException.ERROR_ARGUMENTS, e.getMessage());
+				}
+				return callMethod(target, method, args);
 			}
-			throw new Exception("Method not found");
+			return new RemoteException(RemoteException.ERROR_METHOD, "Method not found: " + rc.getMethod());
 		}
 		
 		/**
@@ -606,18 +1490,17 @@ public class RPCRouter {
 					return VOID;
 				}
 			} catch (IllegalArgumentException e) {
-				JSONArray array = new JSONArray();
-				for (Object arg:args) {
-					array.put(arg);
+				/* Only the argument types, the values may be large */
+				StringBuffer sb = new StringBuffer(meth.getName()).append('(');
+				for (int i=0;args!=null&&i<args.length;i++) {
+					sb.append(i > 0 ? ", " : "").append(args[i] != null ? args[i].getClass().getSimpleName() : "null");
 				}
-				ret = new RemoteException(e.getMessage() + ": meth = " + meth + ", args = " + array.toString());
-				e.printStackTrace();
+				ret = new RemoteException(RemoteException.ERROR_ARGUMENTS, e.getMessage() + ": " + sb.append(')'));
 			} catch (IllegalAccessException e) {
-				ret = new RemoteException(e);
-				e.printStackTrace();
+				ret = new RemoteException(RemoteException.ERROR_ACCESS, e);
 			} catch (InvocationTargetException e) {
-				ret = new RemoteException(e.getTargetException());
-				e.getTargetException().printStackTrace();
+				ret = new RemoteException(RemoteException.ERROR_INVOCATION, e.getTargetException());
+				callErrors.log(meth.getName() + " threw " + e.getTargetException(), e.getTargetException());
 			}
 			return ret;
 		}
@@ -648,35 +1531,8 @@ public class RPCRouter {
 		}
 		
 		public void run() {
-			Call call;
-			Set<Long> callSeqs;
 			while (on) {
-				/* Get the calls to loop over */
-				synchronized(router.outWait) {
-					callSeqs = new HashSet<Long>(router.outWait.keySet());
-				}
-				if (callSeqs.size() > 0) {
-					for (Long seq:callSeqs) {
-						synchronized(router.outWait) {	
-							call = router.outWait.get(seq); 
-						}
-						if (call == null) {
-							continue;
-						}
-						if (VOID.equals(call.getReturnValue())) {
-							/* Void-return call */
-							if (call.getStartTime() + 2 * RPCRouter.TIMEOUT * 1000 < System.currentTimeMillis()) {
-								synchronized(router.outWait) {
-									/* Remove since it has not been claimed and is useless anyway */
-									router.outWait.remove(seq);
-								}
-							}
-						} else if (call.getStartTime() + RPCRouter.TIMEOUT * 1000 < System.currentTimeMillis()) {
-							/* Timed out non-void call */
-							call.setTimedOut();
-						}
-					}
-				}
+				router.checkTimeouts();
 				try {
 					Thread.sleep(100);
 				} catch (InterruptedException e) {
@@ -687,4 +1543,21 @@ public class RPCRouter {
 		
 	}
 	
-}
+	/**
+	 * Pool of call state objects
+	 * @author Benjamin Dezile
+	 */
+	private static class CallPool extends Pool<Call> {
+		
+		public CallPool(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		protected Call create() {
+			return new Call((RemoteCall)null);
+		}
+		
+	}
+	
+}
\ No newline at end of file
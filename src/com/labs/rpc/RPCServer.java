@@ -0,0 +1,329 @@
+package com.labs.rpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import com.labs.rpc.transport.NIOSelector;
+import com.labs.rpc.transport.NIOTransport;
+import com.labs.rpc.util.CallBack;
+import com.labs.rpc.util.ErrorLog;
+import com.labs.rpc.util.RPCObject;
+
+/**
+ * Accept RPC connections and serve them all with shared threads.<br>
+ * Every connection gets its own router, all of which share the same target objects.
+ * The routers have no thread of their own: frames are read, decoded and written by
+ * a few I/O threads (see {@link NIOSelector}), incoming calls are processed by a
+ * pool of worker threads, and a single thread times out the calls made to clients.
+ * New connections are taken by a single acceptor thread, since accepting on a blocking
+ * channel is serialized anyway. The number of threads thus does not depend on the number
+ * of connections.
+ * @author Benjamin Dezile
+ */
+public class RPCServer {
+	
+	public static final int DEFAULT_WORKERS = 16;		// Default number of worker threads
+	public static final int DEFAULT_BACKLOG = 1024;		// Default number of connections waiting to be accepted
+	
+	private static final ErrorLog errors = new ErrorLog("RPC server error", 10, 1000);	// Accept errors
+	
+	private final InetAddress address;					// Local address (null for all)
+	private final int port;								// Local port (0 for any)
+	private final Map<String,RPCObject> rpcObjs;		// Shared RPC object map: RPC Name -> Object
+	private final Set<RPCRouter> routers;				// Routers of the open connections
+	private final LinkedBlockingQueue<RPCRouter> ready;	// Routers with incoming calls to process
+	private int ioThreadCount;							// Number of I/O threads (0 for the default)
+	private int workerCount;							// Number of worker threads
+	private int backlog;								// Number of connections waiting to be accepted
+	private int timeout;								// Call timeout (in seconds, 0 for the default)
+	private ServerSocketChannel server;					// Listening socket
+	private NIOSelector selector;						// I/O threads
+	private Acceptor acceptor;							// Acceptor thread
+	private RPCRouter.CallProcessor[] workers;			// Worker threads
+	private Sweeper sweeper;							// Call timeouter
+	private volatile boolean on;						// Whether it is running
+	
+	/**
+	 * Create a new server
+	 * @param address {@link InetAddress} - Local address to listen on (null for all)
+	 * @param port int - Port to listen on (0 for any, see {@link #getPort()})
+	 * @param objs {@link RPCObject}... - Objects calls are applied to
+	 */
+	public RPCServer(InetAddress address, int port, RPCObject... objs) {
+		this.address = address;
+		this.port = port;
+		rpcObjs = new ConcurrentHashMap<String,RPCObject>();
+		for (RPCObject obj:objs) {
+			rpcObjs.put(obj.getRPCName(), obj);
+		}
+		routers = Collections.newSetFromMap(new ConcurrentHashMap<RPCRouter,Boolean>());
+		ready = new LinkedBlockingQueue<RPCRouter>();
+		ioThreadCount = 0;
+		workerCount = DEFAULT_WORKERS;
+		backlog = DEFAULT_BACKLOG;
+		timeout = 0;
+		on = false;
+	}
+	
+	/**
+	 * Create a new server listening on all local addresses
+	 * @param port int - Port to listen on (0 for any, see {@link #getPort()})
+	 * @param objs {@link RPCObject}... - Objects calls are applied to
+	 */
+	public RPCServer(int port, RPCObject... objs) {
+		this(null, port, objs);
+	}
+	
+	/**
+	 * Set the number of threads reading and writing frames. Takes effect on the next start.
+	 * @param n int - Number of threads (at least 1)
+	 */
+	public void setIOThreadCount(int n) {
+		checkThreadCount(n);
+		ioThreadCount = n;
+	}
+	
+	/**
+	 * Set the number of threads processing incoming calls. Takes effect on the next start.
+	 * @param n int - Number of threads (at least 1)
+	 */
+	public void setWorkerCount(int n) {
+		checkThreadCount(n);
+		workerCount = n;
+	}
+	
+	/**
+	 * Set the number of connections waiting to be accepted. Takes effect on the next start.
+	 * @param n int - Number of connections
+	 */
+	public void setBacklog(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid backlog: " + n);
+		}
+		backlog = n;
+	}
+	
+	/**
+	 * Set the timeout of the calls made to clients. Takes effect on the next start.
+	 * @param seconds int - Timeout (in seconds, 0 for the default)
+	 */
+	public void setTimeout(int seconds) {
+		timeout = seconds;
+	}
+	
+	/**
+	 * Make sure a number of threads is valid, and can be changed
+	 * @param n int - Number of threads
+	 */
+	private void checkThreadCount(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + n);
+		}
+		if (on) {
+			throw new IllegalStateException("Cannot change the number of threads while running");
+		}
+	}
+	
+	/**
+	 * Register a new target, for all connections
+	 * @param name {@link String} - Associated target name
+	 * @param obj {@link RPCObject} - Target object
+	 */
+	public void registerTargetObject(String name, RPCObject obj) {
+		rpcObjs.put(name, obj);
+	}
+	
+	/**
+	 * Remove a given target, for all connections
+	 * @param name {@link String} - Target name
+	 */
+	public void unregisterTargetObject(String name) {
+		rpcObjs.remove(name);
+	}
+	
+	/**
+	 * Start listening and serving connections
+	 * @throws IOException If the server socket cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (on) {
+			return;
+		}
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(address, port), backlog);
+		selector = ioThreadCount > 0 ? new NIOSelector(ioThreadCount) : NIOSelector.getDefault();
+		on = true;
+		workers = new RPCRouter.CallProcessor[workerCount];
+		for (int i=0;i<workers.length;i++) {
+			workers[i] = new RPCRouter.CallProcessor(ready);
+			workers[i].start();
+		}
+		sweeper = new Sweeper();
+		sweeper.start();
+		acceptor = new Acceptor();
+		acceptor.start();
+	}
+	
+	/**
+	 * Stop accepting connections and close all open ones
+	 */
+	public synchronized void stop() {
+		if (!on) {
+			return;
+		}
+		on = false;
+		try {
+			server.close();
+		} catch (IOException e) {}
+		acceptor.interrupt();
+		sweeper.interrupt();
+		for (RPCRouter router:routers) {
+			router.stop();
+			router.getTransport().shutdown();
+		}
+		routers.clear();
+		for (RPCRouter.CallProcessor worker:workers) {
+			worker.interrupt();
+		}
+		ready.clear();
+		if (ioThreadCount > 0) {
+			selector.shutdown();
+		}
+	}
+	
+	/**
+	 * Tell whether the server is running
+	 * @return boolean
+	 */
+	public boolean isAlive() {
+		return on;
+	}
+	
+	/**
+	 * Get the port the server listens on
+	 * @return int The actual port, even if any was asked for (-1 if not started)
+	 */
+	public int getPort() {
+		ServerSocketChannel sc = server;
+		return sc != null ? sc.socket().getLocalPort() : -1;
+	}
+	
+	/**
+	 * Get the number of open connections
+	 * @return int
+	 */
+	public int getConnectionCount() {
+		return routers.size();
+	}
+	
+	/**
+	 * Get the routers of the open connections, e.g. to make calls to clients
+	 * @return {@link List}
+	 */
+	public List<RPCRouter> getRouters() {
+		return new ArrayList<RPCRouter>(routers);
+	}
+	
+	/**
+	 * Start serving an accepted connection
+	 * @param sc {@link SocketChannel} - Connection
+	 * @throws IOException
+	 */
+	protected void serve(SocketChannel sc) throws IOException {
+		NIOTransport t = new NIOTransport(sc, selector);
+		RPCRouter router = new RPCRouter(rpcObjs, t, null);
+		router.onFailureCallback = new Disconnect(router);
+		routers.add(router);
+		try {
+			router.start(timeout, ready);
+		} catch (IOException e) {
+			routers.remove(router);
+			t.shutdown();
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Removes the router of a connection once it fails
+	 * @author Benjamin Dezile
+	 */
+	private class Disconnect extends CallBack {
+
+		public Disconnect(RPCRouter router) {
+			super(router);
+		}
+
+		@Override
+		public void call(Object... params) {
+			routers.remove(param);
+		}
+	
+	}
+	
+	
+	/**
+	 * Acceptor thread
+	 * @author Benjamin Dezile
+	 */
+	private class Acceptor extends Thread {
+
+		public Acceptor() {
+			super("RPC acceptor");
+			setDaemon(false);
+		}
+
+		public void run() {
+			while (on) {
+				try {
+					serve(server.accept());
+				} catch (ClosedChannelException e) {
+					/* Server stopped */
+					break;
+				} catch (IOException e) {
+					errors.log("Error while accepting a connection", e);
+				}
+			}
+		}
+	
+	}
+	
+	
+	/**
+	 * Call timeouter, for all connections
+	 * @author Benjamin Dezile
+	 */
+	private class Sweeper extends Thread {
+
+		public Sweeper() {
+			super("RPC server call timeouter");
+			setDaemon(false);
+		}
+
+		public void run() {
+			while (on) {
+				for (RPCRouter router:routers) {
+					router.checkTimeouts();
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	
+	}
+
+}
@@ -1,11 +1,11 @@
 package com.labs.rpc;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import org.json.*;
 import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.PacketBuffer;
+import com.labs.rpc.transport.StringTable;
 
 /**
  * Remote call packet
@@ -18,7 +18,10 @@ public class RemoteCall extends DataPacket {
 	
 	private String target;						// Target object
 	private String meth;						// Name of the method to call on the target
-	private Object[] args;						// Call arguments
+	private Object[] args;						// Call arguments (null until decoded)
+	private volatile ByteBuffer argData;		// Encoded arguments, sliced off the received frame (null once decoded)
+	private int argCount;						// Number of encoded arguments
+	private boolean argCompact;					// Whether the encoded arguments use the compact format
 	
 	/**
 	 * Create a new data packet
@@ -59,57 +62,123 @@ public class RemoteCall extends DataPacket {
 	}
 	
 	/**
-	 * Get the list of call parameters
+	 * Get the list of call parameters.<br>
+	 * The arguments of a received call are only decoded on first access,
+	 * so that calls that get dropped or rejected never pay for it.
 	 * @return {@link Object}[]
+	 * @throws IllegalArgumentException If the arguments are malformed
 	 */
 	public Object[] getArguments() {
+		if (argData != null) {
+			decodeArguments();
+		}
 		return args;
 	}
 	
 	/**
-	 * Get the packet bytes to send over.<br>
-	 * Formatted as target|method|#args+argInfo1+...+argInfoN,
-	 * where argInfo is argLen + argData
-	 * @return byte[]
+	 * Get the number of call parameters, without decoding them
+	 * @return int
+	 */
+	public int getArgumentCount() {
+		if (argData != null) {
+			return argCount;
+		}
+		return args != null ? args.length : 0;
+	}
+	
+	/**
+	 * Decode the arguments of a received call from their slice of the frame
 	 */
-	public byte[] getBytes() {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private synchronized void decodeArguments() {
+		if (argData == null) {
+			/* Decoded by another thread in the meantime */
+			return;
+		}
+		ByteBuffer data = argData.duplicate();
+		Object[] res = new Object[argCount];
 		try {
-			buffer.write(encode(target));
-			buffer.write(encode(meth));
-			buffer.write(IntToBytes(args.length));
-			for (Object arg:args) {
-				buffer.write(encode(arg));
+			for (int i=0;i<argCount;i++) {
+				if (argCompact) {
+					res[i] = unpackCompact(data);
+				} else {
+					int size = data.getInt();
+					int end = data.position() + size;
+					res[i] = unpackObject(data, size);
+					data.position(end);
+				}
 			}
-		} catch(IOException e) {
-			return null;
+		} catch (IllegalArgumentException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Malformed call arguments: " + e.getMessage(), e);
 		}
-		byte[] header = makeHeaderBytes(buffer.size());
-		return makePacketBytes(header, buffer.toByteArray());
+		args = res;
+		argData = null;
+	}
+	
+	@Override
+	protected void writePayload(PacketBuffer buffer) {
+		writePayload(buffer, isCompact());
 	}
 	
 	/**
-	 * Encode a given object
-	 * @param obj {@link Object} - Object to encode
-	 * @return byte[] Encoded bytes representing the object
+	 * Write the payload bytes.<br>
+	 * Formatted as target|method|#args+argInfo1+...+argInfoN,
+	 * where argInfo is argLen + argData. In the compact format, the number
+	 * of arguments is a varint and packed objects carry their own length.
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param compact boolean - Whether to use the compact format
 	 */
-	private byte[] encode(Object obj) {
-		byte[] bytes = packObject(obj);
-		ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
-		buffer.putInt(bytes.length);
-		buffer.put(bytes);
-		return buffer.array();
+	protected void writePayload(PacketBuffer buffer, boolean compact) {
+		ByteBuffer data = argData;
+		if (data != null && compact == argCompact) {
+			/* Arguments never decoded, pass them on as they came in */
+			if (compact) {
+				packCompact(target, buffer);
+				packCompact(meth, buffer);
+				buffer.putVarInt(argCount);
+			} else {
+				encode(target, buffer);
+				encode(meth, buffer);
+				buffer.putInt(argCount);
+			}
+			buffer.put(data.array(), data.arrayOffset(), data.limit());
+			return;
+		}
+		Object[] args = getArguments();
+		if (compact) {
+			packCompact(target, buffer);
+			packCompact(meth, buffer);
+			buffer.putVarInt(args.length);
+			/* Arguments are decoded away from the receiving thread, and may be passed on
+			 * as they came in, so they never refer to the strings of the connection */
+			StringTable.Frame shared = buffer.setStrings(null);
+			try {
+				for (Object arg:args) {
+					packCompact(arg, buffer);
+				}
+			} finally {
+				buffer.setStrings(shared);
+			}
+			return;
+		}
+		encode(target, buffer);
+		encode(meth, buffer);
+		buffer.putInt(args.length);
+		for (Object arg:args) {
+			encode(arg, buffer);
+		}
 	}
 	
 	/**
-	 * Convert an integer to bytes
-	 * @param i int - Integer value
-	 * @return byte[]
+	 * Encode a given object, prefixed with its length
+	 * @param obj {@link Object} - Object to encode
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
 	 */
-	private byte[] IntToBytes(int i) {
-		ByteBuffer buf = ByteBuffer.allocate(4);
-		buf.putInt(i);
-		return buf.array();
+	private static void encode(Object obj, PacketBuffer buffer) {
+		int pos = buffer.skip(4);
+		packObject(obj, buffer);
+		buffer.setInt(pos, buffer.size() - pos - 4);
 	}
 	
 	/**
@@ -119,20 +188,73 @@ public class RemoteCall extends DataPacket {
 	 * @throws Exception 
 	 */	
 	public static RemoteCall fromPacket(DataPacket dp) throws Exception {
+		return fromPacket(dp, null);
+	}
+	
+	/**
+	 * Make a remote call from a raw packet, reusing an existing call object
+	 * @param dp {@link DataPacket} - Data packet
+	 * @param reuse {@link RemoteCall} - Decoded call to overwrite (null to create a new one)
+	 * @return {@link RemoteCall}
+	 * @throws Exception 
+	 */
+	public static RemoteCall fromPacket(DataPacket dp, RemoteCall reuse) throws Exception {
 		if (dp.getType() != TYPE) {
 			throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
 		}
-		ByteBuffer buffer = ByteBuffer.wrap(dp.getPayload());
-		RemoteCall rc = new RemoteCall();
-		rc.seq = dp.getSeq();
-		rc.time = dp.getTime();
-		rc.target = (String)decodeNext(buffer);
-		rc.meth = (String)decodeNext(buffer);
-		int nArgs = buffer.getInt();
-		rc.args = new Object[nArgs];
+		return decode(ByteBuffer.wrap(dp.getPayload()), dp.getSeq(), dp.getTime(), dp.isCompact(), reuse);
+	}
+	
+	/**
+	 * Decode a remote call from its payload bytes
+	 * @param buffer {@link ByteBuffer} - Buffer positioned at the start of the call payload
+	 * @param seq long - Sequence number
+	 * @param time long - Creation timestamp
+	 * @param compact boolean - Whether the payload uses the compact format
+	 * @param reuse {@link RemoteCall} - Decoded call to overwrite (null to create a new one)
+	 * @return {@link RemoteCall}
+	 * @throws Exception
+	 */
+	static RemoteCall decode(ByteBuffer buffer, long seq, long time, boolean compact, RemoteCall reuse) throws Exception {
+		RemoteCall rc = reuse != null ? reuse : new RemoteCall();
+		rc.seq = seq;
+		rc.time = time;
+		rc.setCompact(compact);
+		int nArgs;
+		if (compact) {
+			rc.target = (String)unpackCompact(buffer);
+			rc.meth = (String)unpackCompact(buffer);
+			nArgs = getVarInt(buffer);
+		} else {
+			rc.target = (String)decodeNext(buffer);
+			rc.meth = (String)decodeNext(buffer);
+			nArgs = buffer.getInt();
+		}
+		if (nArgs < 0 || nArgs > buffer.remaining()) {
+			/* Every argument takes at least one byte */
+			throw new IllegalArgumentException("Invalid number of arguments: " + nArgs);
+		}
+		/* Only find out where the arguments end, they get decoded once needed */
+		int start = buffer.position();
 		for (int i=0;i<nArgs;i++) {
-			rc.args[i] = decodeNext(buffer);
+			if (compact) {
+				skipCompact(buffer);
+			} else {
+				int size = buffer.getInt();
+				if (size < 0 || size > buffer.remaining()) {
+					throw new IllegalArgumentException("Invalid argument length: " + size);
+				}
+				buffer.position(buffer.position() + size);
+			}
 		}
+		ByteBuffer data = buffer.duplicate();
+		data.position(start);
+		data.limit(buffer.position());
+		rc.args = null;
+		rc.argCount = nArgs;
+		rc.argCompact = compact;
+		rc.argData = data.slice();
+		rc.clearBytes();
 		return rc;
 	}
 	
@@ -144,9 +266,10 @@ public class RemoteCall extends DataPacket {
 	 */
 	private static Object decodeNext(ByteBuffer buffer) throws Exception {
 		int size = buffer.getInt();
-		byte[] bytes = new byte[size];
-		buffer.get(bytes);
-		return unpackObject(bytes);
+		int end = buffer.position() + size;
+		Object obj = unpackObject(buffer, size);
+		buffer.position(end);
+		return obj;
 	}
 	
 	/**
@@ -157,20 +280,31 @@ public class RemoteCall extends DataPacket {
 		if (!super.equals(o)) {
 			return false;
 		}
-		RemoteCall rc = (RemoteCall)o;
+		return hasSameContent((RemoteCall)o);
+	}
+	
+	/**
+	 * Assert if this call targets the same method with the same arguments
+	 * as the given one, regardless of sequence number and timestamp
+	 * @param rc {@link RemoteCall} - Call to compare with
+	 * @return boolean
+	 */
+	boolean hasSameContent(RemoteCall rc) {
+		Object[] args = getArguments();
+		Object[] otherArgs = rc.getArguments();
 		if (target != rc.target && ((target != null && rc.target == null) || (target == null && rc.target != null) || (!target.equals(rc.target)))) {
 			return false;
 		}
 		if (meth != rc.meth && ((meth != null && rc.meth == null) || (meth == null && rc.meth != null) || (!meth.equals(rc.meth)))) {
 			return false;
 		}
-		if (args != rc.args && ((args == null && rc.args != null) || (args != null && rc.args == null) || (args.length != rc.args.length))) {
+		if (args != otherArgs && ((args == null && otherArgs != null) || (args != null && otherArgs == null) || (args.length != otherArgs.length))) {
 			return false;
 		}
 		Object arg1, arg2;
 		for (int i=0;i<args.length;i++) {
 			arg1 = args[i];
-			arg2 = rc.args[i];
+			arg2 = otherArgs[i];
 			if (arg1 == arg2) {
 				continue;
 			}
@@ -206,13 +340,13 @@ public class RemoteCall extends DataPacket {
 	public String toString() {
 		StringBuffer buf = new StringBuffer();
 		buf.append("RemoteCall #");
-		buf.append(seq);
+		buf.append(getSeq());
 		buf.append(": ");
 		buf.append(target);
 		buf.append(" -> ");
 		buf.append(meth);
 		buf.append("(");
-		for (Object arg:args) {
+		for (Object arg:getArguments()) {
 			if (arg instanceof String) {
 				buf.append("'");
 				buf.append(arg);
@@ -0,0 +1,187 @@
+package com.labs.rpc;
+
+import java.nio.ByteBuffer;
+import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.PacketBuffer;
+
+/**
+ * Batch of remote calls sent as a single packet
+ * @author Benjamin Dezile
+ */
+public class RemoteCallBatch extends DataPacket {
+	
+	public static final byte TYPE = 2;					// Packet type
+	public static final byte RETURN_TOGETHER = 0;		// Send all returns back in one batch return
+	public static final byte RETURN_AS_COMPLETED = 1;	// Send each return back as soon as it is available
+	
+	private byte mode;									// Return mode
+	private RemoteCall[] calls;							// Batched calls
+	
+	/**
+	 * Create an empty batch
+	 */
+	private RemoteCallBatch() {
+		super(TYPE, 0);
+		calls = null;
+	}
+	
+	/**
+	 * Create a new batch whose returns will be sent back together
+	 * @param rcs {@link RemoteCall}... - Calls to batch
+	 */
+	public RemoteCallBatch(RemoteCall... rcs) {
+		this(RETURN_TOGETHER, rcs);
+	}
+	
+	/**
+	 * Create a new batch
+	 * @param returnMode byte - Either RETURN_TOGETHER or RETURN_AS_COMPLETED
+	 * @param rcs {@link RemoteCall}... - Calls to batch
+	 */
+	public RemoteCallBatch(byte returnMode, RemoteCall... rcs) {
+		super(TYPE);
+		if (returnMode != RETURN_TOGETHER && returnMode != RETURN_AS_COMPLETED) {
+			throw new IllegalArgumentException("Invalid return mode: " + returnMode);
+		}
+		if (rcs == null || rcs.length == 0) {
+			throw new IllegalArgumentException("Empty batch");
+		}
+		mode = returnMode;
+		calls = rcs;
+	}
+	
+	/**
+	 * Get the batched calls
+	 * @return {@link RemoteCall}[]
+	 */
+	public RemoteCall[] getCalls() {
+		return calls;
+	}
+	
+	/**
+	 * Get the return mode
+	 * @return byte
+	 */
+	public byte getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Return whether the returns should be sent back in one batch
+	 * @return boolean
+	 */
+	public boolean returnsTogether() {
+		return mode == RETURN_TOGETHER;
+	}
+	
+	/**
+	 * Get the number of batched calls
+	 * @return int
+	 */
+	public int size() {
+		return calls.length;
+	}
+	
+	/**
+	 * Write the payload bytes.<br>
+	 * Formatted as mode|#calls+callInfo1+...+callInfoN,
+	 * where callInfo is callSeq + callPayload.
+	 * In the compact format, the number of calls and their sequence numbers are varints.
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	@Override
+	protected void writePayload(PacketBuffer buffer) {
+		boolean compact = isCompact();
+		buffer.put(mode);
+		if (compact) {
+			buffer.putVarInt(calls.length);
+		} else {
+			buffer.putInt(calls.length);
+		}
+		for (RemoteCall rc:calls) {
+			if (compact) {
+				buffer.putVarLong(rc.getSeq());
+			} else {
+				buffer.putLong(rc.getSeq());
+			}
+			rc.writePayload(buffer, compact);
+		}
+	}
+	
+	/**
+	 * Make a call batch from a raw packet
+	 * @param dp {@link DataPacket} - Data packet
+	 * @return {@link RemoteCallBatch}
+	 * @throws Exception
+	 */
+	public static RemoteCallBatch fromPacket(DataPacket dp) throws Exception {
+		if (dp.getType() != TYPE) {
+			throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(dp.getPayload());
+		RemoteCallBatch rcb = new RemoteCallBatch();
+		rcb.seq = dp.getSeq();
+		rcb.time = dp.getTime();
+		boolean compact = dp.isCompact();
+		rcb.setCompact(compact);
+		rcb.mode = buffer.get();
+		int nCalls = compact ? getVarInt(buffer) : buffer.getInt();
+		if (nCalls < 0 || nCalls > buffer.remaining()) {
+			/* Every call takes at least one byte */
+			throw new IllegalArgumentException("Invalid number of calls: " + nCalls);
+		}
+		rcb.calls = new RemoteCall[nCalls];
+		for (int i=0;i<nCalls;i++) {
+			long callSeq = compact ? getVarLong(buffer) : buffer.getLong();
+			rcb.calls[i] = RemoteCall.decode(buffer, callSeq, rcb.time, compact, null);
+		}
+		return rcb;
+	}
+	
+	/**
+	 * Assert if this object is the same as the given one
+	 * @return boolean
+	 */
+	public boolean equals(Object o) {
+		if (!super.equals(o)) {
+			return false;
+		}
+		RemoteCallBatch rcb = (RemoteCallBatch)o;
+		if (mode != rcb.mode) {
+			return false;
+		}
+		if (calls.length != rcb.calls.length) {
+			return false;
+		}
+		for (int i=0;i<calls.length;i++) {
+			if (calls[i].getSeq() != rcb.calls[i].getSeq() || !calls[i].hasSameContent(rcb.calls[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Get a hash code consistent with {@link #equals(Object)}
+	 * @return int
+	 */
+	public int hashCode() {
+		long s = getSeq();
+		return 31 * (31 * (int)(s ^ (s >>> 32)) + mode) + calls.length;
+	}
+	
+	/**
+	 * Return a string representation of this object
+	 * @return {@link String}
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("RemoteCallBatch #");
+		buf.append(getSeq());
+		buf.append(": ");
+		buf.append(calls.length);
+		buf.append(" calls");
+		return buf.toString();
+	}
+
+}
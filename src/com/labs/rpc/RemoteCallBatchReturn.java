@@ -0,0 +1,164 @@
+package com.labs.rpc;
+
+import java.nio.ByteBuffer;
+import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.PacketBuffer;
+
+/**
+ * Return packet for a whole batch of remote calls
+ * @author Benjamin Dezile
+ */
+public class RemoteCallBatchReturn extends DataPacket {
+	
+	public static final byte TYPE = 3;
+	
+	private long[] seqs;		// Sequence numbers of the returned calls
+	private Object[] vals;		// Return values
+	private int count;			// Number of returns collected so far
+	
+	/**
+	 * Create a new batch return, to be filled as the calls complete
+	 * @param batch {@link RemoteCallBatch} - Associated batch
+	 */
+	public RemoteCallBatchReturn(RemoteCallBatch batch) {
+		super(TYPE, batch.getSeq());
+		seqs = new long[batch.size()];
+		vals = new Object[batch.size()];
+		count = 0;
+	}
+	
+	/**
+	 * Create an empty batch return
+	 */
+	private RemoteCallBatchReturn() {
+		super(TYPE, 0);
+	}
+	
+	/**
+	 * Add the return value of one of the batched calls
+	 * @param rc {@link RemoteCall} - Call that returned
+	 * @param value {@link Object} - Returned value
+	 * @return boolean True if all the returns of the batch have been collected
+	 */
+	public synchronized boolean put(RemoteCall rc, Object value) {
+		if (count == seqs.length) {
+			throw new IllegalStateException("Batch return is already complete");
+		}
+		seqs[count] = rc.getSeq();
+		vals[count] = value;
+		count++;
+		clearBytes();
+		return count == seqs.length;
+	}
+	
+	/**
+	 * Get the number of returns in this packet
+	 * @return int
+	 */
+	public synchronized int size() {
+		return count;
+	}
+	
+	/**
+	 * Get the sequence number of the call that produced the i-th return
+	 * @param i int - Return index
+	 * @return long
+	 */
+	public synchronized long getSeq(int i) {
+		return seqs[i];
+	}
+	
+	/**
+	 * Get the i-th return value
+	 * @param i int - Return index
+	 * @return {@link Object}
+	 */
+	public synchronized Object getValue(int i) {
+		return vals[i];
+	}
+	
+	/**
+	 * Write the payload bytes.<br>
+	 * Formatted as #returns+returnInfo1+...+returnInfoN,
+	 * where returnInfo is callSeq + valueLen + valueData.
+	 * In the compact format, the number of returns and the sequence numbers are varints
+	 * and there is no value length as packed values carry their own.
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	@Override
+	protected synchronized void writePayload(PacketBuffer buffer) {
+		if (isCompact()) {
+			buffer.putVarInt(count);
+			for (int i=0;i<count;i++) {
+				buffer.putVarLong(seqs[i]);
+				packReturn(vals[i], buffer);
+			}
+			return;
+		}
+		buffer.putInt(count);
+		for (int i=0;i<count;i++) {
+			buffer.putLong(seqs[i]);
+			int pos = buffer.skip(4);
+			packObject(vals[i], buffer);
+			buffer.setInt(pos, buffer.size() - pos - 4);
+		}
+	}
+	
+	/**
+	 * Build a batch return from a raw packet
+	 * @param dp {@link DataPacket} - Data packet
+	 * @return {@link RemoteCallBatchReturn}
+	 * @throws Exception
+	 */
+	public static RemoteCallBatchReturn fromPacket(DataPacket dp) throws Exception {
+		if (dp.getType() != TYPE) {
+			throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(dp.getPayload());
+		RemoteCallBatchReturn rcbr = new RemoteCallBatchReturn();
+		rcbr.seq = dp.getSeq();
+		rcbr.time = dp.getTime();
+		rcbr.setCompact(dp.isCompact());
+		if (dp.isCompact()) {
+			rcbr.count = checkCount(getVarInt(buffer), buffer);
+			rcbr.seqs = new long[rcbr.count];
+			rcbr.vals = new Object[rcbr.count];
+			for (int i=0;i<rcbr.count;i++) {
+				rcbr.seqs[i] = getVarLong(buffer);
+				rcbr.vals[i] = unpackCompact(buffer);
+			}
+			return rcbr;
+		}
+		rcbr.count = checkCount(buffer.getInt(), buffer);
+		rcbr.seqs = new long[rcbr.count];
+		rcbr.vals = new Object[rcbr.count];
+		for (int i=0;i<rcbr.count;i++) {
+			rcbr.seqs[i] = buffer.getLong();
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining()) {
+				throw new IllegalArgumentException("Invalid value length: " + size);
+			}
+			/* Decoded in place, straight from the frame bytes */
+			int end = buffer.position() + size;
+			rcbr.vals[i] = unpackObject(buffer, size);
+			buffer.position(end);
+		}
+		return rcbr;
+	}
+
+	/**
+	 * Make sure a number of returns read off a frame is possible
+	 * @param count int - Number of returns
+	 * @param buffer {@link ByteBuffer} - Rest of the frame
+	 * @return int The number of returns
+	 * @throws IllegalArgumentException If the frame cannot hold that many returns
+	 */
+	private static int checkCount(int count, ByteBuffer buffer) {
+		if (count < 0 || count > buffer.remaining()) {
+			/* Every return takes at least one byte */
+			throw new IllegalArgumentException("Invalid number of returns: " + count);
+		}
+		return count;
+	}
+
+}
@@ -1,11 +1,13 @@
 package com.labs.rpc;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.PacketBuffer;
 
 /**
  * Remote call return packet
@@ -34,6 +36,18 @@ public class RemoteCallReturn extends DataPacket {
 		this(null,null);
 	}
 	
+	/**
+	 * Reinitialize this object so that it can be reused for another return
+	 * @param call {@link RemoteCall} - Associated remote call
+	 * @param value {@link Object} - Returned value
+	 */
+	void reset(RemoteCall call, Object value) {
+		seq = call.getSeq();
+		time = System.currentTimeMillis();
+		val = value;
+		clearBytes();
+	}
+	
 	/**
 	 * Get the return value
 	 * @return {@link Object}
@@ -42,14 +56,9 @@ public class RemoteCallReturn extends DataPacket {
 		return val;
 	}
 	
-	/**
-	 * Return the packet bytes to be sent
-	 * @return byte[]
-	 */
-	public byte[] getBytes() {
-		byte[] payload = packObject(val);
-		byte[] header = makeHeaderBytes(payload.length);
-		return makePacketBytes(header, payload);
+	@Override
+	protected void writePayload(PacketBuffer buffer) {
+		packReturn(val, buffer);
 	}
 
 	/**
@@ -59,13 +68,29 @@ public class RemoteCallReturn extends DataPacket {
 	 * @throws Exception 
 	 */
 	public static RemoteCallReturn fromPacket(DataPacket dp) throws Exception {
+		return fromPacket(dp, null);
+	}
+	
+	/**
+	 * Build a remote call return from a raw packet, reusing an existing return object
+	 * @param dp {@link DataPacket} - Data packet
+	 * @param reuse {@link RemoteCallReturn} - Decoded return to overwrite (null to create a new one)
+	 * @return {@link RemoteCallReturn}
+	 * @throws Exception 
+	 */
+	public static RemoteCallReturn fromPacket(DataPacket dp, RemoteCallReturn reuse) throws Exception {
 		if (dp.getType() != TYPE) {
 			throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
 		}
-		RemoteCallReturn rcr = new RemoteCallReturn();
+		RemoteCallReturn rcr = reuse != null ? reuse : new RemoteCallReturn();
 		rcr.seq = dp.getSeq();
 		rcr.time = dp.getTime();
-		rcr.val = unpackObject(dp.getPayload());
+		rcr.setCompact(dp.isCompact());
+		if (dp.isCompact()) {
+			rcr.val = unpackCompact(ByteBuffer.wrap(dp.getPayload()));
+		} else {
+			rcr.val = unpackObject(dp.getPayload());
+		}
 		return rcr;
 	}
 	
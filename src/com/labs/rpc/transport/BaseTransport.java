@@ -6,7 +6,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Basic transport implementation
@@ -22,6 +24,7 @@ public abstract class BaseTransport implements Transport {
 	protected InetAddress address;		// Remote address
 	protected int port;					// Remote port
 	protected AtomicBoolean on;			// Whether it is active
+	protected AtomicLong dropped;		// Number of received frames dropped for a bad checksum
 	
 	/**
 	 * Create a new transport instance
@@ -35,6 +38,7 @@ public abstract class BaseTransport implements Transport {
 		this.address = address;
 		this.port = port;
 		on = new AtomicBoolean(false);
+		dropped = new AtomicLong();
 		connect();
 	}
 
@@ -53,6 +57,7 @@ public abstract class BaseTransport implements Transport {
 		this.address = sock.getInetAddress();
 		this.port = recoveryPort;
 		on = new AtomicBoolean(true);
+		dropped = new AtomicLong();
 	}
 	
 	/**
@@ -64,6 +69,7 @@ public abstract class BaseTransport implements Transport {
 		this.address = null;
 		this.port = -1;
 		this.on = null;
+		this.dropped = new AtomicLong();
 	}
 	
 	/**
@@ -90,6 +96,7 @@ public abstract class BaseTransport implements Transport {
 				sock = new Socket(address, port);
 				bis = new BufferedInputStream(sock.getInputStream());
 				bos = new BufferedOutputStream(sock.getOutputStream());
+				dropped.set(0);
 				afterConnect(sock);
 				on.set(true);
 				return true;
@@ -132,10 +139,20 @@ public abstract class BaseTransport implements Transport {
 	@Override
 	public DataPacket recv() throws IOException {
 		if (on.get()) {
-			return DataPacket.fromStream(bis);
+			DataPacket dp = DataPacket.fromStream(bis);
+			if (dp == null) {
+				/* Bad checksum */
+				dropped.incrementAndGet();
+			}
+			return dp;
 		}
 		throw new IOException("Not connected");
 	}
+	
+	@Override
+	public long getDroppedFrames() {
+		return dropped.get();
+	}
 
 	/**
 	 * Read raw data
@@ -162,7 +179,16 @@ public abstract class BaseTransport implements Transport {
 			throw new NullPointerException("Invalid packet");
 		}
 		if (on.get()) {
-			send(dp.getBytes());
+			/* Buffers larger than the stream buffer go straight to the socket, without being copied */
+			ByteBuffer[] bufs = dp.getBuffers();
+			BufferedOutputStream out = bos;
+			synchronized(out) {
+				/* Frames sent by other threads cannot get in between the buffers of this one */
+				for (ByteBuffer buf:bufs) {
+					out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				}
+				out.flush();
+			}
 		} else {
 			throw new IOException("Not connected");
 		}
@@ -185,8 +211,11 @@ public abstract class BaseTransport implements Transport {
 	 * @throws IOException
 	 */
 	public void send(byte[] data, int offset, int length) throws IOException {
-		bos.write(data, offset, length);
-		bos.flush();
+		BufferedOutputStream out = bos;
+		synchronized(out) {
+			out.write(data, offset, length);
+			out.flush();
+		}
 	}
 	
 	@Override
@@ -0,0 +1,142 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import com.labs.rpc.util.LongMap;
+
+/**
+ * Slice of a frame too large to be sent in one go.<br>
+ * Large frames are sent as a series of chunks so that other frames can be
+ * sent in between, instead of waiting for the whole transfer. A chunk has the
+ * same sequence number as the frame it is part of, and its payload is a marker
+ * byte (type of the frame, and whether this is the last chunk) followed by
+ * a slice of the encoded frame. Chunks are only understood by peers that
+ * support {@link Protocol#CHUNKED}.
+ * @author Benjamin Dezile
+ */
+public class Chunk extends DataPacket {
+	
+	public static final byte TYPE = 5;			// Packet type
+	private static final int LAST = 0x80;		// Marker bit of the last chunk of a frame
+	private static final int TYPE_MASK = 0x07;	// Marker bits holding the type of the frame
+	
+	private final ByteBuffer[] slice;			// Slice of the frame, possibly spread over several of its buffers
+	private final boolean last;					// Whether this is the last chunk of the frame
+	private final byte frameType;				// Type of the frame
+	
+	/**
+	 * Create a new chunk
+	 * @param dp {@link DataPacket} - Packet being sent in chunks
+	 * @param bytes byte[] - Encoded frame of that packet
+	 * @param off int - Offset of the slice
+	 * @param len int - Size of the slice
+	 */
+	public Chunk(DataPacket dp, byte[] bytes, int off, int len) {
+		this(dp, new ByteBuffer[] {ByteBuffer.wrap(bytes, off, len)}, off + len == bytes.length);
+	}
+	
+	/**
+	 * Create a new chunk over buffers of the frame (see {@link DataPacket#getBuffers()}),
+	 * which are then sent without being copied when large enough
+	 * @param dp {@link DataPacket} - Packet being sent in chunks
+	 * @param buffers {@link ByteBuffer}[] - Slice of the frame, in order
+	 * @param isLast boolean - Whether the slice ends the frame
+	 */
+	public Chunk(DataPacket dp, ByteBuffer[] buffers, boolean isLast) {
+		super(TYPE, dp.getSeq());
+		slice = buffers;
+		last = isLast;
+		frameType = dp.getType();
+	}
+	
+	/**
+	 * Return whether this is the last chunk of the frame
+	 * @return boolean
+	 */
+	public boolean isLast() {
+		return last;
+	}
+	
+	@Override
+	protected void writePayload(PacketBuffer buffer) {
+		buffer.put(frameType | (last ? LAST : 0));
+	}
+	
+	@Override
+	protected ByteBuffer[] getRawPayload() {
+		return slice;
+	}
+	
+	/**
+	 * Put received chunks back together.<br>
+	 * Chunks of different frames may come in any order, as long as the chunks
+	 * of a given frame come in order.
+	 * @author Benjamin Dezile
+	 */
+	public static class Assembler {
+
+		private final LongMap<PacketBuffer>[] pending;		// Frame type -> Sequence number -> Frame bytes received so far
+
+		@SuppressWarnings("unchecked")
+		public Assembler() {
+			pending = (LongMap<PacketBuffer>[])new LongMap<?>[TYPE_MASK + 1];
+			for (int i=0;i<pending.length;i++) {
+				pending[i] = new LongMap<PacketBuffer>();
+			}
+		}
+
+		/**
+		 * Add a received chunk
+		 * @param dp {@link DataPacket} - Received chunk
+		 * @return {@link DataPacket} The whole packet once its last chunk is in, null until then
+		 * @throws IllegalArgumentException If the chunk is malformed or the frame too large
+		 */
+		public synchronized DataPacket add(DataPacket dp) {
+			if (dp.getType() != TYPE) {
+				throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
+			}
+			byte[] payload = dp.getPayload();
+			if (payload == null || payload.length == 0) {
+				throw new IllegalArgumentException("Empty chunk");
+			}
+			LongMap<PacketBuffer> frames = pending[payload[0] & TYPE_MASK];
+			PacketBuffer frame = frames.get(dp.getSeq());
+			if (frame == null) {
+				frame = new PacketBuffer(Math.max(4 * payload.length, INITIAL_BUFFER));
+				frames.put(dp.getSeq(), frame);
+			}
+			if (frame.size() + payload.length > getMaxFrameSize() + MAX_SHORT_HEADER + 4) {
+				frames.remove(dp.getSeq());
+				throw new IllegalArgumentException("Frame too large: " + dp.getSeq());
+			}
+			frame.put(payload, 1, payload.length - 1);
+			if ((payload[0] & LAST) == 0) {
+				return null;
+			}
+			frames.remove(dp.getSeq());
+			return fromBytes(frame.toByteArray());
+		}
+
+		/**
+		 * Get the number of frames partly received
+		 * @return int
+		 */
+		public synchronized int size() {
+			int n = 0;
+			for (LongMap<PacketBuffer> frames:pending) {
+				n += frames.size();
+			}
+			return n;
+		}
+
+		/**
+		 * Drop all partly received frames
+		 */
+		public synchronized void clear() {
+			for (LongMap<PacketBuffer> frames:pending) {
+				frames.clear();
+			}
+		}
+	
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for values of an application type.<br>
+ * Codecs are registered with {@link Codecs} under a type tag, and only used
+ * by the compact format. The encoded value gets prefixed with its length,
+ * so that a codec does not need to delimit it itself and gets handed exactly
+ * the bytes it wrote when decoding. Nested values can be written and read
+ * with {@link Codecs#write(Object, PacketBuffer)} and {@link Codecs#read(ByteBuffer)}.
+ * Codecs are shared by all threads, and must thus be stateless.
+ * @author Benjamin Dezile
+ */
+public interface Codec<T> {
+	
+	/**
+	 * Get the type of values handled by this codec
+	 * (subclasses included, unless they have a codec of their own)
+	 * @return {@link Class}
+	 */
+	public Class<T> getType();
+	
+	/**
+	 * Encode a value
+	 * @param value T - Value to encode (never null)
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	public void encode(T value, PacketBuffer buffer);
+	
+	/**
+	 * Decode a value
+	 * @param buf {@link ByteBuffer} - Buffer holding the encoded value, and nothing else
+	 * @return T
+	 * @throws Exception If the value is malformed
+	 */
+	public T decode(ByteBuffer buf) throws Exception;
+
+}
@@ -0,0 +1,147 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the codecs used to pack values.<br>
+ * Every class that gets packed is resolved once into a type tag, either that
+ * of a built-in type or that of a registered {@link Codec}, and the result is
+ * cached so that packing a value only takes a lookup. Classes registered
+ * with {@link Schema#register(Class)} are packed field by field. Decoding goes straight
+ * from the type tag to the codec. Applications register codecs for their own
+ * types under tags between {@link #MIN_TAG} and {@link #MAX_TAG}, which must
+ * be the same on both ends of a connection.
+ * @author Benjamin Dezile
+ */
+public final class Codecs {
+	
+	public static final int MIN_TAG = 0x60;		// Lowest tag available to applications
+	public static final int MAX_TAG = 0x7F;		// Highest tag available to applications
+	
+	private static volatile Codec<?>[] codecs = new Codec<?>[MAX_TAG + 1];		// Tag -> codec
+	private static final ConcurrentHashMap<Class<?>,Byte> formats = new ConcurrentHashMap<Class<?>,Byte>();	// Class -> tag
+	
+	private Codecs() {}
+	
+	/**
+	 * Register a codec.<br>
+	 * Codecs take precedence over the built-in types, and the ones with the lowest
+	 * tag over the other ones, for classes that several of them can handle.
+	 * @param tag int - Type tag, between {@link #MIN_TAG} and {@link #MAX_TAG}
+	 * @param codec {@link Codec} - Codec
+	 * @throws IllegalArgumentException If the tag is invalid or already in use
+	 */
+	public static synchronized void register(int tag, Codec<?> codec) {
+		if (tag < MIN_TAG || tag > MAX_TAG) {
+			throw new IllegalArgumentException("Invalid codec tag: " + tag);
+		}
+		if (codecs[tag] != null) {
+			throw new IllegalArgumentException("Codec tag already in use: " + tag);
+		}
+		Codec<?>[] c = codecs.clone();
+		c[tag] = codec;
+		codecs = c;
+		formats.clear();
+	}
+	
+	/**
+	 * Unregister a codec
+	 * @param tag int - Type tag
+	 * @return {@link Codec} Unregistered codec, null if none
+	 */
+	public static synchronized Codec<?> unregister(int tag) {
+		if (tag < MIN_TAG || tag > MAX_TAG || codecs[tag] == null) {
+			return null;
+		}
+		Codec<?>[] c = codecs.clone();
+		Codec<?> codec = c[tag];
+		c[tag] = null;
+		codecs = c;
+		formats.clear();
+		return codec;
+	}
+	
+	/**
+	 * Get the codec registered under a given tag
+	 * @param tag int - Type tag
+	 * @return {@link Codec} Null if none
+	 */
+	public static Codec<?> get(int tag) {
+		return tag >= MIN_TAG && tag <= MAX_TAG ? codecs[tag] : null;
+	}
+	
+	/**
+	 * Write a value nested in a value being encoded by a codec
+	 * @param value {@link Object} - Value
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	public static void write(Object value, PacketBuffer buffer) {
+		DataPacket.packNested(value, buffer);
+	}
+	
+	/**
+	 * Read a value nested in a value being decoded by a codec
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the nested value
+	 * @return {@link Object}
+	 * @throws Exception
+	 */
+	public static Object read(ByteBuffer buf) throws Exception {
+		return DataPacket.unpackNested(buf);
+	}
+	
+	/**
+	 * Read an unsigned varint, as written by {@link PacketBuffer#putVarInt(int)}
+	 * @param buf {@link ByteBuffer} - Buffer
+	 * @return int
+	 */
+	public static int readVarInt(ByteBuffer buf) {
+		return DataPacket.getVarInt(buf);
+	}
+	
+	/**
+	 * Read an unsigned long varint, as written by {@link PacketBuffer#putVarLong(long)}
+	 * @param buf {@link ByteBuffer} - Buffer
+	 * @return long
+	 */
+	public static long readVarLong(ByteBuffer buf) {
+		return DataPacket.getVarLong(buf);
+	}
+	
+	/**
+	 * Forget the type tags resolved so far, after the set of supported types changed
+	 */
+	static void clearCache() {
+		formats.clear();
+	}
+	
+	/**
+	 * Get the type tag to pack the instances of a class with
+	 * @param c {@link Class} - Class
+	 * @return byte Type tag, 0 if the class is not supported
+	 */
+	static byte getFormat(Class<?> c) {
+		Byte cached = formats.get(c);
+		if (cached != null) {
+			return cached;
+		}
+		Codec<?>[] cs = codecs;
+		byte format = 0;
+		for (int tag=MIN_TAG;tag<=MAX_TAG;tag++) {
+			if (cs[tag] != null && cs[tag].getType().isAssignableFrom(c)) {
+				format = (byte)tag;
+				break;
+			}
+		}
+		if (format == 0) {
+			format = Schema.get(c) != null ? DataPacket.FORMAT_OBJECT : DataPacket.getBuiltinFormat(c);
+		}
+		formats.put(c, format);
+		if (codecs != cs) {
+			/* Codecs changed in the meantime, do not keep a stale result */
+			formats.remove(c);
+		}
+		return format;
+	}
+
+}
@@ -0,0 +1,212 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression settings and state of a connection.<br>
+ * Payloads are deflated only when larger than a given threshold, and only
+ * sent compressed when it actually saves enough room. When payloads keep
+ * compressing poorly (e.g. already compressed data), compression is skipped
+ * for a growing number of packets before being tried again, so that a connection
+ * carrying incompressible data does not waste time deflating it.
+ * Deflaters and inflaters are kept per thread and reused.
+ * @author Benjamin Dezile
+ */
+public class Compression {
+	
+	public static final int DEFAULT_THRESHOLD = 1024;			// Default minimum payload size to compress
+	public static final float DEFAULT_MAX_RATIO = 0.9f;			// Default maximum compressed / original size to be worth it
+	protected static final int MAX_BACKOFF = 1024;				// Maximum number of packets sent uncompressed in a row after poor results
+	protected static final int MIN_INFLATE_BUFFER = 1024;		// Smallest buffer to inflate a payload into, grown as output comes
+	
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	
+	private static final ThreadLocal<PacketBuffer> outBuffer = new ThreadLocal<PacketBuffer>() {
+		@Override
+		protected PacketBuffer initialValue() {
+			return new PacketBuffer(DataPacket.INITIAL_BUFFER);
+		}
+	};
+	
+	private volatile int threshold;								// Minimum payload size to compress
+	private volatile float maxRatio;							// Maximum compressed / original size to be worth it
+	private volatile int level;									// Deflate level
+	private final AtomicInteger skip = new AtomicInteger();		// Number of packets left to send uncompressed
+	private final AtomicInteger backoff = new AtomicInteger();	// Number of packets to skip after the next poor result
+	
+	public Compression() {
+		this(DEFAULT_THRESHOLD);
+	}
+	
+	/**
+	 * Create new compression settings
+	 * @param minSize int - Minimum payload size to compress
+	 */
+	public Compression(int minSize) {
+		threshold = minSize;
+		maxRatio = DEFAULT_MAX_RATIO;
+		level = Deflater.BEST_SPEED;
+	}
+	
+	/**
+	 * Get the minimum payload size to compress
+	 * @return int
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * Set the minimum payload size to compress
+	 * @param minSize int - Size in bytes
+	 */
+	public void setThreshold(int minSize) {
+		threshold = minSize;
+	}
+	
+	/**
+	 * Set the maximum compressed to original size ratio
+	 * under which compression is worth it
+	 * @param ratio float - Ratio (between 0 and 1)
+	 */
+	public void setMaxRatio(float ratio) {
+		if (ratio <= 0 || ratio > 1) {
+			throw new IllegalArgumentException("Invalid compression ratio: " + ratio);
+		}
+		maxRatio = ratio;
+	}
+	
+	/**
+	 * Set the deflate level
+	 * @param deflateLevel int - Level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public void setLevel(int deflateLevel) {
+		if (deflateLevel < Deflater.BEST_SPEED || deflateLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + deflateLevel);
+		}
+		level = deflateLevel;
+	}
+	
+	/**
+	 * Return whether compression is currently skipped because of poor results
+	 * @return boolean
+	 */
+	public boolean isBackingOff() {
+		return skip.get() > 0;
+	}
+	
+	/**
+	 * Compress a payload, if worth it.<br>
+	 * The compressed payload is the size of the original one as a varint,
+	 * followed by the deflated bytes.
+	 * @param src byte[] - Frame bytes
+	 * @param offset int - Offset of the payload (also the room to leave for the header)
+	 * @param length int - Size of the payload
+	 * @return {@link PacketBuffer} Frame with room for the header followed by the compressed payload,
+	 * null if the payload is to be sent as is. The buffer belongs to the calling thread
+	 * and must not be held onto.
+	 */
+	public PacketBuffer compress(byte[] src, int offset, int length) {
+		if (length < threshold) {
+			return null;
+		}
+		if (skip.get() > 0 && skip.decrementAndGet() >= 0) {
+			/* Backing off */
+			return null;
+		}
+		PacketBuffer out = outBuffer.get();
+		if (out.capacity() > DataPacket.MAX_RETAINED_BUFFER) {
+			out = new PacketBuffer(DataPacket.INITIAL_BUFFER);
+			outBuffer.set(out);
+		}
+		out.reset();
+		out.skip(offset);
+		out.putVarInt(length);
+		int max = out.size() + (int)(length * maxRatio);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(src, offset, length);
+		deflater.finish();
+		while (!deflater.finished() && out.size() < max) {
+			out.ensureCapacity(Math.min(Math.max(max - out.size(), 64), 64 * 1024));
+			out.skip(deflater.deflate(out.array(), out.size(), out.capacity() - out.size()));
+		}
+		if (!deflater.finished() || out.size() >= max) {
+			/* Not worth it, try again later on, and later and later if it keeps failing */
+			int b = Math.min(Math.max(backoff.get() * 2, 1), MAX_BACKOFF);
+			backoff.set(b);
+			skip.set(b);
+			return null;
+		}
+		backoff.set(0);
+		return out;
+	}
+	
+	/**
+	 * Decompress a payload.<br>
+	 * The inflated size announced by the sender is only trusted up to the maximum
+	 * frame size (see {@link DataPacket#getMaxFrameSize()}), and the payload is inflated
+	 * into a buffer grown as output actually comes, so that a few bytes cannot
+	 * have a large buffer allocated.
+	 * @param data byte[] - Compressed payload
+	 * @return byte[] Original payload
+	 * @throws IllegalArgumentException If the payload is malformed
+	 */
+	public static byte[] decompress(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int length = DataPacket.getVarInt(buf);
+		if (length < 0 || length > DataPacket.getMaxFrameSize()) {
+			throw new IllegalArgumentException("Invalid inflated size: " + length);
+		}
+		byte[] res = new byte[Math.min(length, Math.max(4 * data.length, MIN_INFLATE_BUFFER))];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, buf.position(), buf.remaining());
+		try {
+			int n = 0;
+			while (n < length) {
+				if (n == res.length) {
+					res = Arrays.copyOf(res, (int)Math.min(length, 2L * res.length));
+				}
+				int r = inflater.inflate(res, n, res.length - n);
+				if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if (n == length && !inflater.finished()) {
+				/* The end of the stream may only be seen once asked for more */
+				n += inflater.inflate(new byte[1]);
+			}
+			if (n != length || !inflater.finished()) {
+				throw new IllegalArgumentException("Inflated payload does not match its size: " + length);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Malformed compressed payload: " + e.getMessage(), e);
+		}
+		return res;
+	}
+	
+	public String toString() {
+		return "Compression: threshold=" + threshold + ", level=" + level + ", skip=" + skip.get();
+	}
+
+}
@@ -1,18 +1,24 @@
 package com.labs.rpc.transport;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.zip.CRC32;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -27,6 +33,7 @@ public class DataPacket {
 
 	protected static final String NULL = "null";					// Null value
 	protected static final int HEADER_SIZE = 21;					// Size of the header
+	protected static final int MAX_SHORT_HEADER = 24;				// Maximum size of the short header
 	
 	protected static final byte FORMAT_NULL = 0x40;					// Null
 	protected static final byte FORMAT_BOOL = 0x41;					// Boolean
@@ -38,6 +45,9 @@ public class DataPacket {
 	protected static final byte FORMAT_DOUBLE = 0x47;				// Double
 	protected static final byte FORMAT_LONG = 0x48;					// Long
 	protected static final byte FORMAT_STRING = 0x49;				// String
+	protected static final byte FORMAT_STRING_DEF = 0x4A;			// String shared with later frames (compact format only)
+	protected static final byte FORMAT_STRING_REF = 0x4B;			// String sent by an earlier frame (compact format only)
+	protected static final byte FORMAT_REMOTE_ERROR = 0x4C;			// Remote exception with an error code (compact format only)
 	protected static final byte FORMAT_ARRAY = 0x50;				// Array of objects
 	protected static final byte FORMAT_LIST = 0x51;					// List of objects
 	protected static final byte FORMAT_JSON = 0x52;					// JSON object
@@ -46,19 +56,82 @@ public class DataPacket {
 	protected static final byte FORMAT_BYTE_ARRAY = 0x55;			// Byte array
 	protected static final byte FORMAT_SET = 0x56;					// Set
 	protected static final byte FORMAT_MAP = 0x57;					// Map
+	protected static final byte FORMAT_INT_ARRAY = 0x58;			// Array of integers (compact format only)
+	protected static final byte FORMAT_LONG_ARRAY = 0x59;			// Array of longs (compact format only)
+	protected static final byte FORMAT_DOUBLE_ARRAY = 0x5A;			// Array of doubles (compact format only)
+	protected static final byte FORMAT_FLOAT_ARRAY = 0x5B;			// Array of floats (compact format only)
+	protected static final byte FORMAT_BOOL_ARRAY = 0x5C;			// Array of booleans (compact format only)
+	protected static final byte FORMAT_SHORT_ARRAY = 0x5D;			// Array of short integers (compact format only)
+	protected static final byte FORMAT_CHAR_ARRAY = 0x5E;			// Array of characters (compact format only)
+	protected static final byte FORMAT_OBJECT = 0x5F;				// Object packed along its schema (compact format only)
+	
+	protected static final byte FLAG_COMPACT = (byte)0x80;			// Frame flag: the payload uses the compact encoding
+	protected static final byte FLAG_COMPRESSED = 0x40;				// Frame flag: the payload is deflated
+	protected static final byte FLAG_SHORT_HEADER = 0x20;			// Frame flag: the header is made of varints
+	protected static final byte FLAG_TIME = 0x10;					// Frame flag: the short header carries the timestamp
+	protected static final byte FLAG_CHECKSUM = 0x08;				// Frame flag: the frame ends with a CRC32 of the frame
+	protected static final byte FLAGS_MASK = (byte)0xF8;			// Bits of the type byte used as frame flags (types must stay below 0x08)
+	
+	public static final int CHECKSUM_FAIL = 0;						// Bad checksum policy: throw an IOException so that the connection gets reset
+	public static final int CHECKSUM_DROP = 1;						// Bad checksum policy: drop the frame and go on with the next one
+	public static final int DEFAULT_MAX_FRAME_SIZE = 256 * 1024 * 1024;	// Default maximum payload size of a received frame
+	
+	protected static final int INITIAL_BUFFER = 1024;				// Initial size of encode buffers
+	protected static final int MAX_RETAINED_BUFFER = 1024 * 1024;	// Maximum size of encode buffer to keep around
+	protected static final int MIN_GATHERED_PAYLOAD = 4 * 1024;		// Smallest raw payload framed without being copied (see getBuffers)
+	protected static final Charset UTF8 = Charset.forName("UTF-8");		// Charset of all strings
+	protected static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	protected static final int MAX_DEPTH = 64;						// Maximum nesting of containers in the compact format
+	
+	private static final ThreadLocal<PacketBuffer> encodeBuffer = new ThreadLocal<PacketBuffer>() {
+		@Override
+		protected PacketBuffer initialValue() {
+			return new PacketBuffer(INITIAL_BUFFER);
+		}
+	};
+	
+	/** Nesting depth of the value being handled by a codec on this thread */
+	private static final ThreadLocal<int[]> codecDepth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	
+	private static final ThreadLocal<CRC32> checksums = new ThreadLocal<CRC32>() {
+		@Override
+		protected CRC32 initialValue() {
+			return new CRC32();
+		}
+	};
+	
+	private static volatile int checksumPolicy = CHECKSUM_FAIL;		// What to do with frames whose checksum does not match
+	private static volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;	// Maximum payload size of a received frame
+	private static volatile boolean nativeCodec = false;			// Whether strings and arrays of numbers are handled by the native codec
+	private static final AtomicLong droppedFrames = new AtomicLong();	// Number of frames dropped for a bad checksum
+	private static final AtomicLong seqCounter = new AtomicLong();	// Fallback sequence counter for packets not sent through a router
+	private static final AtomicLongFieldUpdater<DataPacket> SEQ = AtomicLongFieldUpdater.newUpdater(DataPacket.class, "seq");
 	
-	private static Long seqCounter = 0L;							// Sequence counter
 	protected byte type;											// Packet type
-	protected long seq;												// Sequence number
+	protected byte flags;											// Frame flags
+	protected volatile long seq;									// Sequence number (0 until assigned)
 	protected long time;											// Creation timestamp
 	protected byte[] payload;										// Encapsulated data
+	private volatile byte[] encoded;								// Cached frame bytes (null until encoded)
+	private volatile ByteBuffer[] gathered;							// Cached frame buffers (null until framed by getBuffers)
+	private Compression compression;								// Compression to apply when encoding (null for none)
+	private StringTable strings;									// Strings shared with the peer (null for none)
+	private StringTable.Frame sharedStrings;						// Shared strings of the cached frame (null once sent)
+	private boolean errorCodes;										// Whether remote exceptions are sent with their error code
 		
 	/**
-	 * Create a new data packet
+	 * Create a new data packet.<br>
+	 * The sequence number is assigned when the packet gets pushed
+	 * through a router (see {@link #assignSeq(long)}), or on first access otherwise.
 	 * @param t byte - Packet type
 	 */
 	public DataPacket(byte t) {
-		this(t, getNextSeq());
+		this(t, 0);
 	}
 
 	/**
@@ -67,7 +140,7 @@ public class DataPacket {
 	 * @param data byte[] - Payload bytes
 	 */
 	public DataPacket(byte t, byte[] data) {
-		this(t, getNextSeq());
+		this(t, 0);
 		payload = data;
 	}
 	
@@ -90,13 +163,26 @@ public class DataPacket {
 	}
 	
 	/**
-	 * Get the next sequence number
+	 * Get the next sequence number from the process-wide counter.<br>
+	 * Only odd numbers are handed out so that they never collide with
+	 * the ones assigned by routers, which are all even.
 	 * @return long
 	 */
 	private static final long getNextSeq() {
-		synchronized(seqCounter) {
-			return ++seqCounter;
+		return 2 * seqCounter.incrementAndGet() - 1;
+	}
+	
+	/**
+	 * Assign a sequence number to this packet, unless it already has one
+	 * @param seqNum long - Sequence number
+	 * @return boolean True if assigned, false if the packet already had a sequence number
+	 */
+	public boolean assignSeq(long seqNum) {
+		if (!SEQ.compareAndSet(this, 0, seqNum)) {
+			return false;
 		}
+		clearBytes();
+		return true;
 	}
 	
 	/**
@@ -105,6 +191,7 @@ public class DataPacket {
 	 */
 	public void setPayload(byte[] data) {
 		payload = data;
+		clearBytes();
 	}
 	
 	/**
@@ -120,7 +207,13 @@ public class DataPacket {
 	 * @return long
 	 */
 	public long getSeq() {
-		return seq;
+		long s = seq;
+		if (s == 0) {
+			/* Not sent through a router, fall back onto the global counter */
+			SEQ.compareAndSet(this, 0, getNextSeq());
+			s = seq;
+		}
+		return s;
 	}
 	
 	/**
@@ -139,138 +232,742 @@ public class DataPacket {
 		return type;
 	}
 	
+	/**
+	 * Return whether the payload is encoded in the compact format
+	 * @return boolean
+	 */
+	public boolean isCompact() {
+		return (flags & FLAG_COMPACT) != 0;
+	}
+	
+	/**
+	 * Set whether the payload is to be encoded in the compact format.<br>
+	 * The compact format is only understood by peers that support {@link Protocol#COMPACT}.
+	 * @param compact boolean - True for the compact format
+	 */
+	public void setCompact(boolean compact) {
+		setFlag(FLAG_COMPACT, compact);
+	}
+	
+	/**
+	 * Return whether this packet was received with a compressed payload
+	 * @return boolean
+	 */
+	public boolean isCompressed() {
+		return (flags & FLAG_COMPRESSED) != 0;
+	}
+	
+	/**
+	 * Set the compression to apply to the payload.<br>
+	 * Compressed frames are only understood by peers that support {@link Protocol#COMPRESS}.
+	 * @param c {@link Compression} - Compression settings of the connection (null for none)
+	 */
+	public void setCompression(Compression c) {
+		if (c != compression) {
+			compression = c;
+			clearBytes();
+		}
+	}
+	
+	/**
+	 * Return whether this packet is framed with the short header
+	 * @return boolean
+	 */
+	public boolean isShortHeader() {
+		return (flags & FLAG_SHORT_HEADER) != 0;
+	}
+	
+	/**
+	 * Set whether the packet is to be framed with the short header.<br>
+	 * The short header is the type byte followed by the payload size and the
+	 * sequence number as varints, which takes 3 bytes for most packets instead
+	 * of 21. The timestamp is left out unless {@link #setTimestamped(boolean)}
+	 * says otherwise, the receiver then using the time of receipt.
+	 * It is only understood by peers that support {@link Protocol#SHORT_HEADER}.
+	 * @param shortHeader boolean - True for the short header
+	 */
+	public void setShortHeader(boolean shortHeader) {
+		setFlag(FLAG_SHORT_HEADER, shortHeader);
+	}
+	
+	/**
+	 * Set whether the short header is to carry the timestamp
+	 * (the legacy header always does)
+	 * @param timestamped boolean - True to keep the timestamp
+	 */
+	public void setTimestamped(boolean timestamped) {
+		setFlag(FLAG_TIME, timestamped);
+	}
+	
+	/**
+	 * Return whether this packet is framed with a checksum
+	 * @return boolean
+	 */
+	public boolean hasChecksum() {
+		return (flags & FLAG_CHECKSUM) != 0;
+	}
+	
+	/**
+	 * Set whether the frame is to end with a checksum.<br>
+	 * The checksum is a CRC32 of the whole frame, header included, which lets
+	 * a receiver catch frames corrupted on the way (see {@link #setChecksumPolicy(int)}).
+	 * It is only understood by peers that support {@link Protocol#CHECKSUM}.
+	 * @param checksum boolean - True to add a checksum
+	 */
+	public void setChecksum(boolean checksum) {
+		setFlag(FLAG_CHECKSUM, checksum);
+	}
+	
+	/**
+	 * Set what to do with received frames whose checksum does not match.<br>
+	 * Failing gets the connection reset, which is the only way to get back on track
+	 * when the header itself got corrupted. Dropping keeps the connection going,
+	 * at the risk of reading garbage until the connection fails on its own
+	 * if the payload size was the corrupted part.
+	 * Frames built from a byte array are always rejected with an {@link IllegalArgumentException}.
+	 * Connections that drop frames do not share strings (see {@link Protocol#getSupported()}).
+	 * @param policy int - {@link #CHECKSUM_FAIL} or {@link #CHECKSUM_DROP}
+	 */
+	public static void setChecksumPolicy(int policy) {
+		if (policy != CHECKSUM_FAIL && policy != CHECKSUM_DROP) {
+			throw new IllegalArgumentException("Invalid checksum policy: " + policy);
+		}
+		checksumPolicy = policy;
+	}
+	
+	/**
+	 * Get what is done with received frames whose checksum does not match
+	 * @return int {@link #CHECKSUM_FAIL} or {@link #CHECKSUM_DROP}
+	 */
+	public static int getChecksumPolicy() {
+		return checksumPolicy;
+	}
+	
+	/**
+	 * Get the number of received frames dropped for a bad checksum
+	 * @return long
+	 */
+	public static long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+	
+	/**
+	 * Set the maximum payload size of received frames.<br>
+	 * Larger frames get the connection reset before anything gets allocated for them,
+	 * as they most likely come from a corrupted header.
+	 * @param size int - Maximum size (in bytes)
+	 */
+	public static void setMaxFrameSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Invalid maximum frame size: " + size);
+		}
+		maxFrameSize = size;
+	}
+	
+	/**
+	 * Get the maximum payload size of received frames
+	 * @return int
+	 */
+	public static int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Set whether strings and arrays of integers, long integers and doubles are to be
+	 * packed and unpacked by the {@link NativeCodec} in the compact format.<br>
+	 * The bytes are the same either way, so that both ends need not agree on it.
+	 * @param on boolean - True to use the native codec
+	 * @return boolean Whether the native codec is used, which it cannot be if its library was not found
+	 */
+	public static boolean setNativeCodec(boolean on) {
+		nativeCodec = on && NativeCodec.isAvailable();
+		return nativeCodec;
+	}
+	
+	/**
+	 * Return whether the native codec is used
+	 * @return boolean
+	 */
+	public static boolean isNativeCodec() {
+		return nativeCodec;
+	}
+	
+	/**
+	 * Return whether values of a given type go through the native codec
+	 * @param type byte - Type tag
+	 * @return boolean
+	 */
+	private static boolean isNativeFormat(byte type) {
+		return type == FORMAT_STRING || type == FORMAT_INT_ARRAY || type == FORMAT_LONG_ARRAY || type == FORMAT_DOUBLE_ARRAY;
+	}
+	
+	/**
+	 * Set or clear a frame flag
+	 * @param flag byte - Flag
+	 * @param on boolean - True to set it
+	 */
+	private void setFlag(byte flag, boolean on) {
+		byte f = (byte)(on ? flags | flag : flags & ~flag);
+		if (f != flags) {
+			flags = f;
+			clearBytes();
+		}
+	}
+	
+	/**
+	 * Split the type byte of a frame into packet type and frame flags
+	 * @param dp {@link DataPacket} - Packet being decoded
+	 * @param t byte - Type byte
+	 */
+	private static void setTypeByte(DataPacket dp, byte t) {
+		dp.type = (byte)(t & ~FLAGS_MASK);
+		dp.flags = (byte)(t & FLAGS_MASK);
+	}
+	
 	/**
 	 * Pack an object so that it can be transported
 	 * @param arg {@link Object} - Argument
 	 * @return byte[]
 	 */
-	@SuppressWarnings("unchecked")
 	protected static byte[] packObject(Object arg) {
-		try {
-			Class<?> argClass = arg != null ? arg.getClass() : null;
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			if (arg == null) {
-				/* Null value */
-				buffer.write(FORMAT_NULL);
-			} else if (arg instanceof Byte) {
-				/* Byte */
-				buffer.write(FORMAT_BYTE);
-				buffer.write((Byte)arg);
-			} else if (arg instanceof Character) {
-				/* Character */
-				buffer.write(FORMAT_CHAR);
-				ByteBuffer buf = ByteBuffer.allocate(2);
-				buf.putChar((Character)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof Short) {
-				/* Short */
-				buffer.write(FORMAT_SHORT);
-				ByteBuffer buf = ByteBuffer.allocate(2);
-				buf.putShort((Short)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof Boolean) {
-				/* Boolean */
-				buffer.write(FORMAT_BOOL);
-				ByteBuffer buf = ByteBuffer.allocate(2);
-				buf.put((byte)(((Boolean)arg).booleanValue() ? 1 : 0));
-				buffer.write(buf.array());
-			} else if (arg instanceof Integer) {
-				/* Integer */
-				buffer.write(FORMAT_INT);
-				ByteBuffer buf = ByteBuffer.allocate(4);
-				buf.putInt((Integer)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof Float) {
-				/* Float */
-				buffer.write(FORMAT_FLOAT);
-				ByteBuffer buf = ByteBuffer.allocate(4);
-				buf.putFloat((Float)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof Double) {
-				/* Double */
-				buffer.write(FORMAT_DOUBLE);
-				ByteBuffer buf = ByteBuffer.allocate(8);
-				buf.putDouble((Double)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof Long) {
-				/* Long */
-				buffer.write(FORMAT_LONG);
-				ByteBuffer buf = ByteBuffer.allocate(8);
-				buf.putLong((Long)arg);
-				buffer.write(buf.array());
-			} else if (arg instanceof String) {
-				/* String */
-				buffer.write(FORMAT_STRING);
-				buffer.write(((String)arg).getBytes());
-			} else if (argClass.isArray()) {
-				int size = Array.getLength(arg);
-				if (size == 0) {
-					/* Empty array */
-					buffer.write(FORMAT_ARRAY);
-				} else if (Array.get(arg, 0) instanceof Byte) {
-					/* Byte array */
-					buffer.write(FORMAT_BYTE_ARRAY);
-					buffer.write((byte[])arg);
+		PacketBuffer buffer = new PacketBuffer(32);
+		packObject(arg, buffer);
+		return buffer.toByteArray();
+	}
+	
+	/**
+	 * Pack an object so that it can be transported
+	 * @param arg {@link Object} - Argument
+	 * @param buffer {@link PacketBuffer} - Buffer to write the packed object into
+	 */
+	protected static void packObject(Object arg, PacketBuffer buffer) {
+		packObject(arg, buffer, false, 0);
+	}
+	
+	/**
+	 * Pack an object in the compact format.<br>
+	 * The packed object is self-delimiting: the type tag implies the size of fixed-size
+	 * values, integers are written as zigzag varints, arrays, lists, sets and maps
+	 * are written as a varint number of elements followed by the packed elements,
+	 * and everything else is prefixed with its varint length, so no separate length
+	 * needs to be written for it.
+	 * @param arg {@link Object} - Argument
+	 * @param buffer {@link PacketBuffer} - Buffer to write the packed object into
+	 */
+	protected static void packCompact(Object arg, PacketBuffer buffer) {
+		packObject(arg, buffer, true, 0);
+	}
+	
+	/**
+	 * Pack an object so that it can be transported
+	 * @param arg {@link Object} - Argument
+	 * @param buffer {@link PacketBuffer} - Buffer to write the packed object into
+	 * @param compact boolean - Whether to use the compact format
+	 * @param depth int - Nesting depth of the object
+	 */
+	@SuppressWarnings("unchecked")
+	static void packObject(Object arg, PacketBuffer buffer, boolean compact, int depth) {
+		if (arg == null) {
+			/* Null value */
+			buffer.put(FORMAT_NULL);
+			return;
+		}
+		byte format = Codecs.getFormat(arg.getClass());
+		if (format == FORMAT_STRING && compact && buffer.getStrings() != null && buffer.getStrings().write((String)arg, buffer)) {
+			return;
+		}
+		if (compact && nativeCodec && isNativeFormat(format)) {
+			NativeCodec.pack(arg, buffer);
+			return;
+		}
+		switch (format) {
+			case FORMAT_BYTE:
+				buffer.put(FORMAT_BYTE);
+				buffer.put((Byte)arg);
+				break;
+			case FORMAT_CHAR:
+				buffer.put(FORMAT_CHAR);
+				if (compact) {
+					buffer.putVarInt((Character)arg);
 				} else {
-					/* Regular array */
-					JSONArray a = new JSONArray();
-					for (int i=0;i<size;i++) {
-						a.put(Array.get(arg, i));
-					}
-					buffer.write(FORMAT_ARRAY);
-					buffer.write(a.toString().getBytes());
+					buffer.putShort((Character)arg);
 				}
-			} else if (arg instanceof ArrayList<?>) {
-				/* List */
-				JSONArray a = new JSONArray();
-				for (Object o:(ArrayList)arg) {
-					a.put(o);
+				break;
+			case FORMAT_SHORT:
+				buffer.put(FORMAT_SHORT);
+				if (compact) {
+					buffer.putVarInt(PacketBuffer.zigZag((int)(Short)arg));
+				} else {
+					buffer.putShort((Short)arg);
 				}
-				buffer.write(FORMAT_LIST);
-				buffer.write(a.toString().getBytes());		
-			} else if (arg instanceof Set<?>) {
-				/* Set */
-				JSONArray a = new JSONArray();
-				for (Object o:(Set)arg) {
-					a.put(o);
-				}
-				buffer.write(FORMAT_SET);
-				buffer.write(a.toString().getBytes());	
-			} else if (arg instanceof Map<?,?>) {
-				/* Map */
-				Map map = (Map)arg;
-				JSONObject json = new JSONObject();
-				for (Object k:map.keySet()) {
-					try {
-						json.put(k.toString(), map.get(k));
-					} catch(JSONException e) {
-						e.printStackTrace();
+				break;
+			case FORMAT_BOOL:
+				buffer.put(FORMAT_BOOL);
+				buffer.put(((Boolean)arg).booleanValue() ? 1 : 0);
+				if (!compact) {
+					buffer.put(0);
+				}
+				break;
+			case FORMAT_INT:
+				buffer.put(FORMAT_INT);
+				if (compact) {
+					buffer.putVarInt(PacketBuffer.zigZag((int)(Integer)arg));
+				} else {
+					buffer.putInt((Integer)arg);
+				}
+				break;
+			case FORMAT_FLOAT:
+				buffer.put(FORMAT_FLOAT);
+				buffer.putInt(Float.floatToRawIntBits((Float)arg));
+				break;
+			case FORMAT_DOUBLE:
+				buffer.put(FORMAT_DOUBLE);
+				buffer.putLong(Double.doubleToRawLongBits((Double)arg));
+				break;
+			case FORMAT_LONG:
+				buffer.put(FORMAT_LONG);
+				if (compact) {
+					buffer.putVarLong(PacketBuffer.zigZag((long)(Long)arg));
+				} else {
+					buffer.putLong((Long)arg);
+				}
+				break;
+			case FORMAT_STRING:
+				putString(FORMAT_STRING, (String)arg, buffer, compact);
+				break;
+			case FORMAT_ARRAY:
+			case FORMAT_LIST:
+			case FORMAT_SET:
+			case FORMAT_MAP:
+			case FORMAT_BYTE_ARRAY:
+			case FORMAT_INT_ARRAY:
+			case FORMAT_LONG_ARRAY:
+			case FORMAT_DOUBLE_ARRAY:
+			case FORMAT_FLOAT_ARRAY:
+			case FORMAT_BOOL_ARRAY:
+			case FORMAT_SHORT_ARRAY:
+			case FORMAT_CHAR_ARRAY:
+				if (compact) {
+					/* Binary container */
+					if (depth >= MAX_DEPTH) {
+						throw new IllegalArgumentException("Too many nested containers");
 					}
+					packContainer(arg, buffer, depth + 1);
+				} else {
+					packJSONContainer(arg, format, buffer);
 				}
-				buffer.write(FORMAT_MAP);
-				buffer.write(json.toString().getBytes());	
-			} else if (arg instanceof JSONObject) {
-				/* JSON object */
-				buffer.write(FORMAT_JSON);
-				buffer.write(arg.toString().getBytes());
-			} else if (arg instanceof JSONArray) {
-				/* JSON array */
-				buffer.write(FORMAT_JSON_ARRAY);
-				buffer.write(arg.toString().getBytes());
-			} else if (arg instanceof Exception) {
-				/* Exception */
-				buffer.write(FORMAT_REMOTE_EX);
+				break;
+			case FORMAT_JSON:
+				putString(FORMAT_JSON, arg.toString(), buffer, compact);
+				break;
+			case FORMAT_JSON_ARRAY:
+				putString(FORMAT_JSON_ARRAY, arg.toString(), buffer, compact);
+				break;
+			case FORMAT_OBJECT:
+				if (!compact) {
+					throw new IllegalArgumentException("Schemas are only available in the compact format: " + arg.getClass().getName());
+				}
+				if (depth >= MAX_DEPTH) {
+					throw new IllegalArgumentException("Too many nested values");
+				}
+				/* Object fields, prefixed with their length once known */
+				buffer.put(FORMAT_OBJECT);
+				int start = buffer.size();
+				Schema.get(arg.getClass()).write(arg, buffer, depth + 1);
+				buffer.insertVarInt(start, buffer.size() - start);
+				break;
+			case FORMAT_REMOTE_EX:
 				RemoteException re = (RemoteException)arg;
 				String msg = re.getMessage();
-				buffer.write((msg != null ? msg : "").getBytes());
-			} else {
+				putString(FORMAT_REMOTE_EX, msg != null ? msg : "", buffer, compact);
+				break;
+			default:
+				Codec<Object> codec = (Codec<Object>)Codecs.get(format);
+				if (codec == null) {
+					throw new IllegalArgumentException("Unsupported data type for " + arg);
+				}
+				if (!compact) {
+					throw new IllegalArgumentException("Codecs are only available in the compact format: " + arg.getClass().getName());
+				}
+				if (depth >= MAX_DEPTH) {
+					throw new IllegalArgumentException("Too many nested values");
+				}
+				/* Application type, prefixed with its length once known */
+				buffer.put(format);
+				int pos = buffer.size();
+				int[] nesting = codecDepth.get();
+				int outer = nesting[0];
+				nesting[0] = depth + 1;
+				try {
+					codec.encode(arg, buffer);
+				} finally {
+					nesting[0] = outer;
+				}
+				buffer.insertVarInt(pos, buffer.size() - pos);
+		}
+	}
+	
+	/**
+	 * Pack an array, list, set or map in the legacy format, as a JSON string
+	 * @param arg {@link Object} - Container
+	 * @param format byte - Type tag of the container
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	@SuppressWarnings("unchecked")
+	private static void packJSONContainer(Object arg, byte format, PacketBuffer buffer) {
+		if (format == FORMAT_LIST) {
+			if (!(arg instanceof ArrayList<?>)) {
 				throw new IllegalArgumentException("Unsupported data type for " + arg);
 			}
-			return buffer.toByteArray();
-		} catch(IOException e) {
-			return null;
+			JSONArray a = new JSONArray();
+			for (Object o:(ArrayList)arg) {
+				a.put(o);
+			}
+			putString(FORMAT_LIST, a.toString(), buffer, false);
+		} else if (format == FORMAT_SET) {
+			JSONArray a = new JSONArray();
+			for (Object o:(Set)arg) {
+				a.put(o);
+			}
+			putString(FORMAT_SET, a.toString(), buffer, false);
+		} else if (format == FORMAT_MAP) {
+			Map map = (Map)arg;
+			JSONObject json = new JSONObject();
+			for (Object k:map.keySet()) {
+				try {
+					json.put(k.toString(), map.get(k));
+				} catch(JSONException e) {
+					e.printStackTrace();
+				}
+			}
+			putString(FORMAT_MAP, json.toString(), buffer, false);
+		} else {
+			int size = Array.getLength(arg);
+			if (size == 0) {
+				/* Empty array */
+				buffer.put(FORMAT_ARRAY);
+			} else if (format == FORMAT_BYTE_ARRAY) {
+				/* Byte array */
+				putBytes(FORMAT_BYTE_ARRAY, (byte[])arg, buffer, false);
+			} else {
+				/* Regular array */
+				JSONArray a = new JSONArray();
+				for (int i=0;i<size;i++) {
+					a.put(Array.get(arg, i));
+				}
+				putString(FORMAT_ARRAY, a.toString(), buffer, false);
+			}
 		}
 	}
+	
+	/**
+	 * Get the type tag of a built-in type
+	 * @param c {@link Class} - Class of the value to pack
+	 * @return byte Type tag, 0 if not supported
+	 */
+	static byte getBuiltinFormat(Class<?> c) {
+		if (c.isArray()) {
+			Class<?> comp = c.getComponentType();
+			if (!comp.isPrimitive()) {
+				return FORMAT_ARRAY;
+			} else if (comp == byte.class) {
+				return FORMAT_BYTE_ARRAY;
+			} else if (comp == int.class) {
+				return FORMAT_INT_ARRAY;
+			} else if (comp == long.class) {
+				return FORMAT_LONG_ARRAY;
+			} else if (comp == double.class) {
+				return FORMAT_DOUBLE_ARRAY;
+			} else if (comp == float.class) {
+				return FORMAT_FLOAT_ARRAY;
+			} else if (comp == boolean.class) {
+				return FORMAT_BOOL_ARRAY;
+			} else if (comp == short.class) {
+				return FORMAT_SHORT_ARRAY;
+			}
+			return FORMAT_CHAR_ARRAY;
+		}
+		byte format = getComponentFormat(c);
+		if (format != FORMAT_NULL) {
+			/* String or boxed primitive */
+			return format;
+		} else if (List.class.isAssignableFrom(c)) {
+			return FORMAT_LIST;
+		} else if (Set.class.isAssignableFrom(c)) {
+			return FORMAT_SET;
+		} else if (Map.class.isAssignableFrom(c)) {
+			return FORMAT_MAP;
+		} else if (JSONObject.class.isAssignableFrom(c)) {
+			return FORMAT_JSON;
+		} else if (JSONArray.class.isAssignableFrom(c)) {
+			return FORMAT_JSON_ARRAY;
+		} else if (Exception.class.isAssignableFrom(c)) {
+			return FORMAT_REMOTE_EX;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Pack a value nested in a value being encoded by a codec
+	 * @param arg {@link Object} - Value
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	static void packNested(Object arg, PacketBuffer buffer) {
+		packObject(arg, buffer, true, codecDepth.get()[0]);
+	}
+	
+	/**
+	 * Unpack a value nested in a value being decoded by a codec
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the packed value
+	 * @return {@link Object}
+	 */
+	static Object unpackNested(ByteBuffer buf) throws Exception {
+		return unpackObject(buf, buf.get(), -1, true, codecDepth.get()[0]);
+	}
+	
+	/**
+	 * Pack an array, list, set or map in the compact format.<br>
+	 * Each element is packed with its own type tag so that element types are kept.
+	 * Arrays also carry the type tag of their component type when it is a string
+	 * or a boxed primitive, so that they get rebuilt with the same type.
+	 * @param arg {@link Object} - Container
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param depth int - Nesting depth of the elements
+	 */
+	@SuppressWarnings("unchecked")
+	private static void packContainer(Object arg, PacketBuffer buffer, int depth) {
+		if (arg.getClass().isArray()) {
+			if (arg.getClass().getComponentType().isPrimitive()) {
+				packPrimitiveArray(arg, buffer);
+				return;
+			}
+			int size = Array.getLength(arg);
+			buffer.put(FORMAT_ARRAY);
+			buffer.putVarInt(size);
+			buffer.put(getComponentFormat(arg.getClass().getComponentType()));
+			if (arg instanceof Object[]) {
+				for (Object o:(Object[])arg) {
+					packObject(o, buffer, true, depth);
+				}
+			} else {
+				for (int i=0;i<size;i++) {
+					packObject(Array.get(arg, i), buffer, true, depth);
+				}
+			}
+		} else if (arg instanceof Map<?,?>) {
+			Map<Object,Object> map = (Map<Object,Object>)arg;
+			buffer.put(FORMAT_MAP);
+			buffer.putVarInt(map.size());
+			for (Map.Entry<Object,Object> e:map.entrySet()) {
+				packObject(e.getKey(), buffer, true, depth);
+				packObject(e.getValue(), buffer, true, depth);
+			}
+		} else {
+			Collection<Object> c = (Collection<Object>)arg;
+			buffer.put(arg instanceof List<?> ? FORMAT_LIST : FORMAT_SET);
+			buffer.putVarInt(c.size());
+			for (Object o:c) {
+				packObject(o, buffer, true, depth);
+			}
+		}
+	}
+	
+	/**
+	 * Pack an array of primitive values in the compact format.<br>
+	 * Values are copied in bulk, each one taking its regular fixed size
+	 * (which also allows decoding them in bulk), except for booleans which
+	 * are packed as a bitset.
+	 * @param arg {@link Object} - Array
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	private static void packPrimitiveArray(Object arg, PacketBuffer buffer) {
+		if (arg instanceof byte[]) {
+			putBytes(FORMAT_BYTE_ARRAY, (byte[])arg, buffer, true);
+		} else if (arg instanceof double[]) {
+			double[] a = (double[])arg;
+			buffer.put(FORMAT_DOUBLE_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putDoubles(a);
+		} else if (arg instanceof int[]) {
+			int[] a = (int[])arg;
+			buffer.put(FORMAT_INT_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putInts(a);
+		} else if (arg instanceof long[]) {
+			long[] a = (long[])arg;
+			buffer.put(FORMAT_LONG_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putLongs(a);
+		} else if (arg instanceof float[]) {
+			float[] a = (float[])arg;
+			buffer.put(FORMAT_FLOAT_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putFloats(a);
+		} else if (arg instanceof boolean[]) {
+			boolean[] a = (boolean[])arg;
+			buffer.put(FORMAT_BOOL_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putBooleans(a);
+		} else if (arg instanceof short[]) {
+			short[] a = (short[])arg;
+			buffer.put(FORMAT_SHORT_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putShorts(a);
+		} else {
+			char[] a = (char[])arg;
+			buffer.put(FORMAT_CHAR_ARRAY);
+			buffer.putVarInt(a.length);
+			buffer.putChars(a);
+		}
+	}
+	
+	/**
+	 * Unpack an array of primitive values packed in the compact format
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the type tag
+	 * @param type byte - Type tag
+	 * @return {@link Object}
+	 */
+	private static Object unpackPrimitiveArray(ByteBuffer buf, byte type) {
+		int n = getVarInt(buf);
+		int size = type == FORMAT_BOOL_ARRAY ? 1 : type == FORMAT_SHORT_ARRAY || type == FORMAT_CHAR_ARRAY ? 2 : type == FORMAT_INT_ARRAY || type == FORMAT_FLOAT_ARRAY ? 4 : 8;
+		long bytes = type == FORMAT_BOOL_ARRAY ? (n + 7L) >>> 3 : (long)n * size;
+		if (n < 0 || bytes > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid number of elements: " + n);
+		}
+		Object res;
+		if (type == FORMAT_DOUBLE_ARRAY) {
+			double[] a = new double[n];
+			buf.asDoubleBuffer().get(a);
+			res = a;
+		} else if (type == FORMAT_INT_ARRAY) {
+			int[] a = new int[n];
+			buf.asIntBuffer().get(a);
+			res = a;
+		} else if (type == FORMAT_LONG_ARRAY) {
+			long[] a = new long[n];
+			buf.asLongBuffer().get(a);
+			res = a;
+		} else if (type == FORMAT_FLOAT_ARRAY) {
+			float[] a = new float[n];
+			buf.asFloatBuffer().get(a);
+			res = a;
+		} else if (type == FORMAT_SHORT_ARRAY) {
+			short[] a = new short[n];
+			buf.asShortBuffer().get(a);
+			res = a;
+		} else if (type == FORMAT_CHAR_ARRAY) {
+			char[] a = new char[n];
+			buf.asCharBuffer().get(a);
+			res = a;
+		} else {
+			boolean[] a = new boolean[n];
+			int pos = buf.position();
+			for (int i=0;i<n;i++) {
+				a[i] = (buf.get(pos + (i >>> 3)) & (1 << (i & 7))) != 0;
+			}
+			res = a;
+		}
+		buf.position(buf.position() + (int)bytes);
+		return res;
+	}
+	
+	/**
+	 * Get the type tag of an array component type
+	 * @param c {@link Class} - Component type
+	 * @return byte Type tag, FORMAT_NULL for arrays of any other type (rebuilt as Object[])
+	 */
+	private static byte getComponentFormat(Class<?> c) {
+		if (c == String.class) {
+			return FORMAT_STRING;
+		} else if (c == Integer.class) {
+			return FORMAT_INT;
+		} else if (c == Long.class) {
+			return FORMAT_LONG;
+		} else if (c == Double.class) {
+			return FORMAT_DOUBLE;
+		} else if (c == Float.class) {
+			return FORMAT_FLOAT;
+		} else if (c == Short.class) {
+			return FORMAT_SHORT;
+		} else if (c == Byte.class) {
+			return FORMAT_BYTE;
+		} else if (c == Character.class) {
+			return FORMAT_CHAR;
+		} else if (c == Boolean.class) {
+			return FORMAT_BOOL;
+		}
+		return FORMAT_NULL;
+	}
+	
+	/**
+	 * Get the array component type of a type tag
+	 * @param format byte - Type tag
+	 * @return {@link Class}
+	 */
+	private static Class<?> getComponentClass(byte format) {
+		switch (format) {
+			case FORMAT_STRING: return String.class;
+			case FORMAT_INT: return Integer.class;
+			case FORMAT_LONG: return Long.class;
+			case FORMAT_DOUBLE: return Double.class;
+			case FORMAT_FLOAT: return Float.class;
+			case FORMAT_SHORT: return Short.class;
+			case FORMAT_BYTE: return Byte.class;
+			case FORMAT_CHAR: return Character.class;
+			case FORMAT_BOOL: return Boolean.class;
+			default: return Object.class;
+		}
+	}
+	
+	/**
+	 * Write a string value, encoded in UTF-8
+	 * @param format byte - Value type
+	 * @param str {@link String} - String
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param compact boolean - Whether to use the compact format, which prefixes the bytes with their length
+	 */
+	private static void putString(byte format, String str, PacketBuffer buffer, boolean compact) {
+		buffer.put(format);
+		int length = PacketBuffer.utf8Length(str);
+		if (compact) {
+			buffer.putVarInt(length);
+		}
+		buffer.putUTF8(str, length);
+	}
+	
+	/**
+	 * Write a variable-size value
+	 * @param format byte - Value type
+	 * @param bytes byte[] - Value bytes
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param compact boolean - Whether to use the compact format, which prefixes the bytes with their length
+	 */
+	private static void putBytes(byte format, byte[] bytes, PacketBuffer buffer, boolean compact) {
+		buffer.put(format);
+		if (compact) {
+			buffer.putVarInt(bytes.length);
+		}
+		buffer.put(bytes);
+	}
+	
+	/**
+	 * Get this thread's buffer to encode packets into.<br>
+	 * Packets are encoded by the threads of the router they go through,
+	 * so this buffer gets reused for every packet a router sends instead
+	 * of allocating new ones. The buffer is reset, and must not be held
+	 * onto after the encoding is done.
+	 * @return {@link PacketBuffer}
+	 */
+	protected static PacketBuffer getEncodeBuffer() {
+		PacketBuffer buffer = encodeBuffer.get();
+		if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+			/* Do not hold onto the memory used by an unusually large packet */
+			buffer = new PacketBuffer(INITIAL_BUFFER);
+			encodeBuffer.set(buffer);
+		}
+		buffer.reset();
+		return buffer;
+	}
 
 	/**
 	 * Unpack an object
@@ -279,114 +976,671 @@ public class DataPacket {
 	 */
 	protected static Object unpackObject(byte[] argBytes) throws Exception {
 		ByteBuffer buf = ByteBuffer.wrap(argBytes);
-		byte type = buf.get();
+		return unpackObject(buf, buf.get(), argBytes.length - 1, false, 0);
+	}
+	
+	/**
+	 * Unpack an object packed in the legacy format, straight from the frame bytes
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the packed object
+	 * @param length int - Size of the packed object, type tag included
+	 * @return {@link Object}
+	 */
+	protected static Object unpackObject(ByteBuffer buf, int length) throws Exception {
+		if (length < 1 || length > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid object length: " + length);
+		}
+		return unpackObject(buf, buf.get(), length - 1, false, 0);
+	}
+	
+	/**
+	 * Unpack the next object packed in the compact format
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the packed object,
+	 * which is left positioned right after it
+	 * @return {@link Object}
+	 */
+	protected static Object unpackCompact(ByteBuffer buf) throws Exception {
+		return unpackObject(buf, buf.get(), -1, true, 0);
+	}
+	
+	/**
+	 * Skip the next object packed in the compact format, without decoding it
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the packed object,
+	 * which is left positioned right after it
+	 */
+	protected static void skipCompact(ByteBuffer buf) {
+		skipCompact(buf, buf.get(), 0);
+	}
+	
+	/**
+	 * Skip an object packed in the compact format
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the type tag
+	 * @param type byte - Type tag
+	 * @param depth int - Nesting depth of the object
+	 */
+	private static void skipCompact(ByteBuffer buf, byte type, int depth) {
+		int n;
 		if (type == FORMAT_NULL) {
-			return null;
-		} else if (type == FORMAT_BOOL) {
-			return buf.get() == (byte)1;
-		} else if (type == FORMAT_BYTE) {
-			return buf.get();
-		} else if (type == FORMAT_CHAR) {
-			return buf.getChar();
-		} else if (type == FORMAT_SHORT) {
-			return buf.getShort();
-		} else if (type == FORMAT_INT) {
-			return buf.getInt();
+			return;
+		} else if (type == FORMAT_BOOL || type == FORMAT_BYTE) {
+			n = 1;
+		} else if (type == FORMAT_CHAR || type == FORMAT_SHORT || type == FORMAT_INT) {
+			getVarInt(buf);
+			return;
+		} else if (type == FORMAT_LONG) {
+			getVarLong(buf);
+			return;
 		} else if (type == FORMAT_FLOAT) {
-			return buf.getFloat();
+			n = 4;
 		} else if (type == FORMAT_DOUBLE) {
-			return buf.getDouble();
-		} else if (type == FORMAT_LONG) {
-			return buf.getLong();
-		} else if (type == FORMAT_STRING) { 
-			return new String(argBytes).substring(1);
-		} else if (type == FORMAT_BYTE_ARRAY) {
-			return Arrays.copyOfRange(argBytes, 1, argBytes.length);
-		} else if (type == FORMAT_ARRAY) {
-			if (argBytes.length > 1) {
-				String data = new String(argBytes).substring(1);
-				JSONArray a = new JSONArray(new JSONTokener(data));
-				Object[] array = new Object[a.length()];
-				for (int i=0;i<a.length();i++) {
-					array[i] = a.get(i);
-				}
-				return array;			
-			} else {
-				return new Object[]{};
+			n = 8;
+		} else if (type >= FORMAT_INT_ARRAY && type <= FORMAT_CHAR_ARRAY) {
+			int count = getVarInt(buf);
+			int size = type == FORMAT_BOOL_ARRAY ? 1 : type == FORMAT_SHORT_ARRAY || type == FORMAT_CHAR_ARRAY ? 2 : type == FORMAT_INT_ARRAY || type == FORMAT_FLOAT_ARRAY ? 4 : 8;
+			long bytes = type == FORMAT_BOOL_ARRAY ? (count + 7L) >>> 3 : (long)count * size;
+			n = count < 0 || bytes > buf.remaining() ? -1 : (int)bytes;
+		} else if (type == FORMAT_ARRAY || type == FORMAT_LIST || type == FORMAT_SET || type == FORMAT_MAP) {
+			if (depth >= MAX_DEPTH) {
+				throw new IllegalArgumentException("Too many nested containers");
 			}
-		} else if (type == FORMAT_SET) {
-			String data = new String(argBytes).substring(1);
-			JSONArray a = new JSONArray(new JSONTokener(data));
-			Set<Object> s = new HashSet<Object>(a.length());
-			for (int i=0;i<a.length();i++) {
-				s.add(a.get(i));
+			int size = getVarInt(buf);
+			if (size < 0 || size > buf.remaining()) {
+				throw new IllegalArgumentException("Invalid number of elements: " + size);
 			}
-			return s;
+			if (type == FORMAT_ARRAY) {
+				/* Component type */
+				buf.get();
+			} else if (type == FORMAT_MAP) {
+				size <<= 1;
+			}
+			for (int i=0;i<size;i++) {
+				skipCompact(buf, buf.get(), depth + 1);
+			}
+			return;
+		} else if (type == FORMAT_STRING_REF) {
+			getVarInt(buf);
+			return;
+		} else if (type == FORMAT_STRING_DEF) {
+			/* Index, then the string itself */
+			getVarInt(buf);
+			n = getVarInt(buf);
+		} else if (type == FORMAT_STRING || type == FORMAT_BYTE_ARRAY || type == FORMAT_JSON || type == FORMAT_JSON_ARRAY || type == FORMAT_REMOTE_EX || type == FORMAT_REMOTE_ERROR || type == FORMAT_OBJECT || (type >= Codecs.MIN_TAG && type <= Codecs.MAX_TAG)) {
+			/* Length-prefixed values */
+			n = getVarInt(buf);
+		} else {
+			throw new IllegalArgumentException("Invalid data type: " + type);
+		}
+		if (n < 0 || n > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid object length: " + n);
+		}
+		buf.position(buf.position() + n);
+	}
+	
+	/**
+	 * Unpack an object
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the type tag
+	 * @param type byte - Type tag
+	 * @param length int - Size of the value (only used by the legacy format, where it is known beforehand)
+	 * @param compact boolean - Whether the object was packed in the compact format
+	 * @param depth int - Nesting depth of the object
+	 * @return {@link Object}
+	 */
+	static Object unpackObject(ByteBuffer buf, byte type, int length, boolean compact, int depth) throws Exception {
+		switch (type) {
+			case FORMAT_NULL:
+				return null;
+			case FORMAT_BOOL:
+				boolean b = buf.get() == (byte)1;
+				if (!compact) {
+					buf.get();
+				}
+				return b;
+			case FORMAT_BYTE:
+				return buf.get();
+			case FORMAT_CHAR:
+				return compact ? (char)getVarInt(buf) : buf.getChar();
+			case FORMAT_SHORT:
+				return compact ? (short)unZigZag(getVarInt(buf)) : buf.getShort();
+			case FORMAT_INT:
+				return compact ? unZigZag(getVarInt(buf)) : buf.getInt();
+			case FORMAT_FLOAT:
+				return buf.getFloat();
+			case FORMAT_DOUBLE:
+				return buf.getDouble();
+			case FORMAT_LONG:
+				return compact ? unZigZag(getVarLong(buf)) : buf.getLong();
+		}
+		/* Variable-size values */
+		if (compact && (type == FORMAT_STRING_DEF || type == FORMAT_STRING_REF)) {
+			return StringTable.read(buf, type);
+		}
+		if (compact && nativeCodec && isNativeFormat(type) && buf.hasArray()) {
+			int start = buf.position() - 1;
+			skipCompact(buf, type, depth);
+			return NativeCodec.unpackObject(buf.array(), buf.arrayOffset() + start, buf.position() - start);
+		}
+		if (compact) {
+			if (type >= FORMAT_INT_ARRAY && type <= FORMAT_CHAR_ARRAY) {
+				return unpackPrimitiveArray(buf, type);
+			}
+			if (type == FORMAT_ARRAY || type == FORMAT_LIST || type == FORMAT_SET || type == FORMAT_MAP) {
+				if (depth >= MAX_DEPTH) {
+					throw new IllegalArgumentException("Too many nested containers");
+				}
+				return unpackContainer(buf, type, depth + 1);
+			}
+			length = getVarInt(buf);
+			if (type >= Codecs.MIN_TAG && type <= Codecs.MAX_TAG) {
+				return unpackCustom(buf, type, length, depth);
+			}
+			if (type == FORMAT_OBJECT) {
+				return unpackSchema(buf, length, depth);
+			}
+			if (type == FORMAT_REMOTE_ERROR) {
+				if (length < 1 || length > buf.remaining()) {
+					throw new IllegalArgumentException("Invalid error length: " + length);
+				}
+				int end = buf.position() + length;
+				int code = getVarInt(buf);
+				return new RemoteException(code, getString(buf, end - buf.position()));
+			}
+		}
+		switch (type) {
+			case FORMAT_STRING:
+				return getString(buf, length);
+			case FORMAT_BYTE_ARRAY:
+				if (length < 0 || length > buf.remaining()) {
+					throw new IllegalArgumentException("Invalid byte array length: " + length);
+				}
+				byte[] bytes = new byte[length];
+				buf.get(bytes);
+				return bytes;
+			case FORMAT_ARRAY:
+				if (length > 0) {
+					JSONArray a = new JSONArray(new JSONTokener(getString(buf, length)));
+					Object[] array = new Object[a.length()];
+					for (int i=0;i<a.length();i++) {
+						array[i] = a.get(i);
+					}
+					return array;
+				} else {
+					return new Object[]{};
+				}
+			case FORMAT_SET:
+				JSONArray sa = new JSONArray(new JSONTokener(getString(buf, length)));
+				Set<Object> set = new HashSet<Object>(sa.length());
+				for (int i=0;i<sa.length();i++) {
+					set.add(sa.get(i));
+				}
+				return set;
+			case FORMAT_MAP:
+				JSONObject json = new JSONObject(new JSONTokener(getString(buf, length)));
+				JSONArray keys = json.names();
+				Map<String,Object> m = new HashMap<String, Object>(keys != null ? keys.length() : 0);
+				for (int i=0;keys != null && i<keys.length();i++) {
+					String key = keys.getString(i);
+					m.put(key, json.get(key));
+				}
+				return m;
+			case FORMAT_LIST:
+				JSONArray la = new JSONArray(new JSONTokener(getString(buf, length)));
+				List<Object> l = new ArrayList<Object>(la.length());
+				for (int i=0;i<la.length();i++) {
+					l.add(la.get(i));
+				}
+				return l;
+			case FORMAT_JSON:
+				return new JSONObject(new JSONTokener(getString(buf, length)));
+			case FORMAT_JSON_ARRAY:
+				return new JSONArray(new JSONTokener(getString(buf, length)));
+			case FORMAT_REMOTE_EX:
+				return new RemoteException(getString(buf, length));
+			default:
+				throw new IllegalArgumentException("Invalid data type: " + type);
+		}
+	}
+	
+	/**
+	 * Unpack an object packed along its schema
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the schema ID
+	 * @param length int - Size of the packed object
+	 * @param depth int - Nesting depth of the object
+	 * @return {@link Object}
+	 */
+	private static Object unpackSchema(ByteBuffer buf, int length, int depth) throws Exception {
+		if (depth >= MAX_DEPTH) {
+			throw new IllegalArgumentException("Too many nested values");
+		}
+		if (length < 4 || length > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid object length: " + length);
+		}
+		ByteBuffer value = buf.slice();
+		value.limit(length);
+		buf.position(buf.position() + length);
+		int id = value.getInt();
+		Schema schema = Schema.get(id);
+		if (schema == null) {
+			throw new IllegalArgumentException("Unknown schema: " + Integer.toHexString(id));
+		}
+		return schema.read(value, depth + 1);
+	}
+	
+	/**
+	 * Unpack a value of an application type
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the encoded value
+	 * @param type byte - Type tag
+	 * @param length int - Size of the encoded value
+	 * @param depth int - Nesting depth of the value
+	 * @return {@link Object}
+	 */
+	private static Object unpackCustom(ByteBuffer buf, byte type, int length, int depth) throws Exception {
+		Codec<?> codec = Codecs.get(type);
+		if (codec == null) {
+			throw new IllegalArgumentException("No codec for data type: " + type);
+		}
+		if (depth >= MAX_DEPTH) {
+			throw new IllegalArgumentException("Too many nested values");
+		}
+		if (length < 0 || length > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid value length: " + length);
+		}
+		ByteBuffer value = buf.slice();
+		value.limit(length);
+		buf.position(buf.position() + length);
+		int[] nesting = codecDepth.get();
+		int outer = nesting[0];
+		nesting[0] = depth + 1;
+		try {
+			return codec.decode(value);
+		} finally {
+			nesting[0] = outer;
+		}
+	}
+	
+	/**
+	 * Unpack an array, list, set or map packed in the compact format
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the type tag
+	 * @param type byte - Type tag
+	 * @param depth int - Nesting depth of the elements
+	 * @return {@link Object}
+	 */
+	private static Object unpackContainer(ByteBuffer buf, byte type, int depth) throws Exception {
+		int size = getVarInt(buf);
+		if (size < 0 || size > buf.remaining()) {
+			/* Every element takes at least one byte */
+			throw new IllegalArgumentException("Invalid number of elements: " + size);
+		}
+		if (type == FORMAT_ARRAY) {
+			Class<?> c = getComponentClass(buf.get());
+			Object[] array = c == Object.class ? new Object[size] : (Object[])Array.newInstance(c, size);
+			for (int i=0;i<size;i++) {
+				array[i] = unpackObject(buf, buf.get(), -1, true, depth);
+			}
+			return array;
 		} else if (type == FORMAT_MAP) {
-			String data = new String(argBytes).substring(1);
-			JSONObject json = new JSONObject(new JSONTokener(data));
-			JSONArray keys = json.names();
-			Map<String,Object> m = new HashMap<String, Object>(keys.length());
-			for (int i=0;i<keys.length();i++) {
-				String key = keys.getString(i);
-				m.put(key, json.get(key));
+			Map<Object,Object> m = new LinkedHashMap<Object,Object>(size * 4 / 3 + 1);
+			for (int i=0;i<size;i++) {
+				Object k = unpackObject(buf, buf.get(), -1, true, depth);
+				m.put(k, unpackObject(buf, buf.get(), -1, true, depth));
 			}
 			return m;
-		} else if (type == FORMAT_LIST) {
-			String data = new String(argBytes).substring(1);
-			JSONArray a = new JSONArray(new JSONTokener(data));
-			List<Object> l = new ArrayList<Object>(a.length());
-			for (int i=0;i<a.length();i++) {
-				l.add(a.get(i));
-			}
-			return l;
-		} else if (type == FORMAT_JSON) {
-			String data = new String(argBytes).substring(1);
-			return new JSONObject(new JSONTokener(data));
-		} else if (type == FORMAT_JSON_ARRAY) {
-			String data = new String(argBytes).substring(1);
-			return new JSONArray(new JSONTokener(data));
-		} else if (type == FORMAT_REMOTE_EX) {
-			return new RemoteException(new String(argBytes).substring(1));
+		}
+		Collection<Object> c = type == FORMAT_LIST ? new ArrayList<Object>(size) : new LinkedHashSet<Object>(size * 4 / 3 + 1);
+		for (int i=0;i<size;i++) {
+			c.add(unpackObject(buf, buf.get(), -1, true, depth));
+		}
+		return c;
+	}
+	
+	/**
+	 * Read a UTF-8 string straight from the frame bytes
+	 * @param buf {@link ByteBuffer} - Buffer positioned at the start of the string bytes
+	 * @param length int - Number of bytes
+	 * @return {@link String}
+	 */
+	protected static String getString(ByteBuffer buf, int length) {
+		if (length < 0 || length > buf.remaining()) {
+			throw new IllegalArgumentException("Invalid string length: " + length);
+		}
+		byte[] bytes;
+		int offset;
+		if (buf.hasArray()) {
+			bytes = buf.array();
+			offset = buf.arrayOffset() + buf.position();
+			buf.position(buf.position() + length);
 		} else {
-			throw new IllegalArgumentException("Invalid data type: " + type);
+			bytes = new byte[length];
+			offset = 0;
+			buf.get(bytes);
 		}
+		int end = offset + length;
+		for (int i=offset;i<end;i++) {
+			if (bytes[i] < 0) {
+				return new String(bytes, offset, length, UTF8);
+			}
+		}
+		/* Plain ASCII, which the Latin-1 decoder copies as is */
+		return new String(bytes, offset, length, LATIN1);
+	}
+	
+	/**
+	 * Read an unsigned varint
+	 * @param buf {@link ByteBuffer} - Buffer
+	 * @return int
+	 * @throws IllegalArgumentException If the varint is malformed
+	 */
+	protected static int getVarInt(ByteBuffer buf) {
+		int v = 0;
+		for (int shift=0;shift<35;shift+=7) {
+			byte b = buf.get();
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
+	/**
+	 * Read an unsigned long varint
+	 * @param buf {@link ByteBuffer} - Buffer
+	 * @return long
+	 * @throws IllegalArgumentException If the varint is malformed
+	 */
+	protected static long getVarLong(ByteBuffer buf) {
+		long v = 0;
+		for (int shift=0;shift<70;shift+=7) {
+			byte b = buf.get();
+			v |= (long)(b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+	
+	/**
+	 * Reverse {@link PacketBuffer#zigZag(int)}
+	 * @param v int - Encoded value
+	 * @return int
+	 */
+	protected static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+	
+	/**
+	 * Reverse {@link PacketBuffer#zigZag(long)}
+	 * @param v long - Encoded value
+	 * @return long
+	 */
+	protected static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
 	}
 
 	/**
-	 * Make the header bytes
-	 * @param pl int - Payload size 
+	 * Get the packet bytes to send over.<br>
+	 * The frame is encoded in a single pass into the thread's encode buffer,
+	 * the header being filled in once the payload size is known, and then
+	 * kept so that sending the same packet again (e.g. after a connection error)
+	 * does not encode it again. A packet must thus not be modified once sent,
+	 * other than through the methods of this class that drop the cached frame.
+	 * The payload is deflated when a compression is set and finds it worth it.
+	 * With the short header, room is left for the largest possible header, which
+	 * is then written at the start of the buffer and joined with the payload.
+	 * The checksum, if any, comes last.
 	 * @return byte[]
 	 */
-	protected byte[] makeHeaderBytes(int pl) {
-		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-		header.put(type);
-		header.putInt(pl);
-		header.putLong(time);
-		header.putLong(seq);
-		return header.array();
+	public byte[] getBytes() {
+		byte[] bytes = encoded;
+		if (bytes == null) {
+			boolean shortHeader = isShortHeader();
+			int room = shortHeader ? MAX_SHORT_HEADER : HEADER_SIZE;
+			PacketBuffer buffer = getEncodeBuffer();
+			buffer.skip(room);
+			StringTable.Frame shared = null;
+			if (strings != null && isCompact()) {
+				clearBytes();
+				shared = strings.newFrame();
+				buffer.setStrings(shared);
+			}
+			boolean written = false;
+			try {
+				writePayload(buffer);
+				ByteBuffer[] raw = getRawPayload();
+				if (raw != null) {
+					for (ByteBuffer r:raw) {
+						buffer.put(r.array(), r.arrayOffset() + r.position(), r.remaining());
+					}
+				}
+				written = true;
+			} finally {
+				buffer.setStrings(null);
+				if (shared != null && !written) {
+					shared.dropped();
+				}
+			}
+			sharedStrings = shared;
+			int pl = buffer.size() - room;
+			int f = flags & ~FLAG_COMPRESSED;
+			Compression c = compression;
+			PacketBuffer compressed = c != null ? c.compress(buffer.array(), room, pl) : null;
+			if (compressed != null) {
+				buffer = compressed;
+				pl = buffer.size() - room;
+				f |= FLAG_COMPRESSED;
+			}
+			if (shortHeader) {
+				buffer.reset();
+				putHeader(buffer, f, pl);
+				int h = buffer.size();
+				bytes = new byte[h + pl + ((f & FLAG_CHECKSUM) != 0 ? 4 : 0)];
+				System.arraycopy(buffer.array(), 0, bytes, 0, h);
+				System.arraycopy(buffer.array(), room, bytes, h, pl);
+				if ((f & FLAG_CHECKSUM) != 0) {
+					int crc = checksum(bytes, 0, h + pl);
+					ByteBuffer.wrap(bytes).putInt(h + pl, crc);
+				}
+			} else {
+				buffer.set(0, type | f & ~FLAG_TIME);
+				buffer.setInt(1, pl);
+				buffer.setLong(5, time);
+				buffer.setLong(13, getSeq());
+				if ((f & FLAG_CHECKSUM) != 0) {
+					buffer.putInt(checksum(buffer.array(), 0, buffer.size()));
+				}
+				bytes = buffer.toByteArray();
+			}
+			encoded = bytes;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Get the frame as a series of buffers, to be written in order with a gathering write.<br>
+	 * The raw bytes ending the payload (see {@link #getRawPayload()}), when large enough, are
+	 * not copied: only the header and the rest of the payload are encoded, into a buffer of
+	 * their own, and the checksum, if any, comes last in a buffer of its own. The buffers are
+	 * then kept, just like the bytes of {@link #getBytes()}, and every call returns fresh views
+	 * of them. Other frames come whole, as a single buffer over {@link #getBytes()}, as do
+	 * frames encoded already and frames to be compressed. The buffers must not be modified,
+	 * and the raw bytes must be left untouched until written.
+	 * @return {@link ByteBuffer}[]
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] bufs = gathered;
+		if (bufs == null) {
+			ByteBuffer[] raw = null;
+			if (encoded == null && compression == null && (strings == null || !isCompact())) {
+				raw = getRawPayload();
+			}
+			int rawSize = 0;
+			if (raw != null) {
+				for (ByteBuffer r:raw) {
+					rawSize += r.remaining();
+				}
+			}
+			if (rawSize < MIN_GATHERED_PAYLOAD) {
+				return new ByteBuffer[] {ByteBuffer.wrap(getBytes())};
+			}
+			int f = flags & ~FLAG_COMPRESSED;
+			PacketBuffer buffer = getEncodeBuffer();
+			writePayload(buffer);
+			int lead = buffer.size();
+			PacketBuffer head = new PacketBuffer(MAX_SHORT_HEADER + lead);
+			putHeader(head, f, lead + rawSize);
+			head.put(buffer.array(), 0, lead);
+			boolean checked = (f & FLAG_CHECKSUM) != 0;
+			bufs = new ByteBuffer[raw.length + (checked ? 2 : 1)];
+			bufs[0] = ByteBuffer.wrap(head.array(), 0, head.size());
+			System.arraycopy(raw, 0, bufs, 1, raw.length);
+			if (checked) {
+				CRC32 crc = checksums.get();
+				crc.reset();
+				crc.update(head.array(), 0, head.size());
+				for (ByteBuffer r:raw) {
+					crc.update(r.array(), r.arrayOffset() + r.position(), r.remaining());
+				}
+				ByteBuffer trailer = ByteBuffer.allocate(4);
+				trailer.putInt(0, (int)crc.getValue());
+				bufs[bufs.length - 1] = trailer;
+			}
+			gathered = bufs;
+		}
+		/* Written buffers get their position moved */
+		ByteBuffer[] views = new ByteBuffer[bufs.length];
+		for (int i=0;i<bufs.length;i++) {
+			views[i] = bufs[i].duplicate();
+		}
+		return views;
 	}
 	
 	/**
-	 * Make the packet bytes
-	 * @param header byte[] - Header bytes
-	 * @param payload byte[] - Payload bytes
-	 * @return byte[]
+	 * Get the size of the frame, as sent by {@link #getBuffers()}.<br>
+	 * Large raw payloads are not copied to find it out, the frame being
+	 * framed and kept the same way {@link #getBuffers()} does.
+	 * @return int
 	 */
-	protected byte[] makePacketBytes(byte[] header, byte[] payload) {
-		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + payload.length);
-		data.put(header);
-		data.put(payload);
-		return data.array();
+	public int getFrameSize() {
+		int size = 0;
+		for (ByteBuffer buf:getBuffers()) {
+			size += buf.remaining();
+		}
+		return size;
+	}
+	
+	/**
+	 * Append the frame header
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param f int - Frame flags
+	 * @param pl int - Payload size
+	 */
+	private void putHeader(PacketBuffer buffer, int f, int pl) {
+		if ((f & FLAG_SHORT_HEADER) != 0) {
+			buffer.put(type | f);
+			buffer.putVarInt(pl);
+			buffer.putVarLong(getSeq());
+			if ((f & FLAG_TIME) != 0) {
+				buffer.putLong(time);
+			}
+		} else {
+			buffer.put(type | f & ~FLAG_TIME);
+			buffer.putInt(pl);
+			buffer.putLong(time);
+			buffer.putLong(getSeq());
+		}
+	}
+	
+	/**
+	 * Write the payload bytes, right after the space reserved for the header,
+	 * except for the raw bytes ending it (see {@link #getRawPayload()})
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	protected void writePayload(PacketBuffer buffer) {
+	}
+	
+	/**
+	 * Get the bytes ending the payload that are sent as is, in order, after what
+	 * {@link #writePayload(PacketBuffer)} writes. Large byte arrays handed
+	 * over this way are written to the connection without being copied.
+	 * @return {@link ByteBuffer}[] Buffers over arrays, null if none
+	 */
+	protected ByteBuffer[] getRawPayload() {
+		return payload != null ? new ByteBuffer[] {ByteBuffer.wrap(payload)} : null;
 	}
 		
 	/**
-	 * Get the packet bytes to send over
-	 * @return byte[]
+	 * Drop the cached frame bytes.<br>
+	 * To be called once the packet has been sent, or whenever its content changes.
 	 */
-	public byte[] getBytes() {
-		byte[] header = makeHeaderBytes(payload.length);
-		return makePacketBytes(header, payload);
+	public void clearBytes() {
+		encoded = null;
+		gathered = null;
+		StringTable.Frame shared = sharedStrings;
+		if (shared != null) {
+			/* Strings introduced by a frame that never went out are given up */
+			sharedStrings = null;
+			shared.dropped();
+		}
+	}
+	
+	/**
+	 * Set the strings shared with the peer.<br>
+	 * Short strings sent by the packet (other than call arguments) then only
+	 * go out in full the first time around (see {@link StringTable}).
+	 * The frame must then be reported as sent once written in full (see {@link #setSent()}).
+	 * @param table {@link StringTable} - Sending table of the connection (null for none)
+	 */
+	public void setStrings(StringTable table) {
+		if (table != strings) {
+			clearBytes();
+			strings = table;
+		}
+	}
+	
+	/**
+	 * Set whether remote exceptions returned by this packet are sent with their error code.<br>
+	 * Only understood by peers that support {@link Protocol#ERRORS}, other peers
+	 * get the message alone.
+	 * @param on boolean - True to send error codes
+	 */
+	public void setErrorCodes(boolean on) {
+		if (on != errorCodes) {
+			errorCodes = on;
+			clearBytes();
+		}
+	}
+	
+	/**
+	 * Pack a value returned by a call, in the format of this packet
+	 * @param val {@link Object} - Returned value
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 */
+	protected void packReturn(Object val, PacketBuffer buffer) {
+		if (!isCompact()) {
+			packObject(val, buffer);
+		} else if (errorCodes && val instanceof RemoteException) {
+			/* Error code and message, prefixed with their length */
+			RemoteException re = (RemoteException)val;
+			String msg = re.getMessage() != null ? re.getMessage() : "";
+			buffer.put(FORMAT_REMOTE_ERROR);
+			int start = buffer.size();
+			buffer.putVarInt(re.getCode());
+			buffer.putUTF8(msg, PacketBuffer.utf8Length(msg));
+			buffer.insertVarInt(start, buffer.size() - start);
+		} else {
+			packCompact(val, buffer);
+		}
+	}
+	
+	/**
+	 * Report the frame as written in full, so that the strings it
+	 * shared can be referred to by the frames that follow
+	 */
+	public void setSent() {
+		StringTable.Frame shared = sharedStrings;
+		if (shared != null) {
+			sharedStrings = null;
+			shared.sent();
+		}
 	}
 	
 	/**
@@ -397,81 +1651,353 @@ public class DataPacket {
 	public static DataPacket fromBytes(byte[] bytes) {
 		ByteBuffer buf = ByteBuffer.wrap(bytes);
 		DataPacket dp = new DataPacket();
-		dp.type = buf.get(0);
-		dp.time = buf.getLong(5);
-		dp.seq = buf.getLong(13);
-		int l = buf.getInt(1);
-		dp.payload = Arrays.copyOfRange(bytes, HEADER_SIZE, HEADER_SIZE + l);
+		setTypeByte(dp, buf.get());
+		int l;
+		if (dp.isShortHeader()) {
+			l = readShortHeader(dp, buf);
+		} else {
+			l = buf.getInt();
+			dp.time = buf.getLong();
+			dp.seq = buf.getLong();
+		}
+		int end = buf.position() + l;
+		if (l < 0 || l > buf.remaining() - (dp.hasChecksum() ? 4 : 0)) {
+			throw new IllegalArgumentException("Invalid payload size: " + l);
+		}
+		if (dp.hasChecksum() && checksum(bytes, 0, end) != buf.getInt(end)) {
+			throw new IllegalArgumentException("Bad checksum");
+		}
+		dp.payload = Arrays.copyOfRange(bytes, buf.position(), end);
+		inflate(dp);
 		return dp;
 	}
 	
 	/**
 	 * Read a new packet object from a byte stream
 	 * @param in {@link BufferedInputStream} - Input stream
-	 * @return {@link DataPacket}
+	 * @return {@link DataPacket} Null if the frame was dropped for a bad checksum
 	 * @throws IOException
 	 */
 	public static DataPacket fromStream(BufferedInputStream in) throws IOException {
-		byte[] headerBytes = new byte[HEADER_SIZE];
-		int b,n = 0;
-		while (n < HEADER_SIZE) {
-			if ((b=in.read(headerBytes, n, HEADER_SIZE - n)) < 0) {
-				throw new IOException("Connection closed");
+		DataPacket dp = new DataPacket();
+		int t = in.read();
+		if (t < 0) {
+			throw new IOException("Connection closed");
+		}
+		setTypeByte(dp, (byte)t);
+		ByteBuffer header;
+		int l;
+		if (dp.isShortHeader()) {
+			/* Read the varints one byte at a time, the stream being buffered */
+			header = ByteBuffer.allocate(MAX_SHORT_HEADER);
+			int b;
+			for (int i=0;i<2;i++) {
+				int n = i == 0 ? 5 : 10;
+				do {
+					if ((b=in.read()) < 0) {
+						throw new IOException("Connection closed");
+					}
+					header.put((byte)b);
+				} while (b >= 0x80 && --n > 0);
+			}
+			if ((dp.flags & FLAG_TIME) != 0) {
+				readFully(in, header.array(), header.position(), 8);
+				header.position(header.position() + 8);
 			}
-			n += b;
+			header.flip();
+			l = readStreamHeader(dp, header);
+		} else {
+			header = ByteBuffer.allocate(HEADER_SIZE - 1);
+			readFully(in, header.array(), 0, HEADER_SIZE - 1);
+			l = header.getInt();
+			dp.time = header.getLong();
+			dp.seq = header.getLong();
 		}
-		DataPacket dp = new DataPacket();
-		ByteBuffer header = ByteBuffer.wrap(headerBytes);
-		dp.type = header.get(0);
-		dp.time = header.getLong(5);
-		dp.seq = header.getLong(13);
-		int l = header.getInt(1);
+		checkFrameSize(l);
 		dp.payload = new byte[l];
-		n = 0;
-		while (n < l) {
-			if ((b=in.read(dp.payload, n, l - n)) < 0) {
-				throw new IOException("Connection closed");
+		readFully(in, dp.payload, 0, l);
+		if (dp.hasChecksum()) {
+			byte[] trailer = new byte[4];
+			readFully(in, trailer, 0, 4);
+			if (!checkFrame((byte)t, header.array(), 0, header.limit(), dp.payload, ByteBuffer.wrap(trailer).getInt())) {
+				return null;
 			}
-			n += b;
 		}
+		inflate(dp);
 		return dp;
 	}
+	
+	/**
+	 * Read exactly the given number of bytes from a stream
+	 * @param in {@link BufferedInputStream} - Input stream
+	 * @param b byte[] - Buffer to read into
+	 * @param offset int - Offset in the buffer
+	 * @param length int - Number of bytes to read
+	 * @throws IOException If the connection gets closed
+	 */
+	private static void readFully(BufferedInputStream in, byte[] b, int offset, int length) throws IOException {
+		int r,n = 0;
+		while (n < length) {
+			if ((r=in.read(b, offset + n, length - n)) < 0) {
+				throw new IOException("Connection closed");
+			}
+			n += r;
+		}
+	}
 
 	/**
 	 * Read a new packet object from a socket channel.<br>
 	 * This is a much-better-IO version of DataPacket.fromStream().
 	 * @param sc {@link SocketChannel} - Socket channel
-	 * @return {@link DataPacket}
+	 * @return {@link DataPacket} Null if the frame was dropped for a bad checksum
 	 * @throws IOException
 	 */
 	public static DataPacket fromChannel(SocketChannel sc) throws IOException {
-		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-		int b,n = 0;
-		while (n < HEADER_SIZE) {
-			if ((b=sc.read(header)) < 0) {
-				throw new IOException("Connection closed");
+		DataPacket dp = new DataPacket();
+		ByteBuffer header = ByteBuffer.allocate(MAX_SHORT_HEADER);
+		header.limit(1);
+		readFully(sc, header);
+		setTypeByte(dp, header.get(0));
+		int l;
+		if (dp.isShortHeader()) {
+			/* The varints say how long they are, so read them one byte at a time */
+			for (int i=0;i<2;i++) {
+				int n = i == 0 ? 5 : 10;
+				do {
+					header.limit(header.position() + 1);
+					readFully(sc, header);
+				} while (header.get(header.position() - 1) < 0 && --n > 0);
 			}
-			n += b;
+			if ((dp.flags & FLAG_TIME) != 0) {
+				header.limit(header.position() + 8);
+				readFully(sc, header);
+			}
+			header.flip();
+			header.get();
+			l = readStreamHeader(dp, header);
+		} else {
+			header.limit(HEADER_SIZE);
+			readFully(sc, header);
+			l = header.getInt(1);
+			dp.time = header.getLong(5);
+			dp.seq = header.getLong(13);
 		}
-		DataPacket dp = new DataPacket();
-		dp.type = header.get(0);
-		dp.time = header.getLong(5);
-		dp.seq = header.getLong(13);
-		int l = header.getInt(1);
+		checkFrameSize(l);
 		ByteBuffer payload = ByteBuffer.allocateDirect(l);
-		n = 0;
-		while (n < l) {
-			if ((b=sc.read(payload)) < 0) {
+		readFully(sc, payload);
+		dp.payload = new byte[l];
+		payload.rewind();
+		payload.get(dp.payload, 0, l);
+		if (dp.hasChecksum()) {
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			readFully(sc, trailer);
+			if (!checkFrame(header.get(0), header.array(), 1, header.limit() - 1, dp.payload, trailer.getInt(0))) {
+				return null;
+			}
+		}
+		inflate(dp);
+		return dp;
+	}
+	
+	/**
+	 * Fill a buffer up to its limit from a channel
+	 * @param sc {@link SocketChannel} - Socket channel
+	 * @param buf {@link ByteBuffer} - Buffer to fill
+	 * @throws IOException If the connection gets closed
+	 */
+	private static void readFully(SocketChannel sc, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (sc.read(buf) < 0) {
 				throw new IOException("Connection closed");
 			}
-			n += b;
 		}
+	}
+	
+	/**
+	 * Get the size of the frame starting at the position of a buffer.<br>
+	 * Along with {@link #fromBuffer(ByteBuffer, int)}, this lets frames be decoded
+	 * as their bytes come in, without ever blocking on a connection.
+	 * The buffer is left untouched.
+	 * @param buf {@link ByteBuffer} - Bytes received so far, from position to limit
+	 * @return int Size of the whole frame, or -1 if its header is not all there yet
+	 * @throws IOException If the header is malformed or the frame too large, as nothing that follows can be trusted
+	 */
+	public static int frameSize(ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		int end = buf.limit();
+		if (start >= end) {
+			return -1;
+		}
+		byte t = buf.get(start);
+		int h,l = 0;
+		if ((t & FLAG_SHORT_HEADER) != 0) {
+			/* Walk the varints, they say how long they are */
+			int p = start + 1;
+			for (int shift=0;;shift+=7) {
+				if (p >= end) {
+					return -1;
+				}
+				byte b = buf.get(p++);
+				l |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				} else if (shift == 28) {
+					throw new IOException("Malformed frame header");
+				}
+			}
+			for (int n=1;;n++) {
+				if (p >= end) {
+					return -1;
+				} else if (buf.get(p++) >= 0) {
+					break;
+				} else if (n == 10) {
+					throw new IOException("Malformed frame header");
+				}
+			}
+			h = p - start + ((t & FLAG_TIME) != 0 ? 8 : 0);
+		} else {
+			if (end - start < HEADER_SIZE) {
+				return -1;
+			}
+			h = HEADER_SIZE;
+			l = buf.getInt(start + 1);
+		}
+		checkFrameSize(l);
+		return h + l + ((t & FLAG_CHECKSUM) != 0 ? 4 : 0);
+	}
+	
+	/**
+	 * Read a new packet object from a buffer holding a whole frame.<br>
+	 * The buffer is positioned right after the frame.
+	 * @param buf {@link ByteBuffer} - Buffer, positioned at the start of the frame
+	 * @param size int - Frame size (see {@link #frameSize(ByteBuffer)})
+	 * @return {@link DataPacket} Null if the frame was dropped for a bad checksum
+	 * @throws IOException
+	 */
+	public static DataPacket fromBuffer(ByteBuffer buf, int size) throws IOException {
+		int start = buf.position();
+		DataPacket dp = new DataPacket();
+		byte t = buf.get();
+		setTypeByte(dp, t);
+		int l;
+		if (dp.isShortHeader()) {
+			l = readStreamHeader(dp, buf);
+		} else {
+			l = buf.getInt();
+			dp.time = buf.getLong();
+			dp.seq = buf.getLong();
+		}
+		int h = buf.position() - start;
 		dp.payload = new byte[l];
-		payload.rewind();
-		payload.get(dp.payload, 0, l);
+		buf.get(dp.payload);
+		if (dp.hasChecksum()) {
+			byte[] header = new byte[h - 1];
+			for (int i=0;i<header.length;i++) {
+				header[i] = buf.get(start + 1 + i);
+			}
+			boolean valid = checkFrame(t, header, 0, header.length, dp.payload, buf.getInt());
+			if (!valid) {
+				return null;
+			}
+		}
+		if (buf.position() != start + size) {
+			throw new IOException("Malformed frame");
+		}
+		inflate(dp);
 		return dp;
 	}
 	
+	/**
+	 * Make sure the payload size of a frame read off a connection is sane
+	 * @param l int - Payload size
+	 * @throws IOException If not, as nothing that follows can be trusted
+	 */
+	private static void checkFrameSize(int l) throws IOException {
+		if (l < 0 || l > maxFrameSize) {
+			throw new IOException("Invalid payload size: " + l);
+		}
+	}
+	
+	/**
+	 * Compute the checksum of some bytes
+	 * @param b byte[] - Bytes
+	 * @param offset int - Offset of the first byte
+	 * @param length int - Number of bytes
+	 * @return int
+	 */
+	private static int checksum(byte[] b, int offset, int length) {
+		CRC32 crc = checksums.get();
+		crc.reset();
+		crc.update(b, offset, length);
+		return (int)crc.getValue();
+	}
+	
+	/**
+	 * Check the checksum of a frame read off a connection
+	 * @param t byte - Type byte
+	 * @param header byte[] - Header bytes following the type byte
+	 * @param offset int - Offset of the header bytes
+	 * @param length int - Number of header bytes
+	 * @param payload byte[] - Payload bytes
+	 * @param expected int - Checksum found at the end of the frame
+	 * @return boolean True if it matches, false if the frame is to be dropped
+	 * @throws IOException If it does not match and the policy is to fail
+	 */
+	private static boolean checkFrame(byte t, byte[] header, int offset, int length, byte[] payload, int expected) throws IOException {
+		CRC32 crc = checksums.get();
+		crc.reset();
+		crc.update(t);
+		crc.update(header, offset, length);
+		crc.update(payload, 0, payload.length);
+		if ((int)crc.getValue() == expected) {
+			return true;
+		}
+		if (checksumPolicy == CHECKSUM_FAIL) {
+			throw new IOException("Bad checksum");
+		}
+		droppedFrames.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Read the rest of a short header read off a connection
+	 * @param dp {@link DataPacket} - Packet being decoded
+	 * @param header {@link ByteBuffer} - Header bytes, positioned right after the type byte
+	 * @return int Payload size
+	 * @throws IOException If the header is malformed, as nothing that follows can be trusted
+	 */
+	private static int readStreamHeader(DataPacket dp, ByteBuffer header) throws IOException {
+		try {
+			return readShortHeader(dp, header);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed frame header");
+		}
+	}
+	
+	/**
+	 * Read the rest of a short header
+	 * @param dp {@link DataPacket} - Packet being decoded
+	 * @param header {@link ByteBuffer} - Header bytes, positioned right after the type byte
+	 * @return int Payload size
+	 */
+	private static int readShortHeader(DataPacket dp, ByteBuffer header) {
+		int l = getVarInt(header);
+		dp.seq = getVarLong(header);
+		/* Without a timestamp, the time of receipt is the best there is */
+		dp.time = (dp.flags & FLAG_TIME) != 0 ? header.getLong() : System.currentTimeMillis();
+		return l;
+	}
+	
+	/**
+	 * Restore the original payload of a packet received compressed
+	 * @param dp {@link DataPacket} - Received packet
+	 */
+	private static void inflate(DataPacket dp) {
+		if (dp.isCompressed()) {
+			dp.payload = Compression.decompress(dp.payload);
+		}
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -484,7 +2010,7 @@ public class DataPacket {
 		if (time != dp.time) {
 			return false;
 		}
-		if (seq != dp.seq) {
+		if (getSeq() != dp.getSeq()) {
 			return false;
 		}
 		if (!Arrays.equals(payload, dp.payload)) {
@@ -499,7 +2025,7 @@ public class DataPacket {
 		buf.append("DataPacket: type=");
 		buf.append(type);
 		buf.append(", seq=");
-		buf.append(seq);
+		buf.append(getSeq());
 		buf.append(", time=");
 		buf.append(time);
 		buf.append(", payload: ");
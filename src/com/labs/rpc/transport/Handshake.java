@@ -0,0 +1,86 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handshake packet, sent by each end as the first packet of a connection.<br>
+ * It carries the protocol version and the features offered by the sender,
+ * and is always encoded in the legacy format so that any peer can read it.
+ * Peers that predate the handshake simply ignore it, and are then never
+ * sent anything they would not understand.
+ * @author Benjamin Dezile
+ */
+public class Handshake extends DataPacket {
+	
+	public static final byte TYPE = 4;		// Packet type
+	
+	private int version;					// Protocol version of the sender
+	private int features;					// Features offered by the sender
+	
+	/**
+	 * Create a new handshake
+	 * @param offered int - Features offered to the peer
+	 */
+	public Handshake(int offered) {
+		this(Protocol.VERSION, offered);
+	}
+	
+	/**
+	 * Create a new handshake
+	 * @param v int - Protocol version
+	 * @param offered int - Features offered to the peer
+	 */
+	protected Handshake(int v, int offered) {
+		super(TYPE);
+		version = v;
+		features = offered;
+	}
+	
+	/**
+	 * Get the protocol version of the sender
+	 * @return int
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Get the features offered by the sender
+	 * @return int
+	 */
+	public int getFeatures() {
+		return features;
+	}
+	
+	@Override
+	protected void writePayload(PacketBuffer buffer) {
+		buffer.putInt(version);
+		buffer.putInt(features);
+	}
+	
+	/**
+	 * Build a handshake from a raw packet.<br>
+	 * Anything following the known fields is left for future versions.
+	 * @param dp {@link DataPacket} - Data packet
+	 * @return {@link Handshake}
+	 */
+	public static Handshake fromPacket(DataPacket dp) {
+		if (dp.getType() != TYPE) {
+			throw new IllegalArgumentException("Wrong type of packet: " + dp.getType());
+		}
+		byte[] payload = dp.getPayload();
+		if (payload == null || payload.length < 8) {
+			throw new IllegalArgumentException("Truncated handshake");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		Handshake hs = new Handshake(buf.getInt(), buf.getInt());
+		hs.seq = dp.getSeq();
+		hs.time = dp.getTime();
+		return hs;
+	}
+	
+	public String toString() {
+		return "Handshake: version=" + version + ", features=0x" + Integer.toHexString(features);
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.labs.rpc.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.labs.rpc.util.ErrorLog;
+
+/**
+ * Pool of I/O threads serving non-blocking connections (see {@link NIOTransport}).<br>
+ * Each thread runs a selector over its share of the connections, which are
+ * spread across threads as they get registered. The threads only read, decode
+ * and write frames, so that a few of them can serve thousands of connections.
+ * @author Benjamin Dezile
+ */
+public class NIOSelector {
+	
+	private static final ErrorLog errors = new ErrorLog("NIO selector error", 10, 1000);	// Unexpected selector errors
+	private static NIOSelector shared = null;		// Selector used by default
+	
+	private final Loop[] loops;						// I/O threads
+	private final AtomicInteger next;				// Index of the thread to give the next connection to
+	
+	/**
+	 * Create a new pool of I/O threads
+	 * @param n int - Number of threads
+	 * @throws IOException If a selector cannot be opened
+	 */
+	public NIOSelector(int n) throws IOException {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + n);
+		}
+		loops = new Loop[n];
+		next = new AtomicInteger();
+		for (int i=0;i<n;i++) {
+			loops[i] = new Loop(i);
+			loops[i].start();
+		}
+	}
+	
+	/**
+	 * Get the selector shared by all transports not given one, started on first use.<br>
+	 * It runs one thread per two processors.
+	 * @return {@link NIOSelector}
+	 * @throws IOException If a selector cannot be opened
+	 */
+	public static synchronized NIOSelector getDefault() throws IOException {
+		if (shared == null || !shared.isAlive()) {
+			shared = new NIOSelector(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		}
+		return shared;
+	}
+	
+	/**
+	 * Get the number of I/O threads
+	 * @return int
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+	
+	/**
+	 * Get the number of connections currently served
+	 * @return int
+	 */
+	public int getConnectionCount() {
+		int n = 0;
+		for (Loop loop:loops) {
+			if (loop.selector.isOpen()) {
+				n += loop.selector.keys().size();
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Tell whether the I/O threads are all running
+	 * @return boolean
+	 */
+	public boolean isAlive() {
+		for (Loop loop:loops) {
+			if (!loop.on || !loop.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Pick the thread serving a new connection
+	 * @return {@link Loop}
+	 */
+	Loop nextLoop() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+	
+	/**
+	 * Stop all I/O threads.<br>
+	 * The connections they serve stop being read and written, and should be shut down.
+	 */
+	public void shutdown() {
+		for (Loop loop:loops) {
+			loop.on = false;
+			loop.selector.wakeup();
+		}
+	}
+	
+	
+	/**
+	 * I/O thread
+	 * @author Benjamin Dezile
+	 */
+	static class Loop extends Thread {
+
+		private final Selector selector;								// Selector over the connections of this thread
+		private final ConcurrentLinkedQueue<NIOTransport> changes;		// Connections to register, or whose interest changed
+		private volatile boolean on;									// Whether it is running
+
+		public Loop(int i) throws IOException {
+			super("NIOSelector-" + i);
+			setDaemon(true);
+			selector = Selector.open();
+			changes = new ConcurrentLinkedQueue<NIOTransport>();
+			on = true;
+		}
+
+		/**
+		 * Have a connection registered, or its interest updated, by this thread
+		 * @param t {@link NIOTransport} - Connection
+		 */
+		void update(NIOTransport t) {
+			changes.add(t);
+			selector.wakeup();
+		}
+
+		public void run() {
+			NIOTransport t;
+			while (on) {
+				try {
+					while ((t = changes.poll()) != null) {
+						t.update(selector);
+					}
+					if (selector.select() == 0) {
+						continue;
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						t = (NIOTransport)key.attachment();
+						try {
+							if (key.isReadable()) {
+								t.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								t.flush();
+							}
+						} catch (CancelledKeyException e) {
+							/* Shut down in the meantime */
+						} catch (IOException e) {
+							t.close(e);
+						} catch (RuntimeException e) {
+							errors.log("Error on a connection served by " + getName(), e);
+							t.close(new IOException(e.toString()));
+						}
+					}
+				} catch (Exception e) {
+					errors.log("Error in " + getName(), e);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {}
+		}
+	
+	}
+
+}
@@ -0,0 +1,473 @@
+package com.labs.rpc.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.labs.rpc.util.ErrorLog;
+
+/**
+ * Non-blocking transport implementation.<br>
+ * The connection is served by one of the threads of an {@link NIOSelector}, which
+ * reads bytes as they come, decodes frames as soon as they are complete and
+ * queues them for {@link #recv()}, or hands them to a listener right away.
+ * Frames sent go out right away when the socket can take them, and are
+ * otherwise queued for the I/O thread to write, senders only blocking once
+ * too many bytes are waiting (see {@link #setMaxPending(int)}).
+ * @author Benjamin Dezile
+ */
+public class NIOTransport implements Transport {
+	
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;			// Default size of the read buffer
+	public static final int DEFAULT_MAX_PENDING = 4 * 1024 * 1024;		// Default number of bytes queued for writing before senders block
+	private static final int MAX_GATHERED = 64;							// Most queued buffers handed to a single gathering write
+	
+	private static final ErrorLog errors = new ErrorLog("NIO transport error", 10, 1000);	// Errors thrown by listeners
+	private static final DataPacket CLOSED = new DataPacket((byte)0);		// Queued for receivers once the connection is closed
+	
+	private final NIOSelector selector;					// I/O threads
+	private final InetAddress address;					// Remote address (null if accepted)
+	private final int port;								// Remote port
+	private final AtomicBoolean on;						// Whether it is active
+	private final AtomicLong dropped;					// Number of received frames dropped for a bad checksum
+	private final LinkedBlockingQueue<DataPacket> received;	// Received packets not taken yet
+	private final LinkedList<ByteBuffer> writes;		// Frames waiting to be written, in order
+	private final int bufferSize;						// Size of the read buffer
+	private volatile int maxPending;					// Number of bytes queued for writing before senders block
+	private volatile Listener listener;					// Receives packets instead of the queue (null if none)
+	private Listener handler;							// Listener packets are currently handed to, as seen by the I/O thread
+	private volatile IOException failure;				// Why the connection was closed (null if shut down)
+	private NIOSelector.Loop loop;						// I/O thread serving the connection
+	private SocketChannel channel;						// Connection
+	private SelectionKey key;							// Registration with the I/O thread
+	private ByteBuffer in;								// Bytes read but not decoded yet
+	private int pending;								// Number of bytes queued for writing
+	private final ByteBuffer[] gathered;				// Queued buffers being written (only used by the I/O thread)
+	
+	/**
+	 * Create a new transport instance, connected to a remote address
+	 * @param address {@link InetAddress} - Address to connect to
+	 * @param port int - Port to connect to
+	 * @param sel {@link NIOSelector} - I/O threads to use
+	 */
+	public NIOTransport(InetAddress address, int port, NIOSelector sel) {
+		this(sel, address, port);
+		connect();
+	}
+	
+	/**
+	 * Create a new transport instance, connected to a remote address
+	 * and served by the default I/O threads
+	 * @param address {@link InetAddress} - Address to connect to
+	 * @param port int - Port to connect to
+	 * @throws IOException If the I/O threads cannot be started
+	 */
+	public NIOTransport(InetAddress address, int port) throws IOException {
+		this(address, port, NIOSelector.getDefault());
+	}
+	
+	/**
+	 * Create a new transport instance over an accepted connection
+	 * @param sc {@link SocketChannel} - Connection
+	 * @param sel {@link NIOSelector} - I/O threads to use
+	 * @throws IOException If the connection cannot be made non-blocking
+	 */
+	public NIOTransport(SocketChannel sc, NIOSelector sel) throws IOException {
+		this(sel, null, -1);
+		attach(sc);
+	}
+	
+	private NIOTransport(NIOSelector sel, InetAddress address, int port) {
+		this.selector = sel;
+		this.address = address;
+		this.port = port;
+		this.on = new AtomicBoolean(false);
+		this.dropped = new AtomicLong();
+		this.received = new LinkedBlockingQueue<DataPacket>();
+		this.writes = new LinkedList<ByteBuffer>();
+		this.bufferSize = DEFAULT_BUFFER_SIZE;
+		this.maxPending = DEFAULT_MAX_PENDING;
+		this.gathered = new ByteBuffer[MAX_GATHERED];
+	}
+	
+	/**
+	 * Set the number of bytes that can be queued for writing before senders block
+	 * @param max int - Number of bytes
+	 */
+	public void setMaxPending(int max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("Invalid number of bytes: " + max);
+		}
+		maxPending = max;
+	}
+	
+	/**
+	 * Have received packets handed to a listener, on the I/O thread, rather than queued
+	 * for {@link #recv()}. The listener must not block, as it holds up the
+	 * other connections served by the same thread. Packets queued by then are
+	 * handed to it first, in order.
+	 * @param l {@link Listener} - Listener (null to queue packets again)
+	 */
+	public void setListener(Listener l) {
+		listener = l;
+		NIOSelector.Loop lp = loop;
+		if (lp != null) {
+			/* Switched over by the I/O thread, so that no packet gets ahead of the queued ones */
+			lp.update(this);
+		}
+		if (l != null && !on.get()) {
+			/* Closed before the listener could be told */
+			l.closed(this, failure);
+		}
+	}
+	
+	/**
+	 * Establish connection
+	 * @return boolean True upon success, false otherwise
+	 */
+	protected boolean connect() {
+		if (address == null) {
+			/* Accepted, the peer has to reconnect */
+			return false;
+		}
+		try {
+			SocketChannel sc = SocketChannel.open(new InetSocketAddress(address, port));
+			attach(sc);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Could not connect: " + e.getMessage());
+			received.add(CLOSED);
+		}
+		return false;
+	}
+	
+	/**
+	 * Start serving a connection
+	 * @param sc {@link SocketChannel} - Connection
+	 * @throws IOException If the connection cannot be made non-blocking
+	 */
+	private void attach(SocketChannel sc) throws IOException {
+		sc.configureBlocking(false);
+		/* Frames are written whole, there is nothing to gain from waiting for more */
+		sc.socket().setTcpNoDelay(true);
+		synchronized (writes) {
+			writes.clear();
+			pending = 0;
+		}
+		received.clear();
+		dropped.set(0);
+		failure = null;
+		in = ByteBuffer.allocate(bufferSize);
+		handler = null;
+		channel = sc;
+		key = null;
+		loop = selector.nextLoop();
+		on.set(true);
+		loop.update(this);
+	}
+	
+	/**
+	 * Register the connection with, or update its interest on, the selector of its I/O thread.<br>
+	 * Only called by that thread.
+	 * @param sel {@link Selector} - Selector
+	 */
+	void update(Selector sel) {
+		if (!on.get()) {
+			return;
+		}
+		if (handler != listener) {
+			handler = listener;
+			DataPacket dp;
+			while (handler != null && (dp = received.peek()) != null && dp != CLOSED) {
+				received.poll();
+				deliver(dp);
+			}
+		}
+		try {
+			if (key == null) {
+				key = channel.register(sel, SelectionKey.OP_READ, this);
+			}
+			synchronized (writes) {
+				key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (ClosedChannelException e) {
+			close(e);
+		} catch (CancelledKeyException e) {
+			/* Shut down in the meantime */
+		}
+	}
+	
+	/**
+	 * Read what is available and decode all complete frames.<br>
+	 * Only called by the I/O thread.
+	 * @throws IOException If the connection is closed or a frame is malformed
+	 */
+	void read() throws IOException {
+		if (channel.read(in) < 0) {
+			throw new IOException("Connection closed");
+		}
+		in.flip();
+		int size;
+		DataPacket dp;
+		while ((size = DataPacket.frameSize(in)) >= 0 && in.remaining() >= size) {
+			if ((dp = DataPacket.fromBuffer(in, size)) != null) {
+				deliver(dp);
+			} else {
+				/* Bad checksum */
+				dropped.incrementAndGet();
+			}
+		}
+		if (size > in.capacity()) {
+			/* Larger than the buffer, make room for the whole frame */
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			buf.put(in);
+			in = buf;
+		} else if (!in.hasRemaining() && in.capacity() > bufferSize) {
+			/* Do not keep a large buffer around once the frame is in */
+			in = ByteBuffer.allocate(bufferSize);
+		} else {
+			in.compact();
+		}
+	}
+	
+	/**
+	 * Hand a received packet over
+	 * @param dp {@link DataPacket} - Packet
+	 */
+	private void deliver(DataPacket dp) {
+		Listener l = handler;
+		if (l == null) {
+			received.add(dp);
+			return;
+		}
+		try {
+			l.received(this, dp);
+		} catch (Exception e) {
+			errors.log("Error while handling a received packet", e);
+		}
+	}
+	
+	/**
+	 * Write as much of the queued frames as the socket takes.<br>
+	 * Queued buffers are written several at a time, with a gathering write.
+	 * Only called by the I/O thread.
+	 * @throws IOException
+	 */
+	void flush() throws IOException {
+		synchronized (writes) {
+			boolean full = false;
+			while (!writes.isEmpty() && !full) {
+				int n = 0;
+				for (ByteBuffer buf:writes) {
+					gathered[n++] = buf;
+					if (n == gathered.length) {
+						break;
+					}
+				}
+				pending -= (int)channel.write(gathered, 0, n);
+				/* The socket takes no more if the last buffer did not go out whole */
+				full = gathered[n - 1].hasRemaining();
+				Arrays.fill(gathered, 0, n, null);
+				while (!writes.isEmpty() && !writes.peek().hasRemaining()) {
+					writes.poll();
+				}
+			}
+			if (writes.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			writes.notifyAll();
+		}
+	}
+	
+	@Override
+	public DataPacket recv() throws IOException {
+		DataPacket dp;
+		try {
+			dp = received.take();
+		} catch (InterruptedException e) {
+			/* Let the caller see it was interrupted */
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (dp == CLOSED) {
+			/* Keep telling any other receiver */
+			received.add(CLOSED);
+			IOException cause = failure;
+			throw cause != null ? new IOException(cause.getMessage()) : new IOException("Not connected");
+		}
+		return dp;
+	}
+	
+	@Override
+	public void send(DataPacket dp) throws IOException {
+		if (dp == null) {
+			throw new NullPointerException("Invalid packet");
+		}
+		send(dp.getBuffers());
+	}
+	
+	/**
+	 * Send raw data
+	 * @param data byte[] - Data to be sent
+	 * @throws IOException
+	 */
+	public void send(byte[] data) throws IOException {
+		send(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Send raw data.<br>
+	 * The buffers are written in order, each from its position to its limit, with
+	 * a single gathering write when nothing is queued already. They must be left
+	 * untouched until written.
+	 * @param bufs {@link ByteBuffer}... - Data to be sent
+	 * @throws IOException
+	 */
+	public void send(ByteBuffer... bufs) throws IOException {
+		synchronized (writes) {
+			while (pending > maxPending && on.get()) {
+				try {
+					writes.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while sending");
+				}
+			}
+			if (!on.get()) {
+				throw new IOException("Not connected");
+			}
+			int i = 0;
+			boolean idle = writes.isEmpty();
+			if (idle) {
+				/* Nothing queued, the socket may well take it all right away */
+				try {
+					channel.write(bufs);
+				} catch (IOException e) {
+					close(e);
+					throw e;
+				}
+				while (i < bufs.length && !bufs[i].hasRemaining()) {
+					i++;
+				}
+				if (i == bufs.length) {
+					return;
+				}
+			}
+			for (;i<bufs.length;i++) {
+				writes.add(bufs[i]);
+				pending += bufs[i].remaining();
+			}
+			if (idle) {
+				/* Have the I/O thread write the rest once the socket can take it */
+				loop.update(this);
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of bytes waiting to be written
+	 * @return int
+	 */
+	public int getPending() {
+		synchronized (writes) {
+			return pending;
+		}
+	}
+	
+	/**
+	 * Close the connection
+	 * @param cause {@link IOException} - Why (null if shut down)
+	 */
+	void close(IOException cause) {
+		if (!on.getAndSet(false)) {
+			return;
+		}
+		failure = cause;
+		SelectionKey k = key;
+		if (k != null) {
+			k.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		synchronized (writes) {
+			writes.clear();
+			pending = 0;
+			writes.notifyAll();
+		}
+		Listener l = listener;
+		if (l != null) {
+			try {
+				l.closed(this, cause);
+			} catch (Exception e) {
+				errors.log("Error while handling a closed connection", e);
+			}
+		}
+		received.add(CLOSED);
+	}
+	
+	/**
+	 * Tell whether the connection is open
+	 * @return boolean
+	 */
+	public boolean isConnected() {
+		return on.get();
+	}
+	
+	@Override
+	public void shutdown() {
+		close(null);
+	}
+	
+	@Override
+	public boolean recover() {
+		shutdown();
+		return connect();
+	}
+	
+	@Override
+	public long getDroppedFrames() {
+		return dropped.get();
+	}
+	
+	@Override
+	public Socket getSocket() {
+		SocketChannel sc = channel;
+		return sc != null ? sc.socket() : null;
+	}
+	
+	
+	/**
+	 * Receives the packets of a connection as they get decoded, on its I/O thread
+	 * @author Benjamin Dezile
+	 */
+	public interface Listener {
+
+		/**
+		 * A packet was received
+		 * @param t {@link NIOTransport} - Connection
+		 * @param dp {@link DataPacket} - Packet
+		 */
+		public void received(NIOTransport t, DataPacket dp);
+
+		/**
+		 * The connection was closed
+		 * @param t {@link NIOTransport} - Connection
+		 * @param cause {@link IOException} - Why (null if shut down)
+		 */
+		public void closed(NIOTransport t, IOException cause);
+	
+	}
+
+}
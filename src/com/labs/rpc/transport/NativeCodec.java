@@ -0,0 +1,130 @@
+package com.labs.rpc.transport;
+
+/**
+ * Native version of the compact codec, built from native/rpccodec.<br>
+ * It covers the values whose encoding is plain byte shuffling: null, booleans,
+ * integers, long integers, doubles, strings and arrays of integers, long
+ * integers and doubles, which it writes exactly as {@link DataPacket} does, and
+ * it builds legacy frames. The library is looked up on java.library.path
+ * under the name rpccodec; when it is missing, {@link #isAvailable()} says so and
+ * callers stay on the Java codec.
+ * @author Benjamin Dezile
+ */
+public final class NativeCodec {
+	
+	public static final String LIBRARY = "rpccodec";		// Name of the native library
+	
+	private static final boolean available;					// Whether the native library was loaded
+	
+	static {
+		boolean loaded;
+		try {
+			System.loadLibrary(LIBRARY);
+			loaded = true;
+		} catch (UnsatisfiedLinkError e) {
+			loaded = false;
+		} catch (SecurityException e) {
+			loaded = false;
+		}
+		available = loaded;
+	}
+	
+	private NativeCodec() {
+	}
+	
+	/**
+	 * Return whether the native library was loaded
+	 * @return boolean
+	 */
+	public static boolean isAvailable() {
+		return available;
+	}
+	
+	/**
+	 * Return whether a value is packed by the native codec
+	 * @param arg {@link Object} - Value
+	 * @return boolean
+	 */
+	public static boolean isSupported(Object arg) {
+		return arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long || arg instanceof Double
+			|| arg instanceof Boolean || arg instanceof int[] || arg instanceof long[] || arg instanceof double[];
+	}
+	
+	/**
+	 * Pack a value in the compact format
+	 * @param arg {@link Object} - Value, of a supported type
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @throws IllegalArgumentException If the type of the value is not supported
+	 */
+	public static void pack(Object arg, PacketBuffer buffer) {
+		int bound = getMaxSize(arg);
+		buffer.ensureCapacity(bound);
+		int pos = buffer.size();
+		int end = packObject(arg, buffer.array(), pos);
+		if (end < 0) {
+			throw new IllegalArgumentException("Not supported by the native codec: " + arg.getClass().getName());
+		}
+		buffer.skip(end - pos);
+	}
+	
+	/**
+	 * Get the largest number of bytes a value may be packed into
+	 * @param arg {@link Object} - Value
+	 * @return int
+	 */
+	private static int getMaxSize(Object arg) {
+		if (arg instanceof String) {
+			return 6 + 3 * ((String)arg).length();
+		} else if (arg instanceof int[]) {
+			return 6 + 4 * ((int[])arg).length;
+		} else if (arg instanceof long[]) {
+			return 6 + 8 * ((long[])arg).length;
+		} else if (arg instanceof double[]) {
+			return 6 + 8 * ((double[])arg).length;
+		}
+		return 11;
+	}
+	
+	/**
+	 * Pack a value in the compact format
+	 * @param arg {@link Object} - Value
+	 * @param out byte[] - Array to write into, large enough for the value
+	 * @param offset int - Where to start writing
+	 * @return int Position right after the value, or -1 if its type is not supported
+	 */
+	static native int packObject(Object arg, byte[] out, int offset);
+	
+	/**
+	 * Unpack a value packed in the compact format
+	 * @param data byte[] - Packed bytes
+	 * @param offset int - Position of the type tag
+	 * @param length int - Number of bytes of the value, type tag included
+	 * @return {@link Object}
+	 * @throws IllegalArgumentException If the bytes are not a supported value
+	 */
+	static native Object unpackObject(byte[] data, int offset, int length);
+	
+	/**
+	 * Write a legacy frame header
+	 * @param out byte[] - Array to write into, with at least {@link DataPacket#HEADER_SIZE} bytes from the offset
+	 * @param offset int - Where to start writing
+	 * @param type int - Packet type and flags
+	 * @param length int - Payload size
+	 * @param time long - Packet time
+	 * @param seq long - Sequence number
+	 */
+	static native void makeHeaderBytes(byte[] out, int offset, int type, int length, long time, long seq);
+	
+	/**
+	 * Build a legacy frame out of a header and a payload
+	 * @param type int - Packet type and flags
+	 * @param time long - Packet time
+	 * @param seq long - Sequence number
+	 * @param payload byte[] - Payload bytes
+	 * @param offset int - Offset of the payload
+	 * @param length int - Payload size
+	 * @return byte[]
+	 */
+	static native byte[] makePacketBytes(int type, long time, long seq, byte[] payload, int offset, int length);
+
+}
@@ -0,0 +1,414 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer used to encode packets.<br>
+ * Unlike {@link java.io.ByteArrayOutputStream} it is not synchronized, can
+ * be reset and reused, exposes its backing array and allows writing
+ * back into already written bytes (e.g. to fill in a length once known).
+ * Multi-byte values are written in big-endian order, just like {@link java.nio.ByteBuffer}.
+ * @author Benjamin Dezile
+ */
+public class PacketBuffer {
+	
+	private byte[] buf;		// Backing array
+	private int count;		// Number of bytes written
+	private StringTable.Frame strings;	// Shared strings of the frame being encoded (null if none)
+	
+	/**
+	 * Create a new buffer
+	 * @param capacity int - Initial capacity
+	 */
+	public PacketBuffer(int capacity) {
+		buf = new byte[Math.max(capacity, 16)];
+		count = 0;
+	}
+	
+	/**
+	 * Make sure that the given number of bytes can be written
+	 * @param n int - Number of bytes about to be written
+	 */
+	public void ensureCapacity(int n) {
+		int needed = count + n;
+		if (needed > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(needed, buf.length << 1));
+		}
+	}
+	
+	/**
+	 * Write one byte
+	 * @param b int - Byte value
+	 */
+	public void put(int b) {
+		ensureCapacity(1);
+		buf[count++] = (byte)b;
+	}
+	
+	/**
+	 * Write bytes
+	 * @param b byte[] - Bytes to write
+	 */
+	public void put(byte[] b) {
+		put(b, 0, b.length);
+	}
+	
+	/**
+	 * Write bytes
+	 * @param b byte[] - Source array
+	 * @param offset int - Offset in the source array
+	 * @param length int - Number of bytes to write
+	 */
+	public void put(byte[] b, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(b, offset, buf, count, length);
+		count += length;
+	}
+	
+	/**
+	 * Write a short integer
+	 * @param v int - Value
+	 */
+	public void putShort(int v) {
+		ensureCapacity(2);
+		buf[count++] = (byte)(v >>> 8);
+		buf[count++] = (byte)v;
+	}
+	
+	/**
+	 * Write an integer
+	 * @param v int - Value
+	 */
+	public void putInt(int v) {
+		ensureCapacity(4);
+		setInt(count, v);
+		count += 4;
+	}
+	
+	/**
+	 * Write a long integer
+	 * @param v long - Value
+	 */
+	public void putLong(long v) {
+		ensureCapacity(8);
+		setLong(count, v);
+		count += 8;
+	}
+	
+	/**
+	 * Write a string encoded in UTF-8, without any intermediate byte array
+	 * @param str {@link String} - String
+	 * @param length int - Size of the encoded string, as given by {@link #utf8Length(String)}
+	 */
+	public void putUTF8(String str, int length) {
+		ensureCapacity(length);
+		int n = str.length();
+		int i = 0;
+		/* Plain ASCII fast path */
+		for (;i<n;i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				break;
+			}
+			buf[count++] = (byte)c;
+		}
+		for (;i<n;i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				buf[count++] = (byte)c;
+			} else if (c < 0x800) {
+				buf[count++] = (byte)(0xC0 | (c >> 6));
+				buf[count++] = (byte)(0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, str.charAt(++i));
+					buf[count++] = (byte)(0xF0 | (cp >> 18));
+					buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buf[count++] = (byte)(0x80 | (cp & 0x3F));
+				} else {
+					/* Unpaired surrogate, replaced just like String.getBytes() does */
+					buf[count++] = '?';
+				}
+			} else {
+				buf[count++] = (byte)(0xE0 | (c >> 12));
+				buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buf[count++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+	}
+	
+	/**
+	 * Get the size of a string encoded in UTF-8
+	 * @param str {@link String} - String
+	 * @return int
+	 */
+	public static int utf8Length(String str) {
+		int n = str.length();
+		int length = n;
+		for (int i=0;i<n;i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					length++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+					/* 4 bytes for 2 chars */
+					length += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					length += 2;
+				}
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Write an array of short integers in bulk
+	 * @param a short[] - Values
+	 */
+	public void putShorts(short[] a) {
+		ensureCapacity(a.length * 2);
+		ByteBuffer.wrap(buf, count, a.length * 2).asShortBuffer().put(a);
+		count += a.length * 2;
+	}
+	
+	/**
+	 * Write an array of characters in bulk
+	 * @param a char[] - Values
+	 */
+	public void putChars(char[] a) {
+		ensureCapacity(a.length * 2);
+		ByteBuffer.wrap(buf, count, a.length * 2).asCharBuffer().put(a);
+		count += a.length * 2;
+	}
+	
+	/**
+	 * Write an array of integers in bulk
+	 * @param a int[] - Values
+	 */
+	public void putInts(int[] a) {
+		ensureCapacity(a.length * 4);
+		ByteBuffer.wrap(buf, count, a.length * 4).asIntBuffer().put(a);
+		count += a.length * 4;
+	}
+	
+	/**
+	 * Write an array of long integers in bulk
+	 * @param a long[] - Values
+	 */
+	public void putLongs(long[] a) {
+		ensureCapacity(a.length * 8);
+		ByteBuffer.wrap(buf, count, a.length * 8).asLongBuffer().put(a);
+		count += a.length * 8;
+	}
+	
+	/**
+	 * Write an array of floats in bulk
+	 * @param a float[] - Values
+	 */
+	public void putFloats(float[] a) {
+		ensureCapacity(a.length * 4);
+		ByteBuffer.wrap(buf, count, a.length * 4).asFloatBuffer().put(a);
+		count += a.length * 4;
+	}
+	
+	/**
+	 * Write an array of doubles in bulk
+	 * @param a double[] - Values
+	 */
+	public void putDoubles(double[] a) {
+		ensureCapacity(a.length * 8);
+		ByteBuffer.wrap(buf, count, a.length * 8).asDoubleBuffer().put(a);
+		count += a.length * 8;
+	}
+	
+	/**
+	 * Write an array of booleans as a bitset, 8 values per byte
+	 * @param a boolean[] - Values
+	 */
+	public void putBooleans(boolean[] a) {
+		int n = (a.length + 7) >>> 3;
+		ensureCapacity(n);
+		for (int i=0;i<n;i++) {
+			int b = 0;
+			int end = Math.min(8, a.length - (i << 3));
+			for (int j=0;j<end;j++) {
+				if (a[(i << 3) + j]) {
+					b |= 1 << j;
+				}
+			}
+			buf[count++] = (byte)b;
+		}
+	}
+	
+	/**
+	 * Write an unsigned integer on 1 to 5 bytes, 7 bits at a time,
+	 * the high bit of each byte telling whether more bytes follow
+	 * @param v int - Value
+	 */
+	public void putVarInt(int v) {
+		ensureCapacity(5);
+		while ((v & ~0x7F) != 0) {
+			buf[count++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[count++] = (byte)v;
+	}
+	
+	/**
+	 * Write an unsigned long integer on 1 to 10 bytes
+	 * @param v long - Value
+	 */
+	public void putVarLong(long v) {
+		ensureCapacity(10);
+		while ((v & ~0x7FL) != 0) {
+			buf[count++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[count++] = (byte)v;
+	}
+	
+	/**
+	 * Insert an unsigned varint before already written bytes
+	 * (e.g. the size of a value, once known), shifting them accordingly
+	 * @param pos int - Position to insert the varint at
+	 * @param v int - Value
+	 */
+	public void insertVarInt(int pos, int v) {
+		int n = 1;
+		while ((v >>> (7 * n)) != 0 && n < 5) {
+			n++;
+		}
+		ensureCapacity(n);
+		System.arraycopy(buf, pos, buf, pos + n, count - pos);
+		int end = count + n;
+		count = pos;
+		putVarInt(v);
+		count = end;
+	}
+	
+	/**
+	 * Map a signed integer onto an unsigned one so that
+	 * small negative values also get a short varint
+	 * @param v int - Value
+	 * @return int
+	 */
+	public static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+	
+	/**
+	 * Map a signed long integer onto an unsigned one
+	 * @param v long - Value
+	 * @return long
+	 */
+	public static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	/**
+	 * Overwrite a byte that was already written
+	 * @param pos int - Position of the byte
+	 * @param b int - New value
+	 */
+	public void set(int pos, int b) {
+		buf[pos] = (byte)b;
+	}
+	
+	/**
+	 * Overwrite an integer that was already written
+	 * @param pos int - Position of the integer
+	 * @param v int - New value
+	 */
+	public void setInt(int pos, int v) {
+		buf[pos] = (byte)(v >>> 24);
+		buf[pos+1] = (byte)(v >>> 16);
+		buf[pos+2] = (byte)(v >>> 8);
+		buf[pos+3] = (byte)v;
+	}
+	
+	/**
+	 * Overwrite a long integer that was already written
+	 * @param pos int - Position of the long integer
+	 * @param v long - New value
+	 */
+	public void setLong(int pos, long v) {
+		setInt(pos, (int)(v >>> 32));
+		setInt(pos + 4, (int)v);
+	}
+	
+	/**
+	 * Reserve bytes to be written later on
+	 * @param n int - Number of bytes to skip
+	 * @return int Position of the reserved bytes
+	 */
+	public int skip(int n) {
+		ensureCapacity(n);
+		int pos = count;
+		count += n;
+		return pos;
+	}
+	
+	/**
+	 * Get the number of bytes written
+	 * @return int
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Get the current capacity
+	 * @return int
+	 */
+	public int capacity() {
+		return buf.length;
+	}
+	
+	/**
+	 * Discard all written bytes, keeping the allocated capacity
+	 */
+	public void reset() {
+		count = 0;
+	}
+	
+	/**
+	 * Get the backing array.<br>
+	 * Only the first size() bytes are meaningful, and the array
+	 * changes when the buffer needs to grow.
+	 * @return byte[]
+	 */
+	public byte[] array() {
+		return buf;
+	}
+	
+	/**
+	 * Copy the written bytes
+	 * @return byte[]
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	/**
+	 * Set the shared strings of the frame being encoded
+	 * @param frame {@link StringTable.Frame} - Shared strings (null to write strings as they are)
+	 * @return {@link StringTable.Frame} The previous ones
+	 */
+	public StringTable.Frame setStrings(StringTable.Frame frame) {
+		StringTable.Frame previous = strings;
+		strings = frame;
+		return previous;
+	}
+
+	/**
+	 * Get the shared strings of the frame being encoded
+	 * @return {@link StringTable.Frame} Null if strings are written as they are
+	 */
+	public StringTable.Frame getStrings() {
+		return strings;
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.labs.rpc.transport;
+
+/**
+ * Wire protocol features in use on a connection.<br>
+ * Every feature changes the bytes put on the wire, so it may only be used
+ * once the peer is known to support it. Frames that use a feature say so
+ * in their header, which lets a receiver decode any mix of old and new frames.
+ * Peers learn about each other through a {@link Handshake} sent when the
+ * connection opens, and then use the features both of them support.
+ * @author Benjamin Dezile
+ */
+public class Protocol {
+	
+	public static final int COMPACT = 0x01;		// Compact payload encoding (varints, implied lengths)
+	public static final int COMPRESS = 0x02;	// Deflated payloads (above a size threshold)
+	public static final int SHORT_HEADER = 0x04;	// Frame header made of varints, without timestamp
+	public static final int CHECKSUM = 0x08;	// Frames end with a checksum (only offered when asked for)
+	public static final int CHUNKED = 0x10;	// Large frames sent in chunks interleaved with other frames
+	public static final int STRINGS = 0x20;	// Short strings sent once per connection, then referred to by index (compact format only)
+	public static final int ERRORS = 0x40;		// Remote exceptions sent with an error code (compact format only)
+	public static final int ALL = COMPACT | COMPRESS | SHORT_HEADER | CHECKSUM | CHUNKED | STRINGS | ERRORS;	// All features known to this version
+	public static final int DEFAULT = COMPACT | COMPRESS | SHORT_HEADER | CHUNKED | STRINGS | ERRORS;	// Features offered unless told otherwise
+	public static final int VERSION = 1;		// Version of the protocol spoken by this end
+	
+	private volatile int features;				// Enabled features
+	private volatile int supported;				// Features offered to the peer during the handshake
+	private volatile int peerVersion;			// Protocol version of the peer (0 until the handshake)
+	
+	/**
+	 * Create a protocol with no optional feature,
+	 * which any peer understands
+	 */
+	public Protocol() {
+		this(0);
+	}
+	
+	/**
+	 * Create a protocol
+	 * @param enabled int - Features to enable
+	 */
+	public Protocol(int enabled) {
+		features = enabled;
+		supported = DEFAULT;
+		peerVersion = 0;
+	}
+	
+	/**
+	 * Return whether the given feature is enabled
+	 * @param feature int - Feature
+	 * @return boolean
+	 */
+	public boolean supports(int feature) {
+		return (features & feature) == feature;
+	}
+	
+	/**
+	 * Enable some features
+	 * @param enabled int - Features to enable
+	 */
+	public synchronized void enable(int enabled) {
+		features |= enabled;
+	}
+	
+	/**
+	 * Disable some features
+	 * @param disabled int - Features to disable
+	 */
+	public synchronized void disable(int disabled) {
+		features &= ~disabled;
+	}
+	
+	/**
+	 * Get all enabled features
+	 * @return int
+	 */
+	public int getFeatures() {
+		return features;
+	}
+	
+	/**
+	 * Get the features offered to the peer during the handshake.<br>
+	 * Shared strings are not offered along with checksums while frames with a bad
+	 * checksum get dropped (see {@link DataPacket#setChecksumPolicy(int)}): a dropped
+	 * frame may have introduced strings, which the frames that follow would then
+	 * refer to without the receiving end knowing about them. Connections that started
+	 * sharing strings before the policy changed fail once they actually drop a frame
+	 * (see {@link Transport#getDroppedFrames()}).
+	 * @return int
+	 */
+	public int getSupported() {
+		int offered = supported;
+		if ((offered & CHECKSUM) != 0 && DataPacket.getChecksumPolicy() == DataPacket.CHECKSUM_DROP) {
+			offered &= ~STRINGS;
+		}
+		return offered;
+	}
+	
+	/**
+	 * Set the features offered to the peer during the handshake.<br>
+	 * Checksums are left out by default, both ends having to offer them
+	 * for them to be used (e.g. on lossy links). Takes effect on the next handshake.
+	 * @param offered int - Features this end is willing to use
+	 */
+	public void setSupported(int offered) {
+		supported = offered & ALL;
+	}
+	
+	/**
+	 * Settle on the features to use after hearing from the peer.<br>
+	 * Only the features supported by both ends are enabled, unknown
+	 * features offered by a newer peer being ignored.
+	 * @param version int - Protocol version of the peer
+	 * @param offered int - Features offered by the peer
+	 * @return int The enabled features
+	 */
+	public synchronized int negotiate(int version, int offered) {
+		peerVersion = version;
+		features = getSupported() & offered;
+		return features;
+	}
+	
+	/**
+	 * Get the protocol version of the peer
+	 * @return int 0 until the peer has been heard from
+	 */
+	public int getPeerVersion() {
+		return peerVersion;
+	}
+	
+	public String toString() {
+		return "Protocol: version=" + VERSION + ", peer=" + peerVersion + ", features=0x" + Integer.toHexString(features);
+	}
+
+}
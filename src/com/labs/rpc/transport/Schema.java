@@ -0,0 +1,248 @@
+package com.labs.rpc.transport;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of a plain Java object, used to pack it field by field.<br>
+ * The fields of a class (static and transient ones excepted, inherited ones
+ * included) are listed once, sorted by name, and then written one after the
+ * other without any name or type tag, primitive fields being written without
+ * boxing. The schema ID is a fingerprint of the class name and of the field names
+ * and types, so that both ends of a connection agree on it as long as they
+ * register the same version of the class, and an object whose layout differs
+ * on the other end gets rejected instead of being misread.
+ * Classes need a constructor without arguments, which may be private, and
+ * fields whose type accepts what their values unpack to (e.g. {@link List}
+ * rather than {@link java.util.LinkedList}).
+ * @author Benjamin Dezile
+ */
+public class Schema {
+	
+	private static final byte KIND_OBJECT = 0;		// Any other type, packed with its own type tag
+	private static final byte KIND_INT = 1;
+	private static final byte KIND_LONG = 2;
+	private static final byte KIND_DOUBLE = 3;
+	private static final byte KIND_FLOAT = 4;
+	private static final byte KIND_BOOL = 5;
+	private static final byte KIND_SHORT = 6;
+	private static final byte KIND_BYTE = 7;
+	private static final byte KIND_CHAR = 8;
+	
+	private static final ConcurrentHashMap<Class<?>,Schema> byClass = new ConcurrentHashMap<Class<?>,Schema>();
+	private static final ConcurrentHashMap<Integer,Schema> byId = new ConcurrentHashMap<Integer,Schema>();
+	
+	private final int id;						// Schema ID
+	private final Class<?> type;				// Described class
+	private final Constructor<?> constructor;	// Constructor without arguments
+	private final Field[] fields;				// Fields, in the order they are written
+	private final byte[] kinds;					// Kind of each field
+	
+	/**
+	 * Compute the schema of a class
+	 * @param c {@link Class} - Class
+	 */
+	private Schema(Class<?> c) {
+		type = c;
+		try {
+			constructor = c.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("No constructor without arguments in " + c.getName());
+		}
+		List<Field> list = new ArrayList<Field>();
+		for (Class<?> k = c;k != null && k != Object.class;k = k.getSuperclass()) {
+			for (Field f:k.getDeclaredFields()) {
+				int mod = f.getModifiers();
+				if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod) && !f.isSynthetic()) {
+					f.setAccessible(true);
+					list.add(f);
+				}
+			}
+		}
+		fields = list.toArray(new Field[list.size()]);
+		Arrays.sort(fields, new Comparator<Field>() {
+			public int compare(Field f1, Field f2) {
+				int res = f1.getName().compareTo(f2.getName());
+				return res != 0 ? res : f1.getDeclaringClass().getName().compareTo(f2.getDeclaringClass().getName());
+			}
+		});
+		kinds = new byte[fields.length];
+		StringBuffer layout = new StringBuffer(c.getName());
+		for (int i=0;i<fields.length;i++) {
+			kinds[i] = getKind(fields[i].getType());
+			layout.append("|");
+			layout.append(fields[i].getName());
+			layout.append(":");
+			layout.append(fields[i].getType().getName());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(layout.toString().getBytes(DataPacket.UTF8));
+		id = (int)crc.getValue();
+	}
+	
+	/**
+	 * Register a class so that its instances get packed along its schema.<br>
+	 * The class must be registered on both ends of a connection.
+	 * @param c {@link Class} - Class
+	 * @return {@link Schema}
+	 * @throws IllegalArgumentException If the class cannot be described, or its ID clashes with another class
+	 */
+	public static synchronized Schema register(Class<?> c) {
+		Schema s = byClass.get(c);
+		if (s != null) {
+			return s;
+		}
+		s = new Schema(c);
+		Schema other = byId.get(s.id);
+		if (other != null) {
+			throw new IllegalArgumentException("Schema ID of " + c.getName() + " already used by " + other.type.getName());
+		}
+		byId.put(s.id, s);
+		byClass.put(c, s);
+		Codecs.clearCache();
+		return s;
+	}
+	
+	/**
+	 * Unregister a class
+	 * @param c {@link Class} - Class
+	 */
+	public static synchronized void unregister(Class<?> c) {
+		Schema s = byClass.remove(c);
+		if (s != null) {
+			byId.remove(s.id);
+			Codecs.clearCache();
+		}
+	}
+	
+	/**
+	 * Get the schema of a registered class
+	 * @param c {@link Class} - Class
+	 * @return {@link Schema} Null if not registered
+	 */
+	public static Schema get(Class<?> c) {
+		return byClass.get(c);
+	}
+	
+	/**
+	 * Get a schema by ID
+	 * @param schemaId int - Schema ID
+	 * @return {@link Schema} Null if not registered
+	 */
+	public static Schema get(int schemaId) {
+		return byId.get(schemaId);
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public Class<?> getType() {
+		return type;
+	}
+	
+	/**
+	 * Get the names of the fields, in the order they are written
+	 * @return {@link String}[]
+	 */
+	public String[] getFieldNames() {
+		String[] names = new String[fields.length];
+		for (int i=0;i<fields.length;i++) {
+			names[i] = fields[i].getName();
+		}
+		return names;
+	}
+	
+	/**
+	 * Write the schema ID and all fields of an object
+	 * @param obj {@link Object} - Object
+	 * @param buffer {@link PacketBuffer} - Buffer to write into
+	 * @param depth int - Nesting depth of the field values
+	 */
+	void write(Object obj, PacketBuffer buffer, int depth) {
+		buffer.putInt(id);
+		try {
+			for (int i=0;i<fields.length;i++) {
+				Field f = fields[i];
+				switch (kinds[i]) {
+					case KIND_INT: buffer.putVarInt(PacketBuffer.zigZag(f.getInt(obj))); break;
+					case KIND_LONG: buffer.putVarLong(PacketBuffer.zigZag(f.getLong(obj))); break;
+					case KIND_DOUBLE: buffer.putLong(Double.doubleToRawLongBits(f.getDouble(obj))); break;
+					case KIND_FLOAT: buffer.putInt(Float.floatToRawIntBits(f.getFloat(obj))); break;
+					case KIND_BOOL: buffer.put(f.getBoolean(obj) ? 1 : 0); break;
+					case KIND_SHORT: buffer.putVarInt(PacketBuffer.zigZag((int)f.getShort(obj))); break;
+					case KIND_BYTE: buffer.put(f.getByte(obj)); break;
+					case KIND_CHAR: buffer.putVarInt(f.getChar(obj)); break;
+					default: DataPacket.packObject(f.get(obj), buffer, true, depth);
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot read fields of " + type.getName() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Read all fields of an object, right after its schema ID
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the schema ID
+	 * @param depth int - Nesting depth of the field values
+	 * @return {@link Object}
+	 */
+	Object read(ByteBuffer buf, int depth) throws Exception {
+		Object obj = constructor.newInstance();
+		for (int i=0;i<fields.length;i++) {
+			Field f = fields[i];
+			switch (kinds[i]) {
+				case KIND_INT: f.setInt(obj, DataPacket.unZigZag(DataPacket.getVarInt(buf))); break;
+				case KIND_LONG: f.setLong(obj, DataPacket.unZigZag(DataPacket.getVarLong(buf))); break;
+				case KIND_DOUBLE: f.setDouble(obj, buf.getDouble()); break;
+				case KIND_FLOAT: f.setFloat(obj, buf.getFloat()); break;
+				case KIND_BOOL: f.setBoolean(obj, buf.get() != 0); break;
+				case KIND_SHORT: f.setShort(obj, (short)DataPacket.unZigZag(DataPacket.getVarInt(buf))); break;
+				case KIND_BYTE: f.setByte(obj, buf.get()); break;
+				case KIND_CHAR: f.setChar(obj, (char)DataPacket.getVarInt(buf)); break;
+				default: f.set(obj, DataPacket.unpackObject(buf, buf.get(), -1, true, depth));
+			}
+		}
+		return obj;
+	}
+	
+	/**
+	 * Get the kind of a field type
+	 * @param c {@link Class} - Field type
+	 * @return byte
+	 */
+	private static byte getKind(Class<?> c) {
+		if (c == int.class) {
+			return KIND_INT;
+		} else if (c == long.class) {
+			return KIND_LONG;
+		} else if (c == double.class) {
+			return KIND_DOUBLE;
+		} else if (c == float.class) {
+			return KIND_FLOAT;
+		} else if (c == boolean.class) {
+			return KIND_BOOL;
+		} else if (c == short.class) {
+			return KIND_SHORT;
+		} else if (c == byte.class) {
+			return KIND_BYTE;
+		} else if (c == char.class) {
+			return KIND_CHAR;
+		}
+		return KIND_OBJECT;
+	}
+	
+	public String toString() {
+		return "Schema #" + Integer.toHexString(id) + ": " + type.getName() + Arrays.toString(getFieldNames());
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Strings shared by the frames of a connection.<br>
+ * The first time a short string is sent, it is given an index, and later frames
+ * send that index instead of the string. Each end has a table for what it sends
+ * and another for what it receives, the latter simply following the indexes
+ * assigned by the sender. The sending table is bounded, and reassigns the index of
+ * the least recently used string once full.
+ * Frames may be encoded by several threads, and large frames are sent in chunks
+ * interleaved with other frames, so frames are not received in the order they
+ * are encoded in. A string thus only gets referred to once the frame that
+ * introduced it has been written in full (see {@link DataPacket#setSent()}),
+ * and an index is only reassigned once the frames that refer to it are all out.
+ * Until then, it is sent as is.
+ * @author Benjamin Dezile
+ */
+public class StringTable {
+	
+	public static final int DEFAULT_SIZE = 256;			// Default number of strings kept by the sending end
+	public static final int MAX_SIZE = 65536;			// Largest number of strings a receiving end accepts
+	public static final int MIN_LENGTH = 2;				// Shortest string worth sharing
+	public static final int MAX_LENGTH = 64;			// Longest string worth sharing (in characters)
+	
+	private static final ThreadLocal<StringTable> receiving = new ThreadLocal<StringTable>();	// Table received frames are decoded with, by thread
+	
+	private final int size;								// Maximum number of strings
+	private final LinkedHashMap<String,Entry> entries;	// Sent strings, least recently used first
+	private final int[] free;							// Indexes of strings dropped before they got sent
+	private int freeCount;								// Number of free indexes
+	private int nextIndex;								// Next index never used so far
+	private String[] received;							// Received strings, by index
+	
+	/**
+	 * Create a new table
+	 * @param n int - Maximum number of strings sent
+	 */
+	public StringTable(int n) {
+		if (n < 1 || n > MAX_SIZE) {
+			throw new IllegalArgumentException("Invalid string table size: " + n);
+		}
+		size = n;
+		entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+		free = new int[n];
+		freeCount = 0;
+		nextIndex = 0;
+		received = new String[16];
+	}
+	
+	/**
+	 * Get the maximum number of strings sent
+	 * @return int
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * Get the number of strings currently known to the peer, or about to be
+	 * @return int
+	 */
+	public synchronized int count() {
+		return entries.size();
+	}
+	
+	/**
+	 * Start encoding a frame
+	 * @return {@link Frame}
+	 */
+	public Frame newFrame() {
+		return new Frame();
+	}
+	
+	/**
+	 * Make this table the one the current thread decodes shared strings with
+	 */
+	public void bind() {
+		receiving.set(this);
+	}
+	
+	/**
+	 * Stop decoding shared strings in the current thread
+	 */
+	public static void unbind() {
+		receiving.remove();
+	}
+	
+	/**
+	 * Read a shared string
+	 * @param buf {@link ByteBuffer} - Buffer positioned right after the type tag
+	 * @param type byte - Type tag
+	 * @return {@link String}
+	 * @throws IllegalArgumentException If no table is bound to the current thread, or the reference is unknown
+	 */
+	static String read(ByteBuffer buf, byte type) {
+		StringTable table = receiving.get();
+		if (table == null) {
+			throw new IllegalArgumentException("Shared string outside of a connection");
+		}
+		int index = DataPacket.getVarInt(buf);
+		if (index < 0 || index >= MAX_SIZE) {
+			throw new IllegalArgumentException("Invalid string index: " + index);
+		}
+		if (type == DataPacket.FORMAT_STRING_REF) {
+			String str = index < table.received.length ? table.received[index] : null;
+			if (str == null) {
+				throw new IllegalArgumentException("Unknown string index: " + index);
+			}
+			return str;
+		}
+		String str = DataPacket.getString(buf, DataPacket.getVarInt(buf));
+		if (index >= table.received.length) {
+			table.received = Arrays.copyOf(table.received, Math.min(MAX_SIZE, Math.max(index + 1, table.received.length << 1)));
+		}
+		table.received[index] = str;
+		return str;
+	}
+	
+	/**
+	 * Get an index for a string to be sent
+	 * @param str {@link String} - String
+	 * @param frame {@link Frame} - Frame being encoded
+	 * @return int The index, negated and minus one if the string has just been given it, or {@link Integer#MIN_VALUE} if the string is to be sent as is
+	 */
+	private synchronized int lookup(String str, Frame frame) {
+		Entry e = entries.get(str);
+		if (e != null) {
+			if (e.owner != null && e.owner != frame) {
+				/* Introduced by a frame not sent yet, which may be received after this one */
+				return Integer.MIN_VALUE;
+			}
+			frame.hold(e);
+			return e.index;
+		}
+		int index;
+		if (nextIndex < size) {
+			index = nextIndex++;
+		} else if (freeCount > 0) {
+			index = free[--freeCount];
+		} else {
+			/* Reassign the least recently used index that no frame on the way refers to */
+			index = -1;
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry old = it.next();
+				if (old.owner == null && old.refs == 0) {
+					it.remove();
+					index = old.index;
+					break;
+				}
+			}
+			if (index < 0) {
+				return Integer.MIN_VALUE;
+			}
+		}
+		e = new Entry(str, index, frame);
+		entries.put(str, e);
+		frame.hold(e);
+		return -index - 1;
+	}
+	
+	/**
+	 * Release the strings used by a frame
+	 * @param frame {@link Frame} - Frame
+	 * @param sent boolean - Whether the frame was sent, in which case the strings it introduced can be referred to
+	 */
+	private synchronized void release(Frame frame, boolean sent) {
+		for (Entry e:frame.held) {
+			e.refs--;
+			if (e.owner == frame) {
+				if (sent) {
+					e.owner = null;
+				} else {
+					/* Never got to the peer */
+					entries.remove(e.str);
+					free[freeCount++] = e.index;
+				}
+			}
+		}
+		frame.held.clear();
+	}
+	
+	/**
+	 * Shared strings of a frame being encoded or sent
+	 * @author Benjamin Dezile
+	 */
+	public class Frame {
+
+		private final List<Entry> held;		// Strings this frame introduced or refers to
+		private Entry last;					// Last string held, not to hold it again right away
+
+		private Frame() {
+			held = new ArrayList<Entry>();
+		}
+
+		/**
+		 * Keep a string from being reassigned until this frame is out
+		 * @param e {@link Entry} - String
+		 */
+		private void hold(Entry e) {
+			if (e != last) {
+				e.refs++;
+				held.add(e);
+				last = e;
+			}
+		}
+
+		/**
+		 * Write a string, if it can be shared
+		 * @param str {@link String} - String
+		 * @param buffer {@link PacketBuffer} - Buffer to write into
+		 * @return boolean False if the string is to be written as is
+		 */
+		boolean write(String str, PacketBuffer buffer) {
+			if (str.length() < MIN_LENGTH || str.length() > MAX_LENGTH) {
+				return false;
+			}
+			int index = lookup(str, this);
+			if (index == Integer.MIN_VALUE) {
+				return false;
+			}
+			if (index >= 0) {
+				buffer.put(DataPacket.FORMAT_STRING_REF);
+				buffer.putVarInt(index);
+				return true;
+			}
+			int length = PacketBuffer.utf8Length(str);
+			buffer.put(DataPacket.FORMAT_STRING_DEF);
+			buffer.putVarInt(-index - 1);
+			buffer.putVarInt(length);
+			buffer.putUTF8(str, length);
+			return true;
+		}
+
+		/**
+		 * The frame has been written in full
+		 */
+		public void sent() {
+			release(this, true);
+		}
+
+		/**
+		 * The frame will not be sent
+		 */
+		public void dropped() {
+			release(this, false);
+		}
+	
+	}
+	
+	/**
+	 * String known to the peer, or about to be
+	 * @author Benjamin Dezile
+	 */
+	private static class Entry {
+
+		private final String str;		// String
+		private final int index;		// Index
+		private Frame owner;			// Frame that introduced it, until sent
+		private int refs;				// Number of frames not sent yet that hold it
+
+		public Entry(String s, int i, Frame f) {
+			str = s;
+			index = i;
+			owner = f;
+			refs = 0;
+		}
+	
+	}
+
+}
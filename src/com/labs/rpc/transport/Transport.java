@@ -24,6 +24,13 @@ public interface Transport {
 	 */
 	public DataPacket recv() throws IOException;
 		
+	/**
+	 * Get the number of frames received on this connection that were dropped for a bad
+	 * checksum (see {@link DataPacket#setChecksumPolicy(int)})
+	 * @return long
+	 */
+	public long getDroppedFrames();
+		
 	/**
 	 * Terminate all transport activities and clear internal states
 	 */
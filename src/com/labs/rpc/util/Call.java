@@ -1,94 +1,313 @@
 package com.labs.rpc.util;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import com.labs.rpc.RemoteCall;
+import com.labs.rpc.RemoteCallBatch;
+import com.labs.rpc.transport.DataPacket;
 
+/**
+ * Lock-free call state machine.<br>
+ * A call goes from UNPROCESSED to PENDING once sent, and then to either
+ * RETURNED or TIMEOUT. Every transition is a compare-and-set so that a late
+ * return can never override a timeout (and the other way around), and
+ * threads waiting for the call are parked until the final transition
+ * unparks them, so that no wakeup can get lost. Waiters that give up
+ * (timed out waits, removed completion queues) are unlinked right away,
+ * so that a call waited on over and over does not pile them up.
+ * @author Benjamin Dezile
+ */
 public class Call {
 	
 	private static final byte TIMEOUT = -1;
 	private static final byte UNPROCESSED = 0;
 	private static final byte PENDING = 1;
 	private static final byte RETURNED = 2;
+	private static final byte COMPLETING = 3;	// Transient state while the return value is being set
 	
-	private RemoteCall rc;		// Initial call
-	private Object ret;			// Returned value
-	private byte status;		// Call status
-	private long startTime;		// Start time
-	private Object syncObj;		// Synchronization object
+	private static final AtomicIntegerFieldUpdater<Call> STATUS = AtomicIntegerFieldUpdater.newUpdater(Call.class, "status");
+	private static final AtomicReferenceFieldUpdater<Call,Waiter> WAITERS = AtomicReferenceFieldUpdater.newUpdater(Call.class, Waiter.class, "waiters");
+	private static final Waiter DONE = new Waiter(null, null);	// Marks the end of waiter registration
+	
+	private RemoteCall rc;				// Initial call
+	private DataPacket packet;			// Packet to transmit (the call itself or a batch)
+	private Call[] members;				// Calls carried by a batch (null if not a batch)
+	private volatile Object ret;		// Returned value
+	private volatile int status;		// Call status
+	private volatile long startTime;	// Start time
+	private volatile Waiter waiters;	// Threads and queues waiting for the call to be done
 	
 	public Call(RemoteCall remoteCall) {
 		rc = remoteCall;
+		packet = remoteCall;
+		members = null;
 		status = UNPROCESSED;
 		ret = null;
 		startTime = System.currentTimeMillis();
-		syncObj = new Object();
+		waiters = null;
+	}
+	
+	/**
+	 * Reinitialize a recycled call.<br>
+	 * Only to be called once no other thread holds onto this call anymore.
+	 * @param remoteCall {@link RemoteCall} - New initial call
+	 */
+	public void reset(RemoteCall remoteCall) {
+		rc = remoteCall;
+		packet = remoteCall;
+		members = null;
+		ret = null;
+		startTime = System.currentTimeMillis();
+		waiters = null;
+		status = UNPROCESSED;
+	}
+	
+	public Call(RemoteCallBatch batch, Call[] batchedCalls) {
+		this((RemoteCall)null);
+		packet = batch;
+		members = batchedCalls;
 	}
 	
 	public void waitForReturn() throws InterruptedException {
 		waitForReturn(0);
 	}
 	
+	/**
+	 * Wait until this call is done
+	 * @param timeout long - Maximum time to wait (in milliseconds, 0 to wait indefinitely)
+	 * @throws InterruptedException
+	 */
 	public void waitForReturn(long timeout) throws InterruptedException {
-		if (status == PENDING || status == UNPROCESSED) {
-			/* Not returned yet, let's wait */
-			synchronized(syncObj) {
-				syncObj.wait(timeout);
-			}
-		} else {
+		if (isDone()) {
 			/* Already returned, we're done here */
 			return;
 		}
+		Waiter w = new Waiter(Thread.currentThread(), null);
+		if (!addWaiter(w)) {
+			return;
+		}
+		long deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+		try {
+			while (!isDone()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (timeout > 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					LockSupport.parkNanos(this, remaining);
+				} else {
+					LockSupport.park(this);
+				}
+			}
+		} finally {
+			w.thread = null;
+			removeDeadWaiters();
+		}
+	}
+	
+	/**
+	 * Have this call put into the given queue as soon as it is done
+	 * @param q {@link Queue} - Queue to put the call into
+	 */
+	public void addCompletionQueue(Queue<Call> q) {
+		if (!addWaiter(new Waiter(null, q))) {
+			/* Already done */
+			q.offer(this);
+		}
 	}
 	
-	public void notifyReturn() {
-		synchronized(syncObj) {
-			syncObj.notifyAll();
+	public void removeCompletionQueue(Queue<Call> q) {
+		for (Waiter w = waiters; w != null && w != DONE; w = w.next) {
+			if (w.queue == q) {
+				w.queue = null;
+			}
 		}
+		removeDeadWaiters();
 	}
 	
-	public synchronized void resetStartTime() {
+	public void resetStartTime() {
 		startTime = System.currentTimeMillis();
 	}
 	
-	public synchronized long getStartTime() {
+	public long getStartTime() {
 		return startTime;
 	}
 	
-	public synchronized byte getStatus() {
-		return status;
+	public byte getStatus() {
+		int s = status;
+		return (byte)(s == COMPLETING ? PENDING : s);
 	}
 	
-	public synchronized boolean isPending() {
+	public boolean isPending() {
 		return status == PENDING;
 	}
 
-	public synchronized boolean isReturned() {
+	public boolean isReturned() {
 		return status == RETURNED;
 	}
 
-	public synchronized boolean isTimedOut() {
+	public boolean isTimedOut() {
 		return status == TIMEOUT;
 	}
+	
+	public boolean isDone() {
+		int s = status;
+		return s == RETURNED || s == TIMEOUT;
+	}
 		
-	public synchronized void setPending() {
-		status = PENDING;
+	/**
+	 * Flag this call as sent
+	 * @return boolean True if the call was not processed yet
+	 */
+	public boolean setPending() {
+		if (!STATUS.compareAndSet(this, UNPROCESSED, PENDING)) {
+			return false;
+		}
+		if (members != null) {
+			for (Call member:members) {
+				member.setPending();
+			}
+		}
+		return true;
 	}
 	
-	public synchronized void setReturned(Object val) {
+	/**
+	 * Set the return value of this pending call
+	 * @param val {@link Object} - Returned value
+	 * @return boolean True upon success, false if the call was not pending (e.g. timed out already)
+	 */
+	public boolean setReturned(Object val) {
+		if (!STATUS.compareAndSet(this, PENDING, COMPLETING)) {
+			return false;
+		}
 		ret = val;
 		status = RETURNED;
-		notifyReturn();
+		release();
+		return true;
 	}
 	
-	public synchronized void setTimedOut() {
-		status = TIMEOUT;
-		notifyReturn();
+	/**
+	 * Flag this call as timed out
+	 * @return boolean True upon success, false if the call was already done
+	 */
+	public boolean setTimedOut() {
+		int s;
+		do {
+			s = status;
+			if (s != UNPROCESSED && s != PENDING) {
+				return false;
+			}
+		} while (!STATUS.compareAndSet(this, s, TIMEOUT));
+		release();
+		return true;
 	}
 	
-	public synchronized RemoteCall getRemoteCall() {
+	public RemoteCall getRemoteCall() {
 		return rc;
 	}
 	
-	public synchronized Object getReturnValue() {
+	public DataPacket getPacket() {
+		return packet;
+	}
+	
+	public Object getReturnValue() {
 		return ret;
 	}
+	
+	/**
+	 * Register a waiter
+	 * @param w {@link Waiter} - Waiter to add
+	 * @return boolean False if the call is already done
+	 */
+	private boolean addWaiter(Waiter w) {
+		Waiter head;
+		do {
+			head = waiters;
+			if (head == DONE) {
+				return false;
+			}
+			w.next = head;
+		} while (!WAITERS.compareAndSet(this, head, w));
+		return true;
+	}
+	
+	/**
+	 * Unlink the waiters that gave up, i.e. with neither a thread nor a queue anymore.<br>
+	 * Same as {@link java.util.concurrent.FutureTask}: the walk starts over whenever it races
+	 * with another removal, and the head is only ever swapped with a compare-and-set so that
+	 * waiters being added, or the call completing, are never lost.
+	 */
+	private void removeDeadWaiters() {
+		retry:
+		for (;;) {
+			Waiter pred = null;
+			Waiter w = waiters;
+			while (w != null && w != DONE) {
+				Waiter next = w.next;
+				if (w.thread != null || w.queue != null) {
+					pred = w;
+				} else if (pred != null) {
+					pred.next = next;
+					if (pred.thread == null && pred.queue == null) {
+						/* Predecessor gave up meanwhile */
+						continue retry;
+					}
+				} else if (!WAITERS.compareAndSet(this, w, next)) {
+					continue retry;
+				}
+				w = next;
+			}
+			return;
+		}
+	}
+	
+	/**
+	 * Get the number of waiters currently registered
+	 * @return int
+	 */
+	int getWaiterCount() {
+		int n = 0;
+		for (Waiter w = waiters; w != null && w != DONE; w = w.next) {
+			n++;
+		}
+		return n;
+	}
+	
+	/**
+	 * Wake up all waiters once the call is done
+	 */
+	private void release() {
+		Waiter w = WAITERS.getAndSet(this, DONE);
+		for (;w != null && w != DONE;w = w.next) {
+			Thread t = w.thread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+			Queue<Call> q = w.queue;
+			if (q != null) {
+				q.offer(this);
+			}
+		}
+	}
+
+	/**
+	 * Thread or queue waiting for a call to be done
+	 */
+	private static final class Waiter {
+
+		volatile Thread thread;
+		volatile Queue<Call> queue;
+		volatile Waiter next;
+
+		Waiter(Thread t, Queue<Call> q) {
+			thread = t;
+			queue = q;
+		}
+	
+	}
+
 }
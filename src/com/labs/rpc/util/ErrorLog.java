@@ -0,0 +1,81 @@
+package com.labs.rpc.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate-limited error log, printing to the standard error.<br>
+ * At most a given number of errors get printed per interval, only the first
+ * of which with its stack trace. The others are counted, and their number
+ * is printed once the interval is over, so that a burst of errors costs little
+ * more than incrementing a counter.
+ * @author Benjamin Dezile
+ */
+public class ErrorLog {
+	
+	private final String name;				// Prefix of the printed lines
+	private final int limit;				// Maximum number of errors printed per interval
+	private final long interval;			// Interval length (in ms)
+	private final AtomicLong start;			// Start of the current interval
+	private final AtomicInteger count;		// Number of errors in the current interval
+	private final AtomicLong suppressed;	// Number of errors not printed, overall
+	
+	/**
+	 * Create a new log
+	 * @param logName {@link String} - Prefix of the printed lines
+	 * @param max int - Maximum number of errors printed per interval
+	 * @param millis long - Interval length (in ms)
+	 */
+	public ErrorLog(String logName, int max, long millis) {
+		if (max < 1 || millis <= 0) {
+			throw new IllegalArgumentException("Invalid error rate: " + max + " per " + millis + " ms");
+		}
+		name = logName;
+		limit = max;
+		interval = millis;
+		start = new AtomicLong(System.currentTimeMillis());
+		count = new AtomicInteger();
+		suppressed = new AtomicLong();
+	}
+	
+	/**
+	 * Log an error
+	 * @param msg {@link String} - Message
+	 * @param e {@link Throwable} - Error (null if none)
+	 * @return boolean Whether the error was printed
+	 */
+	public boolean log(String msg, Throwable e) {
+		long now = System.currentTimeMillis();
+		long t = start.get();
+		if (now - t >= interval && start.compareAndSet(t, now)) {
+			/* New interval, tell how many errors went unprinted in the last one */
+			int n = count.getAndSet(0) - limit;
+			if (n > 0) {
+				System.err.println(name + ": " + n + " more error(s) in the last " + (now - t) + " ms");
+			}
+		}
+		int n = count.incrementAndGet();
+		if (n > limit) {
+			suppressed.incrementAndGet();
+			return false;
+		}
+		if (e == null) {
+			System.err.println(name + ": " + msg);
+		} else if (n == 1) {
+			System.err.println(name + ": " + msg);
+			e.printStackTrace();
+		} else {
+			System.err.println(name + ": " + msg + " (" + e + ")");
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the number of errors that were not printed
+	 * @return long
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+}
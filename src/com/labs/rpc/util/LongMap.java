@@ -0,0 +1,226 @@
+package com.labs.rpc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash map keyed by primitive long integers.<br>
+ * Keys are stored in a flat array with open addressing (linear probing),
+ * so that looking up a sequence number neither boxes it nor allocates
+ * a map entry, and dense keys end up next to each other in memory.
+ * Null values are not allowed. This class is not synchronized.
+ * @author Benjamin Dezile
+ */
+public class LongMap<V> {
+	
+	private static final int MIN_CAPACITY = 16;
+	
+	private long[] keys;		// Keys
+	private Object[] vals;		// Values (null for a free slot)
+	private int size;			// Number of entries
+	private int mask;			// Capacity - 1
+	
+	public LongMap() {
+		this(MIN_CAPACITY);
+	}
+	
+	/**
+	 * Create an empty map
+	 * @param expected int - Expected number of entries
+	 */
+	public LongMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	/**
+	 * Get the value associated with the given key
+	 * @param key long - Key
+	 * @return V Null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = indexOf(key);
+		return i < 0 ? null : (V)vals[i];
+	}
+	
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+	
+	/**
+	 * Associate a value with the given key
+	 * @param key long - Key
+	 * @param value V - Value
+	 * @return V Previous value (null if none)
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null values are not allowed");
+		}
+		int i = slot(key);
+		while (vals[i] != null) {
+			if (keys[i] == key) {
+				V old = (V)vals[i];
+				vals[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		vals[i] = value;
+		if (++size * 2 > keys.length) {
+			/* Keep the load factor under 1/2 */
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Remove the given key
+	 * @param key long - Key
+	 * @return V Removed value (null if not found)
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		V old = (V)vals[i];
+		/* Shift back the following entries of the run so that lookups never stop early */
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (vals[j] == null) {
+				break;
+			}
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				vals[i] = vals[j];
+				i = j;
+			}
+		}
+		vals[i] = null;
+		size--;
+		return old;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Remove all entries, keeping the allocated capacity
+	 */
+	public void clear() {
+		for (int i=0;i<vals.length;i++) {
+			vals[i] = null;
+		}
+		size = 0;
+	}
+	
+	/**
+	 * Get a copy of all keys
+	 * @return long[]
+	 */
+	public long[] keys() {
+		long[] res = new long[size];
+		int n = 0;
+		for (int i=0;i<vals.length;i++) {
+			if (vals[i] != null) {
+				res[n++] = keys[i];
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Get a copy of all values
+	 * @return {@link List}
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> res = new ArrayList<V>(size);
+		for (int i=0;i<vals.length;i++) {
+			if (vals[i] != null) {
+				res.add((V)vals[i]);
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Find the slot holding the given key
+	 * @param key long - Key
+	 * @return int Slot index, -1 if not found
+	 */
+	private int indexOf(long key) {
+		int i = slot(key);
+		while (vals[i] != null) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the preferred slot of the given key
+	 * @param key long - Key
+	 * @return int
+	 */
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		vals = new Object[capacity];
+		mask = capacity - 1;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldVals = vals;
+		allocate(capacity);
+		for (int i=0;i<oldVals.length;i++) {
+			if (oldVals[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (vals[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				vals[j] = oldVals[i];
+			}
+		}
+	}
+	
+	public String toString() {
+		StringBuffer buf = new StringBuffer("{");
+		for (int i=0;i<vals.length;i++) {
+			if (vals[i] != null) {
+				if (buf.length() > 1) {
+					buf.append(", ");
+				}
+				buf.append(keys[i]);
+				buf.append("=");
+				buf.append(vals[i]);
+			}
+		}
+		buf.append("}");
+		return buf.toString();
+	}
+
+}
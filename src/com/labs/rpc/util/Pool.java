@@ -0,0 +1,71 @@
+package com.labs.rpc.util;
+
+/**
+ * Bounded pool of reusable objects.<br>
+ * Released objects are kept on a stack (so that the most recently used,
+ * and most likely cached, one is handed out first) up to the pool capacity,
+ * and new objects are only created when the pool is empty.
+ * @author Benjamin Dezile
+ */
+public abstract class Pool<T> {
+	
+	private Object[] items;		// Available objects
+	private int size;			// Number of available objects
+	
+	/**
+	 * Create an empty pool
+	 * @param capacity int - Maximum number of objects to keep
+	 */
+	public Pool(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid pool capacity: " + capacity);
+		}
+		items = new Object[capacity];
+		size = 0;
+	}
+	
+	/**
+	 * Create a new object when the pool is empty
+	 * @return T
+	 */
+	protected abstract T create();
+	
+	/**
+	 * Get an object from the pool, or a new one if none available
+	 * @return T
+	 */
+	@SuppressWarnings("unchecked")
+	public T acquire() {
+		synchronized(this) {
+			if (size > 0) {
+				T item = (T)items[--size];
+				items[size] = null;
+				return item;
+			}
+		}
+		return create();
+	}
+	
+	/**
+	 * Give an object back to the pool.<br>
+	 * The caller must not use the object anymore afterwards.
+	 * @param item T - Object to give back
+	 * @return boolean True if kept, false if the pool is full
+	 */
+	public synchronized boolean release(T item) {
+		if (item == null || size == items.length) {
+			return false;
+		}
+		items[size++] = item;
+		return true;
+	}
+	
+	/**
+	 * Get the number of objects currently available
+	 * @return int
+	 */
+	public synchronized int available() {
+		return size;
+	}
+
+}
@@ -66,12 +66,18 @@ public class Queue<T> {
 			/* No item available, let's wait */
 			try {
 				synchronized(gotItem) {
-					if (timeout > 0) {
-						/* Wait up to timeout */
-						gotItem.wait(exitTime - System.currentTimeMillis() + 1);
-					} else {
-						/* Wait a little while */
-						gotItem.wait(1000);
+					/* Check again under the lock so that an item offered in between is not missed */
+					if (isEmpty()) {
+						if (timeout > 0) {
+							/* Wait up to timeout */
+							long wait = exitTime - System.currentTimeMillis() + 1;
+							if (wait > 0) {
+								gotItem.wait(wait);
+							}
+						} else {
+							/* Wait a little while */
+							gotItem.wait(1000);
+						}
 					}
 				}
 			} catch (InterruptedException e) {
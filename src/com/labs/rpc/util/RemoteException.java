@@ -1,24 +1,80 @@
 package com.labs.rpc.util;
 
 /**
- * When a remote call throws an exception on the remote side
+ * When a remote call throws an exception on the remote side.<br>
+ * It carries an error code telling what went wrong, and a message.
+ * As it mostly stands for an error that happened in another process,
+ * its stack trace is not filled in unless asked for (see {@link #setStackTraces(boolean)}),
+ * which keeps errors cheap when many calls fail at once.
  * @author Benjamin Dezile
  */
 public class RemoteException extends Exception {
 
 	private static final long serialVersionUID = -8410931051078284713L;
+	
+	public static final int ERROR_UNKNOWN = 0;			// Unspecified error (e.g. from a peer without error codes)
+	public static final int ERROR_TARGET = 1;			// No such target object
+	public static final int ERROR_METHOD = 2;			// No such RPC method on the target
+	public static final int ERROR_ARGUMENTS = 3;		// Arguments malformed or not matching the method
+	public static final int ERROR_ACCESS = 4;			// Method not accessible
+	public static final int ERROR_INVOCATION = 5;		// Method threw an exception
+	
+	private static volatile boolean stackTraces = false;	// Whether stack traces get filled in
+	
+	private int code;
 	private String message;
 	
 	public RemoteException(Throwable e) {
+		this(ERROR_UNKNOWN, e);
+	}
+	
+	public RemoteException(String msg) {
+		this(ERROR_UNKNOWN, msg);
+	}
+	
+	/**
+	 * Create a new remote exception
+	 * @param errorCode int - Error code
+	 * @param e {@link Throwable} - Cause
+	 */
+	public RemoteException(int errorCode, Throwable e) {
 		super(e);
+		code = errorCode;
 		message = e != null ? e.getClass().getSimpleName() + " (" + e.getMessage() + ")" : "-";
 	}
 	
-	public RemoteException(String msg) {
+	/**
+	 * Create a new remote exception
+	 * @param errorCode int - Error code
+	 * @param msg {@link String} - Message
+	 */
+	public RemoteException(int errorCode, String msg) {
 		super();
+		code = errorCode;
 		message = msg;
 	}
 	
+	/**
+	 * Set whether remote exceptions created from now on fill in their stack trace
+	 * @param on boolean - True to fill in stack traces
+	 */
+	public static void setStackTraces(boolean on) {
+		stackTraces = on;
+	}
+	
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return stackTraces ? super.fillInStackTrace() : this;
+	}
+	
+	/**
+	 * Get the error code
+	 * @return int
+	 */
+	public int getCode() {
+		return code;
+	}
+	
 	public String getMessage() {
 		return message;
 	}
@@ -34,7 +90,11 @@ public class RemoteException extends Exception {
 		if ((re.message == null && message != null) || (re.message != null && message == null) || !re.message.equals(message)) {
 			return false;
 		}
-		return true;
+		return re.code == code;
+	}
+	
+	public int hashCode() {
+		return (message != null ? message.hashCode() : 0) * 31 + code;
 	}
 	
 }
@@ -0,0 +1,239 @@
+package com.labs.rpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+import com.labs.rpc.util.RPCMethod;
+import com.labs.rpc.util.RPCObject;
+import com.labs.rpc.util.RemoteException;
+
+/**
+ * Test striping calls over a pool of connections
+ * @author Benjamin Dezile
+ */
+public class RPCClientPoolTest extends TestCase {
+	
+	private static final String TEST_TARGET = "testRPCObj";
+	private RPCServer server;
+	private RPCClientPool pool;
+	
+	public void setUp() throws Exception {
+		server = new RPCServer(InetAddress.getLocalHost(), 0, new TestRPCObject());
+		server.setIOThreadCount(2);
+		server.setWorkerCount(8);
+		server.start();
+		pool = new RPCClientPool(InetAddress.getLocalHost(), server.getPort(), 4, new TestRPCObject());
+		pool.setIOThreadCount(2);
+		pool.setReconnectDelay(100);
+		pool.start();
+	}
+	
+	public void tearDown() {
+		pool.stop();
+		server.stop();
+	}
+	
+	/**
+	 * Wait for the server to have a given number of connections
+	 * @param n int - Number of connections
+	 */
+	private void waitForConnections(int n) throws InterruptedException {
+		for (int i=0;i<500 && (server.getConnectionCount() != n || pool.getConnectionCount() != n);i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(server.getConnectionCount(), n);
+		assertEquals(pool.getConnectionCount(), n);
+	}
+	
+	/**
+	 * Wait for a router to have a given number of calls in flight, since
+	 * the count is only updated once the waiting threads are woken up
+	 * @param router {@link RPCRouter} - Router
+	 * @param n int - Number of calls
+	 */
+	private void waitForInFlight(RPCRouter router, int n) throws InterruptedException {
+		for (int i=0;i<500 && router.getInFlightCount() != n;i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(router.getInFlightCount(), n);
+	}
+	
+	@Test
+	public void testCalls() throws Exception {
+		waitForConnections(4);
+		/* Calls from many threads at once */
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int k=0;k<8;k++) {
+			Thread t = new Thread() {
+				public void run() {
+					for (int i=0;i<200;i++) {
+						RemoteCall rc = new RemoteCall(TEST_TARGET, "echo", i);
+						pool.push(rc);
+						try {
+							if (!Integer.valueOf(i).equals(pool.getReturnBlocking(rc))) {
+								failures.incrementAndGet();
+							}
+						} catch (Exception e) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t:threads) {
+			t.join();
+		}
+		assertEquals(failures.get(), 0);
+		/* Spread by number of outstanding calls */
+		List<RemoteCall> rcs = new ArrayList<RemoteCall>();
+		for (int i=0;i<40;i++) {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, "sleep", 50);
+			pool.push(rc);
+			rcs.add(rc);
+		}
+		for (RPCRouter router:pool.getRouters()) {
+			assertEquals(router.getInFlightCount(), 10);
+		}
+		Map<Long,Object> rets = pool.getReturnsBlocking(rcs, 5000);
+		assertEquals(rets.size(), 40);
+		for (RemoteCall rc:rcs) {
+			assertEquals(rets.get(rc.getSeq()), 50);
+		}
+		for (RPCRouter router:pool.getRouters()) {
+			waitForInFlight(router, 0);
+		}
+		/* Returns in order of completion, across connections */
+		rcs.clear();
+		for (int i=4;i>0;i--) {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, "sleep", i * 100);
+			pool.push(rc);
+			rcs.add(rc);
+		}
+		rets = pool.getReturnsBlocking(rcs, 5000);
+		assertEquals(new ArrayList<Object>(rets.values()), Arrays.<Object>asList(100, 200, 300, 400));
+		/* First call done, whatever its connection */
+		RemoteCall slow = new RemoteCall(TEST_TARGET, "sleep", 300);
+		RemoteCall fast = new RemoteCall(TEST_TARGET, "echo", "fast");
+		pool.push(slow);
+		pool.push(fast);
+		assertSame(pool.awaitAny(Arrays.asList(slow, fast), 5000), fast);
+		assertNull(pool.awaitAny(Arrays.asList(slow), 10));
+		/* Done calls are not outstanding anymore, even if not claimed yet */
+		RPCRouter owner = null;
+		for (RPCRouter router:pool.getRouters()) {
+			if (router.hasCall(fast.getSeq())) {
+				owner = router;
+			}
+		}
+		waitForInFlight(owner, 0);
+		assertEquals(owner.getPendingCount(), 1);
+		assertEquals(pool.getReturn(fast), "fast");
+		assertEquals(pool.getReturnBlocking(slow), 300);
+		/* Batches and errors */
+		RemoteCallBatch batch = pool.pushBatch(new RemoteCall(TEST_TARGET, "echo", "a"), new RemoteCall(TEST_TARGET, "echo", "b"));
+		assertEquals(pool.getReturnBlocking(batch.getCalls()[0]), "a");
+		assertEquals(pool.getReturnBlocking(batch.getCalls()[1]), "b");
+		RemoteCall rc = new RemoteCall(TEST_TARGET, "fail");
+		pool.push(rc);
+		try {
+			pool.getReturnBlocking(rc);
+			fail("There should have been a remote exception");
+		} catch (RemoteException e) {
+			assertEquals(e.getCode(), RemoteException.ERROR_INVOCATION);
+		}
+		try {
+			pool.getReturn(rc);
+			fail("The return was claimed already");
+		} catch (IllegalArgumentException e) {
+		}
+		/* Calls made by the server */
+		for (RPCRouter router:server.getRouters()) {
+			rc = new RemoteCall(TEST_TARGET, "echo", "back");
+			router.push(rc);
+			assertEquals(router.getReturnBlocking(rc), "back");
+		}
+	}
+	
+	@Test
+	public void testReconnect() throws Exception {
+		waitForConnections(4);
+		List<RemoteCall> rcs = new ArrayList<RemoteCall>();
+		for (int i=0;i<4;i++) {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, "sleep", 500);
+			pool.push(rc);
+			rcs.add(rc);
+		}
+		Thread.sleep(50);
+		/* All connections dropped by the server */
+		long t = System.currentTimeMillis();
+		for (RPCRouter router:server.getRouters()) {
+			router.getTransport().shutdown();
+		}
+		for (RemoteCall rc:rcs) {
+			try {
+				pool.getReturnBlocking(rc);
+				fail("The connection was lost");
+			} catch (TimeoutException e) {
+			}
+		}
+		assertTrue(System.currentTimeMillis() - t < 500);
+		/* Re-established in the background */
+		waitForConnections(4);
+		for (int i=0;i<20;i++) {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, "echo", i);
+			pool.push(rc);
+			assertEquals(pool.getReturnBlocking(rc), i);
+		}
+		/* Nothing to connect to */
+		server.stop();
+		for (int i=0;i<500 && !pool.getRouters().isEmpty();i++) {
+			Thread.sleep(10);
+		}
+		try {
+			pool.push(new RemoteCall(TEST_TARGET, "echo", 1));
+			fail("No connection is established");
+		} catch (IllegalStateException e) {
+		}
+	}
+	
+	
+	/**
+	 * Test RPC object
+	 * @author Benjamin Dezile
+	 */
+	protected static class TestRPCObject implements RPCObject {
+
+		@Override
+		public String getRPCName() {
+			return TEST_TARGET;
+		}
+
+		@RPCMethod
+		public Object echo(Object arg) {
+			return arg;
+		}
+
+		@RPCMethod
+		public void fail() throws IOException {
+			throw new IOException("fake IO exception");
+		}
+
+		@RPCMethod
+		public Object sleep(Integer millis) throws InterruptedException {
+			Thread.sleep(millis);
+			return millis;
+		}
+	
+	}
+
+}
@@ -4,9 +4,13 @@ import java.util.*;
 import java.util.concurrent.TimeoutException;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import junit.framework.*;
 import org.junit.Test;
+import com.labs.rpc.transport.Chunk;
 import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.Handshake;
+import com.labs.rpc.transport.Protocol;
 import com.labs.rpc.transport.Transport;
 import com.labs.rpc.util.Queue;
 import com.labs.rpc.util.RPCMethod;
@@ -119,6 +123,15 @@ public class RPCRouterTest extends TestCase {
 		} catch (Exception e) {
 			fail("There should not be any error here: " + e.getMessage());
 		}
+		/* Each router keeps its own timeout */
+		RPCRouter other = new RPCRouter(new TestRPCObject(), new TestTransport());
+		other.start(1);
+		try {
+			assertEquals(other.getTimeout(), 1);
+			assertEquals(router.getTimeout(), RPCRouter.DEFAULT_TIMEOUT);
+		} finally {
+			other.stop();
+		}
 	}
 	
 	@Test
@@ -148,6 +161,32 @@ public class RPCRouterTest extends TestCase {
 		
 	}
 	
+	@Test
+	public void testErrorCodes() {
+		System.out.println("\nTEST ERROR CODES");
+		router.getProtocol().enable(Protocol.COMPACT | Protocol.ERRORS);
+		router.start();
+		Object[][] calls = new Object[][]{
+			{new RemoteCall("noSuchTarget", TEST_METHOD, 1), RemoteException.ERROR_TARGET},
+			{new RemoteCall(TEST_TARGET, "noSuchMethod", 1), RemoteException.ERROR_METHOD},
+			{new RemoteCall(TEST_TARGET, TEST_METHOD, true, false), RemoteException.ERROR_ARGUMENTS},
+			{new RemoteCall(TEST_TARGET, TEST_METHOD, "failure"), RemoteException.ERROR_INVOCATION}};
+		for (Object[] call:calls) {
+			RemoteCall rc = (RemoteCall)call[0];
+			router.push(rc);
+			try {
+				router.getReturnBlocking(rc);
+				fail("There should have been a remote exception");
+			} catch (RemoteException e) {
+				assertEquals(e.getCode(), call[1]);
+				/* Not worth a stack trace */
+				assertEquals(e.getStackTrace().length, 0);
+			} catch (TimeoutException e) {
+				fail("It should not have timed out");
+			}
+		}
+	}
+	
 	@Test
 	public void testOneCall() throws InterruptedException {
 		
@@ -235,6 +274,428 @@ public class RPCRouterTest extends TestCase {
 		}
 	}
 	
+	@Test
+	public void testGetReturnsBlocking() {
+		System.out.println("\nTEST GET RETURNS BLOCKING");
+		router.start();
+		List<RemoteCall> rcs = new ArrayList<RemoteCall>(N_TEST);
+		long t = System.currentTimeMillis();
+		for (int i=0;i<N_TEST;i++) {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, i);
+			router.push(rc);
+			rcs.add(rc);
+		}
+		Map<Long,Object> rets = router.getReturnsBlocking(rcs, 0);
+		System.out.println("Got " + rets.size() + " returns in " + (System.currentTimeMillis() - t) + " ms");
+		assertEquals(rets.size(), N_TEST);
+		for (int i=0;i<N_TEST;i++) {
+			assertEquals(rets.get(rcs.get(i).getSeq()), i);
+			assertFalse(router.hasCall(rcs.get(i).getSeq()));
+		}
+		/* Failures are returned as values */
+		RemoteCall failed = new RemoteCall(TEST_TARGET, TEST_METHOD, "failure");
+		router.push(failed);
+		rets = router.getReturnsBlocking(Arrays.asList(failed), 0);
+		assertTrue(rets.get(failed.getSeq()) instanceof RemoteException);
+		/* Deadline */
+		RemoteCall slow = new RemoteCall(TEST_TARGET, TEST_METHOD, "timeout");
+		router.push(slow);
+		t = System.currentTimeMillis();
+		rets = router.getReturnsBlocking(Arrays.asList(slow), 200);
+		assertTrue(System.currentTimeMillis() - t < router.getTimeout() * 1000);
+		assertTrue(rets.isEmpty());
+		assertTrue(router.hasCall(slow.getSeq()));
+	}
+	
+	@Test
+	public void testAwaitAny() {
+		System.out.println("\nTEST AWAIT ANY");
+		router.setProcessorCount(2);
+		router.start();
+		RemoteCall slow = new RemoteCall(TEST_TARGET, TEST_METHOD, "timeout");
+		RemoteCall fast = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+		router.push(slow);
+		router.push(fast);
+		RemoteCall first = router.awaitAny(Arrays.asList(slow, fast), 0);
+		assertSame(first, fast);
+		try {
+			assertEquals(router.getReturn(first), 1);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+		assertNull(router.awaitAny(Arrays.asList(slow), 100));
+		try {
+			router.awaitAny(Arrays.asList(fast), 100);
+			fail("The call has already been claimed");
+		} catch (IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void testBatch() {
+		System.out.println("\nTEST BATCH");
+		router.setProcessorCount(4);
+		router.start();
+		long t;
+		for (byte mode:new byte[]{RemoteCallBatch.RETURN_TOGETHER, RemoteCallBatch.RETURN_AS_COMPLETED}) {
+			t = System.currentTimeMillis();
+			RemoteCall[] rcs = new RemoteCall[N_TEST];
+			for (int i=0;i<N_TEST;i++) {
+				rcs[i] = new RemoteCall(TEST_TARGET, TEST_METHOD, i);
+			}
+			router.push(new RemoteCallBatch(mode, rcs));
+			try {
+				for (int i=0;i<N_TEST;i++) {
+					assertEquals(router.getReturnBlocking(rcs[i]), i);
+				}
+			} catch (TimeoutException e) {
+				fail("This should not have timed out");
+			} catch (Exception e) {
+				fail("There should not be any error here: " + e.getMessage());
+			}
+			System.out.println("Batch of " + N_TEST + " calls (mode " + mode + ") returned in " + (System.currentTimeMillis() - t) + " ms");
+		}
+	}
+	
+	@Test
+	public void testPooling() {
+		System.out.println("\nTEST POOLING");
+		router.setPoolSize(16);
+		router.setProcessorCount(2);
+		router.start();
+		try {
+			router.setPoolSize(0);
+			fail("Pooling cannot be changed while running");
+		} catch (IllegalStateException e) {
+		}
+		long t = System.currentTimeMillis();
+		RemoteCall[] rcs = new RemoteCall[N_TEST];
+		for (int r=0;r<3;r++) {
+			for (int i=0;i<N_TEST;i++) {
+				rcs[i] = new RemoteCall(TEST_TARGET, TEST_METHOD, r * N_TEST + i);
+				router.push(rcs[i]);
+			}
+			try {
+				/* Recycled objects must not mix up calls */
+				for (int i=0;i<N_TEST;i++) {
+					assertEquals(router.getReturnBlocking(rcs[i]), r * N_TEST + i);
+				}
+			} catch (TimeoutException e) {
+				fail("This should not have timed out");
+			} catch (Exception e) {
+				fail("There should not be any error here: " + e.getMessage());
+			}
+		}
+		System.out.println((3 * N_TEST) + " pooled calls returned in " + (System.currentTimeMillis() - t) + " ms");
+		assertTrue(router.outCallPool.available() > 0);
+		assertTrue(router.inCallPool.available() > 0);
+	}
+	
+	@Test
+	public void testSequenceNumbers() {
+		RPCRouter other = new RPCRouter(new TestRPCObject(), new TestTransport());
+		router.start();
+		other.start();
+		try {
+			/* Each router numbers its own calls */
+			RemoteCall rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+			RemoteCall rc2 = new RemoteCall(TEST_TARGET, TEST_METHOD, 2);
+			RemoteCall rc3 = new RemoteCall(TEST_TARGET, TEST_METHOD, 3);
+			router.push(rc1);
+			router.push(rc2);
+			other.push(rc3);
+			assertEquals(rc1.getSeq(), 2);
+			assertEquals(rc2.getSeq(), 4);
+			assertEquals(rc3.getSeq(), 2);
+			/* Calls numbered before being pushed keep their number */
+			RemoteCall rc4 = new RemoteCall(TEST_TARGET, TEST_METHOD, 4);
+			long seq = rc4.getSeq();
+			assertTrue(seq % 2 == 1);
+			router.push(rc4);
+			assertEquals(rc4.getSeq(), seq);
+			assertEquals(router.getReturnBlocking(rc1), 1);
+			assertEquals(router.getReturnBlocking(rc2), 2);
+			assertEquals(other.getReturnBlocking(rc3), 3);
+			assertEquals(router.getReturnBlocking(rc4), 4);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		} finally {
+			other.stop();
+		}
+	}
+	
+	@Test
+	public void testCompact() {
+		System.out.println("\nTEST COMPACT");
+		router.getProtocol().enable(Protocol.COMPACT);
+		router.start();
+		try {
+			for (int i=0;i<10;i++) {
+				RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, i);
+				router.push(rc);
+				assertTrue(rc.isCompact());
+				assertEquals(router.getReturnBlocking(rc), i);
+			}
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+		/* Enabled as soon as a compact frame is received */
+		RPCRouter other = new RPCRouter(new TestRPCObject(), new TestTransport());
+		assertFalse(other.getProtocol().supports(Protocol.COMPACT));
+		other.start();
+		try {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+			rc.setCompact(true);
+			other.getTransport().send(rc);
+			Thread.sleep(200);
+			assertTrue(other.getProtocol().supports(Protocol.COMPACT));
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		} finally {
+			other.stop();
+		}
+	}
+	
+	@Test
+	public void testCompression() {
+		System.out.println("\nTEST COMPRESSION");
+		router.getProtocol().enable(Protocol.COMPRESS);
+		router.getCompression().setThreshold(100);
+		router.start();
+		StringBuffer data = new StringBuffer();
+		for (int i=0;i<100;i++) {
+			data.append("compressible data ");
+		}
+		try {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, data.toString());
+			router.push(rc);
+			assertEquals(router.getReturnBlocking(rc), data.toString());
+			assertTrue(DataPacket.fromBytes(rc.getBytes()).isCompressed());
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+		/* Enabled as soon as a compressed frame is received */
+		RPCRouter other = new RPCRouter(new TestRPCObject(), new TestTransport());
+		assertFalse(other.getProtocol().supports(Protocol.COMPRESS));
+		other.start();
+		try {
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, data.toString());
+			rc.setCompression(router.getCompression());
+			other.getTransport().send(rc);
+			Thread.sleep(200);
+			assertTrue(other.getProtocol().supports(Protocol.COMPRESS));
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		} finally {
+			other.stop();
+		}
+	}
+	
+	@Test
+	public void testHandshake() {
+		System.out.println("\nTEST HANDSHAKE");
+		/* Talking to itself, so only the features offered by this end can be used */
+		router.getProtocol().setSupported(Protocol.COMPACT);
+		assertEquals(router.getProtocol().getPeerVersion(), 0);
+		router.start();
+		try {
+			Thread.sleep(200);
+			assertEquals(router.getProtocol().getPeerVersion(), Protocol.VERSION);
+			assertTrue(router.getProtocol().supports(Protocol.COMPACT));
+			assertFalse(router.getProtocol().supports(Protocol.COMPRESS));
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+			router.push(rc);
+			assertTrue(rc.isCompact());
+			assertEquals(router.getReturnBlocking(rc), 1);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+		/* Features get disabled when the peer does not offer them */
+		assertEquals(router.getProtocol().negotiate(Protocol.VERSION, Protocol.COMPRESS), 0);
+		assertFalse(router.getProtocol().supports(Protocol.COMPACT));
+		/* Unknown features of newer peers are ignored */
+		assertEquals(router.getProtocol().negotiate(Protocol.VERSION + 1, 0xFF), Protocol.COMPACT);
+		/* Nothing gets negotiated without a handshake */
+		RPCRouter other = new RPCRouter(new TestRPCObject(), new TestTransport());
+		other.setHandshake(false);
+		other.start();
+		try {
+			Thread.sleep(200);
+			assertEquals(other.getProtocol().getPeerVersion(), 0);
+			assertEquals(other.getProtocol().getFeatures(), 0);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		} finally {
+			other.stop();
+		}
+		/* Always readable as a plain packet */
+		Handshake hs = Handshake.fromPacket(DataPacket.fromBytes(new Handshake(Protocol.ALL).getBytes()));
+		assertEquals(hs.getVersion(), Protocol.VERSION);
+		assertEquals(hs.getFeatures(), Protocol.ALL);
+		assertFalse(hs.isCompact());
+	}
+	
+	@Test
+	public void testChunked() {
+		System.out.println("\nTEST CHUNKED");
+		router.setChunkSize(1024);
+		router.getProtocol().setSupported(Protocol.CHUNKED);
+		router.start();
+		StringBuffer data = new StringBuffer();
+		for (int i=0;i<2000;i++) {
+			data.append("0123456789");
+		}
+		try {
+			/* Wait for the handshake */
+			Thread.sleep(100);
+			assertTrue(router.getProtocol().supports(Protocol.CHUNKED));
+			RemoteCall big = new RemoteCall(TEST_TARGET, TEST_METHOD, data.toString());
+			RemoteCall small = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+			router.push(big);
+			router.push(small);
+			/* The small call goes out between chunks of the large one, and returns first */
+			assertSame(router.awaitAny(Arrays.asList(big, small), 0), small);
+			assertEquals(router.getReturn(small), 1);
+			assertEquals(router.getReturnBlocking(big), data.toString());
+			assertEquals(router.chunks.size(), 0);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testGathered() throws Exception {
+		System.out.println("\nTEST GATHERED");
+		GatheringTransport transp = new GatheringTransport();
+		RPCRouter sender = new RPCRouter(new TestRPCObject(), transp);
+		byte[] payload = new byte[100 * 1024];
+		for (int i=0;i<payload.length;i++) {
+			payload[i] = (byte)i;
+		}
+		/* Sent whole, straight from the payload */
+		sender.send(new DataPacket((byte)0, payload));
+		assertEquals(transp.frames.size(), 1);
+		assertTrue(transp.wraps(0, payload));
+		assertTrue(Arrays.equals(DataPacket.fromBytes(transp.getBytes(0)).getPayload(), payload));
+		/* Sent in chunks, each one a slice of the payload */
+		transp.frames.clear();
+		sender.setChunkSize(16 * 1024);
+		sender.getProtocol().enable(Protocol.CHUNKED);
+		sender.send(new DataPacket((byte)0, payload));
+		assertEquals(transp.frames.size(), 7);
+		Chunk.Assembler assembler = new Chunk.Assembler();
+		DataPacket dp = null;
+		for (int i=0;i<transp.frames.size();i++) {
+			assertTrue(transp.wraps(i, payload));
+			assertNull(dp);
+			dp = assembler.add(DataPacket.fromBytes(transp.getBytes(i)));
+		}
+		assertNotNull(dp);
+		assertTrue(Arrays.equals(dp.getPayload(), payload));
+		/* Checksum included */
+		transp.frames.clear();
+		DataPacket checked = new DataPacket((byte)0, payload);
+		checked.setChecksum(true);
+		sender.send(checked);
+		dp = null;
+		for (int i=0;i<transp.frames.size();i++) {
+			assertNull(dp);
+			dp = assembler.add(DataPacket.fromBytes(transp.getBytes(i)));
+		}
+		assertTrue(dp.hasChecksum());
+		assertTrue(Arrays.equals(dp.getPayload(), payload));
+	}
+	
+	@Test
+	public void testStrings() {
+		System.out.println("\nTEST STRINGS");
+		router.start();
+		Map<String,Object> row = new HashMap<String,Object>();
+		for (int i=0;i<20;i++) {
+			row.put("column" + i, i);
+		}
+		try {
+			/* Wait for the handshake */
+			Thread.sleep(100);
+			assertTrue(router.getProtocol().supports(Protocol.STRINGS));
+			for (int i=0;i<10;i++) {
+				RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+				router.push(rc);
+				assertEquals(router.getReturnBlocking(rc), row);
+			}
+			/* Keys of the returned map, target and method names */
+			assertEquals(router.outStrings.count(), 22);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+		/* Back to square one on restart */
+		router.stop();
+		router.setStringTableSize(4);
+		router.start();
+		try {
+			Thread.sleep(100);
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+			router.push(rc);
+			assertEquals(router.getReturnBlocking(rc), row);
+			assertEquals(router.outStrings.count(), 4);
+		} catch (Exception e) {
+			fail("There should not be any error here: " + e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testStringsDropped() throws Exception {
+		System.out.println("\nTEST STRINGS DROPPED");
+		Map<String,Object> row = new HashMap<String,Object>();
+		for (int i=0;i<20;i++) {
+			row.put("column" + i, i);
+		}
+		DroppingTransport transp = new DroppingTransport();
+		RPCRouter other = new RPCRouter(new TestRPCObject(), transp);
+		other.getProtocol().setSupported(Protocol.DEFAULT | Protocol.CHECKSUM);
+		DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_DROP);
+		try {
+			/* Not shared when frames can be dropped */
+			other.start();
+			Thread.sleep(100);
+			assertTrue(other.getProtocol().supports(Protocol.CHECKSUM));
+			assertFalse(other.getProtocol().supports(Protocol.STRINGS));
+			transp.dropNext = true;
+			RemoteCall dropped = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+			other.push(dropped);
+			RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+			other.push(rc);
+			assertEquals(other.getReturnBlocking(rc), row);
+			assertNull(other.awaitAny(Arrays.asList(dropped), 100));
+			other.stop();
+			/* Shared, until frames start being dropped */
+			DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_FAIL);
+			transp.recover();
+			other.start();
+			Thread.sleep(100);
+			assertTrue(other.getProtocol().supports(Protocol.STRINGS | Protocol.CHECKSUM));
+			rc = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+			other.push(rc);
+			assertEquals(other.getReturnBlocking(rc), row);
+			/* Going on as long as nothing gets dropped */
+			DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_DROP);
+			rc = new RemoteCall(TEST_TARGET, TEST_METHOD, row);
+			other.push(rc);
+			assertEquals(other.getReturnBlocking(rc), row);
+			assertTrue(other.isAlive());
+			transp.dropNext = true;
+			dropped = new RemoteCall(TEST_TARGET, "testMethod2", "new string", "other string");
+			other.push(dropped);
+			rc = new RemoteCall(TEST_TARGET, "testMethod2", "new string", "other string");
+			other.push(rc);
+			/* The connection fails rather than decoding strings it never got */
+			assertNull(other.awaitAny(Arrays.asList(rc), 500));
+			assertFalse(other.isAlive());
+		} finally {
+			DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_FAIL);
+			other.stop();
+		}
+	}
+	
 	@Test
 	public void testStartStop() {
 		RemoteCall rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
@@ -330,7 +791,7 @@ public class RPCRouterTest extends TestCase {
 				throw new IOException("fake IO exception");
 			} else if ("timeout".equals(arg)) {
 				try {
-					Thread.sleep(2*RPCRouter.TIMEOUT*1000);
+					Thread.sleep(2*RPCRouter.DEFAULT_TIMEOUT*1000);
 				} catch (InterruptedException e) {}
 			}
 			return arg;
@@ -344,6 +805,88 @@ public class RPCRouterTest extends TestCase {
 	}
 	
 	
+	/**
+	 * Test transport losing a call frame on demand, the way a frame
+	 * with a bad checksum gets dropped by the receiving end
+	 * @author Benjamin Dezile
+	 */
+	protected static class DroppingTransport extends TestTransport {
+		
+		private volatile boolean dropNext;
+		private volatile long dropped;
+		
+		@Override
+		public void send(DataPacket dp) throws IOException {
+			if (dropNext && dp.getType() == RemoteCall.TYPE) {
+				dropNext = false;
+				dropped++;
+				return;
+			}
+			super.send(dp);
+		}
+		
+		@Override
+		public long getDroppedFrames() {
+			return dropped;
+		}
+		
+		@Override
+		public boolean recover() {
+			/* A new connection has nothing dropped yet */
+			dropped = 0;
+			return super.recover();
+		}
+		
+	}
+	
+	
+	/**
+	 * Transport keeping the buffers of the frames sent
+	 * @author Benjamin Dezile
+	 */
+	protected static class GatheringTransport extends TestTransport {
+		
+		private List<ByteBuffer[]> frames = new ArrayList<ByteBuffer[]>();
+		
+		@Override
+		public void send(DataPacket dp) throws IOException {
+			frames.add(dp.getBuffers());
+		}
+		
+		/**
+		 * Tell whether a frame was sent straight from a given array
+		 * @param i int - Frame index
+		 * @param array byte[] - Array
+		 * @return boolean
+		 */
+		public boolean wraps(int i, byte[] array) {
+			for (ByteBuffer buf:frames.get(i)) {
+				if (buf.array() == array) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Get the bytes of a frame
+		 * @param i int - Frame index
+		 * @return byte[]
+		 */
+		public byte[] getBytes(int i) {
+			int size = 0;
+			for (ByteBuffer buf:frames.get(i)) {
+				size += buf.remaining();
+			}
+			ByteBuffer bytes = ByteBuffer.allocate(size);
+			for (ByteBuffer buf:frames.get(i)) {
+				bytes.put(buf.duplicate());
+			}
+			return bytes.array();
+		}
+		
+	}
+	
 	/**
 	 * Test transport
 	 * @author Benjamin Dezile
@@ -382,6 +925,11 @@ public class RPCRouterTest extends TestCase {
 			} catch (InterruptedException e) {}
 		}
 
+		@Override
+		public long getDroppedFrames() {
+			return 0;
+		}
+
 		@Override
 		public void shutdown() {
 			if (q != null) {
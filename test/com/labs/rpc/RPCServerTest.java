@@ -0,0 +1,226 @@
+package com.labs.rpc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.junit.Test;
+import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.transport.NIOSelector;
+import com.labs.rpc.transport.NIOTransport;
+import com.labs.rpc.util.RPCMethod;
+import com.labs.rpc.util.RPCObject;
+import com.labs.rpc.util.RemoteException;
+
+/**
+ * Test serving many connections with shared threads
+ * @author Benjamin Dezile
+ */
+public class RPCServerTest extends TestCase {
+	
+	private static final String TEST_TARGET = "testRPCObj";
+	private RPCServer server;
+	private NIOSelector selector;
+	private List<RPCRouter> clients;
+	
+	public void setUp() throws Exception {
+		server = new RPCServer(InetAddress.getLocalHost(), 0, new TestRPCObject());
+		server.setIOThreadCount(2);
+		server.setWorkerCount(4);
+		server.start();
+		selector = new NIOSelector(2);
+		clients = new ArrayList<RPCRouter>();
+	}
+	
+	public void tearDown() {
+		for (RPCRouter client:clients) {
+			client.stop();
+			client.getTransport().shutdown();
+		}
+		server.stop();
+		selector.shutdown();
+	}
+	
+	/**
+	 * Connect a new client router to the server
+	 * @return {@link RPCRouter}
+	 */
+	private RPCRouter connect() throws IOException {
+		RPCRouter client = new RPCRouter(new TestRPCObject(), new NIOTransport(InetAddress.getLocalHost(), server.getPort(), selector));
+		clients.add(client);
+		client.start();
+		return client;
+	}
+	
+	/**
+	 * Wait for the server to have a given number of connections
+	 * @param n int - Number of connections
+	 */
+	private void waitForConnections(int n) throws InterruptedException {
+		for (int i=0;i<500 && server.getConnectionCount() != n;i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(server.getConnectionCount(), n);
+	}
+	
+	@Test
+	public void testCalls() throws Exception {
+		final List<RPCRouter> routers = new ArrayList<RPCRouter>();
+		for (int i=0;i<5;i++) {
+			routers.add(connect());
+		}
+		/* Calls from all clients at once */
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (final RPCRouter client:routers) {
+			Thread t = new Thread() {
+				public void run() {
+					for (int i=0;i<200;i++) {
+						RemoteCall rc = new RemoteCall(TEST_TARGET, "echo", i);
+						client.push(rc);
+						try {
+							if (!Integer.valueOf(i).equals(client.getReturnBlocking(rc))) {
+								failures.incrementAndGet();
+							}
+						} catch (Exception e) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t:threads) {
+			t.join();
+		}
+		assertEquals(failures.get(), 0);
+		waitForConnections(5);
+		/* Batches and errors */
+		RPCRouter client = routers.get(0);
+		RemoteCallBatch batch = client.pushBatch(new RemoteCall(TEST_TARGET, "echo", "a"), new RemoteCall(TEST_TARGET, "echo", "b"));
+		assertEquals(client.getReturnBlocking(batch.getCalls()[0]), "a");
+		assertEquals(client.getReturnBlocking(batch.getCalls()[1]), "b");
+		RemoteCall rc = new RemoteCall(TEST_TARGET, "fail");
+		client.push(rc);
+		try {
+			client.getReturnBlocking(rc);
+			fail("There should have been a remote exception");
+		} catch (RemoteException e) {
+			assertEquals(e.getCode(), RemoteException.ERROR_INVOCATION);
+		}
+		/* Targets are shared by all connections */
+		server.registerTargetObject("other", new TestRPCObject());
+		rc = new RemoteCall("other", "echo", 1);
+		routers.get(1).push(rc);
+		assertEquals(routers.get(1).getReturnBlocking(rc), 1);
+		/* Closed connections go away */
+		client.stop();
+		client.getTransport().shutdown();
+		waitForConnections(4);
+	}
+	
+	@Test
+	public void testCallClient() throws Exception {
+		connect();
+		waitForConnections(1);
+		RPCRouter router = server.getRouters().get(0);
+		RemoteCall rc = new RemoteCall(TEST_TARGET, "echo", "back");
+		router.push(rc);
+		assertEquals(router.getReturnBlocking(rc), "back");
+		/* Timed out by the server */
+		rc = new RemoteCall(TEST_TARGET, "sleep", 2 * router.getTimeout() * 1000);
+		router.push(rc);
+		try {
+			router.getReturnBlocking(rc);
+			fail("It should have timed out");
+		} catch (TimeoutException e) {
+		}
+	}
+	
+	@Test
+	public void testManyClients() throws Exception {
+		int n = 5000;
+		final CountDownLatch done = new CountDownLatch(n);
+		final AtomicInteger failures = new AtomicInteger();
+		/* Bare connections, the threads of client routers would not scale */
+		NIOTransport.Listener listener = new NIOTransport.Listener() {
+			public void received(NIOTransport t, DataPacket dp) {
+				if (dp.getType() == RemoteCallReturn.TYPE) {
+					try {
+						if (!"ping".equals(RemoteCallReturn.fromPacket(dp).getValue())) {
+							failures.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+					done.countDown();
+				}
+			}
+			public void closed(NIOTransport t, IOException cause) {
+			}
+		};
+		int threads = Thread.activeCount();
+		long t = System.currentTimeMillis();
+		List<NIOTransport> transports = new ArrayList<NIOTransport>();
+		try {
+			for (int i=0;i<n;i++) {
+				NIOTransport transport = new NIOTransport(InetAddress.getLocalHost(), server.getPort(), selector);
+				transport.setListener(listener);
+				transports.add(transport);
+			}
+			long dt = System.currentTimeMillis() - t;
+			t = System.currentTimeMillis();
+			for (NIOTransport transport:transports) {
+				transport.send(new RemoteCall(TEST_TARGET, "echo", "ping"));
+			}
+			assertTrue(done.await(60, TimeUnit.SECONDS));
+			long dt2 = System.currentTimeMillis() - t;
+			waitForConnections(n);
+			System.out.println(n + " clients: connected in " + dt + " ms, one call each in " + dt2 + " ms, " + (Thread.activeCount() - threads) + " more threads");
+			assertEquals(failures.get(), 0);
+			assertTrue(Thread.activeCount() - threads < 10);
+		} finally {
+			for (NIOTransport transport:transports) {
+				transport.shutdown();
+			}
+		}
+		waitForConnections(0);
+	}
+	
+	
+	/**
+	 * Test RPC object
+	 * @author Benjamin Dezile
+	 */
+	protected static class TestRPCObject implements RPCObject {
+
+		@Override
+		public String getRPCName() {
+			return TEST_TARGET;
+		}
+
+		@RPCMethod
+		public Object echo(Object arg) {
+			return arg;
+		}
+
+		@RPCMethod
+		public void fail() throws IOException {
+			throw new IOException("fake IO exception");
+		}
+
+		@RPCMethod
+		public Object sleep(Integer millis) throws InterruptedException {
+			Thread.sleep(millis);
+			return millis;
+		}
+	
+	}
+
+}
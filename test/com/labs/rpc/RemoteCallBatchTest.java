@@ -0,0 +1,110 @@
+package com.labs.rpc;
+
+import java.util.*;
+import junit.framework.*;
+import org.junit.Test;
+import com.labs.rpc.transport.DataPacket;
+import com.labs.rpc.util.RemoteException;
+
+/**
+ * Test that call batches and their returns can be transmitted
+ * as bytes and rebuilt identically on the other side
+ * @author Benjamin Dezile
+ */
+public class RemoteCallBatchTest extends TestCase {
+	
+	private static final String TEST_TARGET = "testObject";
+	private static final String TEST_METHOD = "testMethod";
+	private static final int N_CALLS = 100;
+	
+	@Test
+	public void testFromPacket() {
+		RemoteCall[] rcs = new RemoteCall[N_CALLS];
+		for (int i=0;i<N_CALLS;i++) {
+			rcs[i] = new RemoteCall(TEST_TARGET, TEST_METHOD, i, "arg" + i, new ArrayList<String>(0));
+		}
+		RemoteCallBatch rcb1 = new RemoteCallBatch(RemoteCallBatch.RETURN_AS_COMPLETED, rcs);
+		RemoteCallBatch rcb2 = null;
+		try {
+			DataPacket dp = DataPacket.fromBytes(rcb1.getBytes());
+			rcb2 = RemoteCallBatch.fromPacket(dp);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("There should not have been any exception: " + e.getMessage());
+		}
+		assertNotNull(rcb2);
+		assertTrue(rcb1.equals(rcb2));
+		assertEquals(rcb1.hashCode(), rcb2.hashCode());
+		assertFalse(rcb2.returnsTogether());
+		assertEquals(rcb2.getCalls()[N_CALLS-1].getArguments()[1], "arg" + (N_CALLS-1));
+	}
+	
+	@Test
+	public void testReturnFromPacket() {
+		RemoteCall rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, 1);
+		RemoteCall rc2 = new RemoteCall(TEST_TARGET, TEST_METHOD, 2);
+		RemoteCallBatch rcb = new RemoteCallBatch(rc1, rc2);
+		RemoteCallBatchReturn rcbr1 = new RemoteCallBatchReturn(rcb);
+		assertFalse(rcbr1.put(rc2, new RemoteException("test")));
+		assertTrue(rcbr1.put(rc1, 1));
+		try {
+			rcbr1.put(rc1, 1);
+			fail("A complete batch return should not accept more returns");
+		} catch (IllegalStateException e) {}
+		RemoteCallBatchReturn rcbr2 = null;
+		try {
+			rcbr2 = RemoteCallBatchReturn.fromPacket(DataPacket.fromBytes(rcbr1.getBytes()));
+		} catch (Exception e) {
+			fail("There should not have been any exception: " + e.getMessage());
+		}
+		assertNotNull(rcbr2);
+		assertEquals(rcbr2.getSeq(), rcb.getSeq());
+		assertEquals(rcbr2.size(), 2);
+		assertEquals(rcbr2.getSeq(0), rc2.getSeq());
+		assertEquals(rcbr2.getValue(0), new RemoteException("test"));
+		assertEquals(rcbr2.getSeq(1), rc1.getSeq());
+		assertEquals(rcbr2.getValue(1), 1);
+	}
+	
+	@Test
+	public void testBadCounts() throws Exception {
+		/* Counts no frame of that size could hold */
+		byte[][] payloads = new byte[][] {
+			{RemoteCallBatch.RETURN_AS_COMPLETED, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF},
+			{RemoteCallBatch.RETURN_AS_COMPLETED, 0x10, 0, 0, 0}
+		};
+		for (byte[] payload:payloads) {
+			try {
+				RemoteCallBatch.fromPacket(new DataPacket(RemoteCallBatch.TYPE, payload));
+				fail("The number of calls is invalid");
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				RemoteCallBatchReturn.fromPacket(new DataPacket(RemoteCallBatchReturn.TYPE, Arrays.copyOfRange(payload, 1, payload.length)));
+				fail("The number of returns is invalid");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		/* Value length past the end of the frame */
+		byte[] payload = new byte[] {0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 100, 0};
+		try {
+			RemoteCallBatchReturn.fromPacket(new DataPacket(RemoteCallBatchReturn.TYPE, payload));
+			fail("The value length is invalid");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testSize() {
+		RemoteCall[] rcs = new RemoteCall[N_CALLS];
+		int separate = 0;
+		for (int i=0;i<N_CALLS;i++) {
+			rcs[i] = new RemoteCall(TEST_TARGET, TEST_METHOD, i);
+			separate += rcs[i].getBytes().length;
+		}
+		int batched = new RemoteCallBatch(rcs).getBytes().length;
+		System.out.println(N_CALLS + " calls: " + separate + " bytes sent separately, " + batched + " bytes batched");
+		assertTrue(batched < separate);
+	}
+	
+}
@@ -39,6 +39,51 @@ public class RemoteCallReturnTest extends TestCase {
 		}
 	}
 	
+	@Test
+	public void testCompact() {
+		RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD);
+		Object[] vals = new Object[]{2, -70000, 4.5, 1L << 40, true, null, "str", new Object[]{"1",1,false}, new JSONObject(), new JSONArray(), new ArrayList<String>(0), new RemoteException("test")};
+		RemoteCallReturn rcr1 = null, rcr2 = null;
+		for (Object val:vals) {
+			try {
+				rcr1 = new RemoteCallReturn(rc, val);
+				rcr1.setCompact(true);
+				rcr2 = RemoteCallReturn.fromPacket(RemoteCall.fromBytes(rcr1.getBytes()));
+			} catch (Exception e) {
+				fail("There should not have been any exception: " + e.getMessage());
+			}
+			assertTrue(rcr2.isCompact());
+			assertTrue(rcr1.equals(rcr2));
+		}
+	}
+	
+	@Test
+	public void testErrorCodes() throws Exception {
+		RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD);
+		RemoteException re = new RemoteException(RemoteException.ERROR_INVOCATION, new IllegalStateException("test"));
+		RemoteCallReturn rcr1 = new RemoteCallReturn(rc, re);
+		rcr1.setCompact(true);
+		rcr1.setErrorCodes(true);
+		RemoteCallReturn rcr2 = RemoteCallReturn.fromPacket(RemoteCall.fromBytes(rcr1.getBytes()));
+		assertTrue(rcr1.equals(rcr2));
+		assertEquals(((RemoteException)rcr2.getValue()).getCode(), RemoteException.ERROR_INVOCATION);
+		assertEquals(((RemoteException)rcr2.getValue()).getMessage(), re.getMessage());
+		/* Without error codes, only the message goes through */
+		rcr1 = new RemoteCallReturn(rc, re);
+		rcr1.setCompact(true);
+		rcr2 = RemoteCallReturn.fromPacket(RemoteCall.fromBytes(rcr1.getBytes()));
+		assertEquals(((RemoteException)rcr2.getValue()).getCode(), RemoteException.ERROR_UNKNOWN);
+		assertEquals(((RemoteException)rcr2.getValue()).getMessage(), re.getMessage());
+		/* Stack traces only when asked for */
+		assertEquals(re.getStackTrace().length, 0);
+		RemoteException.setStackTraces(true);
+		try {
+			assertTrue(new RemoteException("test").getStackTrace().length > 0);
+		} finally {
+			RemoteException.setStackTraces(false);
+		}
+	}
+	
 	@Test
 	public void testEquals() {
 		RemoteCall rc = new RemoteCall(TEST_TARGET, TEST_METHOD);
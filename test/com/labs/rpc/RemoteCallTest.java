@@ -67,6 +67,101 @@ public class RemoteCallTest extends TestCase {
 		assertTrue(rc1.equals(rc2));
 	}
 	
+	@Test
+	public void testCompact() {
+		RemoteCall rc1 = null, rc2 = null;
+		try {
+			rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, TEST_ARGS);
+			rc1.setCompact(true);
+			DataPacket dp = RemoteCall.fromBytes(rc1.getBytes());
+			assertTrue(dp.isCompact());
+			rc2 = RemoteCall.fromPacket(dp);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("There should not have been any exception: " + e.getMessage());
+		}
+		assertNotNull(rc2);
+		assertTrue(rc2.isCompact());
+		assertTrue(rc1.equals(rc2));
+		/* Small numbers take a lot less room */
+		Object[] args = new Object[]{1, -2, 300L, (short)4, 'c', Integer.MIN_VALUE, Long.MAX_VALUE};
+		rc1 = new RemoteCall("o", "m", args);
+		int legacySize = rc1.getBytes().length;
+		rc1.setCompact(true);
+		int compactSize = rc1.getBytes().length;
+		System.out.println("Numeric call = " + legacySize + " bytes, compact = " + compactSize + " bytes");
+		assertTrue(compactSize < legacySize);
+		try {
+			rc2 = RemoteCall.fromPacket(RemoteCall.fromBytes(rc1.getBytes()));
+		} catch (Exception e) {
+			fail("There should not have been any exception: " + e.getMessage());
+		}
+		assertTrue(Arrays.equals(rc2.getArguments(), args));
+	}
+	
+	@Test
+	public void testEncodeCache() throws Exception {
+		RemoteCall rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, TEST_ARGS);
+		byte[] bytes = rc1.getBytes();
+		/* Sending again does not encode again */
+		assertSame(bytes, rc1.getBytes());
+		RemoteCall rc2 = RemoteCall.fromPacket(RemoteCall.fromBytes(bytes));
+		assertTrue(rc1.equals(rc2));
+		/* Any change to the frame drops the cached bytes */
+		rc1.setCompact(true);
+		byte[] compactBytes = rc1.getBytes();
+		assertNotSame(bytes, compactBytes);
+		assertTrue(RemoteCall.fromPacket(RemoteCall.fromBytes(compactBytes)).isCompact());
+		rc1.clearBytes();
+		assertNotSame(compactBytes, rc1.getBytes());
+		assertTrue(Arrays.equals(compactBytes, rc1.getBytes()));
+		/* Encode speed */
+		StringBuffer data = new StringBuffer();
+		for (int i=0;i<1000;i++) {
+			data.append(TEST_DATA);
+		}
+		rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, data.toString(), 1, 2.5, "x");
+		int n = 10000;
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			rc1.clearBytes();
+			rc1.getBytes();
+		}
+		System.out.println("Encode " + rc1.getBytes().length + " bytes = " + ((System.nanoTime() - t) / n / 1000.0) + " us");
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			rc1.getBytes();
+		}
+		System.out.println("Cached = " + ((System.nanoTime() - t) / n / 1000.0) + " us");
+	}
+	
+	@Test
+	public void testLazyArguments() throws Exception {
+		RemoteCall rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, TEST_ARGS);
+		for (int i=0;i<2;i++) {
+			rc1.setCompact(i == 1);
+			byte[] bytes = rc1.getBytes();
+			RemoteCall rc2 = RemoteCall.fromPacket(RemoteCall.fromBytes(bytes));
+			assertEquals(rc2.getTarget(), TEST_TARGET);
+			assertEquals(rc2.getArgumentCount(), TEST_ARGS.length);
+			/* Arguments that were never decoded are passed on as is */
+			assertTrue(Arrays.equals(bytes, rc2.getBytes()));
+			assertTrue(rc1.equals(rc2));
+			assertEquals(rc2.getArgumentCount(), TEST_ARGS.length);
+		}
+		/* Malformed arguments only show up once decoded */
+		rc1 = new RemoteCall(TEST_TARGET, TEST_METHOD, "abc");
+		byte[] bytes = rc1.getBytes();
+		bytes[bytes.length - 4] = 0x30;
+		RemoteCall rc2 = RemoteCall.fromPacket(RemoteCall.fromBytes(bytes));
+		assertEquals(rc2.getArgumentCount(), 1);
+		try {
+			rc2.getArguments();
+			fail("Arguments are malformed");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
 	@Test
 	public void testEquals() {
 		RemoteCall rc0 = new RemoteCall(null, null);
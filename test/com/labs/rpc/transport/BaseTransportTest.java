@@ -1,12 +1,14 @@
 package com.labs.rpc.transport;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import org.junit.Test;
 import com.labs.rpc.util.AsyncTask;
 import junit.framework.TestCase;
@@ -105,6 +107,65 @@ public class BaseTransportTest extends TestCase {
 		}
 	}
 		
+	@Test
+	public void testConcurrentSenders() throws Exception {
+		ServerSocket ss = new ServerSocket(0);
+		final TransportImpl sender = new YieldingTransport(InetAddress.getLocalHost(), ss.getLocalPort());
+		Socket peer = ss.accept();
+		try {
+			final byte[] large = new byte[16 * 1024];
+			for (int i=0;i<large.length;i++) {
+				large[i] = (byte)i;
+			}
+			final int n = 2000;
+			final IOException[] errors = new IOException[4];
+			Thread[] threads = new Thread[4];
+			for (int k=0;k<threads.length;k++) {
+				final int id = k;
+				threads[k] = new Thread() {
+					public void run() {
+						try {
+							for (int i=0;i<n;i++) {
+								/* Large frames are gathered, small ones written whole */
+								sender.send(id == 0 ? new DataPacket(TEST_TYPE, large) : new DataPacket(TEST_TYPE, TEST_DATA.getBytes()));
+							}
+						} catch (IOException e) {
+							errors[id] = e;
+						}
+					}
+				};
+				threads[k].start();
+			}
+			BufferedInputStream in = new BufferedInputStream(peer.getInputStream());
+			int nLarge = 0;
+			int nSmall = 0;
+			for (int i=0;i<threads.length*n;i++) {
+				DataPacket dp = DataPacket.fromStream(in);
+				assertNotNull(dp);
+				byte[] payload = dp.getPayload();
+				if (payload.length == large.length) {
+					assertTrue(Arrays.equals(payload, large));
+					nLarge++;
+				} else {
+					assertEquals(new String(payload), TEST_DATA);
+					nSmall++;
+				}
+			}
+			for (Thread t:threads) {
+				t.join();
+			}
+			for (IOException e:errors) {
+				assertNull(e);
+			}
+			assertEquals(nLarge, n);
+			assertEquals(nSmall, (threads.length - 1) * n);
+		} finally {
+			sender.shutdown();
+			peer.close();
+			ss.close();
+		}
+	}
+	
 	@Test 
 	public void testShutdown() {
 		assertTrue("Transport failed to start", transp.on.get());
@@ -153,4 +214,28 @@ public class BaseTransportTest extends TestCase {
 		
 	}
 	
+	/**
+	 * Transport giving other threads a chance to run after every write,
+	 * so that the writes of concurrent senders get interleaved if they can
+	 */
+	private class YieldingTransport extends TransportImpl {
+
+		public YieldingTransport(InetAddress address, int port) {
+			super(address, port);
+		}
+
+		@Override
+		protected void afterConnect(Socket sock) throws IOException {
+			super.afterConnect(sock);
+			bos = new BufferedOutputStream(sock.getOutputStream()) {
+				@Override
+				public synchronized void write(byte[] b, int off, int len) throws IOException {
+					super.write(b, off, len);
+					Thread.yield();
+				}
+			};
+		}
+		
+	}
+	
 }
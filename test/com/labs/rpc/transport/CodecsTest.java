@@ -0,0 +1,196 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+/**
+ * Test packing application types through registered codecs
+ * @author Benjamin Dezile
+ */
+public class CodecsTest extends TestCase {
+	
+	private static final int POINT_TAG = Codecs.MIN_TAG;
+	private static final int SHAPE_TAG = Codecs.MIN_TAG + 1;
+	
+	public void setUp() {
+		Codecs.register(POINT_TAG, new PointCodec());
+		Codecs.register(SHAPE_TAG, new ShapeCodec());
+	}
+	
+	public void tearDown() {
+		Codecs.unregister(POINT_TAG);
+		Codecs.unregister(SHAPE_TAG);
+	}
+	
+	@Test
+	public void testRegister() {
+		try {
+			Codecs.register(POINT_TAG, new PointCodec());
+			fail("The tag is already in use");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			Codecs.register(Codecs.MAX_TAG + 1, new PointCodec());
+			fail("The tag is out of range");
+		} catch (IllegalArgumentException e) {
+		}
+		assertTrue(Codecs.get(POINT_TAG) instanceof PointCodec);
+		assertNull(Codecs.get(DataPacket.FORMAT_STRING));
+		/* Unregistered types are not supported anymore */
+		Codecs.unregister(POINT_TAG);
+		try {
+			DataPacket.packCompact(new Point(1, 2), new PacketBuffer(16));
+			fail("Points cannot be packed without their codec");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testPackUnpack() throws Exception {
+		Point p = new Point(-3, 400);
+		PacketBuffer buffer = new PacketBuffer(16);
+		DataPacket.packCompact(p, buffer);
+		assertEquals(buffer.toByteArray()[0], (byte)POINT_TAG);
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray())), p);
+		/* Subclasses use the codec of their parent class */
+		buffer.reset();
+		DataPacket.packCompact(new NamedPoint(1, 2), buffer);
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray())), new Point(1, 2));
+		/* Nested in containers, and containing nested values */
+		List<Point> points = new ArrayList<Point>();
+		for (int i=0;i<200;i++) {
+			points.add(new Point(i, -i));
+		}
+		Shape shape = new Shape("polygon", points);
+		Map<String,Object> m = new HashMap<String,Object>();
+		m.put("shape", shape);
+		m.put("origin", new Point(0, 0));
+		buffer.reset();
+		DataPacket.packCompact(m, buffer);
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		assertEquals(DataPacket.unpackCompact(buf), m);
+		assertEquals(buf.remaining(), 0);
+		buf.rewind();
+		DataPacket.skipCompact(buf);
+		assertEquals(buf.remaining(), 0);
+		/* Only in the compact format */
+		try {
+			DataPacket.packObject(p);
+			fail("Codecs are not available in the legacy format");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testSpeed() throws Exception {
+		int n = 1000000;
+		PacketBuffer buffer = new PacketBuffer(1024);
+		Point p = new Point(12, 34);
+		Object[] values = new Object[] {1, "abc", 2.5, p, 3L, true};
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buffer.reset();
+			DataPacket.packCompact(values[i % values.length], buffer);
+		}
+		System.out.println("Pack = " + ((System.nanoTime() - t) / n) + " ns");
+		buffer.reset();
+		DataPacket.packCompact(p, buffer);
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buf.rewind();
+			DataPacket.unpackCompact(buf);
+		}
+		System.out.println("Unpack point = " + ((System.nanoTime() - t) / n) + " ns");
+	}
+	
+	private static class Point {
+
+		final int x;
+		final int y;
+
+		Point(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Point && ((Point)o).x == x && ((Point)o).y == y;
+		}
+
+		public int hashCode() {
+			return 31 * x + y;
+		}
+	
+	}
+	
+	private static class NamedPoint extends Point {
+
+		NamedPoint(int x, int y) {
+			super(x, y);
+		}
+	
+	}
+	
+	private static class Shape {
+
+		final String name;
+		final List<Point> points;
+
+		Shape(String name, List<Point> points) {
+			this.name = name;
+			this.points = points;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Shape && ((Shape)o).name.equals(name) && ((Shape)o).points.equals(points);
+		}
+
+		public int hashCode() {
+			return name.hashCode();
+		}
+	
+	}
+	
+	private static class PointCodec implements Codec<Point> {
+
+		public Class<Point> getType() {
+			return Point.class;
+		}
+
+		public void encode(Point p, PacketBuffer buffer) {
+			buffer.putVarInt(PacketBuffer.zigZag(p.x));
+			buffer.putVarInt(PacketBuffer.zigZag(p.y));
+		}
+
+		public Point decode(ByteBuffer buf) {
+			return new Point(DataPacket.unZigZag(Codecs.readVarInt(buf)), DataPacket.unZigZag(Codecs.readVarInt(buf)));
+		}
+	
+	}
+	
+	private static class ShapeCodec implements Codec<Shape> {
+
+		public Class<Shape> getType() {
+			return Shape.class;
+		}
+
+		public void encode(Shape s, PacketBuffer buffer) {
+			Codecs.write(s.name, buffer);
+			Codecs.write(s.points, buffer);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Shape decode(ByteBuffer buf) throws Exception {
+			String name = (String)Codecs.read(buf);
+			return new Shape(name, (List<Point>)Codecs.read(buf));
+		}
+	
+	}
+
+}
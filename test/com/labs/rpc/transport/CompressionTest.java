@@ -0,0 +1,137 @@
+package com.labs.rpc.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+/**
+ * Test payload compression
+ * @author Benjamin Dezile
+ */
+public class CompressionTest extends TestCase {
+	
+	private static final byte TEST_TYPE = (byte)1;
+	private static final String TEST_DATA_BASE = "{\"key\":\"value\",\"number\":1234567890,\"list\":[1,2,3]}";
+	private byte[] TEST_DATA;
+	
+	public void setUp() {
+		StringBuffer buffer = new StringBuffer();
+		for (int i=0;i<1000;i++) {
+			buffer.append(TEST_DATA_BASE);
+		}
+		TEST_DATA = buffer.toString().getBytes();
+	}
+	
+	@Test
+	public void testCompress() throws Exception {
+		DataPacket dp = new DataPacket(TEST_TYPE, TEST_DATA);
+		int plainSize = dp.getBytes().length;
+		dp.setCompression(new Compression());
+		byte[] bytes = dp.getBytes();
+		System.out.println("Payload = " + plainSize + " bytes, compressed = " + bytes.length + " bytes");
+		assertTrue(bytes.length < plainSize / 5);
+		/* The receiving side gets the original payload back */
+		DataPacket dp2 = DataPacket.fromBytes(bytes);
+		assertTrue(dp2.isCompressed());
+		assertEquals(dp2.getType(), TEST_TYPE);
+		assertEquals(dp2.getSeq(), dp.getSeq());
+		assertTrue(Arrays.equals(dp2.getPayload(), TEST_DATA));
+		dp2 = DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+		assertTrue(Arrays.equals(dp2.getPayload(), TEST_DATA));
+		/* Small payloads are left alone */
+		dp = new DataPacket(TEST_TYPE, TEST_DATA_BASE.getBytes());
+		dp.setCompression(new Compression());
+		dp2 = DataPacket.fromBytes(dp.getBytes());
+		assertFalse(dp2.isCompressed());
+		assertTrue(Arrays.equals(dp2.getPayload(), TEST_DATA_BASE.getBytes()));
+	}
+	
+	@Test
+	public void testBackoff() {
+		byte[] noise = new byte[10000];
+		new Random(1).nextBytes(noise);
+		Compression c = new Compression(100);
+		DataPacket dp = new DataPacket(TEST_TYPE, noise);
+		dp.setCompression(c);
+		/* Random bytes do not compress, so they are sent as is */
+		assertFalse(DataPacket.fromBytes(dp.getBytes()).isCompressed());
+		assertTrue(c.isBackingOff());
+		/* Even compressible payloads get skipped for a while */
+		DataPacket dp2 = new DataPacket(TEST_TYPE, TEST_DATA);
+		dp2.setCompression(c);
+		assertFalse(DataPacket.fromBytes(dp2.getBytes()).isCompressed());
+		assertFalse(c.isBackingOff());
+		dp2.clearBytes();
+		assertTrue(DataPacket.fromBytes(dp2.getBytes()).isCompressed());
+		/* Backing off for longer and longer */
+		for (int i=0;i<3;i++) {
+			dp.clearBytes();
+			dp.getBytes();
+		}
+		assertTrue(c.isBackingOff());
+		dp2.clearBytes();
+		assertFalse(DataPacket.fromBytes(dp2.getBytes()).isCompressed());
+		assertTrue(c.isBackingOff());
+	}
+	
+	@Test
+	public void testMalformed() {
+		DataPacket dp = new DataPacket(TEST_TYPE, TEST_DATA);
+		dp.setCompression(new Compression());
+		byte[] bytes = dp.getBytes();
+		bytes[bytes.length - 10] ^= 0x55;
+		try {
+			DataPacket.fromBytes(bytes);
+			fail("The payload is corrupted");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			Compression.decompress(new byte[]{(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x0F});
+			fail("The size is too large");
+		} catch (IllegalArgumentException e) {
+		}
+		/* Announced size past the maximum frame size */
+		int max = DataPacket.getMaxFrameSize();
+		DataPacket.setMaxFrameSize(TEST_DATA.length - 1);
+		try {
+			DataPacket big = new DataPacket(TEST_TYPE, TEST_DATA);
+			big.setCompression(new Compression());
+			DataPacket.fromBytes(big.getBytes());
+			fail("The inflated payload is too large");
+		} catch (IllegalArgumentException e) {
+		} finally {
+			DataPacket.setMaxFrameSize(max);
+		}
+		/* Announced size larger than the actual payload */
+		PacketBuffer lying = new PacketBuffer(16);
+		lying.putVarInt(100 * 1024 * 1024);
+		try {
+			Compression.decompress(lying.toByteArray());
+			fail("The payload does not match its size");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testSpeed() {
+		int n = 1000;
+		DataPacket dp = new DataPacket(TEST_TYPE, TEST_DATA);
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			dp.clearBytes();
+			DataPacket.fromBytes(dp.getBytes());
+		}
+		System.out.println("Plain " + TEST_DATA.length + " bytes = " + ((System.nanoTime() - t) / n / 1000.0) + " us");
+		dp.setCompression(new Compression());
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			dp.clearBytes();
+			DataPacket.fromBytes(dp.getBytes());
+		}
+		System.out.println("Compressed to " + dp.getBytes().length + " bytes = " + ((System.nanoTime() - t) / n / 1000.0) + " us");
+	}
+
+}
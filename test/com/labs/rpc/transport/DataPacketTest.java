@@ -2,6 +2,7 @@ package com.labs.rpc.transport;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -10,6 +11,13 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import org.junit.Test;
 import com.labs.rpc.util.AsyncTask;
 import junit.framework.TestCase;
@@ -51,6 +59,363 @@ public class DataPacketTest extends TestCase {
 		
 	}
 	
+	@Test
+	public void testShortHeader() throws IOException {
+		DataPacket dp1 = new DataPacket(TEST_TYPE, new byte[] {1, 2, 3});
+		dp1.assignSeq(100);
+		dp1.setShortHeader(true);
+		byte[] bytes = dp1.getBytes();
+		/* Type byte, payload size and sequence number on a byte each */
+		assertEquals(bytes.length, 3 + 3);
+		DataPacket dp2 = DataPacket.fromBytes(bytes);
+		assertTrue(dp2.isShortHeader());
+		assertEquals(dp2.getType(), TEST_TYPE);
+		assertEquals(dp2.getSeq(), 100);
+		assertTrue(Arrays.equals(dp2.getPayload(), dp1.getPayload()));
+		/* Timestamp kept on demand, and large values */
+		dp1 = new DataPacket(TEST_TYPE, TEST_DATA);
+		dp1.assignSeq(Long.MAX_VALUE);
+		dp1.setShortHeader(true);
+		dp1.setTimestamped(true);
+		dp1.setCompact(true);
+		bytes = dp1.getBytes();
+		assertEquals(bytes.length, TEST_DATA.length + 1 + 3 + 9 + 8);
+		dp2 = DataPacket.fromBytes(bytes);
+		assertTrue(dp1.equals(dp2));
+		assertTrue(dp2.isCompact());
+		dp2 = DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+		assertTrue(dp1.equals(dp2));
+		/* Compressed */
+		dp1.setCompression(new Compression());
+		dp2 = DataPacket.fromBytes(dp1.getBytes());
+		assertTrue(dp2.isCompressed());
+		assertTrue(dp1.equals(dp2));
+		/* Both formats mixed on the same connection */
+		DataPacket legacy = new DataPacket(TEST_TYPE, new byte[0]);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(legacy.getBytes());
+		out.write(bytes);
+		out.write(legacy.getBytes());
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(legacy.equals(DataPacket.fromStream(in)));
+		assertTrue(dp1.equals(DataPacket.fromStream(in)));
+		assertTrue(legacy.equals(DataPacket.fromStream(in)));
+		/* Malformed sizes ruin the stream */
+		try {
+			DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(new byte[] {(byte)(TEST_TYPE | 0x20), -1, -1, -1, -1, -1, 1})));
+			fail("The payload size is malformed");
+		} catch (IOException e) {
+		}
+	}
+	
+	@Test
+	public void testShortHeaderChannel() throws IOException {
+		ServerSocketChannel servChannel = ServerSocketChannel.open();
+		servChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel client = SocketChannel.open(servChannel.socket().getLocalSocketAddress());
+		SocketChannel channel = servChannel.accept();
+		try {
+			DataPacket dp1 = new DataPacket(TEST_TYPE, TEST_DATA);
+			dp1.assignSeq(300);
+			dp1.setShortHeader(true);
+			DataPacket dp2 = new DataPacket(TEST_TYPE, new byte[] {4, 5});
+			dp2.assignSeq(302);
+			dp2.setShortHeader(true);
+			dp2.setTimestamped(true);
+			DataPacket dp3 = new DataPacket(TEST_TYPE, new byte[] {6});
+			client.write(ByteBuffer.wrap(dp1.getBytes()));
+			client.write(ByteBuffer.wrap(dp2.getBytes()));
+			client.write(ByteBuffer.wrap(dp3.getBytes()));
+			DataPacket dp = DataPacket.fromChannel(channel);
+			assertEquals(dp.getSeq(), 300);
+			assertTrue(Arrays.equals(dp.getPayload(), TEST_DATA));
+			assertTrue(dp2.equals(DataPacket.fromChannel(channel)));
+			assertTrue(dp3.equals(DataPacket.fromChannel(channel)));
+		} finally {
+			client.close();
+			channel.close();
+			servChannel.close();
+		}
+	}
+	
+	@Test
+	public void testChecksum() throws IOException {
+		DataPacket dp1 = new DataPacket(TEST_TYPE, new byte[] {1, 2, 3});
+		dp1.setChecksum(true);
+		DataPacket dp2 = new DataPacket(TEST_TYPE, TEST_DATA);
+		dp2.setChecksum(true);
+		dp2.setShortHeader(true);
+		dp2.setTimestamped(true);
+		for (DataPacket dp:new DataPacket[] {dp1, dp2}) {
+			byte[] bytes = dp.getBytes();
+			DataPacket dp3 = DataPacket.fromBytes(bytes);
+			assertTrue(dp3.hasChecksum());
+			assertTrue(dp.equals(dp3));
+			assertTrue(dp.equals(DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(bytes)))));
+			/* Corrupted anywhere in the payload */
+			bytes = Arrays.copyOf(bytes, bytes.length);
+			bytes[bytes.length - 5] ^= 0x10;
+			try {
+				DataPacket.fromBytes(bytes);
+				fail("The frame is corrupted");
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+				fail("The frame is corrupted");
+			} catch (IOException e) {
+			}
+		}
+		/* Dropped, going on with the next frame */
+		byte[] bad = Arrays.copyOf(dp1.getBytes(), dp1.getBytes().length);
+		bad[bad.length - 5] ^= 0x10;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(bad);
+		out.write(dp2.getBytes());
+		long dropped = DataPacket.getDroppedFrames();
+		DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_DROP);
+		try {
+			BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()));
+			assertNull(DataPacket.fromStream(in));
+			assertTrue(dp2.equals(DataPacket.fromStream(in)));
+			assertEquals(DataPacket.getDroppedFrames(), dropped + 1);
+		} finally {
+			DataPacket.setChecksumPolicy(DataPacket.CHECKSUM_FAIL);
+		}
+		/* Oversized frames are not even allocated */
+		DataPacket.setMaxFrameSize(1024);
+		try {
+			DataPacket.fromStream(new BufferedInputStream(new ByteArrayInputStream(dp2.getBytes())));
+			fail("The frame is too large");
+		} catch (IOException e) {
+		} finally {
+			DataPacket.setMaxFrameSize(DataPacket.DEFAULT_MAX_FRAME_SIZE);
+		}
+	}
+	
+	@Test
+	public void testChecksumSpeed() throws Exception {
+		int[] sizes = new int[] {16, 1024, 64 * 1024, 1024 * 1024};
+		for (int size:sizes) {
+			byte[] data = Arrays.copyOf(TEST_DATA, size);
+			int n = Math.max(10, 10 * 1024 * 1024 / size);
+			long[] dt = new long[] {Long.MAX_VALUE, Long.MAX_VALUE};
+			/* Best of a few rounds, alternating with and without checksum */
+			for (int r=0;r<5;r++) {
+				for (int c=0;c<2;c++) {
+					DataPacket dp = new DataPacket(TEST_TYPE, data);
+					dp.setShortHeader(true);
+					dp.setChecksum(c == 1);
+					long t = System.nanoTime();
+					for (int i=0;i<n;i++) {
+						dp.clearBytes();
+						DataPacket.fromBytes(dp.getBytes());
+					}
+					dt[c] = Math.min(dt[c], (System.nanoTime() - t) / n);
+				}
+			}
+			System.out.println("Encode + decode " + size + " bytes = " + dt[0] + " ns, with checksum = " + dt[1] + " ns");
+		}
+	}
+	
+	@Test
+	public void testVarInt() {
+		PacketBuffer buffer = new PacketBuffer(16);
+		int[] ints = new int[]{0, 1, -1, 63, -64, 64, 127, 128, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE};
+		long[] longs = new long[]{0, 1, -1, 1L << 35, -(1L << 35), Long.MAX_VALUE, Long.MIN_VALUE};
+		for (int v:ints) {
+			buffer.putVarInt(PacketBuffer.zigZag(v));
+		}
+		for (long v:longs) {
+			buffer.putVarLong(PacketBuffer.zigZag(v));
+		}
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		for (int v:ints) {
+			assertEquals(DataPacket.unZigZag(DataPacket.getVarInt(buf)), v);
+		}
+		for (long v:longs) {
+			assertEquals(DataPacket.unZigZag(DataPacket.getVarLong(buf)), v);
+		}
+		assertFalse(buf.hasRemaining());
+		/* Small values fit in a single byte */
+		buffer.reset();
+		buffer.putVarInt(PacketBuffer.zigZag(-64));
+		assertEquals(buffer.size(), 1);
+		try {
+			DataPacket.getVarInt(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1, -1, 1}));
+			fail("A varint cannot be longer than 5 bytes");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testContainers() throws Exception {
+		Map<Object,Object> m = new HashMap<Object,Object>();
+		m.put(1, Arrays.asList(1.5, -0.1, Double.NaN));
+		m.put("k", new HashSet<Object>(Arrays.asList(1L, 'c', (short)3)));
+		m.put(2.5, new String[]{"a", null, "b"});
+		m.put(null, new Object[]{new Object[]{1, "2"}, new ArrayList<Object>()});
+		PacketBuffer buffer = new PacketBuffer(16);
+		DataPacket.packCompact(m, buffer);
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		Map<?,?> m2 = (Map<?,?>)DataPacket.unpackCompact(buf);
+		assertFalse(buf.hasRemaining());
+		/* Keys and elements keep their exact types */
+		assertEquals(m2.size(), m.size());
+		assertEquals(m2.get(1), m.get(1));
+		assertEquals(m2.get("k"), m.get("k"));
+		assertTrue(Arrays.equals((String[])m2.get(2.5), (String[])m.get(2.5)));
+		Object[] nested = (Object[])m2.get(null);
+		assertTrue(Arrays.equals((Object[])nested[0], new Object[]{1, "2"}));
+		assertEquals(nested[1], new ArrayList<Object>());
+		/* Self-referencing containers are rejected */
+		List<Object> loop = new ArrayList<Object>();
+		loop.add(loop);
+		try {
+			DataPacket.packCompact(loop, buffer);
+			fail("Nesting should be limited");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	/**
+	 * Benchmark the binary containers against the JSON ones
+	 */
+	@Test
+	public void testContainerSpeed() throws Exception {
+		Map<String,Object> m = new HashMap<String,Object>();
+		for (int i=0;i<1000;i++) {
+			m.put("key" + i, i * 1.1);
+		}
+		List<Object> l = new ArrayList<Object>();
+		for (int i=0;i<1000;i++) {
+			l.add("item" + i);
+		}
+		for (Object c:new Object[]{m, l}) {
+			PacketBuffer buffer = new PacketBuffer(1024);
+			long t = System.nanoTime();
+			for (int i=0;i<100;i++) {
+				buffer.reset();
+				DataPacket.packObject(c, buffer);
+				DataPacket.unpackObject(buffer.toByteArray());
+			}
+			long dtLegacy = System.nanoTime() - t;
+			int legacySize = buffer.size();
+			t = System.nanoTime();
+			for (int i=0;i<100;i++) {
+				buffer.reset();
+				DataPacket.packCompact(c, buffer);
+				DataPacket.unpackCompact(ByteBuffer.wrap(buffer.array(), 0, buffer.size()));
+			}
+			long dtCompact = System.nanoTime() - t;
+			System.out.println(c.getClass().getSimpleName() + ": JSON = " + legacySize + " bytes, " + (dtLegacy / 100000) + " us, binary = " + buffer.size() + " bytes, " + (dtCompact / 100000) + " us");
+			assertTrue(buffer.size() < legacySize);
+		}
+	}
+	
+	@Test
+	public void testPrimitiveArrays() throws Exception {
+		Object[] arrays = new Object[] {
+				new int[]{0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE},
+				new long[]{0, -1, Long.MAX_VALUE},
+				new double[]{0, -1.5, Double.NaN, Double.MAX_VALUE},
+				new float[]{0, -1.5f, Float.MIN_VALUE},
+				new boolean[]{true, false, true, true, false, false, true, false, true},
+				new short[]{0, -1, Short.MIN_VALUE},
+				new char[]{'a', '\u00e9', Character.MAX_VALUE},
+				new byte[]{1, 2, 3},
+				new int[0],
+				new boolean[0]};
+		PacketBuffer buffer = new PacketBuffer(16);
+		for (Object a:arrays) {
+			DataPacket.packCompact(a, buffer);
+		}
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		for (Object a:arrays) {
+			Object a2 = DataPacket.unpackCompact(buf);
+			assertSame(a2.getClass(), a.getClass());
+			assertTrue(Arrays.deepEquals(new Object[]{a}, new Object[]{a2}));
+		}
+		assertFalse(buf.hasRemaining());
+		/* 9 booleans fit in 2 bytes */
+		buffer.reset();
+		DataPacket.packCompact(arrays[4], buffer);
+		assertEquals(buffer.size(), 4);
+	}
+	
+	/**
+	 * Benchmark the bulk primitive arrays against the JSON ones
+	 */
+	@Test
+	public void testPrimitiveArraySpeed() throws Exception {
+		double[] a = new double[1000000];
+		for (int i=0;i<a.length;i++) {
+			a[i] = i * 0.37;
+		}
+		PacketBuffer buffer = new PacketBuffer(1024);
+		long t = System.nanoTime();
+		DataPacket.packObject(Arrays.copyOf(a, 100000), buffer);
+		DataPacket.unpackObject(buffer.toByteArray());
+		System.out.println("JSON double[100000] = " + buffer.size() + " bytes, " + ((System.nanoTime() - t) / 1000000) + " ms");
+		for (int i=0;i<3;i++) {
+			buffer.reset();
+			t = System.nanoTime();
+			DataPacket.packCompact(a, buffer);
+			double[] a2 = (double[])DataPacket.unpackCompact(ByteBuffer.wrap(buffer.array(), 0, buffer.size()));
+			System.out.println("Binary double[" + a.length + "] = " + buffer.size() + " bytes, " + ((System.nanoTime() - t) / 1000000) + " ms");
+			assertTrue(Arrays.equals(a, a2));
+		}
+	}
+	
+	@Test
+	public void testStrings() throws Exception {
+		String[] strs = new String[]{"", "plain ascii", "caf\u00e9", "\u65e5\u672c\u8a9e", "emoji \ud83d\ude00!", "lone \ud83d surrogate"};
+		Charset utf8 = Charset.forName("UTF-8");
+		PacketBuffer buffer = new PacketBuffer(16);
+		for (String str:strs) {
+			/* Same bytes as the JDK encoder */
+			byte[] expected = str.getBytes(utf8);
+			assertEquals(PacketBuffer.utf8Length(str), expected.length);
+			buffer.reset();
+			buffer.putUTF8(str, expected.length);
+			assertTrue(Arrays.equals(buffer.toByteArray(), expected));
+			/* Round trip in both formats */
+			buffer.reset();
+			DataPacket.packCompact(str, buffer);
+			assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray())), new String(expected, utf8));
+			assertEquals(DataPacket.unpackObject(DataPacket.packObject(str)), new String(expected, utf8));
+		}
+	}
+	
+	/**
+	 * Benchmark the string codec against the JDK one
+	 */
+	@Test
+	public void testStringSpeed() throws Exception {
+		Charset utf8 = Charset.forName("UTF-8");
+		for (String str:new String[]{TEST_DATA_BASE, "caf\u00e9 \u65e5\u672c\u8a9e " + TEST_DATA_BASE}) {
+			PacketBuffer buffer = new PacketBuffer(1024);
+			int n = 200000;
+			long t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				buffer.reset();
+				buffer.put(str.getBytes(utf8));
+				new String(buffer.array(), 0, buffer.size(), utf8);
+			}
+			long dtJdk = System.nanoTime() - t;
+			ByteBuffer buf = ByteBuffer.wrap(buffer.array());
+			t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				buffer.reset();
+				buffer.putUTF8(str, PacketBuffer.utf8Length(str));
+				buf.clear();
+				DataPacket.getString(buf, buffer.size());
+			}
+			long dt = System.nanoTime() - t;
+			System.out.println("String of " + str.length() + " chars: getBytes/new String = " + (dtJdk / n) + " ns, codec = " + (dt / n) + " ns");
+		}
+	}
+	
 	@Test
 	public void testFromStream() throws IOException {
 		
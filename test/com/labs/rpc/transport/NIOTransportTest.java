@@ -0,0 +1,336 @@
+package com.labs.rpc.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import com.labs.rpc.RPCRouter;
+import com.labs.rpc.RemoteCall;
+import com.labs.rpc.util.RPCMethod;
+import com.labs.rpc.util.RPCObject;
+import junit.framework.TestCase;
+
+/**
+ * Test the non-blocking transport
+ * @author Benjamin Dezile
+ */
+public class NIOTransportTest extends TestCase {
+	
+	private static final int TEST_PORT = 11115;
+	private NIOSelector selector;
+	private ServerSocketChannel server;
+	private List<NIOTransport> transports;
+	
+	public void setUp() throws Exception {
+		selector = new NIOSelector(2);
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(InetAddress.getLocalHost(), TEST_PORT), 1024);
+		transports = new ArrayList<NIOTransport>();
+	}
+	
+	public void tearDown() throws Exception {
+		for (NIOTransport t:transports) {
+			t.shutdown();
+		}
+		server.close();
+		selector.shutdown();
+	}
+	
+	/**
+	 * Connect a client to the test server
+	 * @return {@link NIOTransport}[] The client end, then the server end
+	 */
+	private NIOTransport[] connect() throws IOException {
+		NIOTransport client = new NIOTransport(InetAddress.getLocalHost(), TEST_PORT, selector);
+		NIOTransport accepted = new NIOTransport(server.accept(), selector);
+		transports.add(client);
+		transports.add(accepted);
+		return new NIOTransport[]{client, accepted};
+	}
+	
+	@Test
+	public void testIncremental() throws Exception {
+		byte[] big = new byte[100000];
+		Arrays.fill(big, (byte)'a');
+		List<DataPacket> sent = new ArrayList<DataPacket>();
+		sent.add(new DataPacket((byte)1, "plain".getBytes()));
+		DataPacket dp = new DataPacket((byte)2, "short header".getBytes());
+		dp.setShortHeader(true);
+		sent.add(dp);
+		dp = new DataPacket((byte)3, "short header, timestamped and checked".getBytes());
+		dp.setShortHeader(true);
+		dp.setTimestamped(true);
+		dp.setChecksum(true);
+		sent.add(dp);
+		dp = new DataPacket((byte)1, big);
+		dp.setCompression(new Compression());
+		dp.setChecksum(true);
+		sent.add(dp);
+		sent.add(new DataPacket((byte)1, new byte[0]));
+		PacketBuffer stream = new PacketBuffer(1024);
+		for (DataPacket p:sent) {
+			stream.put(p.getBytes());
+		}
+		/* Fed one byte at a time, each frame comes out once complete */
+		ByteBuffer buf = ByteBuffer.allocate(stream.size());
+		List<DataPacket> recv = new ArrayList<DataPacket>();
+		for (int i=0;i<stream.size();i++) {
+			buf.put(stream.array()[i]);
+			buf.flip();
+			int size;
+			while ((size = DataPacket.frameSize(buf)) >= 0 && buf.remaining() >= size) {
+				recv.add(DataPacket.fromBuffer(buf, size));
+			}
+			buf.compact();
+		}
+		assertEquals(buf.position(), 0);
+		assertEquals(recv.size(), sent.size());
+		for (int i=0;i<sent.size();i++) {
+			assertEquals(recv.get(i).getType(), sent.get(i).getType());
+			assertEquals(recv.get(i).getSeq(), sent.get(i).getSeq());
+			assertTrue(Arrays.equals(recv.get(i).getPayload(), sent.get(i).getPayload()));
+		}
+		/* Bad frame size */
+		ByteBuffer bad = ByteBuffer.allocate(DataPacket.HEADER_SIZE);
+		bad.put((byte)1).putInt(-5);
+		bad.rewind();
+		try {
+			DataPacket.frameSize(bad);
+			fail("The frame size is invalid");
+		} catch (IOException e) {
+		}
+	}
+	
+	@Test
+	public void testSendRecv() throws Exception {
+		NIOTransport[] ends = connect();
+		NIOTransport client = ends[0], accepted = ends[1];
+		byte[] big = new byte[1024 * 1024];
+		for (int i=0;i<big.length;i++) {
+			big[i] = (byte)i;
+		}
+		for (int i=0;i<100;i++) {
+			client.send(new DataPacket((byte)1, ("data" + i).getBytes()));
+		}
+		client.send(new DataPacket((byte)1, big));
+		for (int i=0;i<100;i++) {
+			assertEquals(new String(accepted.recv().getPayload()), "data" + i);
+		}
+		assertTrue(Arrays.equals(accepted.recv().getPayload(), big));
+		/* Both ways */
+		DataPacket dp = new DataPacket((byte)2, "back".getBytes());
+		dp.setShortHeader(true);
+		accepted.send(dp);
+		DataPacket back = client.recv();
+		assertEquals(back.getType(), 2);
+		assertEquals(back.getSeq(), dp.getSeq());
+		assertEquals(new String(back.getPayload()), "back");
+		/* Senders wait once too much is queued, until the peer reads */
+		client.setMaxPending(64 * 1024);
+		final NIOTransport reader = accepted;
+		final AtomicInteger count = new AtomicInteger();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+					for (int i=0;i<20;i++) {
+						reader.recv();
+						count.incrementAndGet();
+					}
+				} catch (Exception e) {
+				}
+			}
+		};
+		t.start();
+		for (int i=0;i<20;i++) {
+			client.send(new DataPacket((byte)1, big));
+			assertTrue(client.getPending() <= 64 * 1024 + big.length + DataPacket.HEADER_SIZE);
+		}
+		t.join(10000);
+		assertEquals(count.get(), 20);
+		/* Closed by the peer */
+		client.shutdown();
+		try {
+			accepted.recv();
+			fail("The connection was closed");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(), "Connection closed");
+		}
+		assertFalse(accepted.isConnected());
+		try {
+			client.send(dp);
+			fail("It should not allow sending after shutdown");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(), "Not connected");
+		}
+		/* Reconnects */
+		assertTrue(client.recover());
+		NIOTransport accepted2 = new NIOTransport(server.accept(), selector);
+		transports.add(accepted2);
+		client.send(new DataPacket((byte)1, "again".getBytes()));
+		assertEquals(new String(accepted2.recv().getPayload()), "again");
+	}
+	
+	/**
+	 * Put the buffers of a frame back together
+	 * @param bufs {@link ByteBuffer}[] - Buffers
+	 * @return byte[]
+	 */
+	private static byte[] concat(ByteBuffer[] bufs) {
+		PacketBuffer frame = new PacketBuffer(1024);
+		for (ByteBuffer buf:bufs) {
+			frame.put(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		}
+		return frame.toByteArray();
+	}
+	
+	@Test
+	public void testGatheredWrites() throws Exception {
+		byte[] big = new byte[1024 * 1024];
+		for (int i=0;i<big.length;i++) {
+			big[i] = (byte)i;
+		}
+		/* Same frames as when encoded whole, without copying the payload */
+		for (int i=0;i<4;i++) {
+			DataPacket dp = new DataPacket((byte)1, big);
+			dp.setShortHeader(i % 2 == 0);
+			dp.setChecksum(i >= 2);
+			ByteBuffer[] bufs = dp.getBuffers();
+			assertEquals(bufs.length, i >= 2 ? 3 : 2);
+			assertTrue(bufs[1].array() == big);
+			assertTrue(Arrays.equals(concat(bufs), dp.getBytes()));
+		}
+		DataPacket whole = new DataPacket((byte)1, big);
+		Chunk chunk = new Chunk(whole, whole.getBytes(), 1000, 64 * 1024);
+		ByteBuffer[] bufs = chunk.getBuffers();
+		assertTrue(bufs[1].array() == whole.getBytes());
+		assertTrue(Arrays.equals(concat(bufs), chunk.getBytes()));
+		/* Small payloads are still copied into a single buffer */
+		assertEquals(new DataPacket((byte)1, "small".getBytes()).getBuffers().length, 1);
+		/* Sent in pieces, received whole */
+		NIOTransport[] ends = connect();
+		NIOTransport client = ends[0], accepted = ends[1];
+		for (int i=0;i<20;i++) {
+			DataPacket dp = new DataPacket((byte)1, i % 2 == 0 ? big : ("data" + i).getBytes());
+			dp.setShortHeader(true);
+			dp.setChecksum(i % 4 == 0);
+			client.send(dp);
+		}
+		for (int i=0;i<20;i++) {
+			DataPacket dp = accepted.recv();
+			if (i % 2 == 0) {
+				assertTrue(Arrays.equals(dp.getPayload(), big));
+			} else {
+				assertEquals(new String(dp.getPayload()), "data" + i);
+			}
+		}
+		/* Framing cost */
+		int n = 200;
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			new DataPacket((byte)1, big).getBytes();
+		}
+		long copied = System.nanoTime() - t;
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			new DataPacket((byte)1, big).getBuffers();
+		}
+		long gathered = System.nanoTime() - t;
+		System.out.println("Framing " + n + " 1 MB packets: " + (copied / 1000000) + " ms copied, " + (gathered / 1000000) + " ms gathered");
+	}
+	
+	@Test
+	public void testRouter() throws Exception {
+		NIOTransport[] ends = connect();
+		RPCRouter client = new RPCRouter(new EchoObject(), ends[0]);
+		RPCRouter server = new RPCRouter(new EchoObject(), ends[1]);
+		client.start();
+		server.start();
+		try {
+			for (int i=0;i<100;i++) {
+				RemoteCall rc = new RemoteCall(EchoObject.NAME, "echo", i);
+				client.push(rc);
+				assertEquals(client.getReturnBlocking(rc), i);
+			}
+		} finally {
+			client.stop();
+			server.stop();
+		}
+	}
+	
+	@Test
+	public void testManyConnections() throws Exception {
+		int n = 1000;
+		int calls = 10;
+		final CountDownLatch done = new CountDownLatch(n * calls);
+		/* The server echoes everything back from its I/O threads */
+		NIOTransport.Listener echo = new NIOTransport.Listener() {
+			public void received(NIOTransport t, DataPacket dp) {
+				try {
+					t.send(dp);
+				} catch (IOException e) {
+				}
+			}
+			public void closed(NIOTransport t, IOException cause) {
+			}
+		};
+		NIOTransport.Listener counter = new NIOTransport.Listener() {
+			public void received(NIOTransport t, DataPacket dp) {
+				done.countDown();
+			}
+			public void closed(NIOTransport t, IOException cause) {
+			}
+		};
+		List<NIOTransport> clients = new ArrayList<NIOTransport>();
+		for (int i=0;i<n;i++) {
+			NIOTransport client = new NIOTransport(InetAddress.getLocalHost(), TEST_PORT, selector);
+			client.setListener(counter);
+			NIOTransport accepted = new NIOTransport(server.accept(), selector);
+			accepted.setListener(echo);
+			transports.add(client);
+			transports.add(accepted);
+			clients.add(client);
+		}
+		long t = System.currentTimeMillis();
+		for (int k=0;k<calls;k++) {
+			for (NIOTransport client:clients) {
+				client.send(new DataPacket((byte)1, "ping".getBytes()));
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		long dt = System.currentTimeMillis() - t;
+		System.out.println(n + " connections on " + selector.getThreadCount() + " I/O threads: " + (n * calls) + " round trips in " + dt + " ms");
+		assertEquals(selector.getConnectionCount(), 2 * n);
+	}
+	
+	
+	/**
+	 * Test RPC object
+	 * @author Benjamin Dezile
+	 */
+	public static class EchoObject implements RPCObject {
+
+		public static final String NAME = "echo";
+
+		@Override
+		public String getRPCName() {
+			return NAME;
+		}
+
+		@RPCMethod
+		public Object echo(Object arg) {
+			return arg;
+		}
+	
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+/**
+ * Test the native codec against the Java one.<br>
+ * Requires native/rpccodec to be built and on java.library.path,
+ * the tests are skipped otherwise.
+ * @author Benjamin Dezile
+ */
+public class NativeCodecTest extends TestCase {
+	
+	private static final Object[] VALUES = new Object[]{null, true, false, 0, -1, 150, Integer.MIN_VALUE, Integer.MAX_VALUE, 0L, -300L, Long.MIN_VALUE, Long.MAX_VALUE,
+		1.5, Double.NaN, -0.0, "", "hello", "caf\u00e9 \u20ac \ud83d\ude00", "bad \ud800 surrogate", new int[]{1, -1, Integer.MAX_VALUE}, new long[]{}, new long[]{1L, Long.MIN_VALUE},
+		new double[]{0.1, Double.NEGATIVE_INFINITY}};
+	
+	public void tearDown() {
+		DataPacket.setNativeCodec(false);
+	}
+	
+	private static boolean skip() {
+		if (!NativeCodec.isAvailable()) {
+			System.out.println("Native codec not available, skipped");
+			return true;
+		}
+		return false;
+	}
+	
+	@Test
+	public void testPackUnpack() throws Exception {
+		if (skip()) {
+			return;
+		}
+		PacketBuffer buffer = new PacketBuffer(16);
+		PacketBuffer buffer2 = new PacketBuffer(16);
+		for (Object v:VALUES) {
+			buffer.reset();
+			buffer2.reset();
+			DataPacket.packCompact(v, buffer);
+			NativeCodec.pack(v, buffer2);
+			/* Same bytes as the Java codec */
+			assertTrue(String.valueOf(v), Arrays.equals(buffer2.toByteArray(), buffer.toByteArray()));
+			Object v2 = NativeCodec.unpackObject(buffer.array(), 0, buffer.size());
+			assertEquals(toString(v2), toString(DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray()))));
+		}
+		try {
+			NativeCodec.pack(new Object(), buffer);
+			fail("Plain objects are not supported");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			NativeCodec.unpackObject(new byte[]{0x49, 10, 'a'}, 0, 3);
+			fail("Truncated string");
+		} catch (IllegalArgumentException e) {
+		}
+		/* Invalid UTF-8 gets replaced as the Java decoder does */
+		byte[] bad = new byte[]{0x49, 4, 'a', (byte)0xC3, 'b', (byte)0xFF};
+		assertEquals(NativeCodec.unpackObject(bad, 0, bad.length), DataPacket.unpackCompact(ByteBuffer.wrap(bad)));
+	}
+	
+	@Test
+	public void testDataPacket() throws Exception {
+		if (skip()) {
+			return;
+		}
+		assertTrue(DataPacket.setNativeCodec(true));
+		Object[] args = new Object[]{"hello", new int[]{1, 2, 3}, 42, new double[]{0.5}, Arrays.asList("a", 1L)};
+		PacketBuffer buffer = new PacketBuffer(16);
+		DataPacket.packCompact(args, buffer);
+		byte[] bytes = buffer.toByteArray();
+		Object res = DataPacket.unpackCompact(ByteBuffer.wrap(bytes));
+		DataPacket.setNativeCodec(false);
+		buffer.reset();
+		DataPacket.packCompact(args, buffer);
+		assertTrue(Arrays.equals(buffer.toByteArray(), bytes));
+		assertEquals(toString(res), toString(DataPacket.unpackCompact(ByteBuffer.wrap(bytes))));
+	}
+	
+	@Test
+	public void testHeader() throws Exception {
+		if (skip()) {
+			return;
+		}
+		byte[] payload = "payload".getBytes(DataPacket.UTF8);
+		byte[] frame = NativeCodec.makePacketBytes(1, 123456789L, 42L, payload, 0, payload.length);
+		DataPacket dp = DataPacket.fromBytes(frame);
+		assertEquals(dp.getType(), 1);
+		assertEquals(dp.getTime(), 123456789L);
+		assertEquals(dp.getSeq(), 42L);
+		assertTrue(Arrays.equals(dp.getPayload(), payload));
+		byte[] header = new byte[DataPacket.HEADER_SIZE];
+		NativeCodec.makeHeaderBytes(header, 0, 1, payload.length, 123456789L, 42L);
+		assertTrue(Arrays.equals(header, Arrays.copyOf(frame, header.length)));
+	}
+	
+	@Test
+	public void testSpeed() throws Exception {
+		if (skip()) {
+			return;
+		}
+		StringBuffer sb = new StringBuffer();
+		for (int i=0;i<100;i++) {
+			sb.append("caf\u00e9 ");
+		}
+		int[] ints = new int[1000];
+		double[] doubles = new double[1000];
+		for (int i=0;i<ints.length;i++) {
+			ints[i] = i * 7919;
+			doubles[i] = i / 3.0;
+		}
+		Object[] values = new Object[]{12345, 1.5, "hello", sb.toString(), ints, doubles};
+		int n = 200000;
+		PacketBuffer buffer = new PacketBuffer(16384);
+		for (Object v:values) {
+			long best = Long.MAX_VALUE, bestNative = Long.MAX_VALUE, bestDecode = Long.MAX_VALUE, bestDecodeNative = Long.MAX_VALUE;
+			int count = v instanceof int[] || v instanceof double[] ? n / 20 : n;
+			buffer.reset();
+			DataPacket.packCompact(v, buffer);
+			ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+			byte[] bytes = buf.array();
+			for (int r=0;r<5;r++) {
+				long t = System.nanoTime();
+				for (int i=0;i<count;i++) {
+					buffer.reset();
+					DataPacket.packCompact(v, buffer);
+				}
+				best = Math.min(best, System.nanoTime() - t);
+				t = System.nanoTime();
+				for (int i=0;i<count;i++) {
+					buffer.reset();
+					NativeCodec.pack(v, buffer);
+				}
+				bestNative = Math.min(bestNative, System.nanoTime() - t);
+				t = System.nanoTime();
+				for (int i=0;i<count;i++) {
+					buf.rewind();
+					DataPacket.unpackCompact(buf);
+				}
+				bestDecode = Math.min(bestDecode, System.nanoTime() - t);
+				t = System.nanoTime();
+				for (int i=0;i<count;i++) {
+					NativeCodec.unpackObject(bytes, 0, bytes.length);
+				}
+				bestDecodeNative = Math.min(bestDecodeNative, System.nanoTime() - t);
+			}
+			System.out.println(v.getClass().getSimpleName() + " (" + bytes.length + " bytes): encode Java = " + (best / count) + " ns, native = " + (bestNative / count)
+				+ " ns, decode Java = " + (bestDecode / count) + " ns, native = " + (bestDecodeNative / count) + " ns");
+		}
+		byte[] payload = new byte[256];
+		long best = Long.MAX_VALUE, bestNative = Long.MAX_VALUE;
+		for (int r=0;r<5;r++) {
+			long t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				buffer.reset();
+				buffer.skip(DataPacket.HEADER_SIZE);
+				buffer.put(payload);
+				buffer.set(0, 1);
+				buffer.setInt(1, payload.length);
+				buffer.setLong(5, i);
+				buffer.setLong(13, i);
+				buffer.toByteArray();
+			}
+			best = Math.min(best, System.nanoTime() - t);
+			t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				NativeCodec.makePacketBytes(1, i, i, payload, 0, payload.length);
+			}
+			bestNative = Math.min(bestNative, System.nanoTime() - t);
+		}
+		System.out.println("Legacy frame (" + payload.length + " bytes of payload): Java = " + (best / n) + " ns, native = " + (bestNative / n) + " ns");
+	}
+	
+	private static String toString(Object o) {
+		if (o instanceof int[]) {
+			return Arrays.toString((int[])o);
+		} else if (o instanceof long[]) {
+			return Arrays.toString((long[])o);
+		} else if (o instanceof double[]) {
+			return Arrays.toString((double[])o);
+		} else if (o instanceof Object[]) {
+			return Arrays.deepToString((Object[])o);
+		}
+		return String.valueOf(o);
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+/**
+ * Test packing plain objects along their schema
+ * @author Benjamin Dezile
+ */
+public class SchemaTest extends TestCase {
+	
+	public void setUp() {
+		Schema.register(Order.class);
+		Schema.register(Item.class);
+	}
+	
+	public void tearDown() {
+		Schema.unregister(Order.class);
+		Schema.unregister(Item.class);
+	}
+	
+	@Test
+	public void testSchema() {
+		Schema s = Schema.get(Item.class);
+		assertNotNull(s);
+		assertSame(Schema.get(s.getId()), s);
+		assertSame(Schema.register(Item.class), s);
+		/* Sorted by name, transient and static fields left out */
+		assertEquals(s.getFieldNames().length, 4);
+		assertEquals(s.getFieldNames()[0], "code");
+		assertEquals(s.getFieldNames()[3], "quantity");
+		try {
+			Schema.register(NoDefaultConstructor.class);
+			fail("A constructor without arguments is required");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testPackUnpack() throws Exception {
+		Order order = newOrder(10);
+		PacketBuffer buffer = new PacketBuffer(64);
+		DataPacket.packCompact(order, buffer);
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		Order order2 = (Order)DataPacket.unpackCompact(buf);
+		assertEquals(buf.remaining(), 0);
+		assertEquals(order2, order);
+		assertNull(order2.note);
+		buf.rewind();
+		DataPacket.skipCompact(buf);
+		assertEquals(buf.remaining(), 0);
+		/* Unknown on the other end */
+		Schema.unregister(Item.class);
+		buf.rewind();
+		try {
+			DataPacket.unpackCompact(buf);
+			fail("Items are not registered anymore");
+		} catch (IllegalArgumentException e) {
+		}
+		/* Only in the compact format */
+		try {
+			DataPacket.packObject(order);
+			fail("Schemas are not available in the legacy format");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testSpeed() throws Exception {
+		int n = 10000;
+		Order order = newOrder(20);
+		Map<String,Object> map = toMap(order);
+		PacketBuffer buffer = new PacketBuffer(1024);
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buffer.reset();
+			DataPacket.packObject(toMap(order), buffer);
+		}
+		long dt = System.nanoTime() - t;
+		int mapSize = buffer.size();
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buffer.reset();
+			DataPacket.packCompact(map, buffer);
+		}
+		long dt2 = System.nanoTime() - t;
+		int compactMapSize = buffer.size();
+		ByteBuffer buf = ByteBuffer.wrap(buffer.toByteArray());
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buffer.reset();
+			DataPacket.packCompact(order, buffer);
+		}
+		long dt3 = System.nanoTime() - t;
+		System.out.println("Encode: JSON map = " + mapSize + " bytes, " + (dt / n / 1000.0) + " us, binary map = " + compactMapSize + " bytes, " + (dt2 / n / 1000.0) + " us, schema = " + buffer.size() + " bytes, " + (dt3 / n / 1000.0) + " us");
+		assertTrue(buffer.size() < compactMapSize);
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buf.rewind();
+			DataPacket.unpackCompact(buf);
+		}
+		dt2 = System.nanoTime() - t;
+		buf = ByteBuffer.wrap(buffer.toByteArray());
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			buf.rewind();
+			DataPacket.unpackCompact(buf);
+		}
+		dt3 = System.nanoTime() - t;
+		System.out.println("Decode: binary map = " + (dt2 / n / 1000.0) + " us, schema = " + (dt3 / n / 1000.0) + " us");
+	}
+	
+	private static Order newOrder(int nItems) {
+		Order order = new Order();
+		order.id = 123456789012L;
+		order.customer = "customer@example.com";
+		order.total = 99.95;
+		order.paid = true;
+		order.items = new ArrayList<Item>();
+		for (int i=0;i<nItems;i++) {
+			Item item = new Item();
+			item.name = "item" + i;
+			item.quantity = i;
+			item.price = i * 1.5f;
+			item.code = (char)('A' + i);
+			order.items.add(item);
+		}
+		return order;
+	}
+	
+	private static Map<String,Object> toMap(Order order) {
+		Map<String,Object> m = new HashMap<String,Object>();
+		m.put("id", order.id);
+		m.put("customer", order.customer);
+		m.put("total", order.total);
+		m.put("paid", order.paid);
+		List<Object> items = new ArrayList<Object>();
+		for (Item item:order.items) {
+			Map<String,Object> im = new HashMap<String,Object>();
+			im.put("name", item.name);
+			im.put("quantity", item.quantity);
+			im.put("price", item.price);
+			im.put("code", item.code);
+			items.add(im);
+		}
+		m.put("items", items);
+		return m;
+	}
+	
+	private static class Order {
+
+		long id;
+		String customer;
+		double total;
+		boolean paid;
+		String note;
+		List<Item> items;
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Order)) {
+				return false;
+			}
+			Order other = (Order)o;
+			return id == other.id && customer.equals(other.customer) && total == other.total && paid == other.paid && items.equals(other.items);
+		}
+
+		public int hashCode() {
+			return (int)id;
+		}
+	
+	}
+	
+	private static class Item {
+
+		static int count;
+		String name;
+		int quantity;
+		float price;
+		char code;
+		transient Object cached;
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Item)) {
+				return false;
+			}
+			Item other = (Item)o;
+			return name.equals(other.name) && quantity == other.quantity && price == other.price && code == other.code;
+		}
+
+		public int hashCode() {
+			return quantity;
+		}
+	
+	}
+	
+	private static class NoDefaultConstructor {
+
+		int value;
+
+		NoDefaultConstructor(int v) {
+			value = v;
+		}
+	
+	}
+
+}
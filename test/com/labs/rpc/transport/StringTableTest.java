@@ -0,0 +1,163 @@
+package com.labs.rpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import junit.framework.TestCase;
+
+/**
+ * Test sharing strings between the frames of a connection
+ * @author Benjamin Dezile
+ */
+public class StringTableTest extends TestCase {
+	
+	public void tearDown() {
+		StringTable.unbind();
+	}
+	
+	@Test
+	public void testShare() throws Exception {
+		StringTable out = new StringTable(16);
+		StringTable in = new StringTable(16);
+		in.bind();
+		/* Sent in full the first time, even twice in the same frame */
+		StringTable.Frame f1 = out.newFrame();
+		byte[] b1 = pack(new Object[]{"key1", "key1", "x", "value"}, f1);
+		assertEquals(out.count(), 2);
+		/* Not referred to until the first frame is out */
+		StringTable.Frame f2 = out.newFrame();
+		byte[] b2 = pack("key1", f2);
+		assertEquals(b2[0], DataPacket.FORMAT_STRING);
+		f2.sent();
+		f1.sent();
+		StringTable.Frame f3 = out.newFrame();
+		byte[] b3 = pack("key1", f3);
+		assertEquals(b3.length, 2);
+		assertEquals(b3[0], DataPacket.FORMAT_STRING_REF);
+		f3.sent();
+		/* Received in order */
+		Object[] res = (Object[])DataPacket.unpackCompact(ByteBuffer.wrap(b1));
+		assertEquals(res[0], "key1");
+		assertEquals(res[1], "key1");
+		assertEquals(res[2], "x");
+		assertEquals(res[3], "value");
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(b2)), "key1");
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(b3)), "key1");
+		ByteBuffer buf = ByteBuffer.wrap(b1);
+		DataPacket.skipCompact(buf);
+		assertEquals(buf.remaining(), 0);
+		/* Unknown index */
+		try {
+			DataPacket.unpackCompact(ByteBuffer.wrap(new byte[]{DataPacket.FORMAT_STRING_REF, 9}));
+			fail("Nothing was sent at that index");
+		} catch (IllegalArgumentException e) {
+		}
+		/* Outside of a connection */
+		StringTable.unbind();
+		try {
+			DataPacket.unpackCompact(ByteBuffer.wrap(b3));
+			fail("No table to look the string up in");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testEviction() throws Exception {
+		StringTable out = new StringTable(2);
+		StringTable in = new StringTable(2);
+		in.bind();
+		List<byte[]> sent = new ArrayList<byte[]>();
+		StringTable.Frame f = out.newFrame();
+		sent.add(pack(new Object[]{"aa", "bb"}, f));
+		f.sent();
+		f = out.newFrame();
+		sent.add(pack("aa", f));
+		f.sent();
+		/* The least recently used string gives up its index */
+		f = out.newFrame();
+		sent.add(pack("cc", f));
+		assertEquals(out.count(), 2);
+		f.sent();
+		f = out.newFrame();
+		sent.add(pack(new Object[]{"aa", "cc", "bb"}, f));
+		/* Held by that frame, nothing can be reassigned until it is out */
+		StringTable.Frame f2 = out.newFrame();
+		byte[] b = pack("dd", f2);
+		assertEquals(b[0], DataPacket.FORMAT_STRING);
+		f2.sent();
+		f.sent();
+		Object[] res = (Object[])DataPacket.unpackCompact(ByteBuffer.wrap(sent.get(0)));
+		assertEquals(res[0], "aa");
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(sent.get(1))), "aa");
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(sent.get(2))), "cc");
+		res = (Object[])DataPacket.unpackCompact(ByteBuffer.wrap(sent.get(3)));
+		assertEquals(res[0], "aa");
+		assertEquals(res[1], "cc");
+		assertEquals(res[2], "bb");
+		/* Strings of a frame that never went out are given up */
+		f = out.newFrame();
+		pack("ee", f);
+		f.dropped();
+		assertEquals(out.count(), 1);
+		f = out.newFrame();
+		b = pack("ee", f);
+		assertEquals(b[0], DataPacket.FORMAT_STRING_DEF);
+	}
+	
+	@Test
+	public void testSize() throws Exception {
+		List<Object> rows = new ArrayList<Object>();
+		for (int i=0;i<50;i++) {
+			Map<String,Object> row = new HashMap<String,Object>();
+			for (int k=0;k<20;k++) {
+				row.put("column" + k, k == 0 ? "status" + (i % 3) : i * k);
+			}
+			rows.add(row);
+		}
+		StringTable out = new StringTable(StringTable.DEFAULT_SIZE);
+		StringTable in = new StringTable(StringTable.DEFAULT_SIZE);
+		in.bind();
+		int n = 2000;
+		PacketBuffer buffer = new PacketBuffer(4096);
+		int plain = 0, first = 0, shared = 0;
+		long dt = 0, dt2 = 0;
+		for (int r=0;r<3;r++) {
+			long t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				buffer.reset();
+				DataPacket.packCompact(rows, buffer);
+			}
+			dt = System.nanoTime() - t;
+			plain = buffer.size();
+			t = System.nanoTime();
+			for (int i=0;i<n;i++) {
+				StringTable.Frame f = out.newFrame();
+				buffer.reset();
+				buffer.setStrings(f);
+				DataPacket.packCompact(rows, buffer);
+				buffer.setStrings(null);
+				f.sent();
+				if (first == 0) {
+					first = buffer.size();
+					DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray()));
+				}
+			}
+			dt2 = System.nanoTime() - t;
+			shared = buffer.size();
+		}
+		assertEquals(DataPacket.unpackCompact(ByteBuffer.wrap(buffer.toByteArray())).toString(), rows.toString());
+		System.out.println("50 rows of 20 columns: plain = " + plain + " bytes, " + (dt / n / 1000.0) + " us, first = " + first + " bytes, shared = " + shared + " bytes, " + (dt2 / n / 1000.0) + " us");
+		assertTrue(shared < plain / 2);
+	}
+	
+	private static byte[] pack(Object obj, StringTable.Frame frame) {
+		PacketBuffer buffer = new PacketBuffer(64);
+		buffer.setStrings(frame);
+		DataPacket.packCompact(obj, buffer);
+		return buffer.toByteArray();
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.labs.rpc.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+import org.junit.Test;
+import com.labs.rpc.RemoteCall;
+
+/**
+ * Test the call state machine
+ * @author Benjamin Dezile
+ */
+public class CallTest extends TestCase {
+	
+	private static final int N_THREADS = 8;
+	private static final int N_CALLS = 20000;
+	
+	@Test
+	public void testStates() {
+		Call call = new Call(new RemoteCall("obj", "meth"));
+		assertFalse(call.isPending());
+		assertFalse(call.setReturned(1));
+		assertTrue(call.setPending());
+		assertFalse(call.setPending());
+		assertTrue(call.isPending());
+		assertTrue(call.setReturned(1));
+		assertTrue(call.isReturned());
+		assertTrue(call.isDone());
+		/* A late timeout does not override the return */
+		assertFalse(call.setTimedOut());
+		assertEquals(call.getReturnValue(), 1);
+		call = new Call(new RemoteCall("obj", "meth"));
+		call.setPending();
+		assertTrue(call.setTimedOut());
+		/* A late return does not override the timeout */
+		assertFalse(call.setReturned(1));
+		assertTrue(call.isTimedOut());
+		assertNull(call.getReturnValue());
+	}
+	
+	@Test
+	public void testWaitForReturn() throws InterruptedException {
+		final Call call = new Call(new RemoteCall("obj", "meth"));
+		call.setPending();
+		long t = System.currentTimeMillis();
+		call.waitForReturn(100);
+		assertTrue(System.currentTimeMillis() - t >= 100);
+		assertFalse(call.isDone());
+		new AsyncTask("Returning thread") {
+			public void run() {
+				call.setReturned(1);
+			}
+		};
+		call.waitForReturn();
+		assertTrue(call.isReturned());
+		/* Returns right away once done */
+		t = System.currentTimeMillis();
+		call.waitForReturn(1000);
+		assertTrue(System.currentTimeMillis() - t < 1000);
+	}
+	
+	@Test
+	public void testCompletionQueue() {
+		Queue<Call> q = new Queue<Call>();
+		Call call1 = new Call(new RemoteCall("obj", "meth"));
+		Call call2 = new Call(new RemoteCall("obj", "meth"));
+		call1.setPending();
+		call2.setPending();
+		call1.addCompletionQueue(q);
+		call2.addCompletionQueue(q);
+		call2.removeCompletionQueue(q);
+		assertTrue(q.isEmpty());
+		call2.setReturned(2);
+		call1.setTimedOut();
+		assertEquals(q.size(), 1);
+		assertSame(q.get(), call1);
+		/* Queued right away when already done */
+		call2.addCompletionQueue(q);
+		assertSame(q.get(), call2);
+	}
+	
+	/**
+	 * Complete calls right after the waiting thread started waiting,
+	 * which is when a wakeup is most likely to be lost
+	 */
+	@Test
+	public void testDeadWaiters() throws InterruptedException {
+		Call call = new Call(new RemoteCall("obj", "meth"));
+		call.setPending();
+		Queue<Call> kept = new Queue<Call>();
+		call.addCompletionQueue(kept);
+		/* Waited on over and over while pending */
+		for (int i=0;i<1000;i++) {
+			Queue<Call> q = new Queue<Call>();
+			call.addCompletionQueue(q);
+			call.removeCompletionQueue(q);
+			if (i % 100 == 0) {
+				call.waitForReturn(1);
+			}
+		}
+		assertEquals(call.getWaiterCount(), 1);
+		/* The remaining waiter still gets the call */
+		call.setReturned(1);
+		assertSame(kept.get(), call);
+		assertEquals(call.getWaiterCount(), 0);
+	}
+	
+	@Test
+	public void testNoLostWakeup() throws InterruptedException {
+		final Call[] calls = new Call[N_CALLS];
+		for (int i=0;i<N_CALLS;i++) {
+			calls[i] = new Call(new RemoteCall("obj", "meth"));
+			calls[i].setPending();
+		}
+		final AtomicInteger next = new AtomicInteger(-1);
+		Thread returner = new Thread("Returning thread") {
+			public void run() {
+				for (int i=0;i<N_CALLS;i++) {
+					while (next.get() < i) {
+						Thread.yield();
+					}
+					calls[i].setReturned(i);
+				}
+			}
+		};
+		returner.start();
+		long t = System.nanoTime();
+		for (int i=0;i<N_CALLS;i++) {
+			next.set(i);
+			calls[i].waitForReturn(5000);
+			assertTrue("Missed wakeup for call #" + i, calls[i].isReturned());
+		}
+		long dt = System.nanoTime() - t;
+		returner.join();
+		System.out.println("Return handoff = " + (dt / N_CALLS) + " ns");
+	}
+	
+	/**
+	 * Benchmark status reads and completions with many threads
+	 * hitting the same calls
+	 */
+	@Test
+	public void testContention() throws InterruptedException {
+		final Call[] calls = new Call[N_CALLS];
+		for (int i=0;i<N_CALLS;i++) {
+			calls[i] = new Call(new RemoteCall("obj", "meth"));
+			calls[i].setPending();
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(2 * N_THREADS);
+		final AtomicLong readTime = new AtomicLong();
+		final AtomicInteger returned = new AtomicInteger();
+		for (int n=0;n<N_THREADS;n++) {
+			/* Readers polling the status like the timeouter and getReturn do */
+			new Thread("Reader " + n) {
+				public void run() {
+					try {
+						start.await();
+						long t = System.nanoTime();
+						for (int r=0;r<10;r++) {
+							for (Call call:calls) {
+								if (call.isPending() && call.getStartTime() < 0) {
+									fail("Invalid start time");
+								}
+							}
+						}
+						readTime.addAndGet(System.nanoTime() - t);
+					} catch (InterruptedException e) {
+					} finally {
+						end.countDown();
+					}
+				}
+			}.start();
+			/* Competing returns and timeouts */
+			final int id = n;
+			new Thread("Returner " + n) {
+				public void run() {
+					try {
+						start.await();
+						for (Call call:calls) {
+							if (id % 2 == 0 ? call.setReturned(id) : call.setTimedOut()) {
+								returned.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+					} finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		long t = System.nanoTime();
+		start.countDown();
+		end.await();
+		long dt = System.nanoTime() - t;
+		/* Exactly one transition wins for each call */
+		assertEquals(returned.get(), N_CALLS);
+		for (Call call:calls) {
+			assertTrue(call.isDone());
+		}
+		System.out.println("Contended status read = " + (readTime.get() / (10.0 * N_CALLS * N_THREADS)) + " ns");
+		System.out.println("Contended run = " + (dt / (1000 * 1000.0)) + " ms for " + N_CALLS + " calls and " + (2 * N_THREADS) + " threads");
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.labs.rpc.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test the rate-limited error log
+ * @author Benjamin Dezile
+ */
+public class ErrorLogTest extends TestCase {
+	
+	@Test
+	public void testLimit() throws Exception {
+		ErrorLog log = new ErrorLog("test", 3, 200);
+		Exception e = new Exception("test error");
+		for (int i=0;i<10;i++) {
+			assertEquals(log.log("error " + i, e), i < 3);
+		}
+		assertEquals(log.getSuppressed(), 7);
+		/* Printed again once the interval is over */
+		Thread.sleep(250);
+		assertTrue(log.log("error", null));
+		assertEquals(log.getSuppressed(), 7);
+		try {
+			new ErrorLog("test", 0, 1000);
+			fail("At least one error per interval");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+	
+	@Test
+	public void testSpeed() throws Exception {
+		ErrorLog log = new ErrorLog("test", 1, 60000);
+		Exception e = new Exception("test error");
+		log.log("error", e);
+		int n = 1000000;
+		long t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			log.log("error", e);
+		}
+		long dt = System.nanoTime() - t;
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			new RemoteException(RemoteException.ERROR_INVOCATION, "error");
+		}
+		long dt2 = System.nanoTime() - t;
+		RemoteException.setStackTraces(true);
+		t = System.nanoTime();
+		for (int i=0;i<n;i++) {
+			new RemoteException(RemoteException.ERROR_INVOCATION, "error");
+		}
+		long dt3 = System.nanoTime() - t;
+		RemoteException.setStackTraces(false);
+		System.out.println("Suppressed error: " + (dt / n) + " ns, remote exception: " + (dt2 / n) + " ns, with stack trace: " + (dt3 / n) + " ns");
+		assertEquals(log.getSuppressed(), n);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.labs.rpc.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test the long-keyed map
+ * @author Benjamin Dezile
+ */
+public class LongMapTest extends TestCase {
+	
+	private static final int N_OPS = 1000000;
+	
+	@Test
+	public void testBasics() {
+		LongMap<String> map = new LongMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(-5, "b"));
+		assertNull(map.put(0, "c"));
+		assertEquals(map.put(1, "d"), "a");
+		assertEquals(map.size(), 3);
+		assertEquals(map.get(1), "d");
+		assertEquals(map.get(-5), "b");
+		assertEquals(map.get(0), "c");
+		assertNull(map.get(2));
+		assertTrue(map.containsKey(0));
+		assertEquals(map.remove(-5), "b");
+		assertNull(map.remove(-5));
+		assertFalse(map.containsKey(-5));
+		assertEquals(map.keys().length, 2);
+		assertEquals(map.values().size(), 2);
+		try {
+			map.put(3, null);
+			fail("Null values should not be allowed");
+		} catch (IllegalArgumentException e) {
+		}
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(1));
+	}
+	
+	/**
+	 * Compare against a regular hash map over random operations,
+	 * which exercises growth and removals in the middle of probe runs
+	 */
+	@Test
+	public void testRandom() {
+		LongMap<Long> map = new LongMap<Long>();
+		Map<Long,Long> ref = new HashMap<Long,Long>();
+		Random rand = new Random(42);
+		for (int i=0;i<N_OPS / 10;i++) {
+			long key = rand.nextInt(2000);
+			if (rand.nextBoolean()) {
+				assertEquals(map.put(key, (long)i), ref.put(key, (long)i));
+			} else {
+				assertEquals(map.remove(key), ref.remove(key));
+			}
+			assertEquals(map.size(), ref.size());
+		}
+		for (long key=0;key<2000;key++) {
+			assertEquals(map.get(key), ref.get(key));
+		}
+	}
+	
+	/**
+	 * Benchmark against a regular hash map with dense sequence numbers
+	 */
+	@Test
+	public void testSpeed() {
+		LongMap<String> map = new LongMap<String>();
+		Map<Long,String> ref = new HashMap<Long,String>();
+		long t = System.nanoTime();
+		for (long seq=2;seq<2*N_OPS;seq+=2) {
+			map.put(seq, "call");
+			if (seq > 200) {
+				map.get(seq - 100);
+				map.remove(seq - 200);
+			}
+		}
+		long dt = System.nanoTime() - t;
+		System.out.println("LongMap = " + (dt / N_OPS) + " ns per put/get/remove");
+		t = System.nanoTime();
+		for (long seq=2;seq<2*N_OPS;seq+=2) {
+			ref.put(seq, "call");
+			if (seq > 200) {
+				ref.get(seq - 100);
+				ref.remove(seq - 200);
+			}
+		}
+		dt = System.nanoTime() - t;
+		System.out.println("HashMap = " + (dt / N_OPS) + " ns per put/get/remove");
+		assertEquals(map.size(), ref.size());
+	}
+
+}
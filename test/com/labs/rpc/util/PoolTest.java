@@ -0,0 +1,76 @@
+package com.labs.rpc.util;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Test the object pool
+ * @author Benjamin Dezile
+ */
+public class PoolTest extends TestCase {
+	
+	private static final int N_OBJECTS = 1000000;
+	
+	@Test
+	public void testAcquireRelease() {
+		Pool<StringBuilder> pool = new BuilderPool(2);
+		StringBuilder sb1 = pool.acquire();
+		StringBuilder sb2 = pool.acquire();
+		StringBuilder sb3 = pool.acquire();
+		assertNotSame(sb1, sb2);
+		assertEquals(pool.available(), 0);
+		assertTrue(pool.release(sb1));
+		assertTrue(pool.release(sb2));
+		/* Full, the extra object is dropped */
+		assertFalse(pool.release(sb3));
+		assertFalse(pool.release(null));
+		assertEquals(pool.available(), 2);
+		/* Most recently released first */
+		assertSame(pool.acquire(), sb2);
+		assertSame(pool.acquire(), sb1);
+		assertEquals(pool.available(), 0);
+		try {
+			new BuilderPool(0);
+			fail("The capacity should be checked");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	/**
+	 * Benchmark recycling against allocating
+	 */
+	@Test
+	public void testSpeed() {
+		Pool<StringBuilder> pool = new BuilderPool(16);
+		StringBuilder sb;
+		long t = System.nanoTime();
+		for (int i=0;i<N_OBJECTS;i++) {
+			sb = pool.acquire();
+			sb.setLength(0);
+			sb.append(i);
+			pool.release(sb);
+		}
+		long dt = System.nanoTime() - t;
+		System.out.println("Pooled = " + (dt / N_OBJECTS) + " ns per object");
+		t = System.nanoTime();
+		for (int i=0;i<N_OBJECTS;i++) {
+			sb = new StringBuilder(64);
+			sb.append(i);
+		}
+		dt = System.nanoTime() - t;
+		System.out.println("Allocated = " + (dt / N_OBJECTS) + " ns per object");
+	}
+	
+	private static class BuilderPool extends Pool<StringBuilder> {
+		
+		public BuilderPool(int capacity) {
+			super(capacity);
+		}
+		
+		protected StringBuilder create() {
+			return new StringBuilder(64);
+		}
+		
+	}
+
+}